@@ -0,0 +1,81 @@
+package asr;
+
+import bn.ctmc.SubstModel;
+import bn.prob.EnumDistrib;
+import dat.EnumSeq;
+import dat.Enumerable;
+import dat.file.Utils;
+import dat.phylo.Tree;
+import dat.pog.POGTree;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indel inference and joint/marginal reconstruction on the alignments and trees bundled in data/,
+ * loaded from the directory given by the system property "bnkit.data" (by default "data").
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class PredictionBench {
+
+    @Param({"3_2_1_1_filt", "master_t10"})
+    public String dataset;
+
+    @Param({"JTT"})
+    public String model;
+
+    POGTree pogtree;
+    SubstModel substmodel;
+    Prediction prediction;
+
+    @Setup
+    public void setup() throws Exception {
+        String dir = System.getProperty("bnkit.data", "data");
+        EnumSeq.Alignment aln = Utils.loadAlignment(dir + File.separator + dataset + ".aln", Enumerable.aacid);
+        Tree tree = Utils.loadTree(dir + File.separator + dataset + ".nwk");
+        pogtree = new POGTree(aln, tree);
+        substmodel = SubstModel.createModel(model);
+        prediction = Prediction.PredictByBidirEdgeParsimony(pogtree);
+    }
+
+    /**
+     * A prediction that has not inferred any marginal distributions yet, since they are kept once inferred.
+     */
+    @State(Scope.Thread)
+    public static class Fresh {
+        Prediction prediction;
+        Object root;
+
+        @Setup(Level.Invocation)
+        public void setup(PredictionBench bench) {
+            prediction = Prediction.PredictByBidirEdgeParsimony(bench.pogtree);
+            root = prediction.getTree().getBranchPoint(0).getID();
+        }
+    }
+
+    @Benchmark
+    public Prediction predictBySICP() {
+        return Prediction.PredictBySICP(pogtree);
+    }
+
+    @Benchmark
+    public Prediction predictByBidirEdgeParsimony() {
+        return Prediction.PredictByBidirEdgeParsimony(pogtree);
+    }
+
+    @Benchmark
+    public Object[][] getJoint() {
+        return prediction.getJoint(substmodel);
+    }
+
+    @Benchmark
+    public EnumDistrib[] getMarginal(Fresh fresh) {
+        return fresh.prediction.getMarginal(fresh.root, substmodel, null);
+    }
+}
@@ -0,0 +1,55 @@
+package bn.alg;
+
+import bn.ctmc.SubstModel;
+import dat.phylo.PhyloBN;
+import dat.phylo.Tree;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joint (MPE) inference by variable elimination on phylogenetic BNs of random trees, with all leaves instantiated.
+ * Inference from a new query is compared with executing a compiled plan.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class VarElimBench {
+
+    @Param({"100", "1000", "10000"})
+    public int nLeaves;
+
+    @Param({"JTT"})
+    public String model;
+
+    private VarElim ve;
+    private VarElim.Plan plan;
+
+    @Setup
+    public void setup() {
+        Tree tree = Tree.Random(nLeaves, 1, 2.0, 0.05, 2, 2);
+        SubstModel substmodel = SubstModel.createModel(model);
+        Object[] alpha = substmodel.getDomain().getValues();
+        PhyloBN pbn = PhyloBN.create(tree, substmodel);
+        Random rand = new Random(1);
+        for (int idx : tree.getLeaves())
+            pbn.getBNode(idx).setInstance(alpha[rand.nextInt(alpha.length)]);
+        ve = new VarElim();
+        ve.instantiate(pbn.getBN());
+        plan = ve.compile(ve.makeMPE());
+    }
+
+    @Benchmark
+    public QueryResult infer() {
+        return ve.infer(ve.makeMPE());
+    }
+
+    @Benchmark
+    public QueryResult inferPlan() {
+        return ve.infer(plan);
+    }
+}
@@ -0,0 +1,55 @@
+package bn.ctmc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transition probabilities P(X|Y,t) for a set of branch lengths, one at a time through the cache, and all at once.
+ * The cache is cleared before every iteration so that misses (matrix exponentials) are included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubstModelBench {
+
+    @Param({"JTT", "LG"})
+    public String model;
+
+    @Param({"100", "1000"})
+    public int nTimes;
+
+    private SubstModel substmodel;
+    private double[] times;
+
+    @Setup
+    public void setup() {
+        substmodel = SubstModel.createModel(model);
+        Random rand = new Random(1);
+        times = new double[nTimes];
+        for (int i = 0; i < nTimes; i ++)
+            times[i] = rand.nextDouble() * 0.5;
+    }
+
+    @Setup(Level.Iteration)
+    public void clearCache() {
+        substmodel.getProbsCache().clear();
+    }
+
+    @Benchmark
+    public double getProbsCached() {
+        double sum = 0;
+        for (double t : times)
+            sum += substmodel.getProbs(t)[0];
+        return sum;
+    }
+
+    @Benchmark
+    public double[] getProbsBatch() {
+        return substmodel.getProbs(times);
+    }
+}
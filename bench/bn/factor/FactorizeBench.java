@@ -0,0 +1,68 @@
+package bn.factor;
+
+import bn.Predef;
+import dat.EnumVariable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Products and marginalisation of dense factors, where two factors overlap in all but one variable.
+ * Factor size is set by the number of variables and the number of values each variable can take.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FactorizeBench {
+
+    @Param({"2", "3", "4"})
+    public int nVars;
+
+    @Param({"4", "20"})
+    public int nValues;
+
+    private EnumVariable[] vars;
+    private AbstractFactor X, Y;
+
+    private static AbstractFactor createFactor(Random rand, EnumVariable... vars) {
+        AbstractFactor f = new DenseFactor(vars);
+        AbstractFactor.FactorFiller ff = f.getFiller();
+        for (int i = 0; i < f.getSize(); i ++)
+            ff.setValue(i, rand.nextDouble());
+        f.setValuesByFiller(ff);
+        return f;
+    }
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(1);
+        vars = new EnumVariable[nVars + 1];
+        for (int i = 0; i < vars.length; i ++)
+            vars[i] = Predef.Number(nValues, "V" + i);
+        EnumVariable[] xvars = new EnumVariable[nVars];
+        EnumVariable[] yvars = new EnumVariable[nVars];
+        System.arraycopy(vars, 0, xvars, 0, nVars);
+        System.arraycopy(vars, 1, yvars, 0, nVars);
+        X = createFactor(rand, xvars);
+        Y = createFactor(rand, yvars);
+    }
+
+    @Benchmark
+    public AbstractFactor getProduct() {
+        return Factorize.getProduct(X, Y);
+    }
+
+    @Benchmark
+    public AbstractFactor getMargin() {
+        return Factorize.getMargin(X, vars[0]);
+    }
+
+    @Benchmark
+    public AbstractFactor getMaxMargin() {
+        return Factorize.getMaxMargin(X, vars[0]);
+    }
+}
@@ -81,6 +81,13 @@ public class CommandCentral {
             } else {
 
             }
+            if (request != null && request.isQueued()) // identical requests share the same result
+                request.setKey(JSONUtils.digest(command, jparams));
+            if (request != null) { // resources requested by client, used when the job is scheduled
+                request.setThreads(json.optInt("Threads", request.getThreads()));
+                request.setJobPriority(json.optInt("Priority", request.getJobPriority()));
+                request.setMemory(json.optInt("Memory", request.getMemory()));
+            }
         } catch (GRequestRuntimeException syntax) {
             throw new GRequestRuntimeException("Invalid request: " + syntax.getMessage());
         } catch (JSONException e) {
@@ -241,13 +248,13 @@ public class CommandCentral {
             START_TIME = System.currentTimeMillis();
             switch (INDEL_IDX) {
                 case 0:
-                    indelpred = Prediction.PredictByBidirEdgeParsimony(pogTree);
+                    indelpred = Prediction.PredictByBidirEdgeParsimony(pogTree, getThreads());
                     break;
                 case 1:
-                    indelpred = Prediction.PredictByBidirEdgeMaxLhood(pogTree);
+                    indelpred = Prediction.PredictByBidirEdgeMaxLhood(pogTree, getThreads());
                     break;
                 case 2:
-                    indelpred = Prediction.PredictBySICP(pogTree);
+                    indelpred = Prediction.PredictBySICP(pogTree, getThreads());
                     break;
                 case 3:
                     indelpred = Prediction.PredictBySICML(pogTree);
@@ -261,6 +268,7 @@ public class CommandCentral {
                 default:
                     break;
             }
+            indelpred.NTHREADS = getThreads();
             if (MODE == GRASP.Inference.JOINT)
                 indelpred.getJoint(MODEL, RATES);
             else if (MODE == GRASP.Inference.MARGINAL) {
@@ -396,7 +404,7 @@ public class CommandCentral {
 
         @Override
         public void run() {
-            pbn.trainEM(dataset.getFeatures(), dataset.getNonitemisedData(), SEED);
+            pbn.trainEM(dataset.getFeatures(), dataset.getNonitemisedData(), SEED, getThreads());
             JSONObject myres = new JSONObject();
             myres.put("Distrib", pbn.getMasterJSON());
             this.setResult(myres);
@@ -486,7 +494,7 @@ public class CommandCentral {
         public void run() {
             JSONObject myres = new JSONObject();
             try {
-                pbn.trainEM(dataset, SEED);
+                pbn.trainEM(dataset, SEED, getThreads());
                 myres.put("Distrib", pbn.getMasterJSON());
             } catch (RuntimeException e) {
                 this.setError(e.getMessage());
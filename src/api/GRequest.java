@@ -5,12 +5,17 @@ import dat.EnumSeq;
 import dat.phylo.IdxTree;
 import json.JSONException;
 import json.JSONObject;
+import json.JSONWriter;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Class to represent a request to GRASP server
@@ -29,9 +34,14 @@ public class GRequest extends Thread implements Comparable<GRequest>, Job {
     private int PRIORITY = 0; // default -10 to +10 with -10 being lowest priority and +10 being the highest
     private int NTHREADS = 1; // default number of threads that will be allowed to spawn from this
     private int MEMORY   = 1; // expected GB requirement of the request
+    private int SHARE    = 0; // jobs by the same user ahead of this one when it was queued (set by JobQueue)
+    private String KEY   = null;    // content hash of command and parameters, identifying identical requests
+    private GRequest source = null; // identical request that computes the result for this one (set by JobQueue)
+    private int nattached = 0;      // identical requests that rely on this one (set by JobQueue)
+    private boolean cancelled = false; // cancelled, but still computed for attached requests
 
     private JSONObject result = null; // container for result of job, when complete
-    private String savedAsFile = null;  // filename, if result has been written
+    private ResultStore store = null;   // storage, if result has been written
 
     public GRequest(String command, String authtoken) {
         this.command = command;
@@ -54,6 +64,8 @@ public class GRequest extends Thread implements Comparable<GRequest>, Job {
         json.put("Priority", PRIORITY);
         json.put("Threads", NTHREADS);
         json.put("Memory", MEMORY);
+        if (source != null)
+            json.put("Source", source.JOB);
         return json;
     }
 
@@ -70,6 +82,28 @@ public class GRequest extends Thread implements Comparable<GRequest>, Job {
         return json;
     }
 
+    /**
+     * Write the request as JSON text, with the same content as {@link #toJSON()}, but without first creating it in memory;
+     * parameters (e.g. alignments and trees) are written as they are traversed.
+     * @param writer
+     */
+    public void write(Writer writer) {
+        JSONWriter w = new JSONWriter(writer);
+        w.object();
+        w.key("Command").value(command);
+        if (authtoken != null)
+            w.key("Auth").value(authtoken);
+        if (params != null) {
+            w.key("Params").object();
+            for (Map.Entry<String, Object> entry : params.entrySet()) {
+                if (entry.getValue() != null)
+                    w.key(entry.getKey()).value(entry.getValue());
+            }
+            w.endObject();
+        }
+        w.endObject();
+    }
+
     public void setParams(Map<String, Object> params) {
         this.params = params;
     }
@@ -84,10 +118,14 @@ public class GRequest extends Thread implements Comparable<GRequest>, Job {
     }
 
     public boolean isFailed() {
+        if (source != null)
+            return source.isFailed();
         return ERRMSG != null;
     }
 
     public String getError() {
+        if (source != null)
+            return source.getError();
         return ERRMSG == null ? "" : ERRMSG;
     }
 
@@ -103,33 +141,43 @@ public class GRequest extends Thread implements Comparable<GRequest>, Job {
     }
 
     public STATUS getStatus() {
+        if (source != null)
+            return source.getStatus();
         return status;
     }
 
     public boolean isWaiting() {
-        return status == STATUS.WAITING;
+        return getStatus() == STATUS.WAITING;
+    }
+
+    /**
+     * Set the key that identifies the request by content, so that identical requests can share the same result
+     * @param key content hash, see {@link JSONUtils#digest(Object...)}
+     */
+    public void setKey(String key) {
+        this.KEY = key;
+    }
+
+    public String getKey() {
+        return KEY;
+    }
+
+    /**
+     * @return the identical request that computes the result for this one, or null if this request computes its own
+     */
+    public GRequest getSource() {
+        return source;
     }
 
     public JSONObject getResult() {
+        if (source != null)
+            return source.getResult();
         if (status == STATUS.COMPLETED) {
             if (this.result != null) // in memory still
                 return result;
-            else if (this.savedAsFile != null) { // not in memory, but saved
+            else if (this.store != null) { // not in memory, but saved
                 try {
-                    // read from a temporary file
-                    BufferedReader br = new BufferedReader(new FileReader(savedAsFile));
-                    StringBuilder sb = new StringBuilder();
-                    String line = br.readLine();
-                    while (line != null) {
-                        sb.append(line);
-                        line = br.readLine();
-                    }
-                    JSONObject json = new JSONObject(sb.toString());
-                    return json;
-                } catch (JSONException e) {
-                    throw new RuntimeException(e);
-                } catch (FileNotFoundException e) {
-                    throw new RuntimeException(e);
+                    return store.load(JOB);     // null if evicted from storage
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -142,6 +190,62 @@ public class GRequest extends Thread implements Comparable<GRequest>, Job {
         return null;
     }
 
+    /**
+     * Open the JSON text of the result of a completed job; if the result has been saved, it is read from storage
+     * as-is, without being parsed, so that it can be passed on in full without holding it in memory.
+     * The caller is responsible for closing the reader.
+     * @return reader of the result, or null if the result is not available
+     * @throws IOException if the result could not be read from storage
+     */
+    public Reader getResultReader() throws IOException {
+        if (source != null)
+            return source.getResultReader();
+        if (status == STATUS.COMPLETED) {
+            if (this.result != null) // in memory still
+                return new StringReader(result.toString());
+            else if (this.store != null) // not in memory, but saved
+                return store.open(JOB);
+        }
+        return null;
+    }
+
+    /**
+     * Determine if the result of a completed job is available, in memory or in storage
+     * @return true if available, else false
+     */
+    public boolean hasResult() {
+        if (source != null)
+            return source.hasResult();
+        return status == STATUS.COMPLETED && (this.result != null || (this.store != null && this.store.contains(JOB)));
+    }
+
+    /**
+     * Write the JSON text of the result of a completed job; a result in memory is written as it is traversed, rather
+     * than first converted to text, and a saved result is passed on from storage as-is.
+     * @param writer
+     * @return true if the result was written, false if it is not available (then nothing is written)
+     * @throws IOException if the result could not be read from storage
+     */
+    public boolean writeResult(Writer writer) throws IOException {
+        if (source != null)
+            return source.writeResult(writer);
+        if (status != STATUS.COMPLETED)
+            return false;
+        JSONObject inmemory = this.result;
+        if (inmemory != null) {
+            inmemory.write(writer);
+            return true;
+        } else if (this.store != null) {
+            try (Reader reader = store.open(JOB)) {
+                if (reader == null) // evicted
+                    return false;
+                reader.transferTo(writer);
+                return true;
+            }
+        }
+        return false;
+    }
+
     protected void setResult(JSONObject json) {
         result = json;
     }
@@ -161,49 +265,245 @@ public class GRequest extends Thread implements Comparable<GRequest>, Job {
             return false;
     }
 
+
+    public int getThreads() {
+        return NTHREADS;
+    }
+
+    /**
+     * Set the number of threads that the request is expected to use, which is reserved when the job is scheduled.
+     * @param nthreads number of threads, at least 1
+     */
+    public void setThreads(int nthreads) {
+        this.NTHREADS = Math.max(1, nthreads);
+    }
+
+    public int getJobPriority() {
+        return PRIORITY;
+    }
+
+    /**
+     * Set the priority of the request, from -10 (lowest) to +10 (highest); values outside are capped.
+     * @param priority priority
+     */
+    public void setJobPriority(int priority) {
+        this.PRIORITY = Math.max(-10, Math.min(10, priority));
+    }
+
+    public int getMemory() {
+        return MEMORY;
+    }
+
+    public void setMemory(int memory) {
+        this.MEMORY = Math.max(1, memory);
+    }
+
+    public String getAuth() {
+        return authtoken;
+    }
+
+    /**
+     * Order requests by priority (highest first), then by fair-share (the number of jobs the same user had
+     * in the queue at the time the request was added, so that users take turns), then by job number.
+     * @param o the other request
+     * @return negative if this request should run before the other, positive if after
+     */
     @Override
     public int compareTo(GRequest o) {
+        if (this.PRIORITY != o.PRIORITY)
+            return o.PRIORITY - this.PRIORITY;
+        if (this.SHARE != o.SHARE)
+            return this.SHARE - o.SHARE;
         return this.JOB - o.JOB;
     }
 
     /**
-     * Basic job queue for requests
+     * Job queue for requests.
+     * Several jobs are run at the same time, as long as the threads they reserve fit within a global budget.
+     * Each job is run with the threads it reserved, i.e. those it requested but no more than the budget.
+     * Waiting jobs are started in the order defined by {@link GRequest#compareTo(GRequest)}; a job that does not
+     * fit may be passed by jobs that do, but only a limited number of times, after which it is next in line.
      */
     public static class JobQueue extends Thread {
-        private final File directory;
-        private final List<GRequest> currentjobs = new ArrayList<>();
+        /** the number of times a waiting job can be passed by smaller jobs before the queue holds for it */
+        public static int MAX_BYPASS = 8;
+
+        private final ResultStore store;
+        private final int maxthreads;                                  // global thread budget
+        private int nthreads = 0;                                      // threads reserved by running jobs
+        private final List<GRequest> currentjobs = new ArrayList<>();  // all jobs, in the order they were added
+        private final TreeSet<GRequest> waiting = new TreeSet<>();     // waiting jobs, in the order they are started
+        private final Map<String, Integer> shares = new HashMap<>();   // waiting and running jobs per user
+        private final Map<GRequest, Integer> bypassed = new HashMap<>();
+        private final Map<String, GRequest> cache = new HashMap<>();  // requests by content key, that compute results
+        private long hits = 0, misses = 0;                             // requests that were, or were not, identical to one in cache
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();         // signalled when jobs are added or complete
+        private final ExecutorService workers = Executors.newCachedThreadPool();
 
         /**
-         * Open a job queue, with storage (of completed jobs) located in specified directory
+         * Open a job queue, with storage (of completed jobs) located in specified directory,
+         * with a budget of as many threads as there are available processors
          * @param storage
          */
         public JobQueue(File storage) {
-            this.directory = storage;
+            this(storage, Runtime.getRuntime().availableProcessors());
         }
-        public synchronized void add(GRequest request) {
-            request.status = STATUS.WAITING;
-            currentjobs.add(request);
+
+        /**
+         * Open a job queue, with storage (of completed jobs) located in specified directory
+         * @param storage
+         * @param maxthreads the total number of threads that running jobs can reserve
+         */
+        public JobQueue(File storage, int maxthreads) {
+            this(new ResultStore(storage), maxthreads);
         }
 
         /**
-         * Retrieve next job
-         * TODO: possibly use priority instead of just polling the next in queue, then later when selected, ensure that CPU/memory requirements are managed
-         *
-         * @return next job to execute
+         * Open a job queue, with storage of completed jobs as specified
+         * @param store storage of results
+         * @param maxthreads the total number of threads that running jobs can reserve
          */
-        public synchronized GRequest poll() {
-            if (currentjobs.size() > 0) {
-                for (GRequest req : currentjobs) {
-                    if (req.status == STATUS.WAITING) {
-                        return req;
+        public JobQueue(ResultStore store, int maxthreads) {
+            this.store = store;
+            this.maxthreads = Math.max(1, maxthreads);
+        }
+
+        public int getMaxThreads() {
+            return maxthreads;
+        }
+
+        /**
+         * @return number of threads currently reserved by running jobs
+         */
+        public int getReservedThreads() {
+            lock.lock();
+            try {
+                return nthreads;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * The number of threads that a request reserves when run, never more than the budget.
+         */
+        private int reservation(GRequest req) {
+            return Math.min(req.NTHREADS, maxthreads);
+        }
+
+        /**
+         * Add request to the queue. If an identical request (with the same key) is waiting, running or has a result that is
+         * still available, the request is attached to it, and shares its status and result, instead of being computed again.
+         * @param request
+         */
+        public void add(GRequest request) {
+            lock.lock();
+            try {
+                request.status = STATUS.WAITING;
+                currentjobs.add(request);
+                if (request.KEY != null) {
+                    purge();
+                    GRequest source = cache.get(request.KEY);
+                    if (source != null && isReusable(source)) {
+                        request.source = source;
+                        source.nattached += 1;
+                        hits += 1;
+                        System.out.println("Job " + request.JOB + " is identical to job " + source.JOB);
+                        return;
                     }
+                    misses += 1;
+                    cache.put(request.KEY, request);
                 }
+                int share = shares.getOrDefault(request.authtoken, 0);
+                request.SHARE = share;
+                shares.put(request.authtoken, share + 1);
+                waiting.add(request);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Determine if the request is waiting or running, or has completed with a result that is still available.
+         * Must be called while holding the lock.
+         */
+        private boolean isReusable(GRequest req) {
+            if (req.status == STATUS.WAITING || req.status == STATUS.RUNNING)
+                return true;
+            if (req.status != STATUS.COMPLETED || req.isFailed())
+                return false;
+            return req.result != null || (req.store != null && req.store.contains(req.JOB));
+        }
+
+        /**
+         * Remove requests from the cache that can no longer be reused, i.e. those that failed, or completed
+         * with a result that has since been evicted from storage.
+         * Must be called while holding the lock.
+         */
+        private void purge() {
+            cache.values().removeIf(req -> !isReusable(req));
+        }
+
+        /**
+         * @return the number of requests that were identical to one already in the queue (hits) or not (misses),
+         * and the number of distinct requests in the cache
+         */
+        public JSONObject getCacheStats() {
+            lock.lock();
+            try {
+                purge();
+                JSONObject json = new JSONObject();
+                json.put("Hits", hits);
+                json.put("Misses", misses);
+                json.put("Entries", cache.size());
+                return json;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Retrieve next job to execute, i.e. the first waiting job in order that fits within the thread budget;
+         * jobs that have been passed too many times block those after them.
+         * Must be called while holding the lock.
+         * @return next job to execute, or null if none can run now
+         */
+        private GRequest next() {
+            int free = maxthreads - nthreads;
+            for (GRequest req : waiting) {
+                if (reservation(req) <= free)
+                    return req;
+                if (bypassed.getOrDefault(req, 0) >= MAX_BYPASS)
+                    return null;
             }
             return null;
         }
 
+        /**
+         * Retrieve next job, without removing it from the queue
+         * @return next job to execute, or null if none can run now
+         */
+        public GRequest poll() {
+            lock.lock();
+            try {
+                return next();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return a copy of all jobs in the queue, in the order they were added
+         */
         public List<GRequest> getJobs() {
-            return currentjobs;
+            lock.lock();
+            try {
+                return new ArrayList<>(currentjobs);
+            } finally {
+                lock.unlock();
+            }
         }
 
         /**
@@ -212,11 +512,16 @@ public class GRequest extends Thread implements Comparable<GRequest>, Job {
          * @return request
          */
         public GRequest getRequest(int job) {
-            for (GRequest req : currentjobs) {
-                if (req.getJob() == job)
-                    return req;
+            lock.lock();
+            try {
+                for (GRequest req : currentjobs) {
+                    if (req.getJob() == job)
+                        return req;
+                }
+                return null;
+            } finally {
+                lock.unlock();
             }
-            return null;
         }
 
         /**
@@ -228,21 +533,31 @@ public class GRequest extends Thread implements Comparable<GRequest>, Job {
             return getPlace(request.JOB);
         }
         /**
-         * Retrieve place in queue of job.
+         * Retrieve place in queue of job, in the order that waiting jobs are started.
          * @param job job number
          * @return place 1-size of queue; 0 if the job request does not exist
          */
         public int getPlace(int job) {
-            int place = 1;
-            for (GRequest req : currentjobs) {
-                if (req.status == STATUS.WAITING) {
-                    if (req.getJob() == job)
+            lock.lock();
+            try {
+                GRequest target = null;
+                for (GRequest req : currentjobs) {
+                    if (req.getJob() == job) {
+                        target = req.source != null ? req.source : req;
+                        break;
+                    }
+                }
+                int place = 1;
+                for (GRequest req : waiting) {
+                    if (req == target)
                         return place;
                     else
                         place += 1;
                 }
+                return 0;
+            } finally {
+                lock.unlock();
             }
-            return 0;
         }
 
         /**
@@ -259,66 +574,132 @@ public class GRequest extends Thread implements Comparable<GRequest>, Job {
          * @return true if cancelled, else false
          */
         public boolean cancel(int job) {
-            for (GRequest req : currentjobs) {
-                if (req.status == STATUS.WAITING) {
-                    if (req.getJob() == job) {
-                        return currentjobs.remove(req);
+            lock.lock();
+            try {
+                for (GRequest req : currentjobs) {
+                    if (req.getJob() == job && req.getStatus() == STATUS.WAITING) {
+                        currentjobs.remove(req);
+                        if (req.source != null) {   // attached to identical request
+                            req.source.nattached -= 1;
+                            withdraw(req.source);
+                        } else {                    // attached requests still need the result
+                            req.cancelled = true;
+                            withdraw(req);
+                        }
+                        return true;
                     }
                 }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Remove a cancelled request from the waiting jobs, unless identical requests rely on it.
+         * Must be called while holding the lock.
+         */
+        private void withdraw(GRequest req) {
+            if (!req.cancelled || req.nattached > 0 || !waiting.remove(req))
+                return;
+            bypassed.remove(req);
+            release(req);
+            if (req.KEY != null)
+                cache.remove(req.KEY, req);
+            changed.signalAll();
+        }
+
+        /**
+         * Remove the request from the user's share. Must be called while holding the lock.
+         */
+        private void release(GRequest req) {
+            int share = shares.getOrDefault(req.authtoken, 1) - 1;
+            if (share > 0)
+                shares.put(req.authtoken, share);
+            else
+                shares.remove(req.authtoken);
+        }
+
+        /**
+         * Start the job, reserving its threads, and count the jobs it passes. Must be called while holding the lock.
+         * The job is limited to the threads it reserves, which it reads with {@link GRequest#getThreads()} when run.
+         */
+        private void dispatch(GRequest req) {
+            for (GRequest before : waiting.headSet(req))
+                bypassed.merge(before, 1, Integer::sum);
+            waiting.remove(req);
+            bypassed.remove(req);
+            req.setThreads(reservation(req));
+            nthreads += reservation(req);
+            req.status = STATUS.RUNNING;
+            System.out.println("Server started job " + req.JOB + " (" + reservation(req) + " threads; " + nthreads + " of " + maxthreads + " reserved)");
+            workers.execute(() -> execute(req));
+        }
+
+        /**
+         * Run the job in the current thread, save its result, then return its threads to the budget.
+         */
+        private void execute(GRequest req) {
+            try {
+                req.run();
+            } catch (RuntimeException e) {
+                req.setError(e.getMessage() == null ? e.toString() : e.getMessage());
+            }
+            if (req.isFailed())
+                System.out.println("Server failed to complete job " + req.JOB + " because: " + req.ERRMSG);
+            else
+                System.out.println("Server completed job " + req.JOB);
+            JSONObject result = req.result;
+            if (result == null && req.isFailed())
+                result = new JSONObject();
+            if (result != null) {
+                result.put("Error", req.ERRMSG);
+                try {
+                    File file = store.save(req.JOB, result);
+                    System.out.println("Wrote job " + req.JOB + " to file \"" + file + "\"");
+                    req.store = store;
+                    req.result = null;
+                } catch (IOException e2) {
+                    System.err.println("Failed to create temp file for completed job " + req.JOB);
+                }
+            } else {
+                // TODO: how to act if the job completed without result?
+            }
+            lock.lock();
+            try {
+                req.status = STATUS.COMPLETED;
+                purge(); // a failed request is computed again when resubmitted
+                nthreads -= reservation(req);
+                release(req);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
             }
-            return false;
         }
 
         @Override
         public void run() {
-            // job queue thread
+            // job queue thread: waits until jobs are added or complete, then starts as many as the budget allows
             // TODO: additional tasks not yet implemented include
-            //  1a. cleaning-up the queue from client-retrieved jobs,
-            //  1b. keep a pointer for queue to avoid re-scanning from top,
+            //  1. cleaning-up the queue from client-retrieved jobs,
             //  2. cleaning-up filed jobs once lapsed
+            lock.lock();
             try {
                 while (true) {
-                    GRequest req = this.poll();
-                    if (req == null) {
-                        // System.out.println("Waiting (sleeping) for jobs to be submitted");
-                        Thread.sleep(500);
-                    } else {
-                        System.out.println("Found job; " + currentjobs.size() + " requests in queue");
-                        // TODO: more advanced scheduling could be done; here, 1 job at a time
-                        req.status = STATUS.RUNNING;
-                        System.out.println("Server started job " + req.JOB);
-                        req.start(); // could just be "run", so that current call stack is used
-                        req.join();  // always wait for the request to finish
-                        req.status = STATUS.COMPLETED;
-                        if (req.isFailed())
-                            System.out.println("Server failed to complete job " + req.JOB + " because: " + req.ERRMSG);
-                        else
-                            System.out.println("Server completed job " + req.JOB);
-                        JSONObject result = req.getResult();
-                        result.put("Error", req.ERRMSG);
-                        if (result != null) {
-                            // create a temporary file
-                            try {
-                                String filename = directory + File.separator + "GRequest_" + req.JOB + ".json";
-                                BufferedWriter br = new BufferedWriter(new FileWriter(filename));
-                                // Writes a string to the above temporary file
-                                br.write(result.toString());
-                                System.out.println("Wrote job " + req.JOB + " to file \"" + filename + "\"");
-                                br.close();
-                                req.savedAsFile = filename;
-                                req.result = null;
-                            } catch (IOException e2) {
-                                System.err.println("Failed to create temp file for completed job " + req.JOB);
-                            }
-                        } else {
-                            // TODO: how to act if the job completed without result?
-                        }
+                    GRequest req = next();
+                    if (req == null)
+                        changed.await();
+                    else {
+                        System.out.println("Found job; " + waiting.size() + " requests waiting in queue");
+                        dispatch(req);
                     }
                 }
             } catch (InterruptedException e) {
                 System.err.println("Job queue interrupted: " + e.getMessage());
                 // TODO: save state of queue?
-
+            } finally {
+                lock.unlock();
+                workers.shutdown();
             }
         }
     }
@@ -8,6 +8,18 @@ import dat.file.TSVFile;
 import json.JSONArray;
 import json.JSONObject;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class JSONUtils {
 
     /**
@@ -376,6 +388,63 @@ public class JSONUtils {
         return json;
     }
 
+    /**
+     * Write a JSON value in canonical form, i.e. with the keys of objects sorted, and without whitespace, so that
+     * values that are the same (irrespective of key order) are written the same.
+     * @param value JSON object, array or primitive value
+     * @param writer where the canonical form is written
+     * @throws IOException
+     */
+    public static void writeCanonical(Object value, Writer writer) throws IOException {
+        if (value instanceof JSONObject) {
+            JSONObject json = (JSONObject) value;
+            List<String> keys = new ArrayList<>(json.keySet());
+            Collections.sort(keys);
+            writer.write('{');
+            for (int i = 0; i < keys.size(); i ++) {
+                if (i > 0)
+                    writer.write(',');
+                writer.write(JSONObject.quote(keys.get(i)));
+                writer.write(':');
+                writeCanonical(json.opt(keys.get(i)), writer);
+            }
+            writer.write('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray jarr = (JSONArray) value;
+            writer.write('[');
+            for (int i = 0; i < jarr.length(); i ++) {
+                if (i > 0)
+                    writer.write(',');
+                writeCanonical(jarr.opt(i), writer);
+            }
+            writer.write(']');
+        } else {
+            writer.write(JSONObject.valueToString(value));
+        }
+    }
+
+    /**
+     * Compute a content hash (SHA-256) of one or more JSON values, based on their canonical form.
+     * @param values JSON objects, arrays or primitive values
+     * @return hash as hexadecimal string
+     */
+    public static String digest(Object... values) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            Writer writer = new OutputStreamWriter(new DigestOutputStream(OutputStream.nullOutputStream(), md), StandardCharsets.UTF_8);
+            for (Object value : values) {
+                writeCanonical(value, writer);
+                writer.write('\n');
+            }
+            writer.flush();
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest())
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new JSONUtilsException("Failed to compute digest: " + e.getMessage());
+        }
+    }
 
     public static class JSONUtilsException extends RuntimeException {
         public JSONUtilsException(String msg) {
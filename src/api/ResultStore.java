@@ -0,0 +1,239 @@
+package api;
+
+import json.JSONException;
+import json.JSONObject;
+import json.JSONTokener;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Storage of results of completed jobs, in files located in a directory.
+ * Results are written as JSON text without first converting them to a string, optionally gzip-compressed,
+ * and can be read back as text (e.g. to pass on to a client) without parsing.
+ * Results are evicted when they are older than a time-to-live, and/or (oldest first) when the files
+ * in total exceed a disk quota. The file of an evicted result that is still being read is deleted when
+ * the last reader is closed.
+ */
+public class ResultStore {
+
+    private final File directory;
+    private final boolean compress;
+    private final long ttl;     // milliseconds that a result is kept; 0 means forever
+    private final long quota;   // bytes that results can occupy in total; 0 means no limit
+    private long total = 0;     // bytes that results currently occupy
+    private final Map<Integer, Entry> entries = new LinkedHashMap<>(); // in the order results were saved
+
+    private static class Entry {
+        final File file;
+        final long size;
+        final long saved;
+        int readers = 0;        // readers that are open
+        boolean removed = false; // removed from the store, so the file is deleted once no longer read
+        Entry(File file, long size, long saved) {
+            this.file = file;
+            this.size = size;
+            this.saved = saved;
+        }
+    }
+
+    /**
+     * Reader of a stored result, that lets the store know when it is closed
+     */
+    private class EntryReader extends BufferedReader {
+        private final Entry entry;
+        private boolean closed = false;
+        EntryReader(Reader in, Entry entry) {
+            super(in, 1 << 16);
+            this.entry = entry;
+        }
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    release(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a store without compression, that keeps results until the server is stopped
+     * @param directory where results are stored
+     */
+    public ResultStore(File directory) {
+        this(directory, false, 0, 0);
+    }
+
+    /**
+     * Create a store
+     * @param directory where results are stored
+     * @param compress if true, results are gzip-compressed
+     * @param ttl milliseconds that a result is kept; 0 means forever
+     * @param quota bytes that results can occupy on disk in total; 0 means no limit
+     */
+    public ResultStore(File directory, boolean compress, long ttl, long quota) {
+        this.directory = directory;
+        this.compress = compress;
+        this.ttl = ttl;
+        this.quota = quota;
+    }
+
+    private File getFile(int job) {
+        return new File(directory, "GRequest_" + job + (compress ? ".json.gz" : ".json"));
+    }
+
+    /**
+     * Write result of job to storage; may evict older results.
+     * @param job job number
+     * @param result the result
+     * @return the file that the result was written to
+     * @throws IOException if the file could not be written
+     */
+    public File save(int job, JSONObject result) throws IOException {
+        File file = getFile(job);
+        OutputStream os = new FileOutputStream(file);
+        if (compress)
+            os = new GZIPOutputStream(os, 1 << 16);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1 << 16)) {
+            result.write(writer);
+        } catch (JSONException e) {
+            file.delete();
+            throw new IOException("Failed to write result of job " + job + ": " + e.getMessage());
+        }
+        synchronized (this) {
+            Entry prev = entries.remove(job);
+            if (prev != null) // the file has been replaced, so is kept
+                total -= prev.size;
+            Entry entry = new Entry(file, file.length(), System.currentTimeMillis());
+            entries.put(job, entry);
+            total += entry.size;
+            evict();
+        }
+        return file;
+    }
+
+    /**
+     * @param job job number
+     * @return true if the result of the job is (still) stored
+     */
+    public synchronized boolean contains(int job) {
+        evict();
+        return entries.containsKey(job);
+    }
+
+    /**
+     * Open the JSON text of a stored result.
+     * The caller is responsible for closing the reader.
+     * @param job job number
+     * @return reader of the result, or null if not stored
+     * @throws IOException if the file could not be opened
+     */
+    public Reader open(int job) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            evict();
+            entry = entries.get(job);
+            if (entry == null)
+                return null;
+            entry.readers += 1; // the file is not deleted until the reader is closed
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(entry.file);
+            if (compress)
+                is = new GZIPInputStream(is, 1 << 16);
+            return new EntryReader(new InputStreamReader(is, StandardCharsets.UTF_8), entry);
+        } catch (IOException e) {
+            if (is != null)
+                is.close();
+            release(entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Count a reader of an entry as closed; delete the file if the entry has been removed and this was the last reader.
+     * @param entry the entry that was read
+     */
+    private synchronized void release(Entry entry) {
+        entry.readers -= 1;
+        if (entry.readers == 0 && entry.removed)
+            entry.file.delete();
+    }
+
+    /**
+     * Remove an entry, and delete its file unless it is being read.
+     * Must be called while holding the lock.
+     */
+    private void discard(Entry entry) {
+        total -= entry.size;
+        entry.removed = true;
+        if (entry.readers == 0)
+            entry.file.delete();
+    }
+
+    /**
+     * Read and parse a stored result.
+     * @param job job number
+     * @return the result, or null if not stored
+     * @throws IOException if the file could not be read
+     */
+    public JSONObject load(int job) throws IOException {
+        try (Reader reader = open(job)) {
+            if (reader == null)
+                return null;
+            return new JSONObject(new JSONTokener(reader));
+        } catch (JSONException e) {
+            throw new IOException("Failed to read result of job " + job + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove result of job from storage
+     * @param job job number
+     * @return true if removed, false if not stored
+     */
+    public synchronized boolean remove(int job) {
+        Entry entry = entries.remove(job);
+        if (entry == null)
+            return false;
+        discard(entry);
+        return true;
+    }
+
+    /**
+     * @return bytes that results currently occupy
+     */
+    public synchronized long getSize() {
+        return total;
+    }
+
+    /**
+     * Remove results that have lapsed, then the oldest results until the quota is met.
+     * Must be called while holding the lock.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Integer, Entry>> iter = entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Integer, Entry> e = iter.next();
+            Entry entry = e.getValue();
+            boolean lapsed = ttl > 0 && now - entry.saved > ttl;
+            boolean over = quota > 0 && total > quota;
+            if (!lapsed && !over)
+                break; // entries are in order of saving, so the rest are more recent
+            iter.remove();
+            discard(entry);
+            System.out.println("Evicted result of job " + e.getKey() + (lapsed ? " (lapsed)" : " (disk quota)"));
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package asr;
+
+import dat.phylo.CodedTreeInstance;
+import dat.phylo.IdxTree;
+import dat.phylo.TreeInstance;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maximum parsimony for many characters on the same tree at once, e.g. all indels or all edges of a set of POGs.
+ * Characters are packed 64 to a word, with one bit per character ("lane"), and one word per state
+ * so that multi-state characters are represented by a bitset of states for each lane.
+ * One pass up the tree and one pass down the tree infer all characters in a word.
+ *
+ * The result is the same as {@link Parsimony} with its default settings (all optimal values are listed):
+ * for each branch point, the values that appear in at least one most parsimonious assignment (with unit cost per change).
+ * Branch points with multiple children (polytomies) are handled by counting, for each state, the children that
+ * prefer it, rather than by Fitch's intersection/union rule which is optimal only for binary branch points.
+ * (Unlike {@link Parsimony}, un-instantiated branch points below an instantiated ancestor are also inferred.)
+ *
+ * @author mikael
+ */
+public class BitParsimony {
+
+    private final IdxTree tree;
+    private final int nnodes;
+    private final int nchars;
+    private final Object[][] keys;  // [char] the values that the codes of each character refer to, null if the character is not inferred
+    private final int[] block;      // [char] the block (group of 64 characters) to which the character belongs
+    private final int[] lane;       // [char] the bit within the block that the character occupies
+    private long[][][] optimal;     // [block][node idx][state] lanes where the state is optimal
+
+    /**
+     * Infer optimal values for all characters.
+     * @param tree the tree shared by all tree instances
+     * @param tis one tree instance for each character; if null, the character is not inferred
+     * @param recodeNull if true, convert null at leaves to a distinct value to be optimised (see {@link Parsimony})
+     */
+    public BitParsimony(IdxTree tree, TreeInstance[] tis, boolean recodeNull) {
+        this.tree = tree;
+        this.nnodes = tree.getSize();
+        this.nchars = tis.length;
+        this.keys = new Object[nchars][];
+        this.block = new int[nchars];
+        this.lane = new int[nchars];
+        CodedTreeInstance[] ctis = new CodedTreeInstance[nchars];
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < nchars; i ++) {
+            if (tis[i] == null)
+                continue;
+            if (tis[i].getTree() != tree)
+                throw new ASRRuntimeException("Incompatible input to tree for parsimony");
+            ctis[i] = CodedTreeInstance.encode(tis[i], recodeNull);
+            keys[i] = ctis[i].getSymbols();
+            order.add(i);
+        }
+        // characters with similar number of states share blocks, so few words are spent on states that some lanes do not use
+        order.sort((a, b) -> Integer.compare(keys[a].length, keys[b].length));
+        int nblocks = (order.size() + 63) / 64;
+        this.optimal = new long[nblocks][][];
+        for (int b = 0; b < nblocks; b ++) {
+            int from = b * 64, to = Math.min(order.size(), from + 64);
+            CodedTreeInstance[] members = new CodedTreeInstance[to - from];
+            for (int k = from; k < to; k ++) {
+                int i = order.get(k);
+                block[i] = b;
+                lane[i] = k - from;
+                members[k - from] = ctis[i];
+            }
+            optimal[b] = infer(members);
+        }
+    }
+
+    /**
+     * Infer a block of up to 64 characters.
+     * @param members coded tree instances, one per lane
+     * @return [node idx][state] lanes where the state is optimal
+     */
+    private long[][] infer(CodedTreeInstance[] members) {
+        int nstates = 0;
+        for (CodedTreeInstance cti : members)
+            nstates = Math.max(nstates, cti.getNSymbols());
+        long[] valid = new long[nstates];       // [state] lanes for which the state exists
+        for (int l = 0; l < members.length; l ++) {
+            for (int s = 0; s < members[l].getNSymbols(); s ++)
+                valid[s] |= 1L << l;
+        }
+        long[] inst = new long[nnodes];          // [node idx] lanes where the node is instantiated
+        long[][] m0 = new long[nnodes][nstates]; // [node idx][state] lanes where the state has the minimum score
+        long[][] m1 = new long[nnodes][nstates]; // [node idx][state] lanes where the state has the minimum score + 1
+        for (int l = 0; l < members.length; l ++) {
+            for (int idx = 0; idx < nnodes; idx ++) {
+                short code = members[l].getCode(idx);
+                if (code != CodedTreeInstance.NULL) {
+                    inst[idx] |= 1L << l;
+                    m0[idx][code] |= 1L << l;
+                }
+            }
+        }
+        // up-pass: children always have greater indices than their parent
+        for (int idx = nnodes - 1; idx >= 0; idx --) {
+            long free = ~inst[idx];
+            int[] children = tree.getChildren(idx);
+            if (children.length == 0) { // un-instantiated leaf, all states are equally NOT penalised
+                for (int s = 0; s < nstates; s ++)
+                    m0[idx][s] |= valid[s] & free;
+                continue;
+            }
+            // a child contributes its minimum score + 1 to each parent state, except to those in which it has its minimum;
+            // so the optimal parent states are those preferred by the most children, and the next best are preferred by one less
+            int width = 32 - Integer.numberOfLeadingZeros(children.length);
+            long[][] cnt = new long[nstates][width]; // [state][bit] counts, bit-sliced
+            for (int child : children) {
+                for (int s = 0; s < nstates; s ++) {
+                    long carry = m0[child][s];
+                    for (int b = 0; b < width && carry != 0; b ++) {
+                        long t = cnt[s][b] & carry;
+                        cnt[s][b] ^= carry;
+                        carry = t;
+                    }
+                }
+            }
+            long[] best = new long[nstates];
+            for (int s = 0; s < nstates; s ++)
+                best[s] = valid[s] & free;
+            for (int b = width - 1; b >= 0; b --) { // keep the states with the highest count, most significant bit first
+                long any = 0;
+                for (int s = 0; s < nstates; s ++)
+                    any |= best[s] & cnt[s][b];
+                for (int s = 0; s < nstates; s ++)
+                    best[s] &= ~(any & ~cnt[s][b]);
+            }
+            long[] max = new long[width];
+            for (int s = 0; s < nstates; s ++) {
+                m0[idx][s] |= best[s];
+                for (int b = 0; b < width; b ++)
+                    max[b] |= best[s] & cnt[s][b];
+            }
+            for (int s = 0; s < nstates; s ++) { // next best: count + 1 == max
+                long carry = ~0L;
+                long eq = valid[s] & free & ~best[s];
+                for (int b = 0; b < width; b ++) {
+                    long inc = cnt[s][b] ^ carry;
+                    carry &= cnt[s][b];
+                    eq &= ~(inc ^ max[b]);
+                }
+                m1[idx][s] = eq & ~carry;
+            }
+        }
+        // down-pass: given the optimal states of the parent, a child takes the same state if optimal or next best,
+        // and its own optimal states if any of the parent's is not optimal for the child
+        long[][] opt = new long[nnodes][];
+        opt[0] = m0[0];
+        for (int idx = 1; idx < nnodes; idx ++) {
+            long[] par = opt[tree.getParent(idx)];
+            long outside = 0;
+            for (int s = 0; s < nstates; s ++)
+                outside |= par[s] & ~m0[idx][s];
+            opt[idx] = new long[nstates];
+            for (int s = 0; s < nstates; s ++)
+                opt[idx][s] = (par[s] & (m0[idx][s] | m1[idx][s])) | (outside & m0[idx][s]);
+        }
+        return opt;
+    }
+
+    /**
+     * Get the number of characters
+     * @return number of characters, including those not inferred
+     */
+    public int getNCharacters() {
+        return nchars;
+    }
+
+    /**
+     * Retrieve the optimal values for a character at a branch point.
+     * @param charidx the index of the character, as given at construction
+     * @param bpidx the index of the branch point
+     * @return list of optimal values, empty if null is the only optimal value (when recoded), or null if the character was not inferred
+     */
+    public List<Object> getOptimal(int charidx, int bpidx) {
+        Object[] key = keys[charidx];
+        if (key == null)
+            return null;
+        boolean nullAtAncestors = key.length > 0 && key[key.length - 1] == null;
+        long[] opt = optimal[block[charidx]][bpidx];
+        long bit = 1L << lane[charidx];
+        List<Object> mylist = new ArrayList<>();
+        boolean foundNull = false;
+        for (int s = 0; s < key.length; s ++) {
+            if ((opt[s] & bit) != 0) {
+                if (nullAtAncestors && s == key.length - 1)
+                    foundNull = true;
+                else
+                    mylist.add(key[s]);
+            }
+        }
+        if (foundNull && mylist.size() == 0) // ancestor has only null as optimal value
+            return Collections.emptyList();
+        return mylist;
+    }
+
+}
@@ -0,0 +1,175 @@
+package asr;
+
+import dat.phylo.TreeDecor;
+import dat.phylo.TreeInstance;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Work-stealing scheduler for batches of tree decorators, typically one per position in an alignment/POG.
+ * Long-lived fork-join pools are shared by all batches, one per number of threads (so there is no pool churn between batches),
+ * and jobs are split into chunks of roughly equal cost, rather than equal count, so that
+ * idle worker threads can steal the remaining work of others during the tail of a batch.
+ * By default, the cost of a job is the size of the (position-specific) tree it decorates.
+ */
+public class DecorScheduler {
+
+    /**
+     * Number of chunks per worker thread that a batch is split into, at least; more chunks means better balance but more overhead
+     */
+    public static int CHUNKS_PER_THREAD = 8;
+
+    private static final ConcurrentHashMap<Integer, DecorScheduler> shared = new ConcurrentHashMap<>();
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a scheduler with its own pool; normally, the shared scheduler is used instead, see {@link #getShared(int)}.
+     * @param nThreads number of worker threads
+     */
+    public DecorScheduler(int nThreads) {
+        this.pool = new ForkJoinPool(Math.max(1, nThreads));
+    }
+
+    /**
+     * Retrieve the scheduler that is shared across batches with the same number of threads.
+     * A scheduler is created the first time a number of threads is requested, and is kept for later batches;
+     * shared pools are never shut down, since other batches (e.g. concurrent server jobs) may still be using them.
+     * @param nThreads number of worker threads
+     * @return the shared scheduler
+     */
+    public static DecorScheduler getShared(int nThreads) {
+        return shared.computeIfAbsent(Math.max(1, nThreads), DecorScheduler::new);
+    }
+
+    public int getNThreads() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Run all the jobs, with cost determined by the size of each tree instance.
+     * @param decors tree decors, each instantiated (if null, it will be ignored)
+     * @param tis tree instantiations with observed values, one for each tree decorator
+     * @return the decorators after having decorated their tree instance, indexed as the input (null if no job)
+     */
+    public TreeDecor<?>[] runBatch(TreeDecor<?>[] decors, TreeInstance[] tis) {
+        long[] costs = new long[decors.length];
+        for (int i = 0; i < decors.length; i ++)
+            costs[i] = (decors[i] == null || tis[i] == null) ? 0 : tis[i].getSize();
+        return runBatch(decors, tis, costs);
+    }
+
+    /**
+     * Run all the jobs, with a user-specified cost for each.
+     * @param decors tree decors, each instantiated (if null, it will be ignored)
+     * @param tis tree instantiations with observed values, one for each tree decorator
+     * @param costs the relative cost of each job, e.g. the size of the position-specific tree
+     * @return the decorators after having decorated their tree instance, indexed as the input (null if no job, or if the job failed)
+     */
+    public TreeDecor<?>[] runBatch(TreeDecor<?>[] decors, TreeInstance[] tis, long[] costs) {
+        if (decors.length != tis.length || decors.length != costs.length)
+            throw new ASRRuntimeException("Mismatch in batch jobs");
+        long[] cumcost = new long[decors.length + 1];
+        for (int i = 0; i < decors.length; i ++)
+            cumcost[i + 1] = cumcost[i] + (decors[i] == null ? 0 : Math.max(1, costs[i]));
+        long grain = Math.max(1, cumcost[decors.length] / ((long) getNThreads() * CHUNKS_PER_THREAD));
+        TreeDecor<?>[] res = new TreeDecor<?>[decors.length];
+        if (GRASP.VERBOSE)
+            System.out.println("Running jobs: " + decors.length + " with " + getNThreads() + " threads");
+        pool.invoke(new Chunk(decors, tis, res, cumcost, grain, 0, decors.length));
+        return res;
+    }
+
+    /**
+     * Run a job for each index in a range, e.g. to assemble ancestors once inference is done; jobs are assumed to be of similar cost.
+     * Unlike decorators in a batch, a failed job is not ignored: the exception is re-thrown once the pool has stopped working on the range.
+     * @param n number of jobs, indexed from 0 to n - 1
+     * @param job the job to run for each index; must be thread-safe, e.g. write only to an array slot of its own
+     */
+    public void runRange(int n, IntConsumer job) {
+        if (n <= 0)
+            return;
+        int grain = Math.max(1, n / (getNThreads() * CHUNKS_PER_THREAD));
+        pool.invoke(new Range(job, grain, 0, n));
+    }
+
+    /**
+     * A range of indices, which is split in two if it is longer than the grain.
+     */
+    private static class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final IntConsumer job;
+        private final int grain;
+        private final int from, to; // range of indices, from inclusive, to exclusive
+
+        Range(IntConsumer job, int grain, int from, int to) {
+            this.job = job;
+            this.grain = grain;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Range(job, grain, from, mid), new Range(job, grain, mid, to));
+            } else {
+                for (int i = from; i < to; i ++)
+                    job.accept(i);
+            }
+        }
+    }
+
+    /**
+     * A range of jobs, which is split in two if its cost exceeds the grain.
+     */
+    private static class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final TreeDecor<?>[] decors;
+        private final TreeInstance[] tis;
+        private final TreeDecor<?>[] res;
+        private final long[] cumcost;
+        private final long grain;
+        private final int from, to; // range of jobs, from inclusive, to exclusive
+
+        Chunk(TreeDecor<?>[] decors, TreeInstance[] tis, TreeDecor<?>[] res, long[] cumcost, long grain, int from, int to) {
+            this.decors = decors;
+            this.tis = tis;
+            this.res = res;
+            this.cumcost = cumcost;
+            this.grain = grain;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && cumcost[to] - cumcost[from] > grain) {
+                // split where half of the cost is, not half of the jobs
+                long half = (cumcost[from] + cumcost[to]) / 2;
+                int mid = from + 1;
+                while (mid < to - 1 && cumcost[mid] < half)
+                    mid ++;
+                invokeAll(new Chunk(decors, tis, res, cumcost, grain, from, mid),
+                        new Chunk(decors, tis, res, cumcost, grain, mid, to));
+            } else {
+                for (int i = from; i < to; i ++) {
+                    if (decors[i] != null) {
+                        try {
+                            decors[i].decorate(tis[i]);
+                            res[i] = decors[i];
+                        } catch (RuntimeException e) { // a failed job leaves its result null, but does not stop the batch
+                            System.err.println("Failed with job " + i);
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+}
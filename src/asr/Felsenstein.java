@@ -0,0 +1,464 @@
+package asr;
+
+import bn.ctmc.SubstModel;
+import bn.prob.EnumDistrib;
+import dat.Enumerable;
+import dat.phylo.IdxTree;
+import dat.phylo.PhyloBN;
+import dat.phylo.TreeDecor;
+import dat.phylo.TreeInstance;
+
+import java.util.Arrays;
+
+/**
+ * Tree likelihood engine for a single position (one rate) based on Felsenstein's pruning algorithm.
+ * Works directly on the parent/child arrays of an IdxTree with primitive partial-likelihood buffers,
+ * avoiding the construction of a PhyloBN and the variable elimination machinery for every position.
+ * Joint reconstruction uses max-product with a Viterbi-style traceback, marginal reconstruction uses sum-product
+ * with an outside pass along the path from the root to the queried ancestor, or an outside pass over the whole tree
+ * when the posteriors at all ancestors are sought (see {@link #getMarginals(TreeInstance)}).
+ * Results are identical to those of MaxLhoodJoint and MaxLhoodMarginal when those are set-up with a plain
+ * substitution model (i.e. without accessory, extended variables); ties between equally likely states are broken
+ * in favour of the state listed first in the model's domain.
+ *
+ * Note that the implementation relies on a parent always having a lower branch point index than its children,
+ * which is the case for all IdxTree instances, including pruned ones.
+ */
+public class Felsenstein {
+
+    final private IdxTree tree;
+    final private SubstModel model;
+    final private Enumerable alpha;
+    final private int nStates;
+    final private double[] F;
+    final private double[][] probs; // [child idx][parent state * nStates + child state], null if the branch point has no parent
+
+    /**
+     * Set-up the engine for a tree, a substitution model and a relative evolutionary rate.
+     * Transition probabilities are retrieved for every branch once (from the model's cache), and re-used for every subsequent inference.
+     * @param tree phylogenetic tree indexing the branch points and their distances
+     * @param model evolutionary model
+     * @param rate relative evolutionary rate (for the index in POG/alignment, if applicable)
+     */
+    public Felsenstein(IdxTree tree, SubstModel model, double rate) {
+        this.tree = tree;
+        this.model = model;
+        this.alpha = model.getDomain();
+        this.nStates = alpha.size();
+        this.F = model.getF();
+        this.probs = new double[tree.getSize()][];
+        for (int idx = 0; idx < tree.getSize(); idx ++) {
+            if (tree.getParent(idx) >= 0)
+                probs[idx] = model.getProbs(tree.getDistance(idx) * rate);
+        }
+    }
+
+    /**
+     * Set-up the engine for a tree and a substitution model, using the default rate.
+     * @param tree phylogenetic tree indexing the branch points and their distances
+     * @param model evolutionary model
+     */
+    public Felsenstein(IdxTree tree, SubstModel model) {
+        this(tree, model, PhyloBN.DEFAULT_RATE);
+    }
+
+    public IdxTree getTree() {
+        return tree;
+    }
+
+    public SubstModel getModel() {
+        return model;
+    }
+
+    /**
+     * Working buffers that are re-used across inferences by the same thread; they are grown when required but never shrunk.
+     * Worker threads are long-lived (see DecorScheduler) so that a thread decorating many positions only allocates once.
+     */
+    private static class Scratch {
+        int[] obs = new int[0];     // [idx] observed state, -1 if not instantiated
+        int[] state = new int[0];   // [idx] state assigned by traceback
+        double[] up = new double[0];// [idx * nStates + state] partial likelihood
+        int[] best = new int[0];    // [child idx * nStates + parent state] best child state
+        double[] down = new double[0];  // [idx * nStates + state] outside probability, i.e. of everything but the subtree rooted at the branch point
+        double[] msg = new double[0];   // [child idx * nStates + parent state] message from child to parent
+        double[] out = new double[0];
+        double[] belief = new double[0];
+
+        void ensure(int n, int nStates) {
+            if (obs.length < n) {
+                obs = new int[n];
+                state = new int[n];
+            }
+            if (up.length < n * nStates) {
+                up = new double[n * nStates];
+                best = new int[n * nStates];
+            }
+            if (out.length < nStates) {
+                out = new double[nStates];
+                belief = new double[nStates];
+            }
+        }
+
+        void ensureDownward(int n, int nStates) {
+            ensure(n, nStates);
+            if (down.length < n * nStates) {
+                down = new double[n * nStates];
+                msg = new double[n * nStates];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Convert the observed values to state indices.
+     * @param ti observed tree states
+     * @param obs array to populate with the state index for each branch point, -1 if not instantiated
+     */
+    private void encode(TreeInstance ti, int[] obs) {
+        if (ti.getSize() != tree.getSize())
+            throw new ASRRuntimeException("Tree instance does not match tree: " + ti.getSize() + " != " + tree.getSize());
+        for (int idx = 0; idx < tree.getSize(); idx ++) {
+            Object y = ti.getInstance(idx);
+            obs[idx] = (y == null) ? -1 : alpha.getIndex(y);
+        }
+    }
+
+    /**
+     * Upward (post-order) pass of the pruning algorithm; sum-product or max-product.
+     * The partial likelihoods of each branch point are scaled to sum (or peak) to one, which does not change the posterior or the max state.
+     * @param obs the observed state index for each branch point, -1 if not instantiated
+     * @param maxproduct if true, maximise rather than sum over child states
+     * @param up partial likelihoods to populate for each branch point [idx * nStates + state],
+     *           with the subtree rooted at the branch point marginalised (or maximised) over
+     * @param best if maxproduct, will be populated with the best child state for each parent state [child idx * nStates + parent state], else ignored
+     */
+    private void upward(int[] obs, boolean maxproduct, double[] up, int[] best) {
+        int n = tree.getSize();
+        for (int idx = n - 1; idx >= 0; idx --) {
+            int off = idx * nStates;
+            if (obs[idx] >= 0) {
+                Arrays.fill(up, off, off + nStates, 0.0);
+                up[off + obs[idx]] = 1.0;
+            } else
+                Arrays.fill(up, off, off + nStates, 1.0);
+            for (int child : tree.getChildren(idx)) {
+                double[] p = probs[child];
+                int coff = child * nStates;
+                for (int s = 0; s < nStates; s ++) {
+                    if (up[off + s] == 0)
+                        continue;
+                    int poff = s * nStates;
+                    double msg = 0;
+                    if (maxproduct) {
+                        int argmax = 0;
+                        for (int t = 0; t < nStates; t ++) {
+                            double y = p[poff + t] * up[coff + t];
+                            if (y > msg) {
+                                msg = y;
+                                argmax = t;
+                            }
+                        }
+                        best[coff + s] = argmax;
+                    } else {
+                        for (int t = 0; t < nStates; t ++)
+                            msg += p[poff + t] * up[coff + t];
+                    }
+                    up[off + s] *= msg;
+                }
+            }
+            double scale = 0;
+            for (int s = 0; s < nStates; s ++)
+                scale = maxproduct ? Math.max(scale, up[off + s]) : scale + up[off + s];
+            if (scale > 0) {
+                for (int s = 0; s < nStates; s++)
+                    up[off + s] /= scale;
+            }
+        }
+    }
+
+    /**
+     * Determine the joint state that assigns the maximum likelihood to the specified observations.
+     * Branch points that are instantiated keep their value; so do branch points that are not connected to any other.
+     * @param ti observed tree states
+     * @return the states for all branch points, indexed as per tree
+     */
+    public Object[] getJoint(TreeInstance ti) {
+        int n = tree.getSize();
+        Scratch scratch = SCRATCH.get();
+        scratch.ensure(n, nStates);
+        int[] obs = scratch.obs;
+        int[] state = scratch.state;
+        double[] up = scratch.up;
+        int[] best = scratch.best;
+        encode(ti, obs);
+        upward(obs, true, up, best);
+        Object[] values = new Object[n];
+        for (int idx = 0; idx < n; idx ++) {
+            values[idx] = ti.getInstance(idx);
+            if (!tree.isConnected(idx))
+                continue;
+            int parent = tree.getParent(idx);
+            if (parent < 0) { // root, so include the prior and pick the best state
+                double max = -1;
+                for (int s = 0; s < nStates; s ++) {
+                    double y = F[s] * up[idx * nStates + s];
+                    if (y > max) {
+                        max = y;
+                        state[idx] = s;
+                    }
+                }
+            } else { // parent has a lower index, so has already been assigned
+                state[idx] = best[idx * nStates + state[parent]];
+            }
+            if (values[idx] == null)
+                values[idx] = alpha.get(state[idx]);
+        }
+        return values;
+    }
+
+    /**
+     * Determine the posterior distribution at an ancestor branch point, given the observations at certain branch points in the tree (i.e. leaves).
+     * @param ti observed tree states
+     * @param bpidx branch point index for the ancestor
+     * @return the posterior distribution over states defined by the substitution model
+     */
+    public EnumDistrib getMarginal(TreeInstance ti, int bpidx) {
+        if (!tree.isConnected(bpidx))
+            throw new ASRRuntimeException("Marginal inference of invalid branchpoint: " + bpidx);
+        int n = tree.getSize();
+        Scratch scratch = SCRATCH.get();
+        scratch.ensure(n, nStates);
+        int[] obs = scratch.obs;
+        double[] up = scratch.up;
+        double[] out = scratch.out;
+        double[] belief = scratch.belief;
+        encode(ti, obs);
+        upward(obs, false, up, null);
+        // the path from the root down to the ancestor
+        int depth = 0;
+        for (int idx = bpidx; idx >= 0; idx = tree.getParent(idx))
+            depth += 1;
+        int[] path = new int[depth];
+        for (int idx = bpidx, i = depth - 1; idx >= 0; idx = tree.getParent(idx), i --)
+            path[i] = idx;
+        // outside (downward) pass, along the path only
+        System.arraycopy(F, 0, out, 0, nStates);
+        for (int i = 0; i < path.length - 1; i ++) {
+            int parent = path[i];
+            int next = path[i + 1];
+            for (int s = 0; s < nStates; s ++)
+                belief[s] = (obs[parent] < 0 || obs[parent] == s) ? out[s] : 0;
+            for (int child : tree.getChildren(parent)) {
+                if (child == next)
+                    continue;
+                double[] p = probs[child];
+                int coff = child * nStates;
+                for (int s = 0; s < nStates; s ++) {
+                    if (belief[s] == 0)
+                        continue;
+                    double msg = 0;
+                    for (int t = 0; t < nStates; t ++)
+                        msg += p[s * nStates + t] * up[coff + t];
+                    belief[s] *= msg;
+                }
+            }
+            double[] p = probs[next];
+            double scale = 0;
+            for (int t = 0; t < nStates; t ++) {
+                double y = 0;
+                for (int s = 0; s < nStates; s ++)
+                    y += belief[s] * p[s * nStates + t];
+                out[t] = y;
+                scale += y;
+            }
+            if (scale > 0) {
+                for (int t = 0; t < nStates; t ++)
+                    out[t] /= scale;
+            }
+        }
+        double[] posterior = new double[nStates];
+        for (int s = 0; s < nStates; s ++)
+            posterior[s] = out[s] * up[bpidx * nStates + s];
+        return new EnumDistrib(alpha, posterior);
+    }
+
+    /**
+     * Determine the posterior distributions at all branch points that are not instantiated, given the observations at
+     * certain branch points in the tree (i.e. leaves), in one upward and one downward (pre-order) pass.
+     * This is equivalent to calling {@link #getMarginal(TreeInstance, int)} for each such branch point, but the cost
+     * is that of about two such calls, independent of the number of ancestors.
+     * @param ti observed tree states
+     * @return the posterior distribution for each branch point, indexed as per tree; null for branch points that are instantiated
+     * or not connected to any other
+     */
+    public EnumDistrib[] getMarginals(TreeInstance ti) {
+        int n = tree.getSize();
+        Scratch scratch = SCRATCH.get();
+        scratch.ensureDownward(n, nStates);
+        int[] obs = scratch.obs;
+        double[] up = scratch.up;
+        double[] down = scratch.down;
+        double[] msg = scratch.msg;
+        double[] belief = scratch.belief;
+        encode(ti, obs);
+        upward(obs, false, up, null);
+        EnumDistrib[] distribs = new EnumDistrib[n];
+        for (int idx = 0; idx < n; idx ++) { // parents have lower indices, so are visited before their children
+            int off = idx * nStates;
+            if (tree.getParent(idx) < 0)
+                System.arraycopy(F, 0, down, off, nStates);
+            int[] children = tree.getChildren(idx);
+            for (int child : children) { // messages from children, as used by the upward pass (but not scaled jointly)
+                double[] p = probs[child];
+                int coff = child * nStates;
+                for (int s = 0; s < nStates; s ++) {
+                    double y = 0;
+                    for (int t = 0; t < nStates; t ++)
+                        y += p[s * nStates + t] * up[coff + t];
+                    msg[coff + s] = y;
+                }
+            }
+            for (int child : children) { // outside probability of each child excludes its own message
+                for (int s = 0; s < nStates; s ++) {
+                    double y = (obs[idx] < 0 || obs[idx] == s) ? down[off + s] : 0;
+                    for (int sibling : children) {
+                        if (y == 0)
+                            break;
+                        if (sibling != child)
+                            y *= msg[sibling * nStates + s];
+                    }
+                    belief[s] = y;
+                }
+                double[] p = probs[child];
+                int coff = child * nStates;
+                double scale = 0;
+                for (int t = 0; t < nStates; t ++) {
+                    double y = 0;
+                    for (int s = 0; s < nStates; s ++)
+                        y += belief[s] * p[s * nStates + t];
+                    down[coff + t] = y;
+                    scale += y;
+                }
+                if (scale > 0) {
+                    for (int t = 0; t < nStates; t ++)
+                        down[coff + t] /= scale;
+                }
+            }
+            if (obs[idx] < 0 && tree.isConnected(idx)) {
+                double[] posterior = new double[nStates];
+                for (int s = 0; s < nStates; s ++)
+                    posterior[s] = down[off + s] * up[off + s];
+                distribs[idx] = new EnumDistrib(alpha, posterior);
+            }
+        }
+        return distribs;
+    }
+
+    /**
+     * "Joint" reconstruction view of the pruning engine; a drop-in replacement for MaxLhoodJoint.
+     */
+    public static class Joint implements TreeDecor<Object> {
+
+        final private Felsenstein engine;
+        private Object[] values = null;
+
+        public Joint(IdxTree tree, SubstModel model, double rate) {
+            this.engine = new Felsenstein(tree, model, rate);
+        }
+
+        public Joint(IdxTree tree, SubstModel model) {
+            this.engine = new Felsenstein(tree, model);
+        }
+
+        /**
+         * Retrieve the inferred state for a specified branch point, as determined by max likelihood
+         * @param idx branch point index
+         * @return state which jointly with all others assigns the greatest probability to the observed values (at leaves)
+         */
+        @Override
+        public Object getDecoration(int idx) {
+            return values[idx];
+        }
+
+        @Override
+        public void decorate(TreeInstance ti) {
+            values = engine.getJoint(ti);
+        }
+
+        public TreeInstance getTreeInstance() {
+            return new TreeInstance(engine.getTree(), values);
+        }
+    }
+
+    /**
+     * "Marginal" reconstruction view of the pruning engine; a drop-in replacement for MaxLhoodMarginal.
+     */
+    public static class Marginal implements TreeDecor<EnumDistrib> {
+
+        final private Felsenstein engine;
+        final private int bpidx;
+        private EnumDistrib value = null;
+
+        public Marginal(int bpidx, IdxTree tree, SubstModel model, double rate) {
+            this.engine = new Felsenstein(tree, model, rate);
+            this.bpidx = bpidx;
+        }
+
+        public Marginal(int bpidx, IdxTree tree, SubstModel model) {
+            this.engine = new Felsenstein(tree, model);
+            this.bpidx = bpidx;
+        }
+
+        /**
+         * Retrieves the already computed distribution
+         * @param idx ancestor branch point index (must be the same as when the class instance was created)
+         * @return the posterior distribution over states defined by the substitution model
+         */
+        @Override
+        public EnumDistrib getDecoration(int idx) {
+            if (idx == bpidx)
+                return value;
+            else
+                throw new ASRRuntimeException("Invalid ancestor index, not defined for marginal inference: " + idx);
+        }
+
+        @Override
+        public void decorate(TreeInstance ti) {
+            value = engine.getMarginal(ti, bpidx);
+        }
+    }
+
+    /**
+     * "Marginal" reconstruction view of the pruning engine for all ancestors at once; see {@link #getMarginals(TreeInstance)}.
+     */
+    public static class Marginals implements TreeDecor<EnumDistrib> {
+
+        final private Felsenstein engine;
+        private EnumDistrib[] values = null;
+
+        public Marginals(IdxTree tree, SubstModel model, double rate) {
+            this.engine = new Felsenstein(tree, model, rate);
+        }
+
+        public Marginals(IdxTree tree, SubstModel model) {
+            this.engine = new Felsenstein(tree, model);
+        }
+
+        /**
+         * Retrieves an already computed distribution
+         * @param idx branch point index
+         * @return the posterior distribution over states defined by the substitution model, or null if the branch point was instantiated
+         */
+        @Override
+        public EnumDistrib getDecoration(int idx) {
+            return values[idx];
+        }
+
+        @Override
+        public void decorate(TreeInstance ti) {
+            values = engine.getMarginals(ti);
+        }
+    }
+
+}
@@ -71,7 +71,7 @@ public class GRASP {
                 "\t{--nogap}\n" +
                 "\t{--nonibble}\n" +
                 "\t{--exclude-noedge}\n" +
-                "\t{--save-as <list-of-formats>} (select multiple from FASTA CLUSTAL TREE DISTRIB ASR DOT TREES TrAVIS)\n" +
+                "\t{--save-as <list-of-formats>} (select multiple from FASTA CLUSTAL TREE DISTRIB DISTRIBS ASR DOT TREES TrAVIS)\n" +
                 "\t{--save-all} (saves reconstruction with ALL formats)\n" +
                 "\t{--save-tree} (bypasses inference and re-saves the tree with ancestor nodes labelled as per GRASP's\n\tdepth-first labelling scheme starting with N0)\n" +
                 "\t{--save-poag { <branchpoint-id> } (bypasses inference and saves the input alignment as a POAG\n\t(partial order alignment graph of extant sequences under specified ancestor [default N0])\n" +
@@ -88,7 +88,7 @@ public class GRASP {
                 "\t-n (or --nwk) must specify the name of a phylogenetic-tree file on Newick format\n");
         out.println("Optional arguments:\n" +
                 "\t-o (or --output-folder) specifies the folder that will be used to save output files,\n\t\te.g. inferred ancestor or ancestors, tree, etc. as specified by format\n" +
-                "\t-i (or --input-folder) skips indel inference, and loads a previous reconstruction from specified folder\n" +
+                "\t-i (or --input-folder) skips indel inference, and loads a previous reconstruction from specified folder (ASR.bin if present, else ASR.json)\n" +
                 "\t-sa (or --save-as) lists the files and formats to be generated (see below)\n\t--save-all nominates all\n" +
                 "\t-pre (or --prefix) specifies a stub that is added to result filenames (default is the prefix of the alignment file)\n" +
                 "\t-indel (or --indel-method) specifies what method to use for inferring indels (see below)\n" +
@@ -106,7 +106,9 @@ public class GRASP {
                 "\tCLUSTAL: sequences (most preferred path at each ancestor, gapped)\n" +
                 "\tTREE: phylogenetic tree with ancestor nodes labelled\n" +
                 "\tDISTRIB: character distributions for each position (indexed by POG, only available for marginal reconstruction)\n" +
+                "\tDISTRIBS: character distributions for each position at ALL ancestors (marginal reconstruction, one file)\n" +
                 "\tASR: complete reconstruction as JSON, incl. POGs of ancestors and extants, and tree (ASR.json)\n" +
+                "\tBINARY: complete reconstruction as ASR but in an indexed, binary file, from which ancestors are loaded when needed (ASR.bin)\n" +
                 "\tDOT: partial-order graphs of ancestors in DOT format\n" +
                 "\tTREES: position-specific trees with ancestor states labelled\n" +
                 "\tTrAVIS: Produce a report for reconstruction\n");
@@ -138,6 +140,7 @@ public class GRASP {
 
         boolean BYPASS = false; // bypass inference, default is false
         String ASRFILE = "ASR.json";
+        String ASRBINFILE = "ASR.bin";
         String ALIGNMENT = null;
         String NEWICK = null;
         String OUTPUT = null;
@@ -160,11 +163,11 @@ public class GRASP {
         // output formats
         boolean SAVE_AS = false;
         boolean INCLUDE_EXTANTS = false;
-        String[]  FORMATS    = new String[]  {"FASTA", "DISTRIB", "CLUSTAL", "TREE", "ASR", "DOT", "TREES", "MATLAB", "LATEX", "POAG", "TrAVIS"};
+        String[]  FORMATS    = new String[]  {"FASTA", "DISTRIB", "CLUSTAL", "TREE", "ASR", "DOT", "TREES", "MATLAB", "LATEX", "POAG", "TrAVIS", "DISTRIBS", "BINARY"};
         // select these, default for "joint reconstruction"
         boolean[] SAVE_AS_IDX = new boolean[FORMATS.length];
         // select to compute consensus path for these output formats
-        boolean[] CONSENSUS = new boolean[]  {true,    false,     true,      false,  false, false, false,   false,    false,   false,  true  };
+        boolean[] CONSENSUS = new boolean[]  {true,    false,     true,      false,  false, false, false,   false,    false,   false,  true,     false,      false   };
         // default inference mode
         Inference MODE = Inference.JOINT;
         // ancestor to reconstruct if inference mode is "marginal"
@@ -252,8 +255,8 @@ public class GRASP {
                     }
                     SAVE_AS = true;
                 } else if (arg.equalsIgnoreCase("-save-all")) {
-                    for (int i = 0; i < FORMATS.length - 2; i ++)
-                        SAVE_AS_IDX[i] = true;
+                    for (int i = 0; i < FORMATS.length; i ++)
+                        SAVE_AS_IDX[i] = (i != 9 && i != 10 && i != 11 && i != 12); // all but POAG, TrAVIS, DISTRIBS and BINARY (same content as ASR)
                     SAVE_AS = true;
                 } else if (arg.equalsIgnoreCase("-save-tree")) {
                     BYPASS = true;
@@ -372,7 +375,8 @@ public class GRASP {
         try {
             if (INPUT != null) {
                 try {
-                    indelpred = Prediction.load(INPUT + "/" + ASRFILE);
+                    File binfile = new File(INPUT + "/" + ASRBINFILE); // binary is preferred, as ancestors are loaded only when needed
+                    indelpred = Prediction.load(binfile.exists() ? binfile.getPath() : INPUT + "/" + ASRFILE);
                 } catch (ASRRuntimeException e) {
                     usage(7, "Prediction failed to load: " + e.getMessage());
                 }
@@ -480,7 +484,7 @@ public class GRASP {
             for (int i = 0; i < SAVE_AS_IDX.length; i++) {
                 if (!SAVE_AS_IDX[i])
                     continue;
-                switch (i) { // {"FASTA", "DISTRIB", "CLUSTAL", "TREE", "POGS", "DOT", "TREES", "MATLAB", "LATEX", "POAG", "TRAVIS"};
+                switch (i) { // {"FASTA", "DISTRIB", "CLUSTAL", "TREE", "POGS", "DOT", "TREES", "MATLAB", "LATEX", "POAG", "TRAVIS", "DISTRIBS"};
                     case 0: // FASTA
                         if (!BYPASS && MODE != null) {
                             FastaWriter fw = null;
@@ -769,7 +773,43 @@ public class GRASP {
                                 usage(23, "TrAVIS reports must be based on joint reconstructions");
                         }
                         break;
-
+                    case 11: // DISTRIBS
+                        if (!BYPASS) { // all ancestors, irrespective of inference mode
+                            EnumDistrib[][] dd = indelpred.getMarginals(MODEL, RATES);
+                            Object[] alpha = MODEL.getDomain().getValues();
+                            BufferedWriter bw = new BufferedWriter(new FileWriter(OUTPUT + "/" + PREFIX + "_distribs.tsv"));
+                            Object[][] m = new Object[1][alpha.length + 2];
+                            m[0][0] = "Ancestor";
+                            m[0][1] = "Index";
+                            System.arraycopy(alpha, 0, m[0], 2, alpha.length);
+                            TSVFile.saveObjects(bw, m);
+                            IdxTree mytree = indelpred.getTree();
+                            for (int idx : mytree) { // distributions are inferred for all ancestors at once, but written as rows one ancestor at a time
+                                EnumDistrib[] d = dd[idx];
+                                if (d == null)
+                                    continue;
+                                List<Object[]> rows = new ArrayList<>();
+                                for (int j = 0; j < d.length; j++) {
+                                    if (d[j] == null)
+                                        continue;
+                                    Object[] row = new Object[alpha.length + 2];
+                                    row[0] = "N" + mytree.getLabel(idx);
+                                    row[1] = j + 1;
+                                    for (int jj = 0; jj < alpha.length; jj++)
+                                        row[jj + 2] = d[j].get(jj);
+                                    rows.add(row);
+                                }
+                                TSVFile.saveObjects(bw, rows.toArray(new Object[0][]));
+                            }
+                            bw.close();
+                        }
+                        break;
+                    case 12: // BINARY
+                        if (!BYPASS) {
+                            String filename = OUTPUT + "/" + ASRBINFILE;
+                            indelpred.saveBinary(filename);
+                        }
+                        break;
                 }
                 ELAPSED_TIME = (System.currentTimeMillis() - START_TIME);
                 if (VERBOSE || TIME) {
@@ -3,22 +3,39 @@ package asr;
 import api.CommandCentral;
 import api.GRequest;
 import api.GMessage;
+import api.ResultStore;
 import json.JSONArray;
 import json.JSONException;
 import json.JSONObject;
 
 import java.net.*;
 import java.io.*;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.*;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class GServer {
 
-    static int MAX_CLIENTS = 20; // maximum number of clients that can connect to server
+    static int MAX_CLIENTS = 20; // maximum number of clients that can connect to server (one thread per client)
+    static int MAX_NIO_CLIENTS = 10000; // maximum number of clients that can connect to server (NIO mode)
+    static int MAX_THREADS = Runtime.getRuntime().availableProcessors(); // maximum number of threads used by jobs in queue
+    static int CHUNK_SIZE = 1 << 16;    // number of chars that are encoded and sent to a client at a time (NIO mode)
+    static int MAX_PENDING = 1 << 22;   // number of bytes waiting to be sent to a client before its response is held back (NIO mode)
+    static boolean COMPRESS = false;    // gzip-compress stored results
+    static long RESULT_TTL = 0;         // minutes that results of completed jobs are stored; 0 means until server stops
+    static long RESULT_QUOTA = 0;       // megabytes that results of completed jobs can occupy in total; 0 means no limit
 
     private ServerSocket serverSocket;
-    protected Map<ClientHandler, Date> clients = new HashMap<>();
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    protected Map<Object, Date> clients = new ConcurrentHashMap<>();
     private final GRequest.JobQueue queue;
     private final CommandCentral commandCentral;
 
@@ -43,12 +60,82 @@ public class GServer {
         }
     }
 
+    /**
+     * Open a non-blocking socket on the server using specified port, and serve all clients from a single selector thread.
+     * Messages are handled by a pool of worker threads, which are only occupied while a message is processed,
+     * so idle or polling clients do not each hold a thread. Responses are encoded and sent in chunks.
+     * The protocol is the same as for {@link GServer#start(int)}, i.e. one JSON message per line.
+     * @param port
+     * @throws IOException
+     */
+    public void startNIO(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        ExecutorService workers = Executors.newCachedThreadPool();
+        ByteBuffer readbuf = ByteBuffer.allocate(CHUNK_SIZE);
+        try {
+            while (serverChannel.isOpen()) { // this runs until the server is stopped
+                selector.select();
+                // connections with output added by workers; interest in writing is changed here, by the selector thread
+                Connection conn;
+                while ((conn = writable.poll()) != null)
+                    conn.updateInterest();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = serverChannel.accept();
+                        if (channel == null)
+                            continue;
+                        channel.configureBlocking(false);
+                        conn = new Connection(channel, workers);
+                        if (clients.size() < MAX_NIO_CLIENTS) {
+                            clients.put(conn, new Date());
+                            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                            System.out.println("[" + conn + "] client connected");
+                        } else {
+                            conn.deny();
+                        }
+                        continue;
+                    }
+                    conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            conn.read(readbuf);
+                        if (key.isValid() && key.isWritable())
+                            conn.write();
+                    } catch (IOException e) {
+                        System.err.println("[" + conn + "]: socket failed");
+                        conn.close();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // server stopped
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+
     /**
      * Terminate the socket running on the server
      * @throws IOException
      */
     public void stop() throws IOException {
-        serverSocket.close();
+        if (serverChannel != null) {
+            serverChannel.close();
+            selector.close();
+        }
+        if (serverSocket != null)
+            serverSocket.close();
     }
 
     /**
@@ -61,11 +148,128 @@ public class GServer {
         // as requests come in (via the command central) they may be queued; here we create the job queue
         // TODO: check that the directory exists and/or is writeable
 
-        queue = new GRequest.JobQueue(new File(directory)); // the directory is where completed jobs are stored
+        ResultStore store = new ResultStore(new File(directory), COMPRESS, RESULT_TTL * 60000L, RESULT_QUOTA << 20);
+        queue = new GRequest.JobQueue(store, MAX_THREADS); // the directory is where completed jobs are stored
         // the job queue is a separate thread (which monitors and dispatches jobs as they pile up), which we start here
         queue.start();
     }
 
+    /**
+     * Handle a message from a client, and write the response(s) to the client.
+     * Messages are JSON, one per line; the first type of requests are simply concerned with the server, e.g. queries about queue.
+     * The method has access to the command central instance, which is used to manage
+     * jobs that are initiated by the client (the second, important type of requests).
+     * @param inputLine the message
+     * @param client name of client, for logging
+     * @param out the stream to which messages to the client are written
+     */
+    protected void respond(String inputLine, String client, PrintWriter out) {
+        System.out.println("[" + client + "] message (50 chars max): " + inputLine.substring(0, Math.min(inputLine.length(), 50)) + ((inputLine.length() > 50) ? "..." : ""));
+        try {
+            // client message is parsed as JSON, and an exception is generated if it fails (+ error passed to client)
+            JSONObject json = new JSONObject(inputLine);
+            // Distinguish between Server/Job related commands (first type, when there's mention of "Job")
+            int job = GMessage.fromJSON2Job(json);
+            if (job > 0) { // this command has job number, so needs to be handled by server-aware code
+                GRequest request = queue.getRequest(job);               // retrieve from current job queue
+                if (request != null) {                                  // found job...
+                    String command = json.optString("Command", null);    // extract command
+                    if (command == null) {
+                        out.println(GMessage.errorToJSON(3, "No command given about job " + job));
+                    } else {
+                        if (command.equals("Retrieve")) {
+                            // System.out.println("Sending this to client: " + request.toJSON());
+                            request.write(out);                             // pass on job info
+                            out.println();
+                        } else if (command.equals("Output")) {
+                            // request to retrieve output of completed job; if available, it is probably in storage,
+                            // from where it is passed on to the client as-is, else it is written as it is traversed
+                            if (request.hasResult()) {
+                                out.print("{\"Job\":" + job + ",\"Result\":");
+                                try {
+                                    if (!request.writeResult(out))
+                                        out.print("null");                  // evicted since checked
+                                } catch (IOException e) {
+                                    out.print("null");
+                                    System.err.println("Failed to read result of job " + job + ": " + e.getMessage());
+                                }
+                                out.println("}");
+                            } else {
+                                out.println(GMessage.errorToJSON(2));       // job not available; pass error
+                            }
+                        } else if (command.equals("Status")) {              // what's the job doing
+                            // System.out.println("Sending this to client: " + request.getStatus());
+                            out.println(GMessage.server2clientReJob(job, "Status", request.getStatus()));
+                        } else if (command.equals("Place")) {
+                            // System.out.println("Sending this to client: " + queue.getPlace(request));
+                            out.println(GMessage.server2clientReJob(job, "Place", queue.getPlace(request)));
+                        } else if (command.equals("Cancel")) {
+                            out.println(GMessage.server2clientReJob(job, "Cancel", queue.cancel(request)));
+                        } else {
+                            out.println(GMessage.errorToJSON(3, "Invalid command: " + command));
+                        }
+                    }
+                } else
+                    out.println(GMessage.errorToJSON(2, "No such job in queue: " + job));
+            } else { // no "Job"
+                String command = json.optString("Command", "");    // extract command
+                if (command.equals("Status")) {
+                    JSONObject jreport = new JSONObject();
+                    JSONArray jtable = new JSONArray();
+                    for (GRequest greq : queue.getJobs()) {
+                        JSONObject jjob = greq.job2JSON();
+                        jjob.put("Place", greq.isWaiting() ? queue.getPlace(greq) : 0);
+                        jtable.put(jjob);
+                    }
+                    jreport.put("Jobs", jtable);
+                    jreport.put("Clients", clients.size());
+                    jreport.put("Threads", queue.getReservedThreads());
+                    jreport.put("Cache", queue.getCacheStats());
+                    send(out, jreport);
+                } else {
+                    // Second type of commands: a new, actual compute job so needs to be managed and may be queued
+                    try {
+                        GRequest greq = commandCentral.createRequest(json);
+                        // System.out.println("OK--command detected: " + greq);
+                        // decision: run it now, or queue it for later...
+                        if (greq.isQueued()) {      // the request requires to be queued
+                            queue.add(greq);        // add to job queue
+                            // System.out.println("Informing client: Job " + greq.getJob() + " has been dispatched to queue, cancel with {\"Job\":\"" + greq.getJob() + "\",\"Command\":\"Cancel\"}");
+                            // TODO: find more info about what resources are required for job so client (and compute) can be advised
+                            out.println(GMessage.server2clientReJob(greq.getJob(), "Queued"));
+                        } else { // run now ... not in separate thread
+                            greq.runnow();
+                            if (greq.isFailed())
+                                System.out.println("Server failed to complete job because: " + greq.getError());
+                            JSONObject result = greq.getResult();           // request to retrieve output of completed job
+                            if (result != null) {                           // if available... probably in storage
+                                send(out, GMessage.server2clientReJob(job, "Result", result));
+                            } else {
+                                out.println(GMessage.errorToJSON(2));       // job not available; pass error
+                            }
+                        }
+                    } catch (CommandCentral.GRequestRuntimeException syntax) {
+                        out.println(GMessage.errorToJSON(4, syntax.getMessage()));
+                    }
+                }
+            }
+            // System.out.println("Accepts new request");
+        } catch (JSONException e) {
+            out.println(GMessage.errorToJSON(1));
+            System.out.println("[" + client + "]: " + GMessage.errorToJSON(1));
+        }
+    }
+
+    /**
+     * Write a (possibly large) message to the client, without first converting it to a string.
+     * @param out the stream to which messages to the client are written
+     * @param json the message
+     */
+    protected static void send(PrintWriter out, JSONObject json) {
+        json.write(out);
+        out.println();
+    }
+
     /**
      * Print usage instructions without error
      */
@@ -77,10 +281,15 @@ public class GServer {
      */
     public static void usage(int error, String message) {
         System.out.println("Usage:");
-        System.out.println("asr.GServer [-p <port>] [-d <dir>] [-c <max-clients>] [-h]");
+        System.out.println("asr.GServer [-p <port>] [-d <dir>] [-c <max-clients>] [-t <max-threads>] [-e <minutes>] [-q <megabytes>] [-z] [-n] [-h]");
         System.out.println("\twhere <port> is the port number that this server is listening to (default is 4072)");
         System.out.println("\t<dir> is the directory in which completed jobs are stored temporarily (default is /tmp)");
-        System.out.println("\t<max-clients> is the maximum number of clients that will be allowed (default is 20)");
+        System.out.println("\t<max-clients> is the maximum number of clients that will be allowed (default is 20, or 10000 with -n)");
+        System.out.println("\t<max-threads> is the total number of threads that queued jobs can use at the same time (default is " + Runtime.getRuntime().availableProcessors() + ")");
+        System.out.println("\t-e <minutes> is the time that results of completed jobs are stored (default is until the server stops)");
+        System.out.println("\t-q <megabytes> is the disk space that results can occupy, after which the oldest are removed (default is no limit)");
+        System.out.println("\t-z compresses stored results (gzip)");
+        System.out.println("\t-n serves clients with non-blocking sockets (NIO), instead of one thread per client");
         System.out.println("\t-h prints this help screen");
         if (error > 0) {
             System.err.println("Error " + error + ": " + message);
@@ -96,6 +305,8 @@ public class GServer {
     public static void main(String args[]) {
         Integer SERVERPORT = 4072; // default UQ's post-code
         String  DIRECTORY = "/tmp/";
+        boolean NIO = false;
+        Integer MAXCLIENTS = null; // if not specified, the default depends on the mode
 
         for (int a = 0; a < args.length; a ++) {
             if (args[a].startsWith("-")) {
@@ -108,12 +319,36 @@ public class GServer {
                     }
                 } else if (arg.equalsIgnoreCase("c") && args.length > a + 1) {
                     try {
-                        MAX_CLIENTS = Integer.parseInt(args[++a]);
+                        MAXCLIENTS = Integer.parseInt(args[++a]);
                     } catch (NumberFormatException e) {
                         usage(3, args[a] + "max-clients must be a positive integer 1 or above (default is 20)");
                     }
-                    if (MAX_CLIENTS < 1)
+                    if (MAXCLIENTS < 1)
                         usage(3, args[a] + "max-clients must be a positive integer 1 or above (default is 20)");
+                } else if (arg.equalsIgnoreCase("t") && args.length > a + 1) {
+                    try {
+                        MAX_THREADS = Integer.parseInt(args[++a]);
+                    } catch (NumberFormatException e) {
+                        usage(3, args[a] + "max-threads must be a positive integer 1 or above");
+                    }
+                    if (MAX_THREADS < 1)
+                        usage(3, args[a] + "max-threads must be a positive integer 1 or above");
+                } else if (arg.equalsIgnoreCase("e") && args.length > a + 1) {
+                    try {
+                        RESULT_TTL = Long.parseLong(args[++a]);
+                    } catch (NumberFormatException e) {
+                        usage(3, args[a] + "minutes must be a positive integer");
+                    }
+                } else if (arg.equalsIgnoreCase("q") && args.length > a + 1) {
+                    try {
+                        RESULT_QUOTA = Long.parseLong(args[++a]);
+                    } catch (NumberFormatException e) {
+                        usage(3, args[a] + "megabytes must be a positive integer");
+                    }
+                } else if (arg.equalsIgnoreCase("z")) {
+                    COMPRESS = true;
+                } else if (arg.equalsIgnoreCase("n")) {
+                    NIO = true;
                 } else if (arg.equalsIgnoreCase("d") && args.length > a + 1) {
                     DIRECTORY = args[++a];
                 } else if (arg.equalsIgnoreCase("h")) {
@@ -121,10 +356,19 @@ public class GServer {
                 }
             }
         }
+        if (MAXCLIENTS != null) {
+            if (NIO)
+                MAX_NIO_CLIENTS = MAXCLIENTS;
+            else
+                MAX_CLIENTS = MAXCLIENTS;
+        }
         GServer server = new GServer(DIRECTORY);
         System.out.println("Server initialises a socket open for requests");
         try {
-            server.start(SERVERPORT);
+            if (NIO)
+                server.startNIO(SERVERPORT);
+            else
+                server.start(SERVERPORT);
             System.out.println("Server proceeds to terminate its socket");
             server.stop();
         } catch (IOException e) {
@@ -182,90 +426,7 @@ public class GServer {
                 System.out.println("[" + clientSocket.toString() + "] client connected");
                 String inputLine = in.readLine();
                 while (inputLine != null) {
-                    System.out.println("[" + clientSocket.toString() + "] message (50 chars max): " + inputLine.substring(0, Math.min(inputLine.length(), 50)) + ((inputLine.length() > 50) ? "..." : ""));
-                    try {
-                        // client message is parsed as JSON, and an exception is generated if it fails (+ error passed to client)
-                        JSONObject json = new JSONObject(inputLine);
-                        // Distinguish between Server/Job related commands (first type, when there's mention of "Job")
-                        int job = GMessage.fromJSON2Job(json);
-                        if (job > 0) { // this command has job number, so needs to be handled by server-aware code
-                            GRequest request = queue.getRequest(job);               // retrieve from current job queue
-                            if (request != null) {                                  // found job...
-                                String command = json.optString("Command", null);    // extract command
-                                if (command == null) {
-                                    out.println(GMessage.errorToJSON(3, "No command given about job " + job));
-                                } else {
-                                    if (command.equals("Retrieve")) {
-                                        // System.out.println("Sending this to client: " + request.toJSON());
-                                        out.println(request.toJSON());                  // pass on job info
-                                    } else if (command.equals("Output")) {
-                                        JSONObject result = request.getResult();        // request to retrieve output of completed job
-                                        if (result != null) {                           // if available... probably in storage
-                                            // System.out.println("Sending this to client: " + result);
-                                            out.println(GMessage.server2clientReJob(job, "Result", result));
-                                        } else {
-                                            out.println(GMessage.errorToJSON(2));       // job not available; pass error
-                                        }
-                                    } else if (command.equals("Status")) {              // what's the job doing
-                                        // System.out.println("Sending this to client: " + request.getStatus());
-                                        out.println(GMessage.server2clientReJob(job, "Status", request.getStatus()));
-                                    } else if (command.equals("Place")) {
-                                        // System.out.println("Sending this to client: " + queue.getPlace(request));
-                                        out.println(GMessage.server2clientReJob(job, "Place", queue.getPlace(request)));
-                                    } else if (command.equals("Cancel")) {
-                                        out.println(GMessage.server2clientReJob(job, "Cancel", queue.cancel(request)));
-                                    } else {
-                                        out.println(GMessage.errorToJSON(3, "Invalid command: " + command));
-                                    }
-                                }
-                            } else
-                                out.println(GMessage.errorToJSON(2, "No such job in queue: " + job));
-                        } else { // no "Job"
-                            String command = json.optString("Command", "");    // extract command
-                            if (command.equals("Status")) {
-                                JSONObject jreport = new JSONObject();
-                                JSONArray jtable = new JSONArray();
-                                int cnt = 1;
-                                for (GRequest greq : queue.getJobs()) {
-                                    JSONObject jjob = greq.job2JSON();
-                                    jjob.put("Place", greq.isWaiting() ? cnt++ : 0);
-                                    jtable.put(jjob);
-                                }
-                                jreport.put("Jobs", jtable);
-                                jreport.put("Clients", clients.size());
-                                out.println(jreport);
-                            } else {
-                                // Second type of commands: a new, actual compute job so needs to be managed and may be queued
-                                try {
-                                    GRequest greq = commandCentral.createRequest(json);
-                                    // System.out.println("OK--command detected: " + greq);
-                                    // decision: run it now, or queue it for later...
-                                    if (greq.isQueued()) {      // the request requires to be queued
-                                        queue.add(greq);        // add to job queue
-                                        // System.out.println("Informing client: Job " + greq.getJob() + " has been dispatched to queue, cancel with {\"Job\":\"" + greq.getJob() + "\",\"Command\":\"Cancel\"}");
-                                        // TODO: find more info about what resources are required for job so client (and compute) can be advised
-                                        out.println(GMessage.server2clientReJob(greq.getJob(), "Queued"));
-                                    } else { // run now ... not in separate thread
-                                        greq.runnow();
-                                        if (greq.isFailed())
-                                            System.out.println("Server failed to complete job because: " + greq.getError());
-                                        JSONObject result = greq.getResult();           // request to retrieve output of completed job
-                                        if (result != null) {                           // if available... probably in storage
-                                            out.println(GMessage.server2clientReJob(job, "Result", result));
-                                        } else {
-                                            out.println(GMessage.errorToJSON(2));       // job not available; pass error
-                                        }
-                                    }
-                                } catch (CommandCentral.GRequestRuntimeException syntax) {
-                                    out.println(GMessage.errorToJSON(4, syntax.getMessage()));
-                                }
-                            }
-                        }
-                        // System.out.println("Accepts new request");
-                    } catch (JSONException e) {
-                        out.println(GMessage.errorToJSON(1));
-                        System.out.println("[" + clientSocket.toString() + "]: " + GMessage.errorToJSON(1));
-                    }
+                                        respond(inputLine, clientSocket.toString(), out);
                     inputLine = in.readLine();
                 }
                 in.close();
@@ -278,4 +439,237 @@ public class GServer {
             clients.remove(this);
         }
     }
+
+    /**
+     * Inner class that holds the state of a client connection in NIO mode.
+     * Bytes read by the selector thread are split into lines (messages), which are handled one at a time and in order
+     * by a worker thread. The worker writes responses via a {@link ChannelWriter} into a queue of chunks that the
+     * selector thread sends when the socket is ready; the worker waits if too many bytes are waiting to be sent.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final ExecutorService workers;
+        private final String name;
+        private SelectionKey key = null;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(); // bytes of current message
+        private final Deque<String> lines = new ArrayDeque<>();       // messages not yet handled
+        private final Deque<ByteBuffer> output = new ArrayDeque<>();  // chunks not yet sent
+        private long pending = 0;       // number of bytes not yet sent
+        private boolean busy = false;   // a worker is handling messages
+        private boolean eof = false;    // client will not send more messages
+        private boolean closed = false;
+
+        Connection(SocketChannel channel, ExecutorService workers) {
+            this.channel = channel;
+            this.workers = workers;
+            this.name = channel.socket().toString();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        public void deny() {
+            System.out.println("[" + name + "]: Denied client, server's closing their socket");
+            try {
+                channel.configureBlocking(true);
+                String msg = GMessage.errorToJSON(5, "Denied, since max number of clients (" + MAX_NIO_CLIENTS + ") reached on server") + "\n";
+                channel.write(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)));
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Closing; client socket failed: \"" + name + "\"");
+            }
+        }
+
+        /**
+         * Read available bytes from the client, and schedule complete messages to be handled (selector thread).
+         * @param buf buffer to read into
+         */
+        void read(ByteBuffer buf) throws IOException {
+            buf.clear();
+            int n = channel.read(buf);
+            boolean added = false;
+            if (n < 0) {
+                if (line.size() > 0) // last message may not end with a newline
+                    added = addLine();
+                synchronized (this) {
+                    eof = true;
+                }
+                updateInterest();
+            } else {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    byte b = buf.get();
+                    if (b == '\n')
+                        added |= addLine();
+                    else
+                        line.write(b);
+                }
+            }
+            if (added)
+                schedule();
+            else
+                closeIfDone();
+        }
+
+        private boolean addLine() {
+            String msg = line.toString(StandardCharsets.UTF_8);
+            line.reset();
+            if (msg.endsWith("\r"))
+                msg = msg.substring(0, msg.length() - 1);
+            synchronized (this) {
+                lines.add(msg);
+            }
+            return true;
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                if (busy || lines.isEmpty())
+                    return;
+                busy = true;
+            }
+            workers.execute(this::handle);
+        }
+
+        /**
+         * Handle messages until there are none left (worker thread).
+         */
+        private void handle() {
+            PrintWriter out = new PrintWriter(new ChannelWriter(this));
+            while (true) {
+                String msg;
+                synchronized (this) {
+                    msg = lines.poll();
+                    if (msg == null || closed) {
+                        busy = false;
+                        break;
+                    }
+                }
+                respond(msg, name, out);
+                out.flush();
+            }
+            closeIfDone();
+        }
+
+        /**
+         * Add a chunk to be sent to the client, and wait if too many bytes have not been sent yet (worker thread).
+         * @param buf chunk
+         */
+        void send(ByteBuffer buf) throws IOException {
+            synchronized (this) {
+                if (closed)
+                    throw new IOException("Connection closed: " + name);
+                output.add(buf);
+                pending += buf.remaining();
+            }
+            writable.add(this);
+            selector.wakeup();
+            synchronized (this) {
+                try {
+                    while (pending > MAX_PENDING && !closed)
+                        wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while sending to " + name);
+                }
+            }
+        }
+
+        /**
+         * Send as many chunks as the socket accepts (selector thread).
+         */
+        void write() throws IOException {
+            synchronized (this) {
+                while (!output.isEmpty()) {
+                    ByteBuffer buf = output.peek();
+                    pending -= channel.write(buf);
+                    if (buf.hasRemaining())
+                        break;
+                    output.poll();
+                }
+                notifyAll();
+            }
+            updateInterest();
+            closeIfDone();
+        }
+
+        /**
+         * Read while the client sends, write while there is output (selector thread).
+         */
+        synchronized void updateInterest() {
+            if (key == null || !key.isValid())
+                return;
+            key.interestOps((eof ? 0 : SelectionKey.OP_READ) | (output.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        private void closeIfDone() {
+            synchronized (this) {
+                if (!eof || busy || !output.isEmpty())
+                    return;
+            }
+            close();
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                notifyAll();
+            }
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Closing; client socket failed: \"" + name + "\"");
+            }
+            clients.remove(this);
+            System.out.println("[" + name + "]: closing socket");
+        }
+    }
+
+    /**
+     * Writer that encodes characters as UTF-8 and passes them in chunks to a client connection (NIO mode),
+     * so that a large response is never held as a single string or buffer.
+     */
+    private static class ChannelWriter extends Writer {
+        private final Connection conn;
+        private final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+        ChannelWriter(Connection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, chars.remaining());
+                chars.put(cbuf, off, n);
+                off += n;
+                len -= n;
+                if (!chars.hasRemaining())
+                    flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            chars.flip();
+            ByteBuffer bytes = ByteBuffer.allocate((int) (chars.remaining() * encoder.maxBytesPerChar()));
+            encoder.encode(chars, bytes, false); // a surrogate pair split between chunks is kept for the next
+            chars.compact();
+            bytes.flip();
+            if (bytes.hasRemaining())
+                conn.send(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
 }
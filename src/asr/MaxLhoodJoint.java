@@ -2,16 +2,17 @@ package asr;
 
 import bn.BNode;
 import bn.alg.CGTable;
-import bn.alg.Query;
 import bn.alg.VarElim;
 import bn.ctmc.SubstModel;
 import bn.ctmc.matrix.JC;
 import dat.Variable;
+import dat.phylo.CodedTreeInstance;
 import dat.phylo.IdxTree;
 import dat.phylo.PhyloBN;
 import dat.phylo.TreeDecor;
 import dat.phylo.TreeInstance;
 
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -27,6 +28,8 @@ public class MaxLhoodJoint implements TreeDecor<Object> {
     final private IdxTree tree;
     private PhyloBN pbn = null;
     private Inference inf = null;
+    private VarElim ve = null;      // inference engine for pbn, made once per BN
+    private final VarElim.PlanCache plans; // compiled MPE queries, by pattern of instantiated branch points; may be shared by many columns
 
 
     /**
@@ -40,6 +43,7 @@ public class MaxLhoodJoint implements TreeDecor<Object> {
         this.tree = tree;
         this.model = model;
         this.pbn = PhyloBN.create(tree, model, rate);
+        this.plans = new VarElim.PlanCache();
     }
 
     /**
@@ -49,9 +53,21 @@ public class MaxLhoodJoint implements TreeDecor<Object> {
      * @param model
      */
     public MaxLhoodJoint(IdxTree tree, SubstModel model) {
+        this(tree, model, new VarElim.PlanCache());
+    }
+
+    /**
+     * Set-up a joint reconstruction, as {@link #MaxLhoodJoint(IdxTree, SubstModel)}, with compiled queries
+     * shared with other reconstructions on the same tree, e.g. one for each column of an alignment.
+     * @param tree
+     * @param model
+     * @param plans cache of compiled queries, specific to the tree
+     */
+    public MaxLhoodJoint(IdxTree tree, SubstModel model, VarElim.PlanCache plans) {
         this.tree = tree;
         this.model = model;
         this.pbn = PhyloBN.create(tree, model);
+        this.plans = plans;
     }
 
     /**
@@ -62,8 +78,21 @@ public class MaxLhoodJoint implements TreeDecor<Object> {
      * //@param rate relative evolutionary rate
      */
     public MaxLhoodJoint(IdxTree tree, SubstModel.ModelCache modelcache) {
+        this(tree, modelcache, new VarElim.PlanCache());
+    }
+
+    /**
+     * Set-up a joint reconstruction, as {@link #MaxLhoodJoint(IdxTree, SubstModel.ModelCache)}, with compiled queries
+     * shared with other reconstructions on the same tree, e.g. one for each column of an alignment.
+     * Since the BN has the same structure regardless of the values, compiled queries apply irrespective of the model.
+     * @param tree
+     * @param modelcache
+     * @param plans cache of compiled queries, specific to the tree
+     */
+    public MaxLhoodJoint(IdxTree tree, SubstModel.ModelCache modelcache, VarElim.PlanCache plans) {
         this.tree = tree;
         this.modelcache = modelcache;
+        this.plans = plans;
     }
 
     /**
@@ -76,6 +105,7 @@ public class MaxLhoodJoint implements TreeDecor<Object> {
     public MaxLhoodJoint(PhyloBN pbn) {
         this.tree = pbn.getTree();
         this.pbn = pbn;
+        this.plans = new VarElim.PlanCache();
     }
 
 
@@ -99,7 +129,7 @@ public class MaxLhoodJoint implements TreeDecor<Object> {
     @Override
     public void decorate(TreeInstance ti) {
         long START_TIME = System.currentTimeMillis();
-        if (model == null && !pbn.isExt())
+        if (model == null && (pbn == null || !pbn.isExt())) // no BN yet if values are recoded, see infer(TreeInstance, boolean)
             inf = infer(ti, true);
         else
             inf = infer(ti);
@@ -149,11 +179,13 @@ public class MaxLhoodJoint implements TreeDecor<Object> {
             }
         }
         if (pbn.isValid()) {
-            // set-up the inference engine
-            VarElim ve = new VarElim();
-            ve.instantiate(pbn.getBN());
-            Query q_mpe = ve.makeMPE();
-            CGTable r1 = (CGTable) ve.infer(q_mpe);
+            // set-up the inference engine, re-using the plan if the same nodes have been instantiated before
+            if (ve == null) {
+                ve = new VarElim();
+                ve.instantiate(pbn.getBN());
+            }
+            VarElim.Plan plan = plans.get(getEvidencePattern(), ve, ve::makeMPE);
+            CGTable r1 = (CGTable) ve.infer(plan);
             Variable.Assignment[] assign = r1.getMPE();
             for (Variable.Assignment assign1 : assign) {
                 Integer idx = quick.get(assign1.var);
@@ -169,6 +201,27 @@ public class MaxLhoodJoint implements TreeDecor<Object> {
         return myinf;
     }
 
+    /**
+     * Determine which nodes of the BN are instantiated, by branch point index, so that the pattern is the same for
+     * all BNs created for the tree (unlike the topological order of nodes, which is specific to each BN).
+     * Bit 2i is set if the node of branch point i is instantiated, and bit 2i+1 if its accessory node is.
+     * @return the pattern of instantiated nodes
+     */
+    private BitSet getEvidencePattern() {
+        BitSet pattern = new BitSet();
+        for (int i = 0; i < tree.getSize(); i ++) {
+            BNode bnode = pbn.getBNode(i);
+            if (bnode != null && bnode.getInstance() != null)
+                pattern.set(2 * i);
+            if (pbn.isExt()) {
+                bnode = pbn.getExtNode(i);
+                if (bnode != null && bnode.getInstance() != null)
+                    pattern.set(2 * i + 1);
+            }
+        }
+        return pattern;
+    }
+
     /**
      * Get the model for the specified values (size N).
      * Only to be used internally, if the model is NOT assigned through the constructor.
@@ -216,15 +269,20 @@ public class MaxLhoodJoint implements TreeDecor<Object> {
             return infer(ti);
         }
         // construct a model suited to the values in the tree instance
-        Object[] key = ti.encode(recodeNull); // convert instances to standardised list
-        model = getModel(ti.getPossible());
+        CodedTreeInstance cti = CodedTreeInstance.encode(ti, recodeNull); // convert instances to standardised list
+        Object[] key = cti.getSymbols();
+        Object[] codes = new Object[key.length];
+        for (int i = 0; i < codes.length; i ++)
+            codes[i] = i;
+        model = getModel(codes);
         this.pbn = PhyloBN.create(tree, model);
         Inference myinf = new Inference(ti);
         Map<String, Integer> quick = new HashMap<>();
         // instantiate all nodes for which there are values, i.e. leaf nodes most probably but not necessarily.
         // also, leaf nodes do not need to be instantiated.
-        for (int i = 0; i < ti.getSize(); i++) {
-            myinf.values[i] = ti.getInstance(i);
+        for (int i = 0; i < cti.getSize(); i++) {
+            short code = cti.getCode(i);
+            myinf.values[i] = code == CodedTreeInstance.NULL ? null : codes[code];
             BNode bnode = pbn.getBNode(i);
             if (bnode != null) { // not hidden, so can be instantiated and inferred
                 quick.put(bnode.getVariable().getName(), i);
@@ -232,11 +290,11 @@ public class MaxLhoodJoint implements TreeDecor<Object> {
             } // else, this branchpoint is outside of the BN, and will be ignored
         }
         if (pbn.isValid()) {
-            // set-up the inference engine
-            VarElim ve = new VarElim();
+            // set-up the inference engine, re-using the plan if the same nodes have been instantiated before
+            ve = new VarElim();
             ve.instantiate(pbn.getBN());
-            Query q_mpe = ve.makeMPE();
-            CGTable r1 = (CGTable) ve.infer(q_mpe);
+            VarElim.Plan plan = plans.get(getEvidencePattern(), ve, ve::makeMPE);
+            CGTable r1 = (CGTable) ve.infer(plan);
             Variable.Assignment[] assign = r1.getMPE();
             for (Variable.Assignment assign1 : assign) {
                 Integer idx = quick.get(assign1.var.getName());
@@ -1,5 +1,6 @@
 package asr;
 
+import dat.phylo.CodedTreeInstance;
 import dat.phylo.IdxTree;
 import dat.phylo.Tree;
 import dat.phylo.TreeDecor;
@@ -69,34 +70,10 @@ public class Parsimony implements TreeDecor<List> {
      * @return result of inference
      */
     public synchronized Inference infer(TreeInstance ti, boolean recodeNull) {
-        Object[] key = ti.encode(recodeNull); // convert instances to standardised list
-        Inference myinf = new Inference(ti);
+        CodedTreeInstance cti = CodedTreeInstance.encode(ti, recodeNull); // convert instances to standardised list
+        Inference myinf = new Inference(cti);
         myinf.forward();
         myinf.backward();
-        boolean nullAtAncestors = false;
-        if (key[key.length - 1] == null) // an additional symbol was added to infer null at ancestors
-            nullAtAncestors = true;
-        for (int i = 0; i < nnodes; i ++) {
-            if (myinf.optimal[i] != null) {
-                boolean foundNull = false;
-                List mylist = new ArrayList();
-                for (Object sym : myinf.optimal[i]) {
-                    try {
-                        Integer mysym = (Integer) sym;
-                        if (nullAtAncestors && mysym == key.length - 1)  // this has null at ancestors
-                            foundNull = true;
-                        else
-                            mylist.add(key[mysym]);
-                    } catch (ClassCastException e) {
-                        throw new ASRRuntimeException("Invalid symbol inferred by parsimony: " + sym);
-                    }
-                }
-                if (foundNull && mylist.size() == 0) // ancestor has only null as optimal value
-                    myinf.optimal[i] = Collections.EMPTY_LIST;
-                else if (mylist.size() > 0)
-                    myinf.optimal[i] = mylist;
-            }
-        }
         return myinf;
     }
 
@@ -106,7 +83,7 @@ public class Parsimony implements TreeDecor<List> {
      * @return
      */
     public double[] forward(TreeInstance ti) {
-        Inference inf = new Inference(ti);
+        Inference inf = new Inference(CodedTreeInstance.encode(ti, false));
         return inf.forward();
     }
 
@@ -210,25 +187,25 @@ public class Parsimony implements TreeDecor<List> {
      */
     public class Inference {
         private final int[][][][] traceback;    // [node idx][parent value][child branch][best child value/s: 0, 1, 2, ...] = optimal child state,
-        private final TreeInstance treeInstance;
+        private final CodedTreeInstance treeInstance;
         private final double[][] scores;        // [node idx][parent value] the optimal score for each parent value
         private final int nsym;
         private List[] optimal;                 // [node idx] list of (optimal) values at branch point
 
 
-        public Inference(TreeInstance ti) {
+        public Inference(CodedTreeInstance ti) {
             this.treeInstance = ti;
-            this.nsym = ti.getNPossibleValues();
+            this.nsym = ti.getNSymbols();
             this.scores = new double[nnodes][nsym]; // after forward contains parsimony scores indexed by branchpoint, then symbol
             this.optimal = new List[nnodes]; // after inference contains all optimal symbols for indexed branchpoint
 
             this.traceback = new int[nnodes][nsym][][];
             for (int bpidx = 0; bpidx < ti.getSize(); bpidx ++) {
-                Object bpval = ti.getInstance(bpidx);
-                if (bpval != null) {
-                    this.optimal[bpidx] = Collections.singletonList(bpval);
+                short bpval = ti.getCode(bpidx);
+                if (bpval != CodedTreeInstance.NULL) {
+                    this.optimal[bpidx] = Collections.singletonList((int) bpval); // codes until inference completes, see decode()
                     for (int i = 0; i < nsym; i++)
-                        this.scores[bpidx][i] = bpval.equals(ti.getValueByIndex(i)) ? 0 : (double) Integer.MAX_VALUE;
+                        this.scores[bpidx][i] = bpval == i ? 0 : (double) Integer.MAX_VALUE;
                 } else {
                     this.optimal[bpidx] = null;
                 }
@@ -325,7 +302,7 @@ public class Parsimony implements TreeDecor<List> {
             for (int parent_state : range(nsym, SET_RANDOM_PARSIMONY)) {
                 if (scores[bpidx][parent_state] == scores[bpidx][best_index]) {
                     // now we know the index of (one of) the optimal parent state/s
-                    optimal[bpidx].add(treeInstance.getValueByIndex(parent_state));
+                    optimal[bpidx].add(parent_state);
                     int[] children = tree.getChildren(bpidx);
                     for (int c = 0; c < children.length; c ++) {
                         int childidx = children[c];
@@ -344,6 +321,35 @@ public class Parsimony implements TreeDecor<List> {
                 if (butt_out)
                     break;
             }
+            decode();
+        }
+
+        /**
+         * Convert the optimal codes at each branch point back to the values they refer to.
+         * The null value, if coded at leaves, is not listed, so an ancestor with only null as optimal value is given an empty list.
+         */
+        private void decode() {
+            Object[] key = treeInstance.getSymbols();
+            boolean nullAtAncestors = false;
+            if (key.length > 0 && key[key.length - 1] == null) // an additional symbol was added to infer null at ancestors
+                nullAtAncestors = true;
+            for (int i = 0; i < nnodes; i ++) {
+                if (optimal[i] != null) {
+                    boolean foundNull = false;
+                    List mylist = new ArrayList();
+                    for (Object sym : optimal[i]) {
+                        int mysym = (Integer) sym;
+                        if (nullAtAncestors && mysym == key.length - 1)  // this has null at ancestors
+                            foundNull = true;
+                        else
+                            mylist.add(key[mysym]);
+                    }
+                    if (foundNull && mylist.size() == 0) // ancestor has only null as optimal value
+                        optimal[i] = Collections.EMPTY_LIST;
+                    else if (mylist.size() > 0)
+                        optimal[i] = mylist;
+                }
+            }
         }
 
         /**
@@ -354,14 +360,13 @@ public class Parsimony implements TreeDecor<List> {
          */
         private void backward(int bpidx, int optimal_state) {
             // now we know the index of the parent
-            Object y = treeInstance.getValueByIndex(optimal_state);
             try {
-                if (optimal[bpidx].contains(y)) // check so that the state is assigned only once...
+                if (optimal[bpidx].contains(optimal_state)) // check so that the state is assigned only once...
                     return;                                 // ...avoid recurse since this value has been seen here before
             } catch (NullPointerException e) {
                 e.printStackTrace();
             }
-            optimal[bpidx].add(y);
+            optimal[bpidx].add(optimal_state);
             int[] children = tree.getChildren(bpidx);
             for (int c = 0; c < children.length; c ++) {
                 int childidx = children[c];
@@ -376,9 +381,9 @@ public class Parsimony implements TreeDecor<List> {
         }
 
         public double getScore(int parent_value_index) {
-            Object val = treeInstance.getInstance(0);
-            if (val != null ) // this node is set
-                return (parent_value_index == treeInstance.getIndexByValue(val) ? 0 : Double.POSITIVE_INFINITY);
+            short val = treeInstance.getCode(0);
+            if (val != CodedTreeInstance.NULL) // this node is set
+                return (parent_value_index == val ? 0 : Double.POSITIVE_INFINITY);
             double score = 0;
             int[] children = tree.getChildren(0);
             for (int chidx : children)
@@ -387,9 +392,9 @@ public class Parsimony implements TreeDecor<List> {
         }
 
         private double getScore(int bpidx, int parent_value_index) {
-            Object val = treeInstance.getInstance(bpidx);
-            if (val != null ) { // this node is set
-                return (parent_value_index == treeInstance.getIndexByValue(val) ? 0 : 1);
+            short val = treeInstance.getCode(bpidx);
+            if (val != CodedTreeInstance.NULL) { // this node is set
+                return (parent_value_index == val ? 0 : 1);
             } else { // not instantiated
                 double best = 9E9;
                 for (int my_value_index = 0; my_value_index < nsym; my_value_index ++) {
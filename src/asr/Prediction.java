@@ -1,11 +1,13 @@
 package asr;
 
+import bn.alg.VarElim;
 import bn.ctmc.SubstModel;
 import bn.ctmc.matrix.JC;
 import bn.prob.EnumDistrib;
 import dat.EnumSeq;
 import dat.Interval1D;
 import dat.IntervalST;
+import dat.file.BlockFile;
 import dat.file.Newick;
 import dat.phylo.IdxTree;
 import dat.phylo.PhyloBN;
@@ -15,9 +17,12 @@ import dat.pog.*;
 import json.JSONArray;
 import json.JSONException;
 import json.JSONObject;
+import json.JSONPullParser;
+import json.JSONWriter;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.IntFunction;
 
 /**
  * Container class for
@@ -35,12 +40,14 @@ import java.util.*;
  */
 public class Prediction {
     public static boolean DEBUG = GRASP.VERBOSE;    // print out various information
-    public int NTHREADS = 4;                        // how many threads to utilise
+    public int NTHREADS = GRASP.NTHREADS;           // how many threads to utilise
     private final POGTree pogTree;                  // input data contained in a POGTree
     private final IdxTree phylotree;                // the input phylogenetic tree (is also accessible via POGTree)
     private int[] ancidxs = null;                   // store the sub-set of indices that are used for internal nodes (ancestors)
     //private final Map<Object, POGraph> ancestors; // named ancestors
     private final POGraph[] ancarr;                 // ancestors by branchpoint index
+    private FrozenPOGraph[] frozen = null;          // ancestors by branchpoint index, when frozen (then ancarr is empty)
+    private BlockFile source = null;                // binary file from which ancestors not yet in ancarr are loaded when requested
     //
     private final IdxTree[] positrees;              // position-specific tree, or an edited form of the original tree for the purpose of inferring content
     private TreeInstance[]  treeinstances;          // position-specific tree instances, which contain instantiated (by extants) and inferred content (duplicating the content in POGs)
@@ -71,6 +78,16 @@ public class Prediction {
         this.distribs = new EnumDistrib[phylotree.getSize()][];
     }
 
+    /**
+     * Constructor for a prediction with ancestors that are loaded from a binary file when first requested.
+     * @param pogTree reference input data
+     * @param source binary file with ancestor POGs, as saved by {@link #saveBinary(String)}
+     */
+    private Prediction(POGTree pogTree, BlockFile source) {
+        this(pogTree, Collections.emptyMap());
+        this.source = source;
+    }
+
     /**
      * Convert instance from JSON.
      * @param json specification of prediction on JSON format
@@ -121,22 +138,71 @@ public class Prediction {
     }
 
     /**
-     * Load instance from a JSON file.
+     * Load instance from a JSON file, or a binary file as saved by {@link #saveBinary(String)}.
      * @param filename
      * @return
      * @throws IOException
      */
     public static Prediction load(String filename) throws IOException, JSONException {
-        FileReader freader=new FileReader(filename);
-        BufferedReader reader=new BufferedReader(freader);
-        StringBuilder sb = new StringBuilder();
-        String line = reader.readLine();
-        while (line != null) {
-            sb.append(line);
-            line = reader.readLine();
+        if (BlockFile.isBlockFile(filename))
+            return loadBinary(filename);
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            return Prediction.read(reader);
+        }
+    }
+
+    /**
+     * Read instance from JSON text, as written by {@link #write(Writer)}.
+     * The text is parsed as it is read, so neither the text nor its JSON objects are held in memory in full;
+     * as for {@link #fromJSON(JSONObject)}, the input data are decoded first, then the ancestors, one at a time.
+     * @param reader
+     * @return
+     */
+    public static Prediction read(Reader reader) {
+        JSONPullParser parser = new JSONPullParser(reader);
+        if (parser.next() != JSONPullParser.Event.START_OBJECT)
+            throw new ASRRuntimeException("Invalid input: Prediction is not a JSON object");
+        POGTree pogtree = null;
+        Map<Object, POGraph> ancestors = null;
+        int nancestors = 0;
+        while (parser.next() == JSONPullParser.Event.KEY) {
+            switch (parser.getKey()) {
+                case "Datatype":
+                    Object datatype = parser.readValue();
+                    if (!datatype.equals(Prediction.class.getSimpleName()))
+                        throw new ASRRuntimeException("Invalid input file: Wrong datatype " + datatype + " should be " + Prediction.class.getSimpleName());
+                    break;
+                case "Input":
+                    Object jinput = parser.readValue();
+                    if (!(jinput instanceof JSONObject))
+                        throw new ASRRuntimeException("Invalid \"Input\" field in JSON");
+                    pogtree = POGTree.fromJSON((JSONObject) jinput);
+                    break;
+                case "Ancestors":
+                    if (parser.next() != JSONPullParser.Event.START_ARRAY)
+                        throw new ASRRuntimeException("Invalid \"Ancestors\" field in JSON");
+                    ancestors = new HashMap<>();
+                    while (parser.hasNext()) {
+                        Object obj = parser.readValue();
+                        if (!(obj instanceof JSONObject))
+                            throw new ASRRuntimeException("Invalid ancestor in JSON: " + obj);
+                        POGraph pog = POGraph.fromJSON((JSONObject) obj);
+                        ancestors.put(pog.getName(), pog);
+                        nancestors += 1;
+                    }
+                    parser.next(); // end of array
+                    break;
+                default:
+                    parser.skipValue();
+            }
         }
-        JSONObject json = new JSONObject(sb.toString());
-        return Prediction.fromJSON(json);
+        if (pogtree == null)
+            throw new ASRRuntimeException("Missing \"Input\" field in JSON");
+        if (ancestors == null)
+            throw new ASRRuntimeException("Missing \"Ancestors\" field in JSON");
+        if (nancestors != pogtree.getTree().getNParents())
+            throw new ASRRuntimeException("Number of ancestors " + nancestors + " does not match tree " + pogtree.getTree().getNParents());
+        return new Prediction(pogtree, ancestors);
     }
 
     /**
@@ -145,12 +211,86 @@ public class Prediction {
      * @throws IOException
      */
     public void save(String filename) throws IOException {
-        FileWriter fwriter=new FileWriter(filename);
-        BufferedWriter writer=new BufferedWriter(fwriter);
-        writer.write(toJSON().toString());
-        writer.newLine();
-        writer.close();
-        fwriter.close();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+            write(writer);
+            writer.newLine();
+        }
+    }
+
+    /**
+     * Write this instance as JSON text, with the same content as {@link #toJSON()}, but one POG at a time,
+     * so that the JSON objects and text of the reconstruction are not held in memory in full.
+     * Keys are written in the same order as in the text of the JSON object.
+     * @param writer
+     */
+    public void write(Writer writer) {
+        JSONWriter w = new JSONWriter(writer);
+        w.object();
+        w.key("Input");
+        pogTree.write(w);
+        w.key("GRASP_version").value(GRASP.VERSION);
+        w.key("Ancestors").array();
+        for (int i : pogTree.getTree().getAncestors())
+            getPOG(i).write(w);
+        w.endArray();
+        w.key("Datatype").value(this.getClass().getSimpleName());
+        w.endObject();
+    }
+
+    /** Types of blocks in the binary file format */
+    private static final String BLOCK_INFO = "Info", BLOCK_TREE = "Tree", BLOCK_EXTANT = "Extant", BLOCK_ANCESTOR = "Ancestor";
+
+    /**
+     * Save this instance as a binary file, with the tree, and each extant and ancestor POG as separate blocks (on JSON format), so
+     * that ancestors can be read individually; see {@link #loadBinary(String)}.
+     * @param filename
+     * @throws IOException
+     */
+    public void saveBinary(String filename) throws IOException {
+        try (BlockFile.Writer writer = new BlockFile.Writer(filename)) {
+            JSONObject info = new JSONObject();
+            info.put("GRASP_version", GRASP.VERSION);
+            info.put("Datatype", this.getClass().getSimpleName());
+            writer.add(BLOCK_INFO, "", info.toString());
+            writer.add(BLOCK_TREE, "", phylotree.toJSON().toString());
+            for (int i : phylotree.getLeaves()) {
+                POGraph pog = pogTree.getExtant(i);
+                writer.add(BLOCK_EXTANT, pog.getName(), pog.toJSON().toString());
+            }
+            for (int i : phylotree.getAncestors()) {
+                POGraph pog = getPOG(i);
+                if (pog != null)
+                    writer.add(BLOCK_ANCESTOR, phylotree.getLabel(i).toString(), pog.toJSON().toString());
+            }
+        }
+    }
+
+    /**
+     * Load instance from a binary file, as saved by {@link #saveBinary(String)}.
+     * The file is memory-mapped; the tree and extants are read, but each ancestor POG is read only when it is first requested.
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static Prediction loadBinary(String filename) throws IOException {
+        BlockFile source = new BlockFile(filename);
+        String info = source.getText(BLOCK_INFO, "");
+        if (info == null)
+            throw new ASRRuntimeException("Invalid input file: Missing \"Info\" block in " + filename);
+        String datatype = new JSONObject(info).optString("Datatype", null);
+        if (!Prediction.class.getSimpleName().equals(datatype))
+            throw new ASRRuntimeException("Invalid input file: Wrong datatype " + datatype + " should be " + Prediction.class.getSimpleName());
+        String jtree = source.getText(BLOCK_TREE, "");
+        if (jtree == null)
+            throw new ASRRuntimeException("Invalid input file: Missing \"Tree\" block in " + filename);
+        IdxTree tree = IdxTree.fromJSON(new JSONObject(jtree));
+        Map<String, POGraph> extmap = new HashMap<>();
+        for (String name : source.getNames(BLOCK_EXTANT))
+            extmap.put(name, POGraph.fromJSON(new JSONObject(source.getText(BLOCK_EXTANT, name))));
+        POGTree pogtree = new POGTree(extmap, tree);
+        if (source.getNames(BLOCK_ANCESTOR).size() != tree.getNParents())
+            throw new ASRRuntimeException("Number of ancestors " + source.getNames(BLOCK_ANCESTOR).size() + " does not match tree " + tree.getNParents());
+        return new Prediction(pogtree, source);
     }
 
     /**
@@ -167,7 +307,7 @@ public class Prediction {
         // finally, put the predicted POGs in there
         List<POGraph> pogs = new ArrayList<>();
         for (int i : pogTree.getTree().getAncestors())
-            pogs.add(ancarr[i]);
+            pogs.add(getPOG(i));
         json.put("Ancestors", POGraph.toJSONArray(pogs));
         return json;
     }
@@ -183,7 +323,7 @@ public class Prediction {
         // put the predicted POGs in there
         List<POGraph> pogs = new ArrayList<>();
         for (int i : pogTree.getTree().getAncestors())
-            pogs.add(ancarr[i]);
+            pogs.add(getPOG(i));
         json.put("Ancestors", POGraph.toJSONArray(pogs));
         return json;
     }
@@ -205,7 +345,7 @@ public class Prediction {
                     saveme1e.add(g);
                 }
             } else { // ancestor
-                IdxGraph g = ancarr[idx];
+                IdxGraph g = getPOG(idx);
                 saveme1a.add(g);
             }
         }
@@ -269,83 +409,118 @@ public class Prediction {
     /**
      * Retrieve position-specific index tree that is based on the original phylogenetic tree but has only indices for ancestor nodes,
      * which are not marked as absent indels.
-     * The index tree is cached inside this class instance, so that it can be quickly retrieved when required again.
+     * The index trees for all positions are constructed in one sweep the first time any is requested, and cached inside this class instance,
+     * so that they can be quickly retrieved when required again.
      * @param position index in alignment/POG
      * @return index tree for specified position in alignment/POG
      */
     public IdxTree getTree(int position) {
-        if (positrees[position] == null) {
-            // we need to construct this from ancestor POGs...
-            IdxTree phylo = pogTree.getTree();
-            Set<Integer> pruneMe = new HashSet<>();
-            for (int idx : phylo) {
-                // Object ancid = phylo.getLabel(idx);
-                if (!phylo.isLeaf(idx)) { // ancestor
-                    POGraph pog = ancarr[idx]; // getAncestor(ancid);
-                    if (pog == null)
-                        throw new ASRRuntimeException("Invalid ancestor at branchpoint " + idx);
-                    if (!pog.isNode(position))
-                        pruneMe.add(idx);
-                } else { // extant (Fixed: 5 Aug 2023)
-
-                    POGraph pog = pogTree.getExtant((int)idx);
-                    if (pog == null)
-                        throw new ASRRuntimeException("Invalid extant at branchpoint " + idx);
-                    if (!pog.isNode(position))
-                        pruneMe.add(idx);
-                }
+        if (positrees[position] == null)
+            buildTrees();
+        return positrees[position];
+    }
+
+    /**
+     * Determine the branch points that are absent (i.e. part of an indel) at a position.
+     * @param position index in alignment/POG
+     * @return the set of branch point indices that are absent
+     */
+    private BitSet getAbsent(int position) {
+        IdxTree phylo = pogTree.getTree();
+        BitSet absent = new BitSet(phylo.getSize());
+        for (int idx = 0; idx < phylo.getSize(); idx ++) {
+            boolean present;
+            if (!phylo.isLeaf(idx)) { // ancestor
+                if (frozen != null && frozen[idx] != null) // no need to thaw to check a node
+                    present = frozen[idx].isNode(position);
+                else if (getPOG(idx) != null)
+                    present = getPOG(idx).isNode(position);
+                else
+                    throw new ASRRuntimeException("Invalid ancestor at branchpoint " + idx);
+            } else { // extant (Fixed: 5 Aug 2023)
+                POGraph pog = pogTree.getExtant(idx);
+                if (pog == null)
+                    throw new ASRRuntimeException("Invalid extant at branchpoint " + idx);
+                present = pog.isNode(position);
             }
-            // pruneMe contains indices that SHOULD BE REMOVED, optionally including orphaned (not linked to extants) ancestors
-            IdxTree postree = null;
-            int[] indices = null;
-            if (GRASP.REMOVE_INDEL_ORPHANS) {
-                if (GRASP.VERBOSE) {
-                    int[] indices_with_orphans = phylo.getPrunedIndex(pruneMe, false);
-                    IdxTree tree_with_orphans = IdxTree.createPrunedTree(phylo, indices_with_orphans);
-                    int[] roots_with_orphans = tree_with_orphans.getRoots();
-                    indices = phylo.getPrunedIndex(pruneMe, true);
-                    postree = IdxTree.createPrunedTree(phylo, indices);
-                    int[] roots_without_orphans = postree.getRoots();
-                    int different = (roots_with_orphans.length - roots_without_orphans.length);
-                    if (different > 0)
-                        System.out.println("Pos " + position + " removed \t" + different + " orphaned INDEL trees");
-                } else {
-                    indices = phylo.getPrunedIndex(pruneMe, true);
-                    postree = IdxTree.createPrunedTree(phylo, indices);
-                }
+            if (!present)
+                absent.set(idx);
+        }
+        return absent;
+    }
+
+    /**
+     * Construct the position-specific trees for all positions in one sweep.
+     * Positions with the same branch points absent, e.g. neighbouring positions inside the same indel, share the same tree and index map,
+     * so each distinct tree is built (and stored) only once.
+     */
+    private synchronized void buildTrees() {
+        Map<BitSet, Integer> built = new HashMap<>(); // absent branch points mapped to the first position with that tree
+        BitSet previous = null;
+        for (int position = 0; position < positrees.length; position ++) {
+            if (positrees[position] != null) {
+                previous = null;
+                continue;
+            }
+            BitSet absent = getAbsent(position);
+            Integer same = absent.equals(previous) ? (Integer) (position - 1) : built.get(absent);
+            if (same != null) {
+                positrees[position] = positrees[same];
+                positidxs[position] = positidxs[same];
             } else {
+                buildTree(position, absent);
+                built.put(absent, position);
+            }
+            previous = absent;
+        }
+    }
+
+    /**
+     * Construct the position-specific tree for a position, with nominated branch points removed
+     * @param position index in alignment/POG
+     * @param absent branch points to remove
+     */
+    private void buildTree(int position, BitSet absent) {
+        IdxTree phylo = pogTree.getTree();
+        Set<Integer> pruneMe = new HashSet<>();
+        for (int idx = absent.nextSetBit(0); idx >= 0; idx = absent.nextSetBit(idx + 1))
+            pruneMe.add(idx);
+        // pruneMe contains indices that SHOULD BE REMOVED, optionally including orphaned (not linked to extants) ancestors
+        IdxTree postree = null;
+        int[] indices = null;
+        if (GRASP.REMOVE_INDEL_ORPHANS) {
+            if (GRASP.VERBOSE) {
                 int[] indices_with_orphans = phylo.getPrunedIndex(pruneMe, false);
-                postree = IdxTree.createPrunedTree(phylo, indices_with_orphans);
-                indices = indices_with_orphans;
-                if (GRASP.VERBOSE) {
-                    int[] indices_without_orphans = phylo.getPrunedIndex(pruneMe, true);
-                    IdxTree tree_without_orphans = IdxTree.createPrunedTree(phylo, indices_without_orphans);
-                    int[] roots_with_orphans = postree.getRoots();
-                    int[] roots_without_orphans = tree_without_orphans.getRoots();
-                    int different = (roots_with_orphans.length - roots_without_orphans.length);
-                    if (different > 0)
-                        System.out.println("Pos " + position + " contains \t" + different + " orphaned INDEL trees");
-                }
+                IdxTree tree_with_orphans = IdxTree.createPrunedTree(phylo, indices_with_orphans);
+                int[] roots_with_orphans = tree_with_orphans.getRoots();
+                indices = phylo.getPrunedIndex(pruneMe, true);
+                postree = IdxTree.createPrunedTree(phylo, indices);
+                int[] roots_without_orphans = postree.getRoots();
+                int different = (roots_with_orphans.length - roots_without_orphans.length);
+                if (different > 0)
+                    System.out.println("Pos " + position + " removed \t" + different + " orphaned INDEL trees");
+            } else {
+                indices = phylo.getPrunedIndex(pruneMe, true);
+                postree = IdxTree.createPrunedTree(phylo, indices);
             }
-            // save tree for quick re-retrieval later
-            positrees[position] = postree;
-            // save indices for quick re-retrieval later
-            positidxs[position] = indices;
-/*
-            Set<Integer> orphans = positrees[position].getIndicesOfOrphanedTrees();
-            if (orphans.size() > 0)
-                System.out.println("" + position + " has " + orphans.size() +" members");
-            // TODO: make this into an option (to remove trees that do not have any extants in them)
-            pruneMe = positrees[position].getIndicesOfOrphanedTrees();
-            if (pruneMe.size() > 0) {
-                indices = positrees[position].getPrunedIndex(pruneMe);
-                positrees[position] = IdxTree.createPrunedTree(positrees[position], indices);
-                positidxs[position] = indices;
+        } else {
+            int[] indices_with_orphans = phylo.getPrunedIndex(pruneMe, false);
+            postree = IdxTree.createPrunedTree(phylo, indices_with_orphans);
+            indices = indices_with_orphans;
+            if (GRASP.VERBOSE) {
+                int[] indices_without_orphans = phylo.getPrunedIndex(pruneMe, true);
+                IdxTree tree_without_orphans = IdxTree.createPrunedTree(phylo, indices_without_orphans);
+                int[] roots_with_orphans = postree.getRoots();
+                int[] roots_without_orphans = tree_without_orphans.getRoots();
+                int different = (roots_with_orphans.length - roots_without_orphans.length);
+                if (different > 0)
+                    System.out.println("Pos " + position + " contains \t" + different + " orphaned INDEL trees");
             }
-
- */
-        } // else the index tree was already cached...
-        return positrees[position];
+        }
+        // save tree for quick re-retrieval later
+        positrees[position] = postree;
+        // save indices for quick re-retrieval later
+        positidxs[position] = indices;
     }
 
     /**
@@ -409,7 +584,78 @@ public class Prediction {
      */
     public POGraph getAncestor(Object ancID) {
         int bpidx = getBranchpointIndex(ancID);
-        return bpidx != -1 ? ancarr[bpidx] : null;
+        return bpidx != -1 ? getPOG(bpidx) : null;
+    }
+
+    /**
+     * Get the ancestor POG at a branch point; if the ancestors are frozen, a thawed copy is returned, so changes to it are not retained.
+     * If the prediction was loaded from a binary file, the POG is read from the file when first requested.
+     * @param bpidx branch point index
+     * @return the POG, null if not available
+     */
+    private POGraph getPOG(int bpidx) {
+        if (frozen != null)
+            return frozen[bpidx] != null ? frozen[bpidx].thaw() : null;
+        if (source != null) // the slot may be filled by another thread, so is only read while holding the lock
+            return loadPOG(bpidx);
+        return ancarr[bpidx];
+    }
+
+    /**
+     * Get an ancestor POG, reading it from the binary file that this prediction was loaded from if not done already
+     * @param bpidx branch point index
+     * @return the POG, null if not available
+     */
+    private synchronized POGraph loadPOG(int bpidx) {
+        if (ancarr[bpidx] == null) { // may have been loaded by another thread
+            String name = phylotree.getLabel(bpidx).toString();
+            String json = source.getText(BLOCK_ANCESTOR, name);
+            if (json == null)
+                return null;
+            POGraph pog = POGraph.fromJSON(new JSONObject(json));
+            pog.setName(name);
+            ancarr[bpidx] = pog;
+        }
+        return ancarr[bpidx];
+    }
+
+    /**
+     * Convert all ancestor POGs to their frozen, read-optimised form, to keep finished ancestors compact, e.g. when
+     * many ancestors are retained but only their consensus sequences or marginal distributions are of interest.
+     * Subsequent requests for ancestor POGs produce thawed copies.
+     * @see FrozenPOGraph
+     */
+    public synchronized void freeze() {
+        if (frozen != null)
+            return;
+        FrozenPOGraph[] fpogs = new FrozenPOGraph[ancarr.length];
+        for (int idx = 0; idx < ancarr.length; idx ++) {
+            if (getPOG(idx) != null) {
+                fpogs[idx] = ancarr[idx].freeze();
+                ancarr[idx] = null;
+            }
+        }
+        frozen = fpogs;
+    }
+
+    /**
+     * Convert all frozen ancestor POGs back to their modifiable form.
+     */
+    public synchronized void thaw() {
+        if (frozen == null)
+            return;
+        for (int idx = 0; idx < frozen.length; idx ++) {
+            if (frozen[idx] != null)
+                ancarr[idx] = frozen[idx].thaw();
+        }
+        frozen = null;
+    }
+
+    /**
+     * @return true if ancestor POGs are held in frozen form
+     */
+    public boolean isFrozen() {
+        return frozen != null;
     }
 
     /**
@@ -431,7 +677,7 @@ public class Prediction {
         Map<Object, POGraph> ancestors = new HashMap<>();
         // iterate through all ancestors, and extracting states from those that have been inferred
         for (int idx : getAncestorIndices()) {
-            POGraph pog = ancarr[idx];
+            POGraph pog = getPOG(idx);
             if (pog != null) {
                 if (mode == GRASP.Inference.JOINT) {
                     if (states != null) {
@@ -459,7 +705,7 @@ public class Prediction {
         int bpidx = getBranchpointIndex(ancID);
         if (bpidx == -1)
             throw new ASRRuntimeException("Invalid ancestor ID (not found in tree) " + ancID);
-        POGraph pog0 = ancarr[bpidx];
+        POGraph pog0 = getPOG(bpidx);
         if (pog0 == null)
             throw new ASRRuntimeException("Invalid ancestor ID (not inferred) " + ancID);
         if (mode == GRASP.Inference.JOINT) {
@@ -488,30 +734,29 @@ public class Prediction {
             throw new ASRRuntimeException("Invalid ancestor ID (not found in tree) " + ancestorID);
         if (distribs[bpidx] == null) {                                          // the ancestor has not yet been inferred, so DO it...
             IdxTree[] trees = new IdxTree[getPositions()];                      // this is how many position-specific trees we are dealing with
-            // FIXME: create an index map for "inf" to enable generics <EnumDistrib>?
-            TreeDecor[] inf = new TreeDecor[getPositions()];    // which is also how many inferences we will carry out
-            for (int pos = 0; pos < getPositions(); pos ++) {                   // for each position...
-                trees[pos] = getTree(pos);                                      //   this is the tree with indels imputed
-                int ancidx = positidxs[pos][bpidx];                             //   index for sought ancestor in the position-specific tree
-                if (ancidx >= 0)                                                //   which may not exist, i.e. part of an indel, but if it is real...
-                    inf[pos] = new MaxLhoodMarginal(ancidx, trees[pos], MODEL, rates[pos]);//     set-up the inference
-            }
-
             distribs[bpidx] = new EnumDistrib[pogTree.getPositions()];
             treeinstances = new TreeInstance[pogTree.getPositions()];
             for (int pos = 0; pos < getPositions(); pos ++) {                   // for each position...
+                trees[pos] = getTree(pos);                                      //   this is the tree with indels imputed
                 int specidx = positidxs[pos][bpidx];                            //   index for sought ancestor in the position-specific tree
                 if (specidx >= 0) {                                             //   which may not exist, i.e. part of an indel, but if it is real...
                     treeinstances[pos] = pogTree.getNodeInstance(pos, trees[pos], positidxs[pos]); //     get the instances at the leaves at that position, and...
                 }
             }
-            ThreadedDecorators threadpool = new ThreadedDecorators(inf, treeinstances, GRASP.NTHREADS);
+            int[] patterns = getSitePatterns(treeinstances, rates);            // positions with the same pattern are inferred only once
+            // FIXME: create an index map for "inf" to enable generics <EnumDistrib>?
+            TreeDecor[] inf = new TreeDecor[getPositions()];    // which is also how many inferences we will carry out
+            for (int pos = 0; pos < getPositions(); pos ++) {                   // for each position...
+                int ancidx = positidxs[pos][bpidx];                             //   index for sought ancestor in the position-specific tree
+                if (ancidx >= 0 && patterns[pos] == pos)                        //   which may not exist, i.e. part of an indel, but if it is real (and a new pattern)...
+                    inf[pos] = new Felsenstein.Marginal(ancidx, trees[pos], MODEL, rates[pos]);//     set-up the inference
+            }
             try {
-                Map<Integer, TreeDecor> ret = threadpool.runBatch();
+                TreeDecor[] ret = DecorScheduler.getShared(NTHREADS).runBatch(inf, treeinstances);
                 for (int pos = 0; pos < getPositions(); pos ++) {                   // for each position...
                     int specidx = positidxs[pos][bpidx];                            //   index for sought ancestor in the position-specific tree
                     if (specidx >= 0) {                                             //   which may not exist, i.e. part of an indel, but if it is real...
-                        distribs[bpidx][pos] = (EnumDistrib)ret.get(pos).getDecoration(specidx);     //     extract distribution of marginal prob
+                        distribs[bpidx][pos] = (EnumDistrib)ret[patterns[pos]].getDecoration(specidx);     //     extract distribution of marginal prob
                     }
                 }
             } catch (Exception e) {
@@ -522,6 +767,101 @@ public class Prediction {
         return distribs[bpidx];
     }
 
+    /**
+     * Get the marginal distributions for all ancestors, for a specified substitution model.
+     * Rather than inferring one ancestor at a time, all ancestors of each position-specific tree are inferred
+     * in one upward and one downward pass, so the cost is about that of inferring two ancestors.
+     * Distributions are null for positions that are not part of an ancestor (see {@link #getMarginal(Object, SubstModel, double[])}).
+     * @param MODEL the substitution model
+     * @param rates the position-specific relative evolutionary rates, or null to use the default rate
+     * @return the distributions, indexed by branch point and position; null for branch points that are not ancestors
+     */
+    public EnumDistrib[][] getMarginals(SubstModel MODEL, double[] rates) {
+        if (rates == null) {
+            rates = new double[getPositions()];
+            Arrays.fill(rates, PhyloBN.DEFAULT_RATE);
+        }
+        IdxTree[] trees = new IdxTree[getPositions()];                          // this is how many position-specific trees we are dealing with
+        treeinstances = new TreeInstance[getPositions()];
+        for (int pos = 0; pos < getPositions(); pos ++) {                       // for each position...
+            trees[pos] = getTree(pos);                                          //   this is the tree with indels imputed
+            treeinstances[pos] = pogTree.getNodeInstance(pos, trees[pos], positidxs[pos]); // get the instances at the leaves at that position
+        }
+        int[] patterns = getSitePatterns(treeinstances, rates);                // positions with the same pattern are inferred only once
+        TreeDecor[] inf = new TreeDecor[getPositions()];
+        for (int pos = 0; pos < inf.length; pos ++) {
+            if (patterns[pos] == pos)
+                inf[pos] = new Felsenstein.Marginals(trees[pos], MODEL, rates[pos]);
+        }
+        try {
+            TreeDecor[] ret = DecorScheduler.getShared(NTHREADS).runBatch(inf, treeinstances);
+            for (int idx : getAncestorIndices()) {                              // for each ancestor...
+                distribs[idx] = new EnumDistrib[getPositions()];
+                for (int pos = 0; pos < getPositions(); pos ++) {               //   and each position...
+                    int specidx = positidxs[pos][idx];                          //   index for ancestor in the position-specific tree
+                    if (specidx >= 0)                                           //   which may not exist, i.e. part of an indel, but if it is real...
+                        distribs[idx][pos] = (EnumDistrib)ret[patterns[pos]].getDecoration(specidx);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return distribs;
+    }
+
+    /**
+     * Identify positions that share a site pattern, i.e. the same position-specific tree, the same observed states and the same rate,
+     * so that inference need only be carried out once per unique pattern, and the result fanned out to all positions with that pattern.
+     * @param tis tree instances, indexed by position (null if the position is not inferred)
+     * @param rates relative evolutionary rates, indexed by position
+     * @return for each position, the first position with the same site pattern (possibly itself), or -1 if the position has no tree instance
+     */
+    private int[] getSitePatterns(TreeInstance[] tis, double[] rates) {
+        int[] patterns = new int[tis.length];
+        Map<SitePattern, Integer> unique = new HashMap<>();
+        for (int pos = 0; pos < tis.length; pos ++) {
+            if (tis[pos] == null) {
+                patterns[pos] = -1;
+                continue;
+            }
+            Integer first = unique.putIfAbsent(new SitePattern(positidxs[pos], tis[pos].getInstance(), rates[pos]), pos);
+            patterns[pos] = (first == null) ? pos : first;
+        }
+        if (GRASP.VERBOSE)
+            System.out.println("Found " + unique.size() + " unique site patterns across " + tis.length + " positions");
+        return patterns;
+    }
+
+    /**
+     * Key that identifies a site pattern; the position-specific tree is identified by its index map to the original tree.
+     */
+    private static class SitePattern {
+        private final int[] treeidxs;
+        private final Object[] values;
+        private final double rate;
+        private final int hash;
+
+        SitePattern(int[] treeidxs, Object[] values, double rate) {
+            this.treeidxs = treeidxs;
+            this.values = values;
+            this.rate = rate;
+            this.hash = Objects.hash(Arrays.hashCode(treeidxs), Arrays.hashCode(values), rate);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SitePattern)) return false;
+            SitePattern that = (SitePattern) o;
+            return hash == that.hash && Double.compare(rate, that.rate) == 0 && Arrays.equals(treeidxs, that.treeidxs) && Arrays.equals(values, that.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
     /**
      * Perform joint reconstruction across all ancestors, and all positions
      * @param MODEL evolutionary model
@@ -544,24 +884,26 @@ public class Prediction {
         }
         this.states = new Object[getTree().getSize()][getPositions()];
         IdxTree[] trees = new IdxTree[getPositions()];              // this is how many position-specific trees we are dealing with
-        // FIXME: create an index map for "inf" to enable generics <EnumDistrib>?
-        TreeDecor[] inf = new TreeDecor[getPositions()];            // number of positions is also how many inferences we will carry out
-        for (int pos = 0; pos < inf.length; pos++) {                // so for each position...
-            trees[pos] = getTree(pos);                                          //   this is the tree with indels imputed
-            inf[pos] = new MaxLhoodJoint(trees[pos], MODEL, rates[pos]);        //   configure inference
-        }
         treeinstances = new TreeInstance[getPositions()];
         for (int pos = 0; pos < getPositions(); pos ++) {           // for each position...
+            trees[pos] = getTree(pos);                                          //   this is the tree with indels imputed
             treeinstances[pos] = pogTree.getNodeInstance(pos, trees[pos], positidxs[pos]); // get the instances at the leaves at that position, and...
         }
-        ThreadedDecorators threadpool = new ThreadedDecorators(inf, treeinstances, GRASP.NTHREADS);
+        int[] patterns = getSitePatterns(treeinstances, rates);    // positions with the same pattern are inferred only once
+        // FIXME: create an index map for "inf" to enable generics <EnumDistrib>?
+        TreeDecor[] inf = new TreeDecor[getPositions()];            // number of positions is also how many inferences we will carry out
+        for (int pos = 0; pos < inf.length; pos++) {                // so for each position...
+            if (patterns[pos] == pos)                                           //   with a pattern not seen before...
+                inf[pos] = new Felsenstein.Joint(trees[pos], MODEL, rates[pos]);//   configure inference
+        }
         try {
-            Map<Integer, TreeDecor> ret = threadpool.runBatch();
+            TreeDecor[] ret = DecorScheduler.getShared(NTHREADS).runBatch(inf, treeinstances);
             for (int pos = 0; pos < getPositions(); pos ++) {           // for each position...
+                TreeDecor decor = ret[patterns[pos]];                       //   the inference for the site pattern
                 for (int idx : getAncestorIndices()) {                      // for each ancestor...
                     int ancidx = positidxs[pos][idx];                           //   index for sought ancestor in the position-specific tree
                     if (ancidx >= 0)                                            //   which may not exist, i.e. part of an indel, but if it is real...
-                        states[idx][pos] = ret.get(pos).getDecoration(ancidx);  //     extract state
+                        states[idx][pos] = decor.getDecoration(ancidx);         //     extract state
                 }
             }
         } catch (Exception e) {
@@ -647,55 +989,61 @@ public class Prediction {
      * @return the positions of the corresponding ancestor POG that make up the "consensus" path
      */
     public int[] getConsensus(int bpidx) {
-        POGraph pog = this.ancarr[bpidx];
-        if (pog == null)
+        FrozenPOGraph fpog = frozen != null ? frozen[bpidx] : null; // if frozen, weights are set and search is performed on the frozen form
+        POGraph pog = fpog != null ? null : getPOG(bpidx);
+        if (pog == null && fpog == null)
             throw new ASRRuntimeException("Ancestor has not been inferred: index is " + bpidx);
+        int N = fpog != null ? fpog.maxsize() : pog.maxsize();
         // collect info to make decisions...
         int[] leaves = phylotree.getLeaves(bpidx); // determine all branch points of leaves (i.e. extants) under this ancestor
         // go through POG nodes, to determine the transition "weights"
         PriorityQueue<Integer> queue = new PriorityQueue<>();
         Set<Integer> visiting = new HashSet<>();
-        for (int idx : pog.getForward()) { // to start us off: add all indices emanating from start
+        for (int idx : (fpog != null ? fpog.getForward() : pog.getForward())) { // to start us off: add all indices emanating from start
             queue.add(idx);
             visiting.add(idx);
         }
         // iterate through a queue, to which nodes are added if linked from "current" node
         while (queue.size() > 0) { // until empty...
             int curr = queue.poll();
-            int[] nexts = pog.getForward(curr);
-            if (pog.isEndNode(curr)) { // check if next node can be terminal
+            int[] nexts = fpog != null ? fpog.getForward(curr) : pog.getForward(curr);
+            if (fpog != null ? fpog.isEndNode(curr) : pog.isEndNode(curr)) { // check if next node can be terminal
                 // if so, add to nexts
                 int[] nnexts = nexts;
                 nexts = new int[nnexts.length + 1];
                 for (int i = 0; i < nnexts.length; i ++)
                     nexts[i] = nnexts[i];
-                nexts[nnexts.length] = pog.maxsize(); // add the end terminus
+                nexts[nnexts.length] = N; // add the end terminus
             }
             double[] rates = pogTree.getEdgeRates(curr, nexts, leaves);
             // set the weights
             for (int i = 0; i < nexts.length; i ++) {
                 try {
-                    POGraph.StatusEdge edge = pog.getEdge(curr, nexts[i]);
                     double w = -Math.log(rates[i]);
+                    if (fpog != null) { // structure is fixed, so only weight is set (which also instantiates an edge if absent)
+                        fpog.setWeight(fpog.getEdgeSlot(curr, nexts[i]), w > 10000 ? 10000 : w);
+                        continue;
+                    }
+                    POGraph.StatusEdge edge = pog.getEdge(curr, nexts[i]);
                     if (edge == null) { // the target node may not have been inferred
                         edge = new POGraph.StatusEdge(false);
                         pog.addEdge(curr, nexts[i], edge);
                     }
                     edge.setWeight(w > 10000 ? 10000 : w); // neg log of prob; so P=1 means zero weight, low P means high weight
                 } catch (RuntimeException e) {
-                    throw new ASRRuntimeException("Invalid POG with missing edge: " + pog.getName() + " message=\"" + e.getMessage() + "\"");
+                    throw new ASRRuntimeException("Invalid POG with missing edge: " + (fpog != null ? fpog.getName() : pog.getName()) + " message=\"" + e.getMessage() + "\"");
                 }
             }
             // add indices of all nodes that can be visited next
             for (int idx : nexts) {
-                if (idx != pog.maxsize() && !visiting.contains(idx)) {
+                if (idx != N && !visiting.contains(idx)) {
                     queue.add(idx);
                     visiting.add(idx);
                 }
             }
         }
         // with weights set, we find the optimal path (pick one if several; else need to query individual edges and assemble)
-        int[] consensus = pog.getMostSupported();
+        int[] consensus = fpog != null ? fpog.getMostSupported() : pog.getMostSupported();
         return consensus;
     }
 
@@ -734,12 +1082,8 @@ public class Prediction {
         IdxTree tree = pogTree.getTree();  // indexed tree (quick access to branch points, no editing)
         Map<Object, POGraph> ancestors = new HashMap<>(); // prepare where predictions will go
         TreeInstance[] ti = pogTree.getNodeInstances(true);   // extract gap/no-gap (boolean) leaf instantiation for every position
-        Parsimony[] pi = new Parsimony[nPos]; // prepare array where all inferred gap states will go
-        // next stage should be multi-threaded... not so at the moment
-        for (int i = 0; i < nPos; i ++) { // for every position...
-            pi[i] = new Parsimony(ti[i].getTree(), false); // this is where the inferred states for an individual position goes
-            pi[i].decorate(ti[i]);  // inference
-        }
+        // inferred gap states for all positions go here; positions are inferred 64 at a time
+        BitParsimony pi = new BitParsimony(tree, ti, false);
         // unpack the results, branch point by branch point
         for (int j = 0; j < tree.getSize(); j ++) {         // for every (indexed) branch point (IdxTree defaults to depth-first order)
             if (tree.isLeaf(j))             // if leaf, ignore and
@@ -753,9 +1097,10 @@ public class Prediction {
             int current_anchor = -1; // the first jump always from the start position
             Set<Integer> anchorset = new HashSet<>();
             for (int i = 0; i < nPos; i ++) {   // now traverse all positions, consider if GAP, not-GAP or admissible
-                if (pi[i].getOptimal(j).contains(Boolean.FALSE) && pi[i].getOptimal(j).contains(Boolean.TRUE)) { // admissible, but not required
+                List<Object> calls = pi.getOptimal(i, j);
+                if (calls.contains(Boolean.FALSE) && calls.contains(Boolean.TRUE)) { // admissible, but not required
                     anchorset.add(i);
-                } else if (pi[i].getOptimal(j).contains(Boolean.FALSE)) { // ALWAYS character (i.e. not-GAP), so required position
+                } else if (calls.contains(Boolean.FALSE)) { // ALWAYS character (i.e. not-GAP), so required position
                     anchorset.add(i);
                     anchorsets.put(current_anchor, anchorset);  // anchor set is linked to the position at which it started
                     anchorset = new HashSet<>();                // re-set anchor set
@@ -801,12 +1146,13 @@ public class Prediction {
         TreeInstance[] ti = pogTree.getNodeInstances(true);   // extract gap/no-gap (boolean) leaf instantiation for every position
 
         MaxLhoodJoint[] ji = new MaxLhoodJoint[ti.length];
+        VarElim.PlanCache plans = new VarElim.PlanCache(); // columns with the same instantiated leaves share compiled queries
         for (int i = 0; i < ji.length; i++) {
             if (i == 1) {
             }
             Object[] possible = {true, false};
             SubstModel substmodel = new JC(1, possible); // need to know the alphabet...
-            ji[i] = new MaxLhoodJoint(tree, substmodel);
+            ji[i] = new MaxLhoodJoint(tree, substmodel, plans);
         }
         // Below is where the main inference occurs
         // this stage should be multi-threaded... not so at the moment
@@ -881,22 +1227,26 @@ public class Prediction {
      * @return instance of Prediction
      */
     public static Prediction PredictBySICP(POGTree pogTree) {
+        return PredictBySICP(pogTree, GRASP.NTHREADS);
+    }
+
+    /**
+     * Simple indel-coding method using parsimony, see {@link #PredictBySICP(POGTree)}.
+     * @param pogTree
+     * @param nThreads number of threads to assemble ancestors with
+     * @return instance of Prediction
+     */
+    public static Prediction PredictBySICP(POGTree pogTree, int nThreads) {
         int nPos = pogTree.getPositions(); //
         Random rand = new Random(nPos); // random seed set here
         IdxTree tree = pogTree.getTree();
-        Map<Object, POGraph> ancestors = new HashMap<>();
         // Retrieve an instance for each indel across the whole alignment (ordered by interval tree)
         // (state for each extant-indel: present, absent or permissible/neutral, as per Simmons and Ochoterena, 2000)
         // initially "permissible/neutral" is encoded as null (the variable is uninstantiated); see POGraph.getSimpleGapCode)
         TreeInstance[] ti = pogTree.getIndelInstances(); // a pogTree has a list of "indels"; here leaves are instantiated with applicable indels
         // inference will infer true, false, or accept that both true and false can be correct
-        Parsimony[] pi = new Parsimony[ti.length];
-        // Below is where the main inference occurs
-        // this stage should be multi-threaded... not so at the moment
-        for (int i = 0; i < ti.length; i++) { // for each "indel"
-            pi[i] = new Parsimony(ti[i].getTree(), false);
-            pi[i].decorate(ti[i]);
-        }
+        // Below is where the main inference occurs; all "indels" are inferred together, 64 at a time
+        BitParsimony pi = new BitParsimony(tree, ti, false);
         if (DEBUG) {
             // print out tables...
             int i = 0; // interval index
@@ -917,10 +1267,10 @@ public class Prediction {
         // the code below
         // (1) regardless, if an ancestor or extant, we can pull out what the INDEL states are: absent (false), present (true) or permissible (true/false)
         // (2) if an ancestor, an ancestor POG is created, using the info from (1)
-        for (int j = 0; j < tree.getSize(); j++) { // we look at each branch point, corresponding to either an extant or ancestor sequence
-            Object ancID = tree.getBranchPoint(j).getID();
-            if (tree.getChildren(j).length == 0) { // not an ancestor
-                if (DEBUG) {
+        if (DEBUG) { // print the indel states inferred for extants
+            for (int j = 0; j < tree.getSize(); j++) {
+                Object ancID = tree.getBranchPoint(j).getID();
+                if (tree.getChildren(j).length == 0) { // not an ancestor
                     POGraph pog = pogTree.getExtant(ancID);
                     System.out.print(ancID + "\t");
                     if (pog != null) {
@@ -928,7 +1278,7 @@ public class Prediction {
                         for (Interval1D ival : pogTree.getIntervalTree()) {
                             if (ival.getWidth() > 1 || ival.min == -1 || ival.max == pogTree.getPositions()) { // exclude non-gaps
                                 StringBuilder sb = new StringBuilder();
-                                List calls = pi[i].getOptimal(j);
+                                List<Object> calls = pi.getOptimal(i, j);
                                 for (Object b : calls) // each "b" is a Boolean
                                     sb.append(b.toString().substring(0, 1)); // this converts each value to "t" or "f"
                                 System.out.print(sb + "\t");
@@ -938,112 +1288,125 @@ public class Prediction {
                     }
                     System.out.println();
                 }
-                continue; // skip the code below, only predictions for ancestors are used to compose POGs
             }
-            // else: ancestor branch point
-            // (1) Find ancestor STATE for each INDEL, and
-            // (2) resolve what the POG looks like...
-            if (DEBUG) System.out.print(ancID + "\t");
-            // First, construct a list to include all unambiguously true indels, some of which are
-            // rendered inapplicable (due to being precluded by others)
-            IntervalST unamb_tree = new IntervalST();
-            List<Interval1D> unambiguous = new ArrayList<>();
-            List<Interval1D> ambiguous = new ArrayList<>();
-            int i = 0; // interval index; this order is decided above when indels are instantiated and inferred
-            for (Interval1D ival : pogTree.getIntervalTree()) { // order specific to pogTree, and linked with ti and pi
-                if (ival.getWidth() > 1 || ival.min == -1 || ival.max == pogTree.getPositions()) { // exclude non-gaps
-                    List<Boolean> calls = pi[i].getOptimal(j); // for ancestor index j
-                    if (DEBUG) {
-                        StringBuilder sb = new StringBuilder();
-                        for (Boolean b : calls)
-                            sb.append(b.toString().substring(0, 1));
-                        System.out.print(sb + "\t");
-                    }
-                    if (calls.contains(Boolean.TRUE)) { // INDEL can be TRUE
-                        if (calls.size() == 1) { // the ONLY value is TRUE so DEFINITIVELY include
-                            unambiguous.add(ival);
-                            unamb_tree.put(ival, true);
-                        } else
-                            ambiguous.add(ival);
-                    }
-                    i++;
+        }
+        Map<Object, POGraph> ancestors = assembleAncestors(tree, j -> assembleBySICP(pogTree, pi, j), nThreads);
+        return new Prediction(pogTree, ancestors);
+    }
+
+    /**
+     * Assemble the POG of an ancestor from the indel states inferred by SICP, see {@link #PredictBySICP(POGTree)}.
+     * @param pogTree the data structure holding the extants and the tree
+     * @param pi inferred indel states, indexed by interval as ordered by the interval tree of pogTree
+     * @param j branch point index of the ancestor
+     * @return the ancestor POG
+     */
+    private static POGraph assembleBySICP(POGTree pogTree, BitParsimony pi, int j) {
+        int nPos = pogTree.getPositions();
+        Object ancID = pogTree.getTree().getBranchPoint(j).getID();
+        // (1) Find ancestor STATE for each INDEL, and
+        // (2) resolve what the POG looks like...
+        if (DEBUG) System.out.print(ancID + "\t");
+        // First, construct a list to include all unambiguously true indels, some of which are
+        // rendered inapplicable (due to being precluded by others)
+        IntervalST unamb_tree = new IntervalST();
+        List<Interval1D> unambiguous = new ArrayList<>();
+        List<Interval1D> ambiguous = new ArrayList<>();
+        int i = 0; // interval index; this order is decided above when indels are instantiated and inferred
+        for (Interval1D ival : pogTree.getIntervalTree()) { // order specific to pogTree, and linked with ti and pi
+            if (ival.getWidth() > 1 || ival.min == -1 || ival.max == pogTree.getPositions()) { // exclude non-gaps
+                List<Object> calls = pi.getOptimal(i, j); // for ancestor index j
+                if (DEBUG) {
+                    StringBuilder sb = new StringBuilder();
+                    for (Object b : calls)
+                        sb.append(b.toString().substring(0, 1));
+                    System.out.print(sb + "\t");
                 }
+                if (calls.contains(Boolean.TRUE)) { // INDEL can be TRUE
+                    if (calls.size() == 1) { // the ONLY value is TRUE so DEFINITIVELY include
+                        unambiguous.add(ival);
+                        unamb_tree.put(ival, true);
+                    } else
+                        ambiguous.add(ival);
+                }
+                i++;
             }
-            Set<Interval1D> unambigset = unamb_tree.flatten2Set(false);
-            unambiguous = new ArrayList<>();
-            unambiguous.addAll(unambigset);
-            if (DEBUG) System.out.println();
-            // the order in which the intervals are considered is important: sorted by first start-index, within-which end-index
-            Collections.sort(unambiguous);
-            // Second, construct an interval tree definitive, with INDELs that are not contained within a TRUE INDEL
-            IntervalST<Boolean> definitive = new IntervalST<>();    // to hold all unambiguously TRUE and not-precluded INDELs
-            Set<Integer> valididx = new HashSet<>();                // the set of indices that are used to hold all unambiguous calls
-            // TWO OPTIONS:
-            // (1) Use precluder edges to serially imprint gaps on the ancestor
+        }
+        Set<Interval1D> unambigset = unamb_tree.flatten2Set(false);
+        unambiguous = new ArrayList<>();
+        unambiguous.addAll(unambigset);
+        if (DEBUG) System.out.println();
+        // the order in which the intervals are considered is important: sorted by first start-index, within-which end-index
+        Collections.sort(unambiguous);
+        // Second, construct an interval tree definitive, with INDELs that are not contained within a TRUE INDEL
+        IntervalST<Boolean> definitive = new IntervalST<>();    // to hold all unambiguously TRUE and not-precluded INDELs
+        Set<Integer> valididx = new HashSet<>();                // the set of indices that are used to hold all unambiguous calls
+        // TWO OPTIONS:
+        // (1) Use precluder edges to serially imprint gaps on the ancestor
 //            if (GRASP.INDEL_CONSERVATIVE) {
-                Interval1D precluder = null;                            // the interval that is the last to have been added, when considered "in order"
-                Set<Integer> frontedges = new HashSet<>();              // the set of edges current at the "front" of reaching the terminal
-                int prev = -1;
-                frontedges.add(prev);
-                for (int cnt = 0; cnt < unambiguous.size(); cnt++) {
-                    Interval1D current = unambiguous.get(cnt);          // "current" interval under consideration...
-                    if (cnt < unambiguous.size() - 1) {                 // there is at least one more after this...
-                        Interval1D next = unambiguous.get(cnt + 1);     // so look-ahead to the "next" interval
-                        if (!next.contains(current)) {                  // next is not precluding current...
-                            if (precluder != null) {                    // consider if the last-addition does
-                                if (!precluder.contains(current)) {     // last-addition does NOT preclude the current one either, so...
-                                    definitive.put(current, true);// add current interval to interval tree, true indicates that it is unambiguous
-                                    valididx.add(current.min);
-                                    valididx.add(current.max);
-                                    precluder = current;                // update last-addition
-                                }
-                            } else {                                    // there isn't a "last-addition", so...
-                                definitive.put(current, true);    // add current
-                                valididx.add(current.min);
-                                valididx.add(current.max);
-                                precluder = current;                    // update last-addition to current
-                            }
-                        }                                               // else: next interval precludes current, so can ignore current
-                    } else { // none after so include...
-                        if (precluder != null) {                        // consider if the last-addition does
-                            if (!precluder.contains(current)) {         // last-addition does NOT preclude the current one either, so...
-                                definitive.put(current, true);    // add current interval to interval tree, the cnt is not relevant at this stage
+            Interval1D precluder = null;                            // the interval that is the last to have been added, when considered "in order"
+            Set<Integer> frontedges = new HashSet<>();              // the set of edges current at the "front" of reaching the terminal
+            int prev = -1;
+            frontedges.add(prev);
+            for (int cnt = 0; cnt < unambiguous.size(); cnt++) {
+                Interval1D current = unambiguous.get(cnt);          // "current" interval under consideration...
+                if (cnt < unambiguous.size() - 1) {                 // there is at least one more after this...
+                    Interval1D next = unambiguous.get(cnt + 1);     // so look-ahead to the "next" interval
+                    if (!next.contains(current)) {                  // next is not precluding current...
+                        if (precluder != null) {                    // consider if the last-addition does
+                            if (!precluder.contains(current)) {     // last-addition does NOT preclude the current one either, so...
+                                definitive.put(current, true);// add current interval to interval tree, true indicates that it is unambiguous
                                 valididx.add(current.min);
                                 valididx.add(current.max);
+                                precluder = current;                // update last-addition
                             }
-                        } else {                                        // there isn't a "last-addition", so...
-                            definitive.put(current, true);
+                        } else {                                    // there isn't a "last-addition", so...
+                            definitive.put(current, true);    // add current
                             valididx.add(current.min);
                             valididx.add(current.max);
+                            precluder = current;                    // update last-addition to current
                         }
+                    }                                               // else: next interval precludes current, so can ignore current
+                } else { // none after so include...
+                    if (precluder != null) {                        // consider if the last-addition does
+                        if (!precluder.contains(current)) {         // last-addition does NOT preclude the current one either, so...
+                            definitive.put(current, true);    // add current interval to interval tree, the cnt is not relevant at this stage
+                            valididx.add(current.min);
+                            valididx.add(current.max);
+                        }
+                    } else {                                        // there isn't a "last-addition", so...
+                        definitive.put(current, true);
+                        valididx.add(current.min);
+                        valididx.add(current.max);
                     }
-                    if (!frontedges.contains(current.min)) { // just added an edge without a known source node
-                        int biggest = -1;
-                        for (int src : frontedges)
-                            biggest = src > biggest ? src : biggest;
-                        for (; biggest < current.min; biggest++) {
-                            Interval1D pad = new Interval1D(biggest, biggest + 1);
-                            if (precluder != null) {                        // consider if the last-addition does // FIXME: probably no need to check...
-                                if (!precluder.contains(pad)) {        // last-addition does NOT preclude the current one either, so...
-                                    definitive.put(pad, false); // add one-step patch to interval tree; false indicates that it is not based on ML inference
-                                    valididx.add(pad.min);
-                                    valididx.add(pad.max);
-                                }
-                            } else {                                        // there isn't a "last-addition", so...
+                }
+                if (!frontedges.contains(current.min)) { // just added an edge without a known source node
+                    int biggest = -1;
+                    for (int src : frontedges)
+                        biggest = src > biggest ? src : biggest;
+                    for (; biggest < current.min; biggest++) {
+                        Interval1D pad = new Interval1D(biggest, biggest + 1);
+                        if (precluder != null) {                        // consider if the last-addition does // FIXME: probably no need to check...
+                            if (!precluder.contains(pad)) {        // last-addition does NOT preclude the current one either, so...
                                 definitive.put(pad, false); // add one-step patch to interval tree; false indicates that it is not based on ML inference
                                 valididx.add(pad.min);
                                 valididx.add(pad.max);
                             }
+                        } else {                                        // there isn't a "last-addition", so...
+                            definitive.put(pad, false); // add one-step patch to interval tree; false indicates that it is not based on ML inference
+                            valididx.add(pad.min);
+                            valididx.add(pad.max);
                         }
                     }
-                    if (current.min > prev) { // check if we've moved beyond the source index (can do because the intervals are sorted)
-                        frontedges.remove(prev);
-                        prev = current.min;
-                    }
-                    frontedges.add(current.max);
                 }
+                if (current.min > prev) { // check if we've moved beyond the source index (can do because the intervals are sorted)
+                    frontedges.remove(prev);
+                    prev = current.min;
+                }
+                frontedges.add(current.max);
+            }
 //            } else
-            // add edges whenever true, and rely on consensus paths to find best
+        // add edges whenever true, and rely on consensus paths to find best
 //            {
 //                for (int cnt = 0; cnt < unambiguous.size(); cnt ++) {
 //                    Interval1D current = unambiguous.get(cnt);          // "current" interval under consideration...
@@ -1054,47 +1417,44 @@ public class Prediction {
 //                // TODO: pad sequence
 //            }
 
-            // After, unambiguous calls...
-            // optionally, add ambiguous calls, i.e. indels that are optimally both true and false.
-            // With SICP, an unambiguous call for an indel A precludes other calls, say B, if B is contained in A,
-            // regardless of B being unambiguous or ambiguous.
-            // However, an ambiguous call for an indel C does NOT preclude calls for other ambiguous calls.
-            // To incorporate ambiguous calls, we thus (a) refrain from adding those which are contained by unambiguous
-            // indels (which are not themselves contained), and (b) add ambiguous calls that have start and end points that
-            // are supported by unambiguous calls.
-            // the code below is an altered (mostly extended) version of the above strategy.
-            // Sorting is important: ambiguous indels added to the definitive interval tree in-order,
-            // will never contain those that follow.
-            Collections.sort(ambiguous);
-            EdgeMap emap = new EdgeMap();
-            List<Interval1D> ambigedges = new ArrayList<>();
-            for (int cnt = 0; cnt < ambiguous.size(); cnt ++) {
-                Interval1D current = ambiguous.get(cnt);        // "current" interval under consideration...
-                if (valididx.contains(current.min) && valididx.contains(current.max)) { // require both indices to be included from unambiguous calls
-                    boolean not_contained = true;
-                    for (Interval1D overlap : definitive.searchAll(current))
-                        if (overlap.contains(current)) {
-                            not_contained = false;
-                            break;
-                        }
-                    if (not_contained)
-                        ambigedges.add(current);
-                }
-            }
-            for (Interval1D ival : ambigedges)
-                definitive.put(ival, false);
-            // finally, we are now in a position to create edges for a POG, including edges that are just linkers,
-            // representing discontinuous sequence without decision
-            for (Interval1D edge : definitive) {
-                emap.add(edge.min, edge.max);
-                if (definitive.get(edge).contains(true))    // possibly test if it is unambiguous or ambiguous, before deciding to...
-                    emap.add(edge.min, edge.max);           // label the edge as "reciprocated"
+        // After, unambiguous calls...
+        // optionally, add ambiguous calls, i.e. indels that are optimally both true and false.
+        // With SICP, an unambiguous call for an indel A precludes other calls, say B, if B is contained in A,
+        // regardless of B being unambiguous or ambiguous.
+        // However, an ambiguous call for an indel C does NOT preclude calls for other ambiguous calls.
+        // To incorporate ambiguous calls, we thus (a) refrain from adding those which are contained by unambiguous
+        // indels (which are not themselves contained), and (b) add ambiguous calls that have start and end points that
+        // are supported by unambiguous calls.
+        // the code below is an altered (mostly extended) version of the above strategy.
+        // Sorting is important: ambiguous indels added to the definitive interval tree in-order,
+        // will never contain those that follow.
+        Collections.sort(ambiguous);
+        EdgeMap emap = new EdgeMap();
+        List<Interval1D> ambigedges = new ArrayList<>();
+        for (int cnt = 0; cnt < ambiguous.size(); cnt ++) {
+            Interval1D current = ambiguous.get(cnt);        // "current" interval under consideration...
+            if (valididx.contains(current.min) && valididx.contains(current.max)) { // require both indices to be included from unambiguous calls
+                boolean not_contained = true;
+                for (Interval1D overlap : definitive.searchAll(current))
+                    if (overlap.contains(current)) {
+                        not_contained = false;
+                        break;
+                    }
+                if (not_contained)
+                    ambigedges.add(current);
             }
-            // finally put the info into a POG
-            POGraph pog = POGraph.createFromEdgeMap(nPos, emap);
-            ancestors.put(ancID, pog);
         }
-        return new Prediction(pogTree, ancestors);
+        for (Interval1D ival : ambigedges)
+            definitive.put(ival, false);
+        // finally, we are now in a position to create edges for a POG, including edges that are just linkers,
+        // representing discontinuous sequence without decision
+        for (Interval1D edge : definitive) {
+            emap.add(edge.min, edge.max);
+            if (definitive.get(edge).contains(true))    // possibly test if it is unambiguous or ambiguous, before deciding to...
+                emap.add(edge.min, edge.max);           // label the edge as "reciprocated"
+        }
+        // finally put the info into a POG
+        return POGraph.createFromEdgeMap(nPos, emap);
     }
 
 
@@ -1136,8 +1496,9 @@ public class Prediction {
         // To do this would require a switch to marginal inference, then thresholding for 0.5.
         TreeInstance[] ti = pogTree.getIndelInstances(); // instantiate a tree for each "indel", assigning leaf states as per extants
         MaxLhoodJoint[] ji = new MaxLhoodJoint[ti.length];
+        VarElim.PlanCache plans = new VarElim.PlanCache(); // indels with the same uninstantiated leaves share compiled queries
         for (int i = 0; i < ji.length; i++) { // for each "indel" we need to infer either gain or loss, so set-up inference
-            ji[i] = new MaxLhoodJoint(tree, gain_loss_model);
+            ji[i] = new MaxLhoodJoint(tree, gain_loss_model, plans);
         }
         // Below is where the main inference occurs
         // this stage should be multi-threaded... not so at the moment
@@ -1268,16 +1629,67 @@ public class Prediction {
         return new Prediction(pogTree, ancestors);
     }
 
+    /**
+     * Assemble the POGs of all ancestors, in parallel with the threads of the shared scheduler (serially if debugging,
+     * so that output is in order). Each POG is placed in an array slot of its own, and the map is populated once all are done.
+     * @param tree the phylogenetic tree
+     * @param assembler function that assembles the POG for the ancestor at a given branch point index
+     * @param nThreads number of threads
+     * @return map from ancestor ID to POG
+     */
+    private static Map<Object, POGraph> assembleAncestors(IdxTree tree, IntFunction<POGraph> assembler, int nThreads) {
+        int[] ancidxs = tree.getAncestors();
+        POGraph[] pogs = new POGraph[ancidxs.length];
+        if (DEBUG) {
+            for (int k = 0; k < ancidxs.length; k ++)
+                pogs[k] = assembler.apply(ancidxs[k]);
+        } else
+            DecorScheduler.getShared(nThreads).runRange(ancidxs.length, k -> pogs[k] = assembler.apply(ancidxs[k]));
+        Map<Object, POGraph> ancestors = new HashMap<>();
+        for (int k = 0; k < ancidxs.length; k ++)
+            ancestors.put(tree.getBranchPoint(ancidxs[k]).getID(), pogs[k]);
+        return ancestors;
+    }
+
+    /**
+     * Run the forward and backward edge decorators as a single batch on the shared scheduler,
+     * so that the cores are kept busy across both directions.
+     * @param fdecors forward decorators, each decorated in place (if null, it will be ignored)
+     * @param ftis forward tree instances
+     * @param bdecors backward decorators, each decorated in place (if null, it will be ignored)
+     * @param btis backward tree instances
+     * @param nThreads number of threads
+     */
+    private static void runBidirBatch(TreeDecor[] fdecors, TreeInstance[] ftis, TreeDecor[] bdecors, TreeInstance[] btis, int nThreads) {
+        TreeDecor[] decors = new TreeDecor[fdecors.length + bdecors.length];
+        TreeInstance[] tis = new TreeInstance[ftis.length + btis.length];
+        System.arraycopy(fdecors, 0, decors, 0, fdecors.length);
+        System.arraycopy(bdecors, 0, decors, fdecors.length, bdecors.length);
+        System.arraycopy(ftis, 0, tis, 0, ftis.length);
+        System.arraycopy(btis, 0, tis, ftis.length, btis.length);
+        DecorScheduler.getShared(nThreads).runBatch(decors, tis);
+    }
+
     /**
      * Bi-directional edge parsimony for inference of indel states in ancestor POGs.
      * @param pogTree
      * @return instance of IndelPrediction
      */
     public static Prediction PredictByBidirEdgeParsimony(POGTree pogTree) {
+        return PredictByBidirEdgeParsimony(pogTree, GRASP.NTHREADS);
+    }
+
+    /**
+     * Bi-directional edge parsimony for inference of indel states in ancestor POGs.
+     * @param pogTree
+     * @param nThreads number of threads to assemble ancestors with
+     * @return instance of IndelPrediction
+     */
+    public static Prediction PredictByBidirEdgeParsimony(POGTree pogTree, int nThreads) {
         boolean recodeNull = GRASP.RECODE_NULL; // whether to use no-edge as an option
         int nPos = pogTree.getPositions(); //
         IdxTree tree = pogTree.getTree();
-        Map<Object, POGraph> ancestors = new HashMap<>();
+        Map<Object, POGraph> ancestors;
         // Retrieve an instance for each indel across the whole alignment (ordered by interval tree)
         // (state for each extant-indel: present, absent or permissible/neutral, as per Simmons and Ochoterena, 2000)
         // initially "permissible/neutral" is encoded as null (the variable is uninstantiated); see POGraph.getSimpleGapCode)
@@ -1289,62 +1701,39 @@ public class Prediction {
             tib[i+1] = pogTree.getEdgeInstance(i, POGTree.EDGE_BACKWARD);
         }
         if (DEBUG) System.out.println("Created " + (tif.length) + " forward and " + (tib.length) + " backward trees for parsimony");
-        TreeDecor[] pif = new TreeDecor[tif.length];
-        TreeDecor[] pib = new TreeDecor[tib.length];
-        // Below is where the main inference is set-up
         for (int i = -1; i <= nPos; i++) {
-            Object[] possible = tif[i + 1].getPossible();
-            if (possible.length < 1) { // nothing to infer, not used at all
-                pif[i + 1] = null;
-            } else {
-                pif[i + 1] = new Parsimony(tif[i + 1].getTree(), recodeNull);
-            }
-        }
-        for (int i = -1; i <= nPos; i++) {
-            Object[] possible = tib[i + 1].getPossible();
-            if (possible.length < 1) { // nothing to infer, not used at all
-                pib[i + 1] = null;
-            } else {
-                pib[i + 1] = new Parsimony(tib[i + 1].getTree(), recodeNull); //
-            }
+            if (tif[i + 1].getPossible().length < 1) // nothing to infer, not used at all
+                tif[i + 1] = null;
+            if (tib[i + 1].getPossible().length < 1)
+                tib[i + 1] = null;
         }
-        if (DEBUG) System.out.println("Created " + (pif.length) + " + " + (pib.length) + " inference objects to now be run with " + (GRASP.NTHREADS) + " threads");
-        // put all parsimony objects in threads
-        ThreadedDecorators fpool = new ThreadedDecorators(pif, tif, GRASP.NTHREADS);
-        ThreadedDecorators bpool = new ThreadedDecorators(pib, tib, GRASP.NTHREADS);
         try {
-            // Below is where the main inference occurs
-            Map<Integer, TreeDecor> fret = fpool.runBatch();
-            Map<Integer, TreeDecor> bret = bpool.runBatch();
+            // Below is where the main inference occurs; all edges in each direction are inferred together, 64 at a time
+            BitParsimony pif = new BitParsimony(tree, tif, recodeNull);
+            BitParsimony pib = new BitParsimony(tree, tib, recodeNull);
             if (DEBUG)
-                System.out.println("Threads completed, now time for assembling " + (tree.getSize() - tree.getNLeaves()) + " POGs");
-            // inference done, now assemble... TODO: use threads here too
-            for (int j = 0; j < tree.getSize(); j++) { // we look at each branchpoint, corresponding to either an extant or ancestor sequence
-                Object ancID = tree.getBranchPoint(j).getID();
-                ancID = ancID;
-                if (tree.getChildren(j).length > 0) { // an ancestor
-                    //if (DEBUG) System.out.println("Assembling ancestor N" + ancID + " at branchpoint index " + j);
-                    EdgeMap.Directed emap = new EdgeMap.Directed();
-                    for (int i = -1; i <= nPos; i++) {
-                        if (i != nPos && pif[i + 1] != null) {
-                            List solutsf = (List) pif[i + 1].getDecoration(j);
-                            for (Object s : solutsf) {
-                                int next = ((Integer) s).intValue();
-                                emap.add(i, next, true);
-                            }
+                System.out.println("Parsimony completed, now time for assembling " + (tree.getSize() - tree.getNLeaves()) + " POGs");
+            // inference done, now assemble each ancestor (independently, so in parallel)
+            ancestors = assembleAncestors(tree, j -> {
+                EdgeMap.Directed emap = new EdgeMap.Directed();
+                for (int i = -1; i <= nPos; i++) {
+                    if (i != nPos && tif[i + 1] != null) {
+                        List<Object> solutsf = pif.getOptimal(i + 1, j);
+                        for (Object s : solutsf) {
+                            int next = ((Integer) s).intValue();
+                            emap.add(i, next, true);
                         }
-                        if (i != -1 && pib[i + 1] != null) {
-                            List solutsb = (List) pib[i + 1].getDecoration(j);
-                            for (Object s : solutsb) {
-                                int prev = ((Integer) s).intValue();
-                                emap.add(prev, i, false);
-                            }
+                    }
+                    if (i != -1 && tib[i + 1] != null) {
+                        List<Object> solutsb = pib.getOptimal(i + 1, j);
+                        for (Object s : solutsb) {
+                            int prev = ((Integer) s).intValue();
+                            emap.add(prev, i, false);
                         }
                     }
-                    POGraph pog = POGraph.createFromEdgeMap(nPos, emap);
-                    ancestors.put(ancID, pog);
                 }
-            }
+                return POGraph.createFromEdgeMap(nPos, emap);
+            }, nThreads);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -1384,15 +1773,13 @@ public class Prediction {
         while (columns.size() > 0) {
             List<Integer> cols_ordered = new ArrayList<>(columns);
             TreeInstance[] tis = new TreeInstance[cols_ordered.size()]; // package the trees for inference
-            Parsimony.Inference[] pinf = new Parsimony.Inference[cols_ordered.size()];
             for (int i = 0; i < cols_ordered.size(); i ++) {
                 int idx = cols_ordered.get(i);
                 int col = Math.abs(idx);
                 boolean STATUS_FORWARD = idx > 0;
                 tis[i] = pogTree.getEdgeInstance(col, STATUS_FORWARD);
-                Parsimony p = new Parsimony(tis[i].getTree(), false);
-                pinf[i] = p.infer(tis[i], false);
             }
+            BitParsimony pinf = new BitParsimony(tree, tis, false);
             // patch the POGs with newly inferred edges...
             Set<Object> fixme = new HashSet<>(crippled.keySet());
             if (DEBUG) System.out.println("Patching "+ crippled.size() +" ancestor POGs by (re)inferring "+cols_ordered.size()+" positions");
@@ -1405,7 +1792,7 @@ public class Prediction {
                     int col = Math.abs(idx);
                     boolean STATUS_FORWARD = idx > 0;
                     if (idxs.contains(idx)) {
-                        List opts = pinf[i].getOptimal(bpidx);
+                        List<Object> opts = pinf.getOptimal(i, bpidx);
                         for (Object opt : opts) {
                             try {
                                 int inferred = (Integer) opt;
@@ -1443,9 +1830,19 @@ public class Prediction {
      * @return instance of Prediction
      */
     public static Prediction PredictByBidirEdgeMaxLhood(POGTree pogTree) {
+        return PredictByBidirEdgeMaxLhood(pogTree, GRASP.NTHREADS);
+    }
+
+    /**
+     * Bi-directional edge max likelihood inference of indel states in ancestor POGs.
+     * @param pogTree
+     * @param nThreads number of threads to infer edges and assemble ancestors with
+     * @return instance of Prediction
+     */
+    public static Prediction PredictByBidirEdgeMaxLhood(POGTree pogTree, int nThreads) {
         int nPos = pogTree.getPositions(); //
         IdxTree tree = pogTree.getTree();
-        Map<Object, POGraph> ancestors = new HashMap<>();
+        Map<Object, POGraph> ancestors;
         TreeInstance[] tif = new TreeInstance[nPos + 2]; // forward
         TreeInstance[] tib = new TreeInstance[nPos + 2]; // backward
         for (int i = -1; i <= nPos; i++) {
@@ -1457,13 +1854,14 @@ public class Prediction {
         TreeDecor[] jib = new TreeDecor[tib.length];
         // TODO: pool SubstModels so that they can be re-used (with speed-ups)
         SubstModel.ModelCache modelcache = new SubstModel.ModelCache(20);
+        VarElim.PlanCache plans = new VarElim.PlanCache(); // compiled queries are shared by all edges, forward and backward
         for (int i = 0; i < jif.length; i++) {
             Object[] possible = tif[i].getPossible();
             if (possible.length < 1) { // nothing to infer, not used at all
                 jif[i] = null;
             } else {
                 //SubstModel substmodel = new JC(1, possible); // need to know the alphabet...
-                jif[i] = new MaxLhoodJoint(tree, modelcache);
+                jif[i] = new MaxLhoodJoint(tree, modelcache, plans);
             }
         }
         for (int i = 0; i < jib.length; i++) {
@@ -1472,17 +1870,14 @@ public class Prediction {
                 jib[i] = null;
             } else {
                 //SubstModel substmodel = new JC(1, possible); // need to know the alphabet...
-                jib[i] = new MaxLhoodJoint(tree, modelcache);
+                jib[i] = new MaxLhoodJoint(tree, modelcache, plans);
             }
         }
         if (DEBUG)
-            System.out.println("Created " + (jif.length) + " + " + (jib.length) + " inference objects to now be run with " + (GRASP.NTHREADS) + " threads");
-        ThreadedDecorators fpool = new ThreadedDecorators(jif, tif, GRASP.NTHREADS);
-        ThreadedDecorators bpool = new ThreadedDecorators(jib, tib, GRASP.NTHREADS);
+            System.out.println("Created " + (jif.length) + " + " + (jib.length) + " inference objects to now be run with " + nThreads + " threads");
         try {
-            // Below is where the main inference occurs
-            Map<Integer, TreeDecor> fret = fpool.runBatch();
-            Map<Integer, TreeDecor> bret = bpool.runBatch();
+            // Below is where the main inference occurs; forward and backward jobs are run as one batch
+            runBidirBatch(jif, tif, jib, tib, nThreads);
 /*            for (int i = 0; i < jif.length; i++) {
                 if (jif[i] != null) {
                     MaxLhoodJoint mlj = (MaxLhoodJoint) jif[i];
@@ -1497,31 +1892,27 @@ public class Prediction {
             } */
                 if (DEBUG)
                 System.out.println("Threads completed, now time for assembling " + (tree.getSize() - tree.getNLeaves()) + " POGs");
-            // inference done, now assemble... TODO: multi-thread, also create module for this as the same process applies to BEP
-            for (int j = 0; j < tree.getSize(); j++) { // we look at each branchpoint, corresponding to either an extant or ancestor sequence
-                Object ancID = tree.getBranchPoint(j).getID();
-                if (tree.getChildren(j).length > 0) { // an ancestor
-                    EdgeMap.Directed emap = new EdgeMap.Directed();
-                    for (int i = -1; i <= nPos; i++) {
-                        if (i != nPos && jif[i + 1] != null) {
-                            Object solutsf = jif[i + 1].getDecoration(j);
-                            if (solutsf != null) { // if this is null, it means the most probable edge (forward) is actually none at all.
-                                int next = ((Integer) solutsf).intValue();
-                                emap.add(i, next, true);
-                            }
+            // inference done, now assemble each ancestor (independently, so in parallel)
+            ancestors = assembleAncestors(tree, j -> {
+                EdgeMap.Directed emap = new EdgeMap.Directed();
+                for (int i = -1; i <= nPos; i++) {
+                    if (i != nPos && jif[i + 1] != null) {
+                        Object solutsf = jif[i + 1].getDecoration(j);
+                        if (solutsf != null) { // if this is null, it means the most probable edge (forward) is actually none at all.
+                            int next = ((Integer) solutsf).intValue();
+                            emap.add(i, next, true);
                         }
-                        if (i != -1 && jib[i + 1] != null) {
-                            Object solutsb = jib[i + 1].getDecoration(j);
-                            if (solutsb != null) { // if this is null, it means the most probable edge (backward) is actually none at all.
-                                int prev = ((Integer) solutsb).intValue();
-                                emap.add(prev, i, false);
-                            }
+                    }
+                    if (i != -1 && jib[i + 1] != null) {
+                        Object solutsb = jib[i + 1].getDecoration(j);
+                        if (solutsb != null) { // if this is null, it means the most probable edge (backward) is actually none at all.
+                            int prev = ((Integer) solutsb).intValue();
+                            emap.add(prev, i, false);
                         }
                     }
-                    POGraph pog = POGraph.createFromEdgeMap(nPos, emap);
-                    ancestors.put(ancID, pog);
                 }
-            }
+                return POGraph.createFromEdgeMap(nPos, emap);
+            }, nThreads);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -5,17 +5,18 @@ import dat.phylo.TreeInstance;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.*;
 
 /**
  * this is the thread executor class
+ * Retained for existing callers; jobs are run by the shared, work-stealing DecorScheduler
  * @param <E>
+ * @deprecated use {@link DecorScheduler} which returns results in an array indexed by job
  */
+@Deprecated
 public class ThreadedDecorators<E> { //
-    private ExecutorService executor;
     private int nThreads;
-    private Map<Integer, Job<E>> jobsToDo = new HashMap<>();
-    private Map<Integer, Future<TreeDecor<E>>> jobsDone = new HashMap<>();
+    private TreeDecor[] decors;
+    private TreeInstance[] tis;
 
     /**
      * Create a batch of tree decorators.
@@ -29,13 +30,8 @@ public class ThreadedDecorators<E> { //
         if (decors.length != tis.length)
             throw new ASRRuntimeException("Mismatch in batch jobs");
         this.nThreads = nThreads;
-        executor = Executors.newFixedThreadPool(nThreads);
-        // create jobs
-        for (int i = 0; i < decors.length; i ++) {
-            if (decors[i] != null) {
-                jobsToDo.put(i, new Job<>(decors[i], tis[i]));
-            }
-        }
+        this.decors = decors;
+        this.tis = tis;
     }
 
     /**
@@ -44,51 +40,13 @@ public class ThreadedDecorators<E> { //
      * @throws InterruptedException
      */
     public Map<Integer, TreeDecor<E>> runBatch() throws InterruptedException {
-        if (GRASP.VERBOSE)
-            System.out.println("Running jobs: " + jobsToDo.size() + " with " + nThreads + " threads");
-
-        for (Map.Entry<Integer, Job<E>> entry : jobsToDo.entrySet()) {
-//            if (GRASP.VERBOSE)
-//                System.out.println("Considering thread " + job.toString() + " [" + !job.isCompleted() + "]");
-            Callable<TreeDecor<E>> worker = entry.getValue();
-            Future<TreeDecor<E>> submit = executor.submit(worker);
-            jobsDone.put(entry.getKey(), submit);
-        }
-        // retrieve results
+        TreeDecor[] done = DecorScheduler.getShared(nThreads).runBatch(decors, tis);
         Map<Integer, TreeDecor<E>> res = new HashMap<>();
-        for (Map.Entry<Integer, Future<TreeDecor<E>>> entry : jobsDone.entrySet()) {
-            Integer tag = entry.getKey();
-            Future<TreeDecor<E>> future = entry.getValue();
-            try {
-                TreeDecor ret = future.get();
-                res.put(tag, ret);
-            } catch (InterruptedException | ExecutionException e) {
-                System.err.println("Failed with thread for " + tag + " with future " + future);
-                e.printStackTrace();
-            }
+        for (int i = 0; i < done.length; i ++) {
+            if (done[i] != null)
+                res.put(i, done[i]);
         }
-        executor.shutdown();
         return res;
     }
 
-    public class Job<E> implements Callable<TreeDecor<E>> {
-
-        private TreeDecor<E> decorator;
-        private TreeInstance ti;
-
-        public Job(TreeDecor<E> decorator, TreeInstance ti) {
-            this.decorator = decorator;
-            this.ti = ti;
-        }
-
-        @Override
-        public TreeDecor<E> call() throws Exception {
-//            if (GRASP.VERBOSE)
-//                System.out.println("Running thread " + this.toString());
-            decorator.decorate(ti);
-            TreeDecor<E> ret = decorator;
-            return ret;
-        }
-    }
-
 }
@@ -569,12 +569,28 @@ public class BNet implements Serializable {
      * @return the preliminary list of relevant nodes, excluding query and evidence variables
      */
     public Set<BNode> getRelevantAndSome(Variable... query) {
-        List<BNode> relevant = new ArrayList<>();
+        Map<Variable, Object> evidence = new HashMap<>();
+        for (BNode node : this.getOrdered()) {
+            if (node.getInstance() != null)
+                evidence.put(node.getVariable(), node.getInstance());
+        }
+        return getRelevantAndSome(evidence, query);
+    }
 
+    /**
+     * Determine which subset of nodes that are relevant to a specific query and
+     * evidence combination, as {@link BNet#getRelevantAndSome(Variable...)} but with evidence
+     * given explicitly, rather than by instantiated nodes.
+     *
+     * @param evidence the values of variables that are instantiated
+     * @param query the variables that are in the query
+     * @return the preliminary list of relevant nodes, excluding query and evidence variables
+     */
+    public Set<BNode> getRelevantAndSome(Map<Variable, Object> evidence, Variable... query) {
         Set<BNode> qset = new HashSet<>(); // set of nodes with query vars
         for (Variable qvar : query) {
             BNode qnode = this.getNode(qvar);
-            if (qnode.getInstance() == null)
+            if (evidence.get(qvar) == null)
                 qset.add(qnode);
         }
 
@@ -585,7 +601,7 @@ public class BNet implements Serializable {
 
         Set<BNode> eset = new HashSet<>(); // set of nodes with evidence
         for (BNode node : this.getOrdered()) {
-            if (node.getInstance() != null)
+            if (evidence.get(node.getVariable()) != null)
                 eset.add(node);
         }
         for (BNode enode : eset) {
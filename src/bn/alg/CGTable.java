@@ -124,6 +124,22 @@ public class CGTable implements QueryResult {
         atomicAssign = null;
     } 
     
+    /**
+     * Construct a table without variables, e.g. the result of an MPE query without query variables.
+     * @param value the value of the table
+     * @param assign the traced assignments, or null if none were traced
+     */
+    public CGTable(double value, Set<Variable.Assignment> assign) {
+        evars = new ArrayList<>();
+        nvars = new ArrayList<>();
+        factorTable = null;
+        densityTable = null;
+        assignTable = null;
+        atomicFactor = value;
+        atomicDensity = null;
+        atomicAssign = assign;
+    }
+
     public CGTable(AbstractFactor f, List<Variable> qvars) {
         f = Factorize.getNormal(f); // normalise to make sure that the factor table is ok to operate on in terms of probability
         evars = new ArrayList<>();
@@ -31,11 +31,16 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 /**
  * Implementation of Expectation-Maximization for learning in Bayesian network.
@@ -86,15 +91,21 @@ public class EM extends LearningAlg {
     public boolean EM_PRINT_STATUS = true;
     
     /**
-     * Threads to be used in EM - case 3
+     * Threads to be used in EM - case 3, across which samples are partitioned
      */
     public int EM_THREAD_COUNT = 1;
 
+    /**
+     * Workers for the E-step, and for determining the log-likelihood, while training with samples partitioned across threads
+     */
+    private ExecutorService executor = null;
+
     /**
      * EM option: currently two different approaches to determine expectations.
      * In either case, nodes are then updated one at a time.
      * 1. one node at a time = one query per node
      * 2. all nodes at a time = one big query
+     * 3. as 1, but with samples partitioned across {@link EM#EM_THREAD_COUNT} threads
      */
     public int EM_OPTION = 1;
 
@@ -111,7 +122,7 @@ public class EM extends LearningAlg {
     }
     
     /**
-     * Set the threads to be used in EM - case 1
+     * Set the threads to be used in EM - case 3
      * @param thread
      */
     public void setThreadCount(int thread) {
@@ -148,6 +159,16 @@ public class EM extends LearningAlg {
      */
     @Override
     public void train(Object[][] values, Variable[] vars, long seed) {
+        if (EM_OPTION == 3 && executor == null) { // the workers are kept for all rounds of training
+            executor = Executors.newFixedThreadPool(Math.max(1, EM_THREAD_COUNT));
+            try {
+                train(values, vars, seed);
+            } finally {
+                executor.shutdown();
+                executor = null;
+            }
+            return;
+        }
     	int nSample = values.length; // this is how many training samples we have
         // we only need to initialize the relevant nodes.
         // setRandom(seed); // init network CPTs and CDTs
@@ -172,8 +193,10 @@ public class EM extends LearningAlg {
             double log_likelihood = 0;
             // the set of nodes to be updated:
             Map<BNode, Object[]> update = Collections.synchronizedMap(new HashMap<>()); //THREAD SAFE MAP
-            // for each sample with observations...
-            for (int i = 0; i < values.length; i++) {
+            if (EM_OPTION == 3) // Principal way 1, with samples partitioned across threads
+                expectParallel(values, vars, update, executor);
+            // for each sample with observations (unless done in parallel above)...
+            for (int i = 0; i < values.length && EM_OPTION != 3; i++) {
                 // assign variables and keys according to observations
                 // the set of variables that are expanded to include those that are parents and children of those for which values are supplied
                 for (int j = 0; j < vars.length; j++) {
@@ -225,100 +248,8 @@ public class EM extends LearningAlg {
                 case 1: 
 
                     // Principal way 1: go through each of the BN nodes... pose a query for, and update each...
-                    for (BNode node : update.keySet()) {
-
-                        if (node.isTrainable()) {
-                            // identify what variables that we need to infer, to generate expectations
-                            List<Variable> query_vars = new ArrayList<>();
-                            Object[] evid_key = null; // only applicable if the node has parents
-                            if (!node.isRoot()) {
-                                evid_key = EnumTable.getKey(node.getParents(), evidence);
-                                // add to the variables that must be queried during inference
-                                for (int key_index = 0; key_index < evid_key.length; key_index++) {
-                                    if (evid_key[key_index] == null) {
-                                        query_vars.add(node.getParents().get(key_index));
-                                    }
-                                }
-                            }
-                            Variable var = node.getVariable();
-                            Object ovalue = node.getInstance(); // check the value, if instantiated
-                            if (ovalue == null) {
-                                query_vars.add(var);
-                            }
-
-                            // check if inference is required
-                            if (query_vars.size() > 0) { // there are unspecified/latent variables for this node
-                                try {
-                                    Variable[] query_arr = new Variable[query_vars.size()];
-                                    query_vars.toArray(query_arr);
-                                    Query q = inf.makeQuery(query_arr);
-                                    CGTable qr = (CGTable) inf.infer(q);
-                                    int[] indices = qr.getIndices();
-                                    // for each permutation of the enumerable query variables
-                                    for (int qr_index : indices) {
-                                        Object[] qr_key = qr.getKey(qr_index);
-                                        double p = qr.getFactor(qr_index);
-                                        if (p == 0 || Double.isNaN(p)) // count is zero (or the log prob was so small that conversion failed)
-                                            continue;
-                                        JDF jdf = null;
-                                        if (qr.hasNonEnumVariables())
-                                            jdf = qr.getJDF(qr_index);
-
-                                        if (!node.isRoot()) { // if node has parents
-                                            // we need to construct a key for the update of the node
-                                            // first, put in the result from the inference, but in the order of the node's parents
-                                            Variable.Assignment[] expected = Variable.Assignment.array(qr.getEnumVariables(), qr_key);
-                                            Object[] inf_key = EnumTable.getKey(node.getParents(), expected);
-                                            // second, overlay the evidence
-                                            EnumTable.overlay(evid_key, inf_key);
-                                            if (ovalue != null) {
-                                                node.countInstance(evid_key, ovalue, p);
-                                            } else { // we don't know the value so use expected value
-                                                try {
-                                                    EnumVariable evar = (EnumVariable) var;
-                                                    for (Variable.Assignment assigned : expected) {
-                                                        if (assigned.var.equals(evar)) {
-                                                            node.countInstance(evid_key, assigned.val, p);
-                                                            break;
-                                                        }
-                                                    }
-                                                } catch (ClassCastException e) {
-                                                    // we think it is a continuous variable, so we should have a distrib for it
-                                                    // MB exploring GDT learning fix Oct 2023
-                                                    // because d is a distribution from which samples are drawn for learning
-                                                    // "p" below needs to be a fraction (number of times sampled)
-                                                    // Distrib d = jdf.getDistrib(var);
-                                                    // node.countInstance(evid_key, d, p);
-                                                }
-                                            }
-                                        } else { // node IS root
-                                            if (ovalue != null) {
-                                                node.countInstance(null, ovalue, p);
-                                            } else { // we don't know the value so use expected value
-                                                try {
-                                                    EnumVariable evar = (EnumVariable) var;
-                                                    Variable.Assignment[] expected = Variable.Assignment.array(qr.getEnumVariables(), qr_key);
-                                                    for (Variable.Assignment assigned : expected) {
-                                                        if (assigned.var.equals(evar)) {
-                                                            node.countInstance(null, assigned.val, p);
-                                                            break;
-                                                        }
-                                                    }
-                                                } catch (ClassCastException e) {
-                                                    // we think it is a continuous variable, but it is a root node!
-                                                    throw new EMRuntimeException("Failed query for sample #" + (i + 1) + ": " + var.getName() + " is a non-enumerable root node");
-                                                }
-                                            }
-                                        }
-                                    }
-                                } catch (RuntimeException e) {
-                                    throw new EMRuntimeException("Failed query for sample #" + (i + 1) + " and node " + node.getName() + ": " + e.getLocalizedMessage());
-                                }
-                            } else { // all variables are instantiated, no need to do inference
-                                node.countInstance(evid_key, ovalue);
-                            }
-                        }
-                    }
+                    for (BNode node : update.keySet())
+                        expect(node, evidence, node.getInstance(), inf, inf::makeQuery, DIRECT, i);
 
                     break; // end EM_OPTION == 1
 
@@ -434,20 +365,6 @@ public class EM extends LearningAlg {
                         }
                         break; // end EM_OPTION == 2
 
-                    case 3:
-                        // Principal way 1 with parallel implementation: go through each of the BN nodes... pose of query for, and update each...
-                        ExecutorService executor = Executors.newFixedThreadPool(EM_THREAD_COUNT);
-                        for (BNode node : update.keySet()) {
-//                		node.getTable().getSize();
-                            EMc1 work = new EMc1(node, evidence, i);
-                            executor.execute(work);
-                        }
-                        executor.shutdown();
-                        while (!executor.isTerminated()) {
-                        }
-                        //                        System.out.println("Finished all threads");
-
-                        break; // end EM_OPTION == 3
                 }                        
             }
             
@@ -461,9 +378,10 @@ public class EM extends LearningAlg {
 
             if (round % 10 == 0) { // || round == 1) {
                 // for each sample with observations...
+                double[] sample_likelihoods = (EM_OPTION == 3) ? logLikelihoods(values, vars, executor) : null;
                 for (int i = 0; i < values.length; i++) {
-                    // set variables and keys according to observations
-                    for (int j = 0; j < vars.length; j++) {
+                    // set variables and keys according to observations (unless already determined in parallel)
+                    for (int j = 0; j < vars.length && sample_likelihoods == null; j++) {
                         BNode instantiate_me = bn.getNode(vars[j]);
                         if (instantiate_me == null) {
                             throw new EMRuntimeException("Variable \"" + vars[i].getName() + "\" is not part of Bayesian network");
@@ -476,7 +394,7 @@ public class EM extends LearningAlg {
                             instantiate_me.resetInstance();
                         }
                     }
-                    double sample_likelihood = ((VarElim) inf).logLikelihood();
+                    double sample_likelihood = (sample_likelihoods != null) ? sample_likelihoods[i] : ((VarElim) inf).logLikelihood();
                     if (Double.isNaN(sample_likelihood)) {
                         System.err.println("Sample " + i + "/" + values.length + " log-likelihood is " + sample_likelihood);
 //                        for (int j = 0; j < vars.length; j++) {
@@ -557,127 +475,299 @@ public class EM extends LearningAlg {
     }
     
     /**
-     * Runnable 'worker' for case 3 of EM
-     * In order for the code to be threaded, the process of the for loop for case 1 had
-     * to be removed to a new class
-     * This class can then be handed as work to each thread
-     * @author Alex
-     *
+     * Receiver of expected counts for nodes, see {@link BNode#countInstance(Object[], Object, Double)}.
+     * If the probability is null, the value was observed, see {@link BNode#countInstance(Object[], Object)}.
      */
-    public class EMc1 implements Runnable {
-
-        private boolean init = false;
-        private BNode node;
-        private Variable.Assignment[] evidence;
-        private int i;
-
-        public EMc1(BNode node, Variable.Assignment[] evidence, int i) {
-            this.init = true;
-            this.node = node;
-            this.evidence = evidence;
-            this.i = i;
-        }
-
-        @Override
-        public void run() {
-//    		System.out.println(Thread.currentThread().getName()+" Start. Node = "+node.toString());
-            case3(node, evidence, i);
-//    		System.out.println(Thread.currentThread().getName()+" End.");
-        }
-
-        public void case3(BNode node, Variable.Assignment[] evidence, int i) {
-
-            boolean latentVariablesExist = false;
+    private interface Counter {
+        void count(BNode node, Object[] key, Object value, Double prob);
+    }
 
-            if (node.isTrainable()) {
+    /**
+     * Counts that go directly to the nodes.
+     */
+    private static final Counter DIRECT = (node, key, value, prob) -> {
+        if (prob == null)
+            node.countInstance(key, value);
+        else
+            node.countInstance(key, value, prob);
+    };
 
-                // identify what variables that we need to infer, to generate expectations
-                List<Variable> query_vars = new ArrayList<>();
-                Object[] evid_key = null; // only applicable if the node has parents
-                if (!node.isRoot()) {
-                    evid_key = EnumTable.getKey(node.getParents(), evidence);
-                    // add to the variables that must be queried during inference
-                    for (int key_index = 0; key_index < evid_key.length; key_index++) {
-                        if (evid_key[key_index] == null) {
-                            query_vars.add(node.getParents().get(key_index));
-                        }
-                    }
-                }
-                Variable var = node.getVariable();
-                Object ovalue = node.getInstance(); // check the value, if instantiated
-                if (ovalue == null) {
-                    query_vars.add(var);
+    /**
+     * Determine the expected counts for a node given the evidence of a sample, by inferring the node's
+     * variable and/or parent variables that are not instantiated (principal way 1).
+     * @param node the node
+     * @param evidence the evidence of the sample
+     * @param ovalue the value of the node's variable in the sample, null if not observed
+     * @param inf the inference instance
+     * @param queries how queries are made from the variables to infer, with the evidence of the sample
+     * @param counter where the counts go
+     * @param i the index of the sample, for error messages
+     */
+    private void expect(BNode node, Variable.Assignment[] evidence, Object ovalue, Inference inf, Function<Variable[], Query> queries, Counter counter, int i) {
+        if (!node.isTrainable())
+            return;
+        // identify what variables that we need to infer, to generate expectations
+        List<Variable> query_vars = new ArrayList<>();
+        Object[] evid_key = null; // only applicable if the node has parents
+        if (!node.isRoot()) {
+            evid_key = EnumTable.getKey(node.getParents(), evidence);
+            // add to the variables that must be queried during inference
+            for (int key_index = 0; key_index < evid_key.length; key_index++) {
+                if (evid_key[key_index] == null) {
+                    query_vars.add(node.getParents().get(key_index));
                 }
+            }
+        }
+        Variable var = node.getVariable();
+        if (ovalue == null) {
+            query_vars.add(var);
+        }
 
-                // check if inference is required
-                if (query_vars.size() > 0) { // there are unspecified/latent variables for this node
-                    try {
-                        latentVariablesExist = true;
-                        Variable[] query_arr = new Variable[query_vars.size()];
-                        query_vars.toArray(query_arr); //FIXME NOT THREADSAFE - does inference update these nodes in any way?
-                        Query q = inf.makeQuery(query_arr); 
-                        CGTable qr = (CGTable) inf.infer(q);
-                        int[] indices = qr.getIndices();
-                        // for each permutation of the enumerable query variables
-                        for (int qr_index : indices) {
-                            Object[] qr_key = qr.getKey(qr_index);
-                            double p = qr.getFactor(qr_index);
-                            JDF jdf = null;
-                            if (qr.hasNonEnumVariables()) {
-                                jdf = qr.getJDF(qr_index);
-                            }
-
-                            if (!node.isRoot()) { // if node has parents
-                                // we need to construct a key for the update of the node
-                                // first, put in the result from the inference, but in the order of the node's parents
-                                Variable.Assignment[] expected = Variable.Assignment.array(qr.getEnumVariables(), qr_key);
-                                Object[] inf_key = EnumTable.getKey(node.getParents(), expected);
-                                // second, overlay the evidence
-                                EnumTable.overlay(evid_key, inf_key); //FIXME
-                                if (ovalue != null) {
-                                    node.countInstance(evid_key, ovalue, p);
-                                } else { // we don't know the value so use expected value
-                                    try {
-                                        EnumVariable evar = (EnumVariable) var;
-                                        for (Variable.Assignment assigned : expected) {
-                                            if (assigned.var.equals(evar)) {
-                                                node.countInstance(evid_key, assigned.val, p);
-                                                break;
-                                            }
-                                        }
-                                    } catch (ClassCastException e) {
-                                        // we think it is a continuous variable, so we should have a distrib for it
-                                        Distrib d = jdf.getDistrib(var);
-                                        node.countInstance(evid_key, d, p);
+        // check if inference is required
+        if (query_vars.size() > 0) { // there are unspecified/latent variables for this node
+            try {
+                Variable[] query_arr = new Variable[query_vars.size()];
+                query_vars.toArray(query_arr);
+                Query q = queries.apply(query_arr);
+                CGTable qr = (CGTable) inf.infer(q);
+                int[] indices = qr.getIndices();
+                // for each permutation of the enumerable query variables
+                for (int qr_index : indices) {
+                    Object[] qr_key = qr.getKey(qr_index);
+                    double p = qr.getFactor(qr_index);
+                    if (p == 0 || Double.isNaN(p)) // count is zero (or the log prob was so small that conversion failed)
+                        continue;
+                    if (!node.isRoot()) { // if node has parents
+                        // we need to construct a key for the update of the node
+                        // first, put in the result from the inference, but in the order of the node's parents
+                        Variable.Assignment[] expected = Variable.Assignment.array(qr.getEnumVariables(), qr_key);
+                        Object[] inf_key = EnumTable.getKey(node.getParents(), expected);
+                        // second, overlay the evidence
+                        EnumTable.overlay(evid_key, inf_key);
+                        if (ovalue != null) {
+                            counter.count(node, evid_key, ovalue, p);
+                        } else { // we don't know the value so use expected value
+                            try {
+                                EnumVariable evar = (EnumVariable) var;
+                                for (Variable.Assignment assigned : expected) {
+                                    if (assigned.var.equals(evar)) {
+                                        counter.count(node, evid_key, assigned.val, p);
+                                        break;
                                     }
                                 }
-                            } else { // node IS root
-                                if (ovalue != null) {
-                                    node.countInstance(null, ovalue, p);
-                                } else { // we don't know the value so use expected value
-                                    try {
-                                        EnumVariable evar = (EnumVariable) var;
-                                        Variable.Assignment[] expected = Variable.Assignment.array(qr.getEnumVariables(), qr_key);
-                                        for (Variable.Assignment assigned : expected) {
-                                            if (assigned.var.equals(evar)) {
-                                                node.countInstance(null, assigned.val, p);
-                                                break;
-                                            }
-                                        }
-                                    } catch (ClassCastException e) {
-                                        // we think it is a continuous variable, but it is a root node!
-                                        throw new EMRuntimeException("Failed query for sample #" + (i + 1) + ": " + var.getName() + " is a non-enumerable root node");
+                            } catch (ClassCastException e) {
+                                // we think it is a continuous variable, so we should have a distrib for it
+                                // MB exploring GDT learning fix Oct 2023
+                                // because d is a distribution from which samples are drawn for learning
+                                // "p" below needs to be a fraction (number of times sampled)
+                                // Distrib d = qr.getJDF(qr_index).getDistrib(var);
+                                // counter.count(node, evid_key, d, p);
+                            }
+                        }
+                    } else { // node IS root
+                        if (ovalue != null) {
+                            counter.count(node, null, ovalue, p);
+                        } else { // we don't know the value so use expected value
+                            try {
+                                EnumVariable evar = (EnumVariable) var;
+                                Variable.Assignment[] expected = Variable.Assignment.array(qr.getEnumVariables(), qr_key);
+                                for (Variable.Assignment assigned : expected) {
+                                    if (assigned.var.equals(evar)) {
+                                        counter.count(node, null, assigned.val, p);
+                                        break;
                                     }
                                 }
+                            } catch (ClassCastException e) {
+                                // we think it is a continuous variable, but it is a root node!
+                                throw new EMRuntimeException("Failed query for sample #" + (i + 1) + ": " + var.getName() + " is a non-enumerable root node");
                             }
                         }
-                    } catch (RuntimeException e) {
-                        throw new EMRuntimeException("Failed query for sample #" + (i + 1) + " and node " + node.getName() + ": " + e.getMessage());
                     }
-                } else { // all variables are instantiated, no need to do inference
-                    node.countInstance(evid_key, ovalue);
+                }
+            } catch (RuntimeException e) {
+                throw new EMRuntimeException("Failed query for sample #" + (i + 1) + " and node " + node.getName() + ": " + e.getLocalizedMessage());
+            }
+        } else { // all variables are instantiated, no need to do inference
+            counter.count(node, evid_key, ovalue, null);
+        }
+    }
+
+    /**
+     * Expected counts accumulated by one worker over a block of samples, so that workers do not share count tables.
+     * Counts with the same key and value are added up; they are transferred to the nodes once all workers are done.
+     */
+    private static class Shard implements Counter {
+        private final Map<BNode, Map<Count, double[]>> counts = new LinkedHashMap<>();
+
+        private static class Count {
+            final Object[] key;
+            final Object value;
+            Count(Object[] key, Object value) {
+                this.key = key;
+                this.value = value;
+            }
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Count))
+                    return false;
+                Count c = (Count) o;
+                return Arrays.equals(key, c.key) && Objects.equals(value, c.value);
+            }
+            @Override
+            public int hashCode() {
+                return 31 * Arrays.hashCode(key) + Objects.hashCode(value);
+            }
+        }
+
+        @Override
+        public void count(BNode node, Object[] key, Object value, Double prob) {
+            Map<Count, double[]> ncounts = counts.computeIfAbsent(node, n -> new LinkedHashMap<>());
+            double[] sums = ncounts.computeIfAbsent(new Count(key == null ? null : key.clone(), value), c -> new double[2]);
+            if (prob == null)
+                sums[1] += 1;       // observed
+            else
+                sums[0] += prob;    // expected
+        }
+
+        /**
+         * Count the accumulated expectations and observations in the nodes.
+         */
+        void transfer() {
+            for (Map.Entry<BNode, Map<Count, double[]>> entry : counts.entrySet()) {
+                BNode node = entry.getKey();
+                for (Map.Entry<Count, double[]> c : entry.getValue().entrySet()) {
+                    double[] sums = c.getValue();
+                    if (sums[0] > 0)
+                        node.countInstance(c.getKey().key, c.getKey().value, sums[0]);
+                    for (int n = 0; n < sums[1]; n ++)
+                        node.countInstance(c.getKey().key, c.getKey().value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Determine the evidence of a sample, as a map from variable to value.
+     */
+    private static Map<Variable, Object> getEvidence(Variable[] vars, Object[] sample) {
+        Map<Variable, Object> evid = new HashMap<>();
+        for (int j = 0; j < vars.length; j++) {
+            if (sample[j] != null)
+                evid.put(vars[j], sample[j]);
+        }
+        return evid;
+    }
+
+    /**
+     * Split samples into blocks, and run a task for each block using the executor; wait for all to complete.
+     * @param nSample number of samples
+     * @param executor the executor
+     * @param task the task, given the start (inclusive) and end (exclusive) sample index of its block, and the block index
+     * @return the number of blocks
+     */
+    private int runBlocks(int nSample, ExecutorService executor, BlockTask task) {
+        int nBlocks = Math.max(1, Math.min(EM_THREAD_COUNT, nSample));
+        List<Future<?>> futures = new ArrayList<>(nBlocks);
+        for (int b = 0; b < nBlocks; b++) {
+            int from = (int) ((long) nSample * b / nBlocks);
+            int to = (int) ((long) nSample * (b + 1) / nBlocks);
+            int block = b;
+            futures.add(executor.submit(() -> task.run(from, to, block)));
+        }
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EMRuntimeException("Interrupted during EM");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new EMRuntimeException(e.getCause().getMessage());
+        }
+        return nBlocks;
+    }
+
+    private interface BlockTask {
+        void run(int from, int to, int block);
+    }
+
+    /**
+     * Perform the E-step with samples partitioned across threads (EM option 3). Expectations are determined as in
+     * principal way 1, i.e. one query per node. Each thread has its own inference instance, uses evidence of each
+     * sample without instantiating nodes, and accumulates counts in its own shard; shards are counted into the nodes
+     * in order of samples once all threads are done.
+     * @param values the values of the variables [row][variable]
+     * @param vars the variables that correspond to the values
+     * @param update the nodes to be updated (filled by this method)
+     * @param executor the threads
+     */
+    private void expectParallel(Object[][] values, Variable[] vars, Map<BNode, Object[]> update, ExecutorService executor) {
+        // determine the nodes to update, in the same way as when samples are processed one at a time, where a node
+        // is updated from the first sample that has evidence on it, its parents or children
+        Map<BNode, Integer> first = new LinkedHashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            for (int j = 0; j < vars.length; j++) {
+                BNode instantiate_me = bn.getNode(vars[j]);
+                if (instantiate_me == null)
+                    throw new EMRuntimeException("Variable \"" + vars[j].getName() + "\" is not part of Bayesian network");
+                if (values[i][j] != null) {
+                    first.putIfAbsent(instantiate_me, i);
+                    List<EnumVariable> parents = instantiate_me.getParents();
+                    if (parents != null) {
+                        for (EnumVariable parent : parents)
+                            first.putIfAbsent(bn.getNode(parent), i);
+                    }
+                    Set<BNode> children = bn.getChildren(instantiate_me);
+                    if (children != null) {
+                        for (BNode c : children)
+                            first.putIfAbsent(c, i);
+                    }
                 }
             }
         }
+        for (BNode node : first.keySet())
+            update.put(node, null);
+        bn.getOrdered(); // make sure the BN is compiled before it is shared by threads
+        Shard[] shards = new Shard[Math.max(1, Math.min(EM_THREAD_COUNT, values.length))];
+        int nBlocks = runBlocks(values.length, executor, (from, to, block) -> {
+            Shard shard = new Shard();
+            VarElim ve = new VarElim();
+            ve.instantiate(bn);
+            for (int i = from; i < to; i++) {
+                Map<Variable, Object> evid = getEvidence(vars, values[i]);
+                Variable.Assignment[] evidence = Variable.Assignment.array(vars, values[i]);
+                for (Map.Entry<BNode, Integer> entry : first.entrySet()) {
+                    if (entry.getValue() > i)
+                        continue;
+                    BNode node = entry.getKey();
+                    expect(node, evidence, evid.get(node.getVariable()), ve, qvars -> ve.makeQuery(evid, qvars), shard, i);
+                }
+            }
+            shards[block] = shard;
+        });
+        for (int b = 0; b < nBlocks; b++)
+            shards[b].transfer();
+    }
+
+    /**
+     * Determine the log-likelihood of each sample, with samples partitioned across threads (EM option 3).
+     * @param values the values of the variables [row][variable]
+     * @param vars the variables that correspond to the values
+     * @param executor the threads
+     * @return the log-likelihood of each sample
+     */
+    private double[] logLikelihoods(Object[][] values, Variable[] vars, ExecutorService executor) {
+        double[] lls = new double[values.length];
+        bn.getOrdered(); // make sure the BN is compiled before it is shared by threads
+        runBlocks(values.length, executor, (from, to, block) -> {
+            VarElim ve = new VarElim();
+            ve.instantiate(bn);
+            for (int i = from; i < to; i++) {
+                Map<Variable, Object> evid = getEvidence(vars, values[i]);
+                lls[i] = ve.logLikelihood(evid);
+            }
+        });
+        return lls;
     }
 }
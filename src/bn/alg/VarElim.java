@@ -23,10 +23,14 @@ import dat.EnumVariable;
 import bn.factor.Factor;
 import dat.Variable;
 import bn.factor.AbstractFactor;
+import bn.factor.DenseFactor;
 import bn.factor.Factorize;
 import util.MilliTimer;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Exact inference in Bayesian network by variable elimination, more
@@ -55,6 +59,19 @@ public class VarElim implements Inference {
     public void instantiate(BNet bn) {
         this.bn = bn;
         this.bn.compile();
+        this.byname = null;
+    }
+
+    private Map<String, BNode> byname = null; // nodes by the name of their variable, for executing plans
+
+    private BNode getPlanNode(String name) {
+        if (byname == null) {
+            Map<String, BNode> map = new HashMap<>();
+            for (BNode node : bn.getNodes())
+                map.put(node.getVariable().getName(), node);
+            byname = map;
+        }
+        return byname.get(name);
     }
 
     /**
@@ -75,14 +92,32 @@ public class VarElim implements Inference {
         // They will be listed in "topological order" (parents before children) as per heuristics given in Dechter.
         // Each to-be-marginalised variable will be assigned a separate bucket,
         // so that when factorised and summed out, the result is passed-down to another.
+        Map<Variable, Object> evidence = new HashMap<>();
+        for (BNode node : bn.getOrdered()) {
+            if (node.getInstance() != null)
+                evidence.put(node.getVariable(), node.getInstance());
+        }
+        return makeQuery(evidence, qvars);
+    }
+
+    /**
+     * Construct the data structure for the specified variables in preparation
+     * of inference of belief, as {@link VarElim#makeQuery(Variable...)} but with evidence given explicitly,
+     * rather than by instantiated nodes. Since nodes are not modified, queries with different evidence can be
+     * made and inferred concurrently, each by a separate instance of VarElim.
+     * @param evidence the values of variables that are instantiated
+     * @param qvars variables to include in query
+     */
+    @SuppressWarnings("rawtypes")
+    public Query makeQuery(Map<Variable, Object> evidence, Variable... qvars) {
         List<Variable> Q = new ArrayList<>();               // Query, all nodes identified by user of this function
         List<Variable.Assignment> E = new ArrayList<>();    // Assignment, all variables that are instantiated with values AND relevant (not d-separated from any query node)
         List<Variable> X = new ArrayList<>();               // Un-instantiated but relevant nodes (not independent from any query or evidence node), but to-be summed out
         Q.addAll(Arrays.asList(qvars));
-        Set<BNode> relevant = bn.getRelevantAndSome(qvars);
+        Set<BNode> relevant = bn.getRelevantAndSome(evidence, qvars);
         for (BNode node : bn.getOrdered()) {
             Variable var = node.getVariable();
-            Object val = node.getInstance();
+            Object val = evidence.get(var);
             if (val != null)
                 E.add(new Variable.Assignment(var, val));
             else if (relevant.contains(node) && !Q.contains(var))
@@ -92,7 +127,7 @@ public class VarElim implements Inference {
         List<BNode> rnl = bn.getDconnected(qvars); // relevant *ordered* node list, based on the concept of D-separation, and topological ordering
         for (BNode node : rnl) {
             Variable var = node.getVariable();
-            Object val = node.getInstance();
+            Object val = evidence.get(var);
             if (val != null) {
                 E.add(new Variable.Assignment(var, val));
             } else if (!Q.contains(var)) {
@@ -185,10 +220,19 @@ public class VarElim implements Inference {
     @SuppressWarnings("rawtypes")
     @Override
     public QueryResult infer(Query query) {
+        return infer((CGQuery) query, null);
+    }
+
+    /**
+     * Perform exact inference for the specified query, optionally recording the steps taken in a plan so that
+     * inference can be repeated for the same query structure without building and merging buckets again.
+     * @param q the query
+     * @param record the plan to record into, or null if not recording
+     */
+    private QueryResult infer(CGQuery q, Plan record) {
 	    // All CPTs will be converted to "factors", and put in the bucket which is the first to sum-out any of the variables in the factor.
         // Assignment will be incorporated into the factor when it is constructed.
         // Create list of buckets: first one has query variables, then all sum-outs in topological ordering (as sorted by the constructor)
-        CGQuery q = (CGQuery) query;
         Variable[] qarr = new Variable[q.Q.size()];
         q.Q.toArray(qarr);
         //BNet rel_bn = bn.getRelevant(qarr);
@@ -208,15 +252,25 @@ public class VarElim implements Inference {
         // Fill buckets backwards with appropriate factor tables (instantiated when "made")
         timer.start("factors");
         Map<Variable, Object> relmap = q.getVariableScope();
+        List<BNode> placed = new ArrayList<>();   // nodes in the order their factors were made, only used when recording
+        List<Bucket> placement = new ArrayList<>(); // the bucket of each factor, only used when recording
+        List<AbstractFactor> made = new ArrayList<>(); // the factors, only used when recording
         for (Variable var : relmap.keySet()) {
             BNode node = bn.getNode(var);
             // next call is causing delays with threading
             AbstractFactor ft = node.makeDenseFactor(relmap); // forces new makeFactor method to be used on only relevant nodes
+            if (q.getStatus() != STATUS_MPE) // sum-products are cheaper in linear space
+                ft = Factorize.getScaled(ft);
             // make sure we trace values of variables at the factor table level for MPE queries
             //ft.setTraced(q.getStatus() == STATUS_MPE);
             boolean added = false;
             if (!ft.hasEnumVars()) { // // the FT is empty of enumerable variables, hence will only "scale" factors
                 buckets.get(0).put(ft); // we will need to keep non-enumerable variables for later though
+                if (record != null) {
+                    placed.add(node);
+                    placement.add(buckets.get(0));
+                    made.add(ft);
+                }
                 added = true;
                 continue;
             }
@@ -225,6 +279,11 @@ public class VarElim implements Inference {
                 Bucket b = buckets.get(i);
                 if (b.match(ft)) {
                     b.put(ft);
+                    if (record != null) {
+                        placed.add(node);
+                        placement.add(b);
+                        made.add(ft);
+                    }
                     added = true;
                     break;
                 }
@@ -260,6 +319,8 @@ public class VarElim implements Inference {
         buckets.removeAll(remove);
         timer.stop("merge");
         nBuckets = buckets.size(); // update bucket number
+        if (record != null)
+            record.setBuckets(buckets, placed, placement, made);
         // Create a factor of each bucket, by performing factor products and marginalisation as appropriate
         timer.start("products");
         for (int i = nBuckets - 1; i >= 0; i--) {
@@ -299,13 +360,17 @@ public class VarElim implements Inference {
                         } else
                             result = Factorize.getMargin(result, margin);    // sum-out variables of bucket
                         
-                        if (!result.hasEnumVars())      // if no enumerable variables, we may still have non-enumerables
+                        if (!result.hasEnumVars()) {    // if no enumerable variables, we may still have non-enumerables
                             buckets.get(0).put(result); // so we put the factor in the first bucket
-                        else {                          // there are enumerables so...
+                            if (record != null)
+                                record.dest[i] = 0;
+                        } else {                        // there are enumerables so...
                             for (int jj = i - 1; jj >= 0; jj--) { // find a new bucket for the result factor
                                 Bucket b2 = buckets.get(jj);      
                                 if (b2.match(result)) {
                                     b2.put(result);
+                                    if (record != null)
+                                        record.dest[i] = jj;
                                     break;
                                 }
                             }
@@ -350,6 +415,116 @@ public class VarElim implements Inference {
         return infer(new BNode[]{query_node});
     }
 
+    /**
+     * Compile a query into a plan for variable elimination: the order in which factors are made, the bucket each one goes to,
+     * the variables eliminated by each bucket, and where the result of each bucket goes. The plan is determined by
+     * performing inference once, with the current evidence.
+     * The plan can then be executed by {@link #infer(Plan)} as long as the same nodes are instantiated
+     * (the values can differ). Nodes are referred to by the name of their variable, so the plan can be executed by another
+     * instance of VarElim, on another BN with the same structure and variable names, e.g. the BN of another column in an alignment (see {@link PlanCache}).
+     * MPE queries without query variables, over enumerable variables only, are also compiled into a {@link Kernel}.
+     * @param query the query
+     * @return the plan
+     */
+    public Plan compile(Query query) {
+        CGQuery q = (CGQuery) query;
+        Plan plan = new Plan(q);
+        infer(q, plan);
+        plan.kernel = Kernel.compile(plan, this);
+        return plan;
+    }
+
+    /**
+     * Check if a plan can be executed with the current evidence.
+     * @param plan the plan
+     * @return true if the same nodes are instantiated as when the plan was compiled, and the BN has all nodes of the plan
+     */
+    public boolean isApplicable(Plan plan) {
+        int ninst = 0;
+        for (BNode node : bn.getNodes()) {
+            if (node.getInstance() != null)
+                ninst ++;
+        }
+        if (ninst != plan.evidence.length)
+            return false;
+        for (String name : plan.evidence) {
+            BNode node = getPlanNode(name);
+            if (node == null || node.getInstance() == null)
+                return false;
+        }
+        for (String name : plan.nodes) {
+            if (getPlanNode(name) == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Perform exact inference by executing a compiled plan with the current evidence.
+     * Buckets are not re-built; factors are made from the current values, multiplied and marginalised in the order of the plan,
+     * by the kernel of the plan if it has one.
+     * @param plan the plan, compiled for the same nodes being instantiated
+     * @return the result, same as for inference of the query that the plan was compiled from
+     * @throws VarElimRuntimeException if the instantiated nodes differ from when the plan was compiled
+     */
+    @SuppressWarnings("rawtypes")
+    public QueryResult infer(Plan plan) {
+        if (!isApplicable(plan))
+            throw new VarElimRuntimeException("Plan does not apply to the current evidence");
+        BNode[] nodes = new BNode[plan.nodes.length];
+        Map<Variable, Object> relmap = new HashMap<>();
+        for (int k = 0; k < nodes.length; k ++) {
+            nodes[k] = getPlanNode(plan.nodes[k]);
+            relmap.put(nodes[k].getVariable(), nodes[k].getInstance());
+        }
+        AbstractFactor[] made = new AbstractFactor[nodes.length];
+        for (int k = 0; k < nodes.length; k ++) {
+            made[k] = nodes[k].makeDenseFactor(relmap);
+            if (plan.status != STATUS_MPE) // sum-products are cheaper in linear space
+                made[k] = Factorize.getScaled(made[k]);
+        }
+        if (plan.kernel != null) {
+            QueryResult result = plan.kernel.execute(made, this);
+            if (result != null)
+                return result;
+        }
+        int nBuckets = plan.margins.length;
+        List<AbstractFactor>[] factors = new List[nBuckets];
+        for (int i = 0; i < nBuckets; i ++)
+            factors[i] = new ArrayList<>();
+        for (int k = 0; k < nodes.length; k ++)
+            factors[plan.bucket[k]].add(made[k]);
+        for (int i = nBuckets - 1; i >= 0; i--) {
+            List<AbstractFactor> fs = factors[i];
+            if (fs.isEmpty())
+                continue;
+            AbstractFactor result;
+            if (fs.size() == 1)
+                result = fs.get(0);
+            else if (fs.size() == 2)
+                result = Factorize.getProduct(fs.get(0), fs.get(1));
+            else
+                result = Factorize.getProduct(fs.toArray(new AbstractFactor[fs.size()]));
+            if (i > 0) {
+                Variable[] margin = new Variable[plan.margins[i].length];
+                for (int j = 0; j < margin.length; j ++)
+                    margin[j] = getPlanNode(plan.margins[i][j]).getVariable();
+                if (plan.status == STATUS_MPE)
+                    result = Factorize.getMaxMargin(result, margin);
+                else
+                    result = Factorize.getMargin(result, margin);
+                if (plan.dest[i] >= 0)
+                    factors[plan.dest[i]].add(result);
+            } else {
+                List<Variable> Q = new ArrayList<>(plan.query.length);
+                for (String name : plan.query)
+                    Q.add(getPlanNode(name).getVariable());
+                return new CGTable(result, Q);
+            }
+        }
+        throw new VarElimRuntimeException("Variable elimination failed");
+    }
+
     /**
      * Determine the probability of the instantiated variables. 
      * This function does not integrate over/marginalize continuous (and other density-based) variables. 
@@ -357,13 +532,26 @@ public class VarElim implements Inference {
      * @return the log likelihood of the evidence (instantiated nodes)
      */
     public double logLikelihood() {
+        Map<Variable, Object> evidence = new HashMap<>();
+        for (BNode node : bn.getOrdered())
+            evidence.put(node.getVariable(), node.getInstance());
+        return logLikelihood(evidence);
+    }
+
+    /**
+     * Determine the probability of the specified evidence, as {@link VarElim#logLikelihood()} but with
+     * evidence given explicitly, rather than by instantiated nodes.
+     * @param evidence the values of variables that are instantiated
+     * @return the log likelihood of the evidence
+     */
+    public double logLikelihood(Map<Variable, Object> evidence) {
 	// All CPTs will be converted to "factors", and put in the bucket which is the first to sum-out any of the variables in the factor.
         // Assignment will be incorporated into the factor when it is constructed.
         List<Variable> X = new ArrayList<>(); // unspecified variables, to-be summed-out
         Map<Variable, Object> R = new HashMap<>(); // all variables that are relevant with corresponding instantiations
         for (BNode node : bn.getOrdered()) {
             Variable var = node.getVariable();
-            Object instance = node.getInstance();
+            Object instance = evidence.get(var);
             R.put(var, instance); // currently we consider all variables are relevant, even when not specified
             if (instance == null) 
                 X.add(var);
@@ -382,7 +570,7 @@ public class VarElim implements Inference {
         // Fill buckets backwards with appropriate factor tables (instantiated when "made")
         for (BNode node : bn.getNodes()) {
             // node is converted into a factor, all nodes are considered relevant
-            AbstractFactor ft = node.makeDenseFactor(R); // Factor ft = node.makeFactor(bn, true);
+            AbstractFactor ft = Factorize.getScaled(node.makeDenseFactor(R)); // Factor ft = node.makeFactor(bn, true);
             boolean added = false;
             if (!ft.hasEnumVars()) { // this happen if the FT has no variables
                 buckets.get(0).put(ft);
@@ -615,6 +803,429 @@ public class VarElim implements Inference {
         }
     }
     
+    /**
+     * A compiled query, which is specific to the nodes that are instantiated, but not their values.
+     * Nodes are referred to by the name of their variable, so that a plan can be executed on any BN with the same structure
+     * and variable names.
+     * A plan is not modified once compiled, so can be shared between threads.
+     * Its kernel, if any, keeps buffers for each thread that executes it.
+     */
+    public static class Plan {
+
+        final int status;
+        final String[] query;   // names of query variables
+        final String[] evidence; // names of the variables of instantiated nodes
+        String[] nodes;         // names of the variables of nodes in the order their factors are made
+        String[][] scopes;      // [k] names of the enumerable variables of the factor of nodes[k], or null if it has non-enumerable variables
+        int[] bucket;           // [k] the bucket to which the factor of nodes[k] goes
+        String[][] margins;     // [bucket] names of the variables that are summed or maxed out
+        int[] dest;             // [bucket] the bucket to which the result goes, or -1 if no bucket applies
+        Kernel kernel = null;   // precomputed execution, or null if the plan does not qualify
+
+        Plan(CGQuery query) {
+            this.status = query.getStatus();
+            this.query = new String[query.Q.size()];
+            for (int i = 0; i < this.query.length; i ++)
+                this.query[i] = query.Q.get(i).getName();
+            this.evidence = new String[query.E.size()];
+            int i = 0;
+            for (Variable var : query.E.keySet())
+                this.evidence[i ++] = var.getName();
+        }
+
+        void setBuckets(List<Bucket> buckets, List<BNode> placed, List<Bucket> placement, List<AbstractFactor> made) {
+            this.nodes = new String[placed.size()];
+            for (int k = 0; k < nodes.length; k ++)
+                nodes[k] = placed.get(k).getVariable().getName();
+            this.scopes = new String[made.size()][];
+            for (int k = 0; k < scopes.length; k ++) {
+                AbstractFactor ft = made.get(k);
+                if (ft.hasNonEnumVars())
+                    continue;
+                EnumVariable[] evars = ft.getEnumVars();
+                scopes[k] = new String[evars.length];
+                for (int j = 0; j < evars.length; j ++)
+                    scopes[k][j] = evars[j].getName();
+            }
+            this.bucket = new int[placement.size()];
+            for (int k = 0; k < bucket.length; k ++)
+                bucket[k] = buckets.indexOf(placement.get(k));
+            this.margins = new String[buckets.size()][];
+            for (int i = 0; i < margins.length; i ++) {
+                margins[i] = new String[buckets.get(i).vars.size()];
+                int j = 0;
+                for (Variable var : buckets.get(i).vars)
+                    margins[i][j ++] = var.getName();
+            }
+            this.dest = new int[buckets.size()];
+            Arrays.fill(dest, -1);
+        }
+    }
+
+    /**
+     * Precomputed execution of a plan for an MPE query without query variables, over factors with enumerable variables only,
+     * e.g. for joint reconstruction. Factors are referred to by slots, products and max-outs are performed by index maps
+     * determined once (by {@link Factorize#getCrossref}), and values are kept in buffers that are allocated once per thread.
+     * Products are performed pairwise in the order of {@link Factorize#getProduct(AbstractFactor[])}, and entries are
+     * maxed-out in the order of {@link Factorize#getMaxMargin}, so results are the same as when executing the plan with
+     * factors, including which of equally probable assignments that is chosen.
+     */
+    static class Kernel {
+
+        final String[] vars;    // names of the variables of all factors, in canonical order
+        final int[] sizes;      // [var] size of domain
+        final int[] slotSize;   // [slot] number of values; the first slots hold the factors of nodes, in the order of the plan
+        final Step[] steps;     // the buckets that contribute to the result, from last to first
+        private final ThreadLocal<Workspace> work = ThreadLocal.withInitial(() -> new Workspace(this));
+
+        /**
+         * The products and max-out of a bucket.
+         */
+        private static class Step {
+            final int[][] products; // [product] slot of the product, and of its two operands
+            final int[][] xcross;   // [product][entry of product] the entry of the first operand
+            final int[][] ycross;   // [product][entry of product] the entry of the second operand
+            final int slot;         // the slot of the product of all factors in the bucket
+            final int result;       // the slot of the maxed-out product, or -1 for the first bucket
+            final int[] margin;     // [entry of product] the entry of the result
+            final int[] pvars;      // variables of the product
+            final int[] rvars;      // variables of the result
+
+            Step(List<int[]> products, List<int[][]> cross, int slot, int result, int[] margin, int[] pvars, int[] rvars) {
+                this.products = products.toArray(new int[products.size()][]);
+                this.xcross = new int[cross.size()][];
+                this.ycross = new int[cross.size()][];
+                for (int j = 0; j < cross.size(); j ++) {
+                    xcross[j] = cross.get(j)[0];
+                    ycross[j] = cross.get(j)[1];
+                }
+                this.slot = slot;
+                this.result = result;
+                this.margin = margin;
+                this.pvars = pvars;
+                this.rvars = rvars;
+            }
+        }
+
+        /**
+         * Buffers for executing the kernel, one per thread.
+         */
+        private static class Workspace {
+            final double[][] values;    // [slot] log values
+            final int[][] argmax;       // [step][entry of result] the entry of the product with the maximum value
+            final int[] assign;         // [var] the index of the assigned value, or -1 if not assigned
+            final EnumVariable[] evars; // [var] the variables of the BN being executed
+
+            Workspace(Kernel kernel) {
+                values = new double[kernel.slotSize.length][];
+                for (int s = 0; s < values.length; s ++)
+                    values[s] = new double[kernel.slotSize[s]];
+                argmax = new int[kernel.steps.length][];
+                for (int t = 0; t < argmax.length; t ++)
+                    argmax[t] = kernel.steps[t].result < 0 ? null : new int[kernel.slotSize[kernel.steps[t].result]];
+                assign = new int[kernel.vars.length];
+                evars = new EnumVariable[kernel.vars.length];
+            }
+        }
+
+        private Kernel(String[] vars, int[] sizes, int[] slotSize, Step[] steps) {
+            this.vars = vars;
+            this.sizes = sizes;
+            this.slotSize = slotSize;
+            this.steps = steps;
+        }
+
+        /**
+         * Determine the kernel of a plan, using the variables of the BN with which the plan was compiled.
+         * @param plan the plan
+         * @param ve the inference engine that compiled the plan
+         * @return the kernel, or null if the plan does not qualify
+         */
+        static Kernel compile(Plan plan, VarElim ve) {
+            if (plan.status != STATUS_MPE || plan.query.length > 0)
+                return null;
+            int nNodes = plan.nodes.length;
+            int nBuckets = plan.margins.length;
+            List<EnumVariable[]> slotVars = new ArrayList<>(); // [slot] variables, in canonical order
+            Set<EnumVariable> all = new HashSet<>();
+            for (int k = 0; k < nNodes; k ++) {
+                if (plan.scopes[k] == null)
+                    return null;
+                EnumVariable[] evars = new EnumVariable[plan.scopes[k].length];
+                for (int j = 0; j < evars.length; j ++) {
+                    BNode node = ve.getPlanNode(plan.scopes[k][j]);
+                    if (node == null || !(node.getVariable() instanceof EnumVariable))
+                        return null;
+                    evars[j] = (EnumVariable) node.getVariable();
+                }
+                all.addAll(Arrays.asList(evars));
+                slotVars.add(evars);
+            }
+            EnumVariable[] allvars = all.toArray(new EnumVariable[all.size()]);
+            Arrays.sort(allvars);
+            String[] vars = new String[allvars.length];
+            int[] sizes = new int[allvars.length];
+            Map<String, Integer> ids = new HashMap<>();
+            for (int v = 0; v < allvars.length; v ++) {
+                vars[v] = allvars[v].getName();
+                sizes[v] = allvars[v].size();
+                ids.put(vars[v], v);
+            }
+            // the factors that go to each bucket, in the order they are added; results are added as buckets are executed
+            List<List<Integer>> inputs = new ArrayList<>();
+            for (int i = 0; i < nBuckets; i ++)
+                inputs.add(new ArrayList<>());
+            for (int k = 0; k < nNodes; k ++)
+                inputs.get(plan.bucket[k]).add(k);
+            // a bucket contributes to the result if its result goes to the first bucket, possibly via other buckets
+            boolean[] contributes = new boolean[nBuckets];
+            contributes[0] = true;
+            for (int i = 1; i < nBuckets; i ++)
+                contributes[i] = plan.dest[i] >= 0 && plan.dest[i] < i && contributes[plan.dest[i]];
+            List<Step> steps = new ArrayList<>();
+            for (int i = nBuckets - 1; i >= 0; i --) {
+                List<Integer> in = inputs.get(i);
+                if (in.isEmpty() || !contributes[i])
+                    continue;
+                List<int[]> products = new ArrayList<>();
+                List<int[][]> cross = new ArrayList<>();
+                int slot;
+                if (in.size() == 1) {
+                    slot = in.get(0);
+                } else {
+                    AbstractFactor[] leaves = new AbstractFactor[in.size()];
+                    for (int j = 0; j < leaves.length; j ++)
+                        leaves[j] = new DenseFactor(slotVars.get(in.get(j)));
+                    slot = addProducts(Factorize.getProductTree(leaves), leaves, in, slotVars, products, cross);
+                }
+                EnumVariable[] pvars = slotVars.get(slot);
+                if (i > 0) {
+                    Set<String> margin = new HashSet<>(Arrays.asList(plan.margins[i]));
+                    List<EnumVariable> keep = new ArrayList<>();
+                    for (EnumVariable var : pvars) {
+                        if (!margin.contains(var.getName()))
+                            keep.add(var);
+                    }
+                    EnumVariable[] rvars = keep.toArray(new EnumVariable[keep.size()]);
+                    int result = slotVars.size();
+                    slotVars.add(rvars);
+                    inputs.get(plan.dest[i]).add(result);
+                    steps.add(new Step(products, cross, slot, result, getIndexMap(pvars, rvars), getIds(pvars, ids), getIds(rvars, ids)));
+                } else {
+                    if (pvars.length > 0)
+                        return null;
+                    steps.add(new Step(products, cross, slot, -1, null, getIds(pvars, ids), new int[0]));
+                }
+            }
+            if (steps.isEmpty() || steps.get(steps.size() - 1).result >= 0) // the first bucket is empty
+                return null;
+            int[] slotSize = new int[slotVars.size()];
+            for (int s = 0; s < slotSize.length; s ++) {
+                slotSize[s] = 1;
+                for (EnumVariable var : slotVars.get(s))
+                    slotSize[s] *= var.size();
+            }
+            return new Kernel(vars, sizes, slotSize, steps.toArray(new Step[steps.size()]));
+        }
+
+        /**
+         * Add the products of a bucket, as they are performed by {@link Factorize#getProduct(AbstractFactor[])}.
+         * @param node the product tree
+         * @param leaves the factors of the bucket, as given to the product tree
+         * @param in the slots of the factors
+         * @param slotVars the variables of each slot, extended with those of each product
+         * @param products the slots of each product and its operands, extended with each product
+         * @param cross the index maps of each product, extended with each product
+         * @return the slot of the product
+         */
+        private static int addProducts(Factorize.FactorProductTree node, AbstractFactor[] leaves, List<Integer> in,
+                                       List<EnumVariable[]> slotVars, List<int[]> products, List<int[][]> cross) {
+            if (node.getFactor() != null) { // a leaf, which is one of the factors of the bucket
+                int j = 0;
+                while (leaves[j] != node.getFactor())
+                    j ++;
+                return in.get(j);
+            }
+            int x = addProducts(node.x, leaves, in, slotVars, products, cross);
+            int y = addProducts(node.y, leaves, in, slotVars, products, cross);
+            EnumVariable[] xvars = slotVars.get(x);
+            EnumVariable[] yvars = slotVars.get(y);
+            EnumVariable[] xy = new EnumVariable[xvars.length + yvars.length];
+            System.arraycopy(xvars, 0, xy, 0, xvars.length);
+            System.arraycopy(yvars, 0, xy, xvars.length, yvars.length);
+            EnumVariable[] pvars = new DenseFactor(xy).getEnumVars(); // sorted and unique, as in the product
+            int slot = slotVars.size();
+            slotVars.add(pvars);
+            products.add(new int[] {slot, x, y});
+            cross.add(new int[][] {getIndexMap(pvars, xvars), getIndexMap(pvars, yvars)});
+            return slot;
+        }
+
+        /**
+         * Determine the entry of a factor for each entry of another factor, with a superset of its variables.
+         * @param from the variables of the factor with the superset
+         * @param to the variables of the factor with the subset
+         * @return [entry of from] the entry of to
+         */
+        private static int[] getIndexMap(EnumVariable[] from, EnumVariable[] to) {
+            int[] fcross2t = new int[from.length];
+            Factorize.getCrossref(from, fcross2t, to, null);
+            int[] tstep = new int[to.length];
+            int prod = 1;
+            for (int j = to.length - 1; j >= 0; j --) {
+                tstep[j] = prod;
+                prod *= to[j].size();
+            }
+            int size = 1;
+            for (EnumVariable var : from)
+                size *= var.size();
+            int[] map = new int[size];
+            for (int e = 0; e < size; e ++) {
+                int remain = e;
+                for (int j = from.length - 1; j >= 0; j --) { // the last variable varies fastest
+                    int digit = remain % from[j].size();
+                    remain /= from[j].size();
+                    if (fcross2t[j] >= 0)
+                        map[e] += digit * tstep[fcross2t[j]];
+                }
+            }
+            return map;
+        }
+
+        private static int[] getIds(EnumVariable[] evars, Map<String, Integer> ids) {
+            int[] arr = new int[evars.length];
+            for (int j = 0; j < arr.length; j ++)
+                arr[j] = ids.get(evars[j].getName());
+            return arr;
+        }
+
+        /**
+         * Execute the kernel, with the factors made for the nodes of the plan.
+         * @param made the factors of nodes, in the order of the plan
+         * @param ve the inference engine, instantiated with the BN the factors are made for
+         * @return the result, or null if the factors or variables differ from those the kernel was compiled for
+         */
+        QueryResult execute(AbstractFactor[] made, VarElim ve) {
+            Workspace w = work.get();
+            // variables must have the same domains and order (by creation) as when compiled, so that factors are indexed the same
+            for (int v = 0; v < vars.length; v ++) {
+                BNode node = ve.getPlanNode(vars[v]);
+                if (!(node.getVariable() instanceof EnumVariable))
+                    return null;
+                w.evars[v] = (EnumVariable) node.getVariable();
+                if (w.evars[v].size() != sizes[v] || (v > 0 && w.evars[v - 1].compareTo(w.evars[v]) >= 0))
+                    return null;
+            }
+            for (int k = 0; k < made.length; k ++) {
+                AbstractFactor ft = made[k];
+                if (ft.hasNonEnumVars() || ft.isTraced() || ft.getSize() != slotSize[k])
+                    return null;
+                double[] buf = w.values[k];
+                if (ft.hasEnumVars()) {
+                    for (int e = 0; e < buf.length; e ++)
+                        buf[e] = ft.getLogValue(e);
+                } else
+                    buf[0] = ft.getLogValue();
+            }
+            for (int t = 0; t < steps.length; t ++) {
+                Step step = steps[t];
+                for (int j = 0; j < step.products.length; j ++) {
+                    double[] p = w.values[step.products[j][0]];
+                    double[] x = w.values[step.products[j][1]];
+                    double[] y = w.values[step.products[j][2]];
+                    int[] xcross = step.xcross[j];
+                    int[] ycross = step.ycross[j];
+                    for (int e = 0; e < p.length; e ++)
+                        p[e] = x[xcross[e]] + y[ycross[e]];  // product in log space
+                }
+                if (step.result >= 0) {
+                    double[] p = w.values[step.slot];
+                    double[] r = w.values[step.result];
+                    int[] argmax = w.argmax[t];
+                    Arrays.fill(r, Double.NEGATIVE_INFINITY);
+                    Arrays.fill(argmax, 0);
+                    for (int e = 0; e < p.length; e ++) {
+                        if (p[e] > r[step.margin[e]]) {
+                            r[step.margin[e]] = p[e];
+                            argmax[step.margin[e]] = e;
+                        }
+                    }
+                }
+            }
+            double logvalue = w.values[steps[steps.length - 1].slot][0];
+            if (steps.length == 1) // nothing was maxed-out, so nothing was traced
+                return new CGTable(Double.isInfinite(logvalue) ? 0 : Math.exp(logvalue), null);
+            // trace back from the first bucket; the variables of the result of a bucket are assigned by the bucket it went to
+            Arrays.fill(w.assign, -1);
+            for (int t = steps.length - 2; t >= 0; t --) {
+                Step step = steps[t];
+                int r = 0;
+                for (int v : step.rvars)
+                    r = r * sizes[v] + w.assign[v];
+                int remain = w.argmax[t][r];
+                for (int j = step.pvars.length - 1; j >= 0; j --) {
+                    int v = step.pvars[j];
+                    w.assign[v] = remain % sizes[v];
+                    remain /= sizes[v];
+                }
+            }
+            Set<Variable.Assignment> assign = new HashSet<>();
+            for (int v = 0; v < vars.length; v ++) {
+                if (w.assign[v] >= 0)
+                    assign.add(new Variable.Assignment(w.evars[v], w.evars[v].getDomain().get(w.assign[v])));
+            }
+            return new CGTable(Double.isInfinite(logvalue) ? 0 : Math.exp(logvalue), assign);
+        }
+    }
+
+    /**
+     * Thread-safe cache of compiled plans, shared by the inference of many BNs with the same structure and variable names,
+     * e.g. one BN per column of an alignment, all on the same tree.
+     * Plans are keyed by the pattern of instantiated nodes, which the user of the cache defines such that
+     * it is the same for all BNs, e.g. by branch point index rather than by the (BN-specific) topological order of nodes.
+     */
+    public static class PlanCache {
+
+        private final Map<BitSet, Plan> plans = new ConcurrentHashMap<>();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        /**
+         * Retrieve the plan for a pattern of instantiated nodes, compiling it with the given inference engine if not cached.
+         * The pattern is not modified by the cache, and must not be modified by the caller once passed.
+         * @param pattern the pattern of instantiated nodes
+         * @param ve the inference engine, instantiated with a BN with nodes instantiated according to the pattern
+         * @param query the query to compile if the plan is not cached, made by the same inference engine
+         * @return the plan
+         */
+        public Plan get(BitSet pattern, VarElim ve, Supplier<Query> query) {
+            Plan plan = plans.get(pattern);
+            if (plan != null) {
+                hits.incrementAndGet();
+                return plan;
+            }
+            misses.incrementAndGet();
+            plan = ve.compile(query.get());
+            Plan prev = plans.putIfAbsent(pattern, plan); // another thread may have compiled the same pattern meanwhile
+            return prev == null ? plan : prev;
+        }
+
+        /**
+         * @return number of plans in the cache
+         */
+        public int size() {
+            return plans.size();
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+    }
+
     public class VarElimRuntimeException extends RuntimeException {
         private static final long serialVersionUID = 1L;
 
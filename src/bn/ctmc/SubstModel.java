@@ -21,23 +21,23 @@ package bn.ctmc;
 import asr.ASRRuntimeException;
 import bn.math.Matrix;
 import bn.prob.EnumDistrib;
-import dat.EnumTable;
-import dat.EnumVariable;
 import dat.Enumerable;
 import bn.ctmc.matrix.*;
 import bn.math.Matrix.Exp;
 import json.JSONObject;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Conditional probability table for CTMC based on discrete alphabets
  * @author mikael
  *
- * TODO: optimise the access to conditional probabilities @ time,
- * thread-aware cache and possibly compromise on precision; also be mindful of alphabet size.
+ * TODO: possibly compromise on precision when accessing conditional probabilities @ time; also be mindful of alphabet size.
  * ALternatively, clone the model for each node.
  *
  */
@@ -47,7 +47,9 @@ public abstract class SubstModel {
     final double[] F;   // This is the frequencies of the character states
     final Exp Rexp;     // exp(IRM)
     final Enumerable alpha;
-    private EnumTable<EnumDistrib> table = null;
+    private final double[] eval;  // eigenvalues of IRM
+    private final double[] evec;  // eigenvectors of IRM, flat [row * N + col]
+    private final double[] ievec; // inverse eigenvectors of IRM, flat [row * N + col]
 
     /**
      * Create time reversible evolutionary model.
@@ -110,6 +112,16 @@ public abstract class SubstModel {
         if (normalise)
             SubstModel.normalize(F, R);
         Rexp = new Exp(R);
+        eval = Rexp.getEigval();
+        evec = flatten(Rexp.getEigvec());
+        ievec = flatten(Rexp.getInvEigvec());
+    }
+
+    private static double[] flatten(double[][] matrix) {
+        double[] flat = new double[matrix.length * matrix.length];
+        for (int i = 0; i < matrix.length; i ++)
+            System.arraycopy(matrix[i], 0, flat, i * matrix.length, matrix.length);
+        return flat;
     }
 
     /**
@@ -221,34 +233,122 @@ public abstract class SubstModel {
         }
     }
 
-    private double[][] probs = null;
-    private double time = 0.0;
-    // private boolean updateRequired = true;
-
-    // To speed up calculation, store recent probability matrices
-    private Map<Double, double[][]> probscache = new HashMap<>();
+    /**
+     * Resolution at which times (branch lengths, multiplied by rate) are quantised to form keys for the cache
+     */
+    public static double TIME_RESOLUTION = 1e-12;
 
     // size of cache
     public int CACHE_SIZE = 10000;
 
+    // To speed up calculation, store recent probability matrices
+    private final ProbsCache probscache = new ProbsCache();
+
     /**
-     * Set another cached prob matrix
+     * Bounded, thread-safe cache of transition probability matrices, keyed by quantised time.
+     * Look-ups are lock-free; when full, an entry is evicted with the CLOCK (second chance) policy,
+     * so entries that have been used since the clock hand last passed them are retained.
+     * Matrices are stored as flat arrays, row by row, [row: X(t)][col: X(t+time)] as per {@link #getProbs(double, Exp)}.
      */
-    private void setCache(double time, double[][] p) {
-        if (probscache.size() < CACHE_SIZE)
-            probscache.put(time, p);
-    }
+    public class ProbsCache {
+        private final ConcurrentHashMap<Long, Entry> cache = new ConcurrentHashMap<>();
+        private final ArrayDeque<Long> clock = new ArrayDeque<>(); // keys in order of the clock hand, guarded by itself
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        private class Entry {
+            final double[] probs;
+            volatile boolean referenced = false;
+            Entry(double[] probs) {
+                this.probs = probs;
+            }
+        }
 
-    private double[][] getCache(double time) {
-        double[][] p = probscache.get(time);
-        if (p == null) {
-            synchronized (this) {
-                p = getProbs(time, Rexp);
-                setCache(time, p);
+        /**
+         * Retrieve the transition probabilities for the quantised time, computing and caching them if not available.
+         * @param time expected distance
+         * @return flat array of conditional probabilities, which must not be modified by the caller
+         */
+        public double[] get(double time) {
+            long key = Math.round(time / TIME_RESOLUTION);
+            Entry e = cache.get(key);
+            if (e != null) {
+                hits.increment();
+                e.referenced = true;
+                return e.probs;
+            }
+            misses.increment();
+            double[] p = getProbs(new double[] {key * TIME_RESOLUTION});
+            synchronized (clock) {
+                e = cache.get(key);
+                if (e != null) // another thread got there first
+                    return e.probs;
+                while (cache.size() >= Math.max(1, CACHE_SIZE) && !clock.isEmpty()) {
+                    Long hand = clock.pollFirst();
+                    Entry candidate = cache.get(hand);
+                    if (candidate.referenced) { // second chance
+                        candidate.referenced = false;
+                        clock.addLast(hand);
+                    } else {
+                        cache.remove(hand);
+                        evictions.increment();
+                    }
+                }
+                cache.put(key, new Entry(p));
+                clock.addLast(key);
             }
+            return p;
         }
-        return p;
+
+        public int size() {
+            return cache.size();
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        public void clear() {
+            synchronized (clock) {
+                cache.clear();
+                clock.clear();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Cache size " + size() + "/" + CACHE_SIZE + ", hits " + getHits() + ", misses " + getMisses() + ", evictions " + getEvictions();
+        }
+    }
+
+    /**
+     * Retrieve the cache of transition probability matrices, e.g. to inspect hit and miss counts
+     * @return the cache
+     */
+    public ProbsCache getProbsCache() {
+        return probscache;
+    }
+
+    /**
+     * Get the transition probabilities for an expected distance, re-using previously computed matrices where possible.
+     * This method is thread-safe.
+     * @param time expected distance
+     * @return flat array of conditional probabilities, element [Y * N + X] is P(X|Y,time) where N is the size of the alphabet;
+     * the array is shared and must not be modified by the caller
+     */
+    public double[] getProbs(double time) {
+        return probscache.get(time);
     }
+
     /**
      * Get conditional probability P(X=x|Y=y,time)
      * @param X
@@ -257,11 +357,10 @@ public abstract class SubstModel {
      * @return
      */
     public double getProb(Object X, Object Y, double time) {
-        if (this.time != time || probs == null) // only re-compute matrix if time has changed
-            probs = getCache(time);
+        double[] probs = probscache.get(time);
         int index_X = alpha.getIndex(X);
         int index_Y = alpha.getIndex(Y);
-        return probs[index_Y][index_X];
+        return probs[index_Y * F.length + index_X];
     }
 
     /**
@@ -284,16 +383,83 @@ public abstract class SubstModel {
         return F[index_X];
     }
 
+    /**
+     * Get the conditional distribution P(X|Y=y,time)
+     * @param Y
+     * @param time
+     * @return
+     */
     public EnumDistrib getDistrib(Object Y, double time) {
-        if (this.time != time || probs == null || table == null) { // only re-compute matrix if time has changed
-            probs = getCache(time);
-            table = new EnumTable<>(new EnumVariable(alpha));
-            for (int i = 0; i < probs.length; i ++) {
-                EnumDistrib d = new EnumDistrib(alpha, probs[i]);
-                table.setValue(i, d);
+        double[] probs = probscache.get(time);
+        int index_Y = alpha.getIndex(Y);
+        return new EnumDistrib(alpha, Arrays.copyOfRange(probs, index_Y * F.length, (index_Y + 1) * F.length));
+    }
+
+    /**
+     * Compute the transition probabilities for a batch of expected distances in one pass, re-using the eigen-decomposition
+     * of the rate matrix; for instance, for all branches of a tree. No intermediate matrices are allocated per distance.
+     * The results are identical to those of {@link #getProbs(double, Exp)}, but are not cached.
+     *
+     * @param times expected distances
+     * @return contiguous buffer with one flat matrix per distance; element [b * N * N + row * N + col] is the conditional probability
+     * of the symbol col at time t+times[b] GIVEN the symbol row at time t, where N is the size of the alphabet
+     */
+    public double[] getProbs(double[] times) {
+        int N = eval.length;
+        double[] buffer = new double[times.length * N * N];
+        double[] iexp = new double[N * N];
+        for (int b = 0; b < times.length; b ++)
+            computeProbs(times[b], iexp, buffer, b * N * N);
+        return buffer;
+    }
+
+    /**
+     * Compute the transition probabilities for all combinations of branch lengths and relative rates in one pass,
+     * for instance, all branches of a tree at all positions of an alignment.
+     *
+     * @param distances branch lengths
+     * @param rates relative evolutionary rates
+     * @return contiguous buffer with one flat matrix per rate and distance; element [(r * D + b) * N * N + row * N + col] is
+     * the conditional probability of the symbol col at time t+distances[b]*rates[r] GIVEN the symbol row at time t,
+     * where D is the number of distances and N is the size of the alphabet
+     */
+    public double[] getProbs(double[] distances, double[] rates) {
+        int N = eval.length;
+        double[] buffer = new double[rates.length * distances.length * N * N];
+        double[] iexp = new double[N * N];
+        for (int r = 0; r < rates.length; r ++)
+            for (int b = 0; b < distances.length; b ++)
+                computeProbs(distances[b] * rates[r], iexp, buffer, (r * distances.length + b) * N * N);
+        return buffer;
+    }
+
+    /**
+     * Compute the transition probabilities for an expected distance into a flat buffer.
+     * Summation is in the same order as in {@link #getProbs(double, Exp)}.
+     * @param time expected distance
+     * @param iexp scratch buffer of size N * N
+     * @param dest destination buffer
+     * @param offset start of the matrix in the destination buffer
+     */
+    private void computeProbs(double time, double[] iexp, double[] dest, int offset) {
+        int N = eval.length;
+        for (int k = 0; k < N; k ++) {
+            double temp = Math.exp(time * eval[k]);
+            for (int j = 0; j < N; j ++)
+                iexp[k * N + j] = ievec[k * N + j] * temp;
+        }
+        Arrays.fill(dest, offset, offset + N * N, 0.0);
+        for (int i = 0; i < N; i ++) {
+            int row = offset + i * N;
+            for (int k = 0; k < N; k ++) {
+                double a = evec[i * N + k];
+                int koff = k * N;
+                for (int j = 0; j < N; j ++)
+                    dest[row + j] += a * iexp[koff + j];
             }
+            for (int j = 0; j < N; j ++)
+                dest[row + j] = Math.abs(dest[row + j]);
         }
-        return table.getValue(new Object[] {Y});
     }
 
     /**
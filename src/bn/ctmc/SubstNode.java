@@ -50,7 +50,7 @@ public class SubstNode implements BNode {
     private final EnumVariable parent;
     private final List<EnumVariable> parentAsList;
     protected final EnumTable<EnumDistrib> table; // table of (enumerable) probability distributions
-    private final double[][] probs;
+    private final double[] probs; // flat [index_Y * N + index_X], shared with the model's cache so must not be modified
     private final EnumDistrib prior; // one (enumerable) probability distribution that is used if this variable is NOT conditioned
 
     //private SubstModel model;
@@ -84,9 +84,9 @@ public class SubstNode implements BNode {
         this.alpha = model.getDomain();
         this.values = this.alpha.getValues();
         this.table = new EnumTable<>(parent);
-        this.probs = model.getProbs(t, model.getRexp());
+        this.probs = model.getProbs(t);
         for (int i = 0; i < this.values.length; i ++) {
-            table.setValue(i, new EnumDistrib(this.alpha, probs[i]));
+            table.setValue(i, new EnumDistrib(this.alpha, Arrays.copyOfRange(probs, i * values.length, (i + 1) * values.length)));
         }
         this.prior = null; // this is a cond prob
     }
@@ -159,7 +159,7 @@ public class SubstNode implements BNode {
      * @return
      */
     private double getProb(int index_X, int index_Y) {
-        return probs[index_Y][index_X];
+        return probs[index_Y * values.length + index_X];
     }
 
     /**
@@ -73,7 +73,8 @@ public abstract class AbstractFactor implements Iterable<Integer> {
             TYPE_UNKNOWN = 1,
             TYPE_DENSE = 2,
             TYPE_SPARSE = 3,
-            TYPE_CACHED = 4;
+            TYPE_CACHED = 4,
+            TYPE_SCALED = 5;
 
     private int FACTOR_TYPE = TYPE_UNKNOWN;
 
@@ -218,7 +219,8 @@ public abstract class AbstractFactor implements Iterable<Integer> {
      *             TYPE_UNKNOWN = 1,
      *             TYPE_DENSE = 2,
      *             TYPE_SPARSE = 3,
-     *             TYPE_CACHED = 4;
+     *             TYPE_CACHED = 4,
+     *             TYPE_SCALED = 5;
      * @param type any of the above values defined in {@link bn.factor.AbstractFactor#FACTOR_TYPE}
      */
     protected void setFactorType(int type) {
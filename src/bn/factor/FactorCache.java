@@ -1,52 +1,266 @@
 package bn.factor;
 
+import json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Bounded, thread-safe cache of factor values, keyed by hash keys as generated by {@link AbstractFactor#getFactorMapKey}.
+ * The cache is bounded both by number of entries and by (an estimate of) the memory that the values occupy.
+ * When full, entries are evicted by a segmented LRU policy: a new entry is placed in a probationary segment,
+ * and is promoted to a protected segment when accessed again. Entries are evicted from the probationary segment
+ * first, so factors that are used once (e.g. for a single column) do not displace those that are re-used.
+ * The protected segment holds at most {@link #PROTECTED_SHARE} of the cache; its least recently used entries are
+ * demoted back to the probationary segment.
+ * Keys do not depend on the BN a factor is made for, so a cache can be shared, e.g. by {@link dat.phylo.PhyloBN}s
+ * for different columns of an alignment; see {@link #getShared()}.
+ */
 public class FactorCache {
 
-    public final ConcurrentHashMap<Integer, CountedFactorMap> cache;
+    /**
+     * Default maximum number of entries
+     */
+    public static int DEFAULT_MAX_ENTRIES = 1 << 16;
+    /**
+     * Default maximum number of bytes that values occupy; an eighth of the maximum heap
+     */
+    public static long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 8;
+    /**
+     * Share of the cache that is reserved for entries that have been accessed more than once
+     */
+    public static double PROTECTED_SHARE = 0.8;
+
+    private static FactorCache shared = null;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    // segments, in order of access; the first entry is the least recently used; guarded by this
+    private final LinkedHashMap<Integer, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, Entry> retained = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;          // occupied by all entries, guarded by this
+    private long retainedBytes = 0;  // occupied by entries in the protected segment, guarded by this
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
 
+    private static class Entry {
+        final AbstractFactor.FactorMap fmap;
+        final long bytes;
+        Entry(AbstractFactor.FactorMap fmap) {
+            this.fmap = fmap;
+            this.bytes = getBytes(fmap);
+        }
+    }
+
+    /**
+     * Create a cache with the default bounds
+     */
     public FactorCache() {
-        cache = new ConcurrentHashMap();
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
     }
 
-    public int size() {
-        return cache.size();
+    /**
+     * Create a cache
+     * @param maxEntries maximum number of entries
+     * @param maxBytes maximum number of bytes that values occupy (estimated)
+     */
+    public FactorCache(int maxEntries, long maxBytes) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(1, maxBytes);
     }
 
-    public void reportCache() {
-        int cnt = 1;
-        for (Map.Entry<Integer, CountedFactorMap> entry : cache.entrySet()) {
-            AbstractFactor.FactorMap fmap = entry.getValue().fmap;
-            System.out.println((cnt ++) + "\t" + entry.getKey() + "\t" + entry.getValue().fmap.size() + "\t" + entry.getValue().accesses);
-        }
+    /**
+     * Retrieve a cache with the default bounds that is shared by all users in this JVM, created when first requested
+     * @return the shared cache
+     */
+    public static synchronized FactorCache getShared() {
+        if (shared == null)
+            shared = new FactorCache();
+        return shared;
+    }
+
+    /**
+     * Estimate the number of bytes that factor values occupy
+     * @param fmap factor values
+     * @return estimated number of bytes, including object headers
+     */
+    protected static long getBytes(AbstractFactor.FactorMap fmap) {
+        return fmap.isAtomic() ? 32 : 48 + 8L * fmap.size();
     }
 
+    public synchronized int size() {
+        return probation.size() + retained.size();
+    }
+
+    /**
+     * @return estimated number of bytes that the cached values occupy
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Retrieve factor values
+     * @param key hash key
+     * @return the values, or null if not cached
+     */
     public AbstractFactor.FactorMap get(int key) {
-        CountedFactorMap cfmap = cache.get(key);
-        if (cfmap != null)
-            return cfmap.access();
-        return null;
+        Entry entry;
+        synchronized (this) {
+            entry = retained.get(key); // moves entry to the end, as most recently used
+            if (entry == null) {
+                entry = probation.remove(key);
+                if (entry != null) { // second access so promote
+                    retained.put(key, entry);
+                    retainedBytes += entry.bytes;
+                    demote();
+                }
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.fmap;
     }
 
+    /**
+     * Cache factor values, unless values are already cached under the key.
+     * Values that would on their own exceed the memory bound are not cached.
+     * @param key hash key
+     * @param map the values
+     */
     public void put(int key, AbstractFactor.FactorMap map) {
-        CountedFactorMap cfmap = cache.get(key);
-        if (cfmap == null)
-            cache.put(key, new CountedFactorMap(map));
+        Entry entry = new Entry(map);
+        if (entry.bytes > maxBytes)
+            return;
+        synchronized (this) {
+            if (retained.containsKey(key) || probation.containsKey(key))
+                return;
+            probation.put(key, entry);
+            bytes += entry.bytes;
+            evict();
+        }
     }
 
-    private class CountedFactorMap {
-        AbstractFactor.FactorMap fmap;
-        int accesses = 0;
+    /**
+     * Remove all entries; counters are kept.
+     */
+    public synchronized void clear() {
+        probation.clear();
+        retained.clear();
+        bytes = 0;
+        retainedBytes = 0;
+    }
 
-        CountedFactorMap(AbstractFactor.FactorMap fmap) {
-            this.fmap = fmap;
-            this.accesses = 0;
+    /**
+     * Move least recently used entries from the protected to the probationary segment, while the protected
+     * segment exceeds its share. Must be called while holding the lock.
+     */
+    private void demote() {
+        Iterator<Map.Entry<Integer, Entry>> iter = retained.entrySet().iterator();
+        while (iter.hasNext() && (retained.size() > maxEntries * PROTECTED_SHARE || retainedBytes > maxBytes * PROTECTED_SHARE)) {
+            Map.Entry<Integer, Entry> e = iter.next();
+            iter.remove();
+            retainedBytes -= e.getValue().bytes;
+            probation.put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Remove least recently used entries, from the probationary segment first, until the cache is within its bounds.
+     * Must be called while holding the lock.
+     */
+    private void evict() {
+        while (probation.size() + retained.size() > maxEntries || bytes > maxBytes) {
+            Map<Integer, Entry> segment = probation.isEmpty() ? retained : probation;
+            Iterator<Map.Entry<Integer, Entry>> iter = segment.entrySet().iterator();
+            Entry entry = iter.next().getValue();
+            iter.remove();
+            bytes -= entry.bytes;
+            if (segment == retained)
+                retainedBytes -= entry.bytes;
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return a snapshot of the size and counters of the cache
+     */
+    public Metrics getMetrics() {
+        synchronized (this) {
+            return new Metrics(probation.size() + retained.size(), maxEntries, bytes, maxBytes, getHits(), getMisses(), getEvictions());
+        }
+    }
+
+    /**
+     * Print the size and counters of the cache to standard out, see {@link #getMetrics()}.
+     */
+    public void reportCache() {
+        System.out.println(getMetrics());
+    }
+
+    /**
+     * Snapshot of the size and counters of a cache, e.g. for reporting by a server.
+     */
+    public static class Metrics {
+        public final int entries;
+        public final int maxEntries;
+        public final long bytes;
+        public final long maxBytes;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+
+        Metrics(int entries, int maxEntries, long bytes, long maxBytes, long hits, long misses, long evictions) {
+            this.entries = entries;
+            this.maxEntries = maxEntries;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
         }
-        AbstractFactor.FactorMap access() {
-            accesses += 1;
-            return fmap;
+
+        /**
+         * @return proportion of look-ups that were hits, or 0 if there were none
+         */
+        public double getHitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("Entries", entries);
+            json.put("MaxEntries", maxEntries);
+            json.put("Bytes", bytes);
+            json.put("MaxBytes", maxBytes);
+            json.put("Hits", hits);
+            json.put("Misses", misses);
+            json.put("Evictions", evictions);
+            json.put("HitRate", getHitRate());
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return "Cache size " + entries + "/" + maxEntries + " (" + bytes + "/" + maxBytes + " bytes), hits " + hits + ", misses " + misses + ", evictions " + evictions;
         }
     }
 }
@@ -44,6 +44,8 @@ public class Factorize {
     protected static int PRODUCT_OPTION = -1; // choose strategy for complex cases by timing ("-1") or by fixed option (currently "0" and "1")
     protected static boolean CACHE_PRODUCTS = false;
     protected static boolean CACHE_MARGINS = false;
+    protected static boolean USE_KERNELS = true; // use specialised loops for dense factors without JDFs and tracing
+    protected static boolean USE_SCALED = true;  // convert factors to linear space, see getScaled
 
     /**
      * Empty constructor.
@@ -328,7 +330,7 @@ public class Factorize {
      * @param factors all the factors that are to be multiplied
      * @return a binary tree that defines a good order
      */
-    protected static FactorProductTree getProductTree(AbstractFactor[] factors) {
+    public static FactorProductTree getProductTree(AbstractFactor[] factors) {
         int N = factors.length;
         // deal with special cases
         if (N == 0) 
@@ -630,6 +632,13 @@ public class Factorize {
      * @return the product of one and the other table
      */
     public static AbstractFactor getProduct(AbstractFactor X, AbstractFactor Y) {
+        // Tables in linear space have a specialised product, which requires that both are (or can be converted)
+        if (X.getFactorType() == AbstractFactor.TYPE_SCALED || Y.getFactorType() == AbstractFactor.TYPE_SCALED) {
+            ScaledFactor sx = getScaledOperand(X);
+            ScaledFactor sy = getScaledOperand(Y);
+            if (sx != null && sy != null)
+                return getScaledProduct(sx, sy);
+        }
         // First resolve cases with tables without enumerable variables;
         // it is easy to perform products when none, or only-one of the factors has enumerables
         if (X.nEVars == 0 && Y.nEVars == 0) {
@@ -710,6 +719,15 @@ public class Factorize {
             dt.setLogValues(map);
             return dt;
         }
+        // Dense tables with only enumerable variables, without tracing, have a specialised product
+        double[] xmap = getKernelMap(X);
+        double[] ymap = getKernelMap(Y);
+        if (xmap != null && ymap != null) {
+            AbstractFactor dt = customFactor(X, Y, getConcat(X.evars, Y.evars));
+            if (!dt.isSet()) // not cached
+                dt.setLogValues(getProductKernel(dt, X, xmap, Y, ymap));
+            return dt;
+        }
         // So it is not trivial...
         // If we end up here, we deal with that both tables have enumerable variables;
         // let's work out how enumerables relate...
@@ -1184,6 +1202,314 @@ public class Factorize {
         return dt;
     }
 
+    /**
+     * Retrieve the log values of a factor, if the factor qualifies for the specialised product and margin kernels:
+     * a dense factor with enumerable variables and values set, but without non-enumerable variables and tracing.
+     * @param f factor
+     * @return the log values indexed as the factor, or null if the factor does not qualify
+     */
+    private static double[] getKernelMap(AbstractFactor f) {
+        if (!USE_KERNELS || f.getFactorType() != AbstractFactor.TYPE_DENSE || f.nEVars == 0 || f.nNVars > 0 || f.isTraced())
+            return null;
+        AbstractFactor.FactorMap map = ((DenseFactor) f).map;
+        if (map == null || map.isAtomic())
+            return null;
+        return map.getMap();
+    }
+
+    /**
+     * Determine the step in a factor of each enumerable variable in another factor.
+     * @param vars enumerable variables of the other factor
+     * @param f factor
+     * @return the step of each variable in f, 0 if the variable is not in f
+     */
+    private static int[] getSteps(EnumVariable[] vars, AbstractFactor f) {
+        int[] cross = new int[vars.length];
+        getCrossref(vars, cross, f.evars, null);
+        int[] steps = new int[vars.length];
+        for (int i = 0; i < vars.length; i++)
+            steps[i] = cross[i] == -1 ? 0 : f.step[cross[i]];
+        return steps;
+    }
+
+    /**
+     * Factor product of dense tables, computed by striding over their log values.
+     * Entries of the product are visited in order; the last variable varies fastest, so the inner loop is over
+     * a contiguous block of the product, and over a block of each operand with a fixed stride.
+     * @param dt product table, with the union of enumerable variables of X and Y
+     * @param X one table
+     * @param xmap log values of X
+     * @param Y other table
+     * @param ymap log values of Y
+     * @return log values of the product, indexed as dt
+     */
+    private static double[] getProductKernel(AbstractFactor dt, AbstractFactor X, double[] xmap, AbstractFactor Y, double[] ymap) {
+        int n = dt.nEVars;
+        int[] xsteps = getSteps(dt.evars, X);
+        int[] ysteps = getSteps(dt.evars, Y);
+        double[] map = new double[dt.getSize()];
+        int len = dt.domsize[n - 1];
+        int xs = xsteps[n - 1];
+        int ys = ysteps[n - 1];
+        int[] digits = new int[n];
+        int x = 0, y = 0;
+        for (int start = 0; start < map.length; start += len) {
+            if (xs == 1 && ys == 1) {
+                for (int k = 0; k < len; k++)
+                    map[start + k] = xmap[x + k] + ymap[y + k];
+            } else if (xs == 0) {
+                double xval = xmap[x];
+                for (int k = 0; k < len; k++)
+                    map[start + k] = xval + ymap[y + k * ys];
+            } else if (ys == 0) {
+                double yval = ymap[y];
+                for (int k = 0; k < len; k++)
+                    map[start + k] = xmap[x + k * xs] + yval;
+            } else {
+                for (int k = 0; k < len; k++)
+                    map[start + k] = xmap[x + k * xs] + ymap[y + k * ys];
+            }
+            // advance to the next block, as an odometer over all but the last variable
+            for (int i = n - 2; i >= 0; i--) {
+                x += xsteps[i];
+                y += ysteps[i];
+                if (++digits[i] < dt.domsize[i])
+                    break;
+                x -= xsteps[i] * digits[i];
+                y -= ysteps[i] * digits[i];
+                digits[i] = 0;
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Sum-out variables from a dense table, computed by striding over its log values.
+     * Each entry of the margin is determined in linear space, scaled by the largest value that is summed, which
+     * requires one exponentiation per entry of X and one logarithm per entry of the margin.
+     * Entries of X are visited in order; the last variable varies fastest, so the inner loop is over a contiguous
+     * block of X, and over a block of the margin with a fixed stride (which is 0 if the last variable is summed-out).
+     * @param X table
+     * @param xmap log values of X
+     * @param Y margin, with a subset of the enumerable variables of X
+     * @return log values of the margin, indexed as Y
+     */
+    private static double[] getMarginKernel(AbstractFactor X, double[] xmap, AbstractFactor Y) {
+        int n = X.nEVars;
+        int[] ysteps = Y.nEVars == 0 ? new int[n] : getSteps(X.evars, Y);
+        double[] max = new double[Y.getSize()];
+        double[] sum = new double[max.length];
+        Arrays.fill(max, LOG0);
+        int len = X.domsize[n - 1];
+        int ys = ysteps[n - 1];
+        int[] digits = new int[n];
+        // first pass: find the scale of each entry in the margin
+        int y = 0;
+        for (int start = 0; start < xmap.length; start += len) {
+            if (ys == 0) {
+                double m = max[y];
+                for (int k = 0; k < len; k++)
+                    m = Math.max(m, xmap[start + k]);
+                max[y] = m;
+            } else {
+                for (int k = 0; k < len; k++)
+                    max[y + k * ys] = Math.max(max[y + k * ys], xmap[start + k]);
+            }
+            y = nextBlock(X, ysteps, digits, y);
+        }
+        // second pass: sum scaled values in linear space
+        y = 0;
+        for (int start = 0; start < xmap.length; start += len) {
+            if (ys == 0) {
+                double m = max[y];
+                if (m != LOG0) {
+                    double s = 0;
+                    for (int k = 0; k < len; k++)
+                        s += Math.exp(xmap[start + k] - m);
+                    sum[y] += s;
+                }
+            } else {
+                for (int k = 0; k < len; k++) {
+                    double m = max[y + k * ys];
+                    if (m != LOG0)
+                        sum[y + k * ys] += Math.exp(xmap[start + k] - m);
+                }
+            }
+            y = nextBlock(X, ysteps, digits, y);
+        }
+        for (int i = 0; i < max.length; i++)
+            max[i] = max[i] == LOG0 ? LOG0 : max[i] + Math.log(sum[i]);
+        return max;
+    }
+
+    /**
+     * Advance to the next block of a table, as an odometer over all but its last variable.
+     * @param X table
+     * @param steps step in the other table of each variable in X
+     * @param digits current index of each variable in X, updated
+     * @param index current index in the other table
+     * @return index in the other table of the next block
+     */
+    private static int nextBlock(AbstractFactor X, int[] steps, int[] digits, int index) {
+        for (int i = X.nEVars - 2; i >= 0; i--) {
+            index += steps[i];
+            if (++digits[i] < X.domsize[i])
+                return index;
+            index -= steps[i] * digits[i];
+            digits[i] = 0;
+        }
+        return index;
+    }
+
+    /**
+     * Convert a factor to linear space, if it is dense with only enumerable variables, values set and without tracing.
+     * Products and margins of converted factors use {@link ScaledFactor} and avoid per-entry exponentiation and logarithms.
+     * Conversion is worthwhile when a factor will take part in sum-products, e.g. as made by a node for variable
+     * elimination; max-outs with tracing of assignments still require factors in log space.
+     * @param f factor
+     * @return a scaled copy of the factor, or the factor itself if it is already scaled or does not qualify
+     */
+    public static AbstractFactor getScaled(AbstractFactor f) {
+        if (!USE_KERNELS || !USE_SCALED || f.getFactorType() != AbstractFactor.TYPE_DENSE)
+            return f;
+        ScaledFactor sf = getScaledOperand(f);
+        return sf == null ? f : sf;
+    }
+
+    /**
+     * Retrieve a factor in linear space, for use by the specialised product and margin of scaled factors.
+     * @param f factor
+     * @return the factor if scaled, a scaled copy if it is a dense factor, or null if it does not qualify
+     */
+    private static ScaledFactor getScaledOperand(AbstractFactor f) {
+        if (!USE_KERNELS || f.nNVars > 0 || f.isTraced() || !f.isSet())
+            return null;
+        if (f.getFactorType() == AbstractFactor.TYPE_SCALED)
+            return (ScaledFactor) f;
+        if (f.getFactorType() != AbstractFactor.TYPE_DENSE)
+            return null;
+        ScaledFactor sf = f.nEVars == 0 ? new ScaledFactor() : new ScaledFactor(f.evars);
+        AbstractFactor.FactorMap map = ((DenseFactor) f).map;
+        if (map.isAtomic())
+            sf.setLogValue(map.get());
+        else
+            sf.setLogValues(map.getMap());
+        return sf;
+    }
+
+    /**
+     * Factor product of tables in linear space; values are multiplied, and scales are added.
+     * @param X one table
+     * @param Y other table
+     * @return the product, in linear space
+     */
+    private static ScaledFactor getScaledProduct(ScaledFactor X, ScaledFactor Y) {
+        double[] xvals = X.getScaledValues();
+        double[] yvals = Y.getScaledValues();
+        double logscale = X.getLogScale() + Y.getLogScale();
+        ScaledFactor dt;
+        double[] vals;
+        if (X.nEVars == 0 && Y.nEVars == 0) {
+            dt = new ScaledFactor();
+            vals = new double[] {xvals[0] * yvals[0]};
+        } else if (X.nEVars == 0 || Y.nEVars == 0) {
+            ScaledFactor table = X.nEVars == 0 ? Y : X;
+            double scalar = X.nEVars == 0 ? xvals[0] : yvals[0];
+            double[] tvals = table.getScaledValues();
+            dt = new ScaledFactor(table.evars);
+            vals = new double[tvals.length];
+            for (int i = 0; i < vals.length; i++)
+                vals[i] = tvals[i] * scalar;
+        } else {
+            dt = new ScaledFactor(getConcat(X.evars, Y.evars));
+            vals = getScaledProductKernel(dt, X, xvals, Y, yvals);
+        }
+        dt.setScaledValues(vals, logscale);
+        return dt;
+    }
+
+    /**
+     * Sum-out variables from a table in linear space; values are added, and the scale is kept.
+     * @param X table
+     * @param evars enumerable variables to sum-out
+     * @return the margin, in linear space
+     */
+    private static ScaledFactor getScaledMargin(ScaledFactor X, EnumVariable[] evars) {
+        EnumVariable[] yvars = getDifference(X.evars, evars);
+        ScaledFactor Y = yvars.length == 0 ? new ScaledFactor() : new ScaledFactor(yvars);
+        double[] xvals = X.getScaledValues();
+        int n = X.nEVars;
+        int[] ysteps = Y.nEVars == 0 ? new int[n] : getSteps(X.evars, Y);
+        double[] sum = new double[Y.getSize()];
+        int len = X.domsize[n - 1];
+        int ys = ysteps[n - 1];
+        int[] digits = new int[n];
+        int y = 0;
+        for (int start = 0; start < xvals.length; start += len) {
+            if (ys == 0) {
+                double s = 0;
+                for (int k = 0; k < len; k++)
+                    s += xvals[start + k];
+                sum[y] += s;
+            } else {
+                for (int k = 0; k < len; k++)
+                    sum[y + k * ys] += xvals[start + k];
+            }
+            y = nextBlock(X, ysteps, digits, y);
+        }
+        Y.setScaledValues(sum, X.getLogScale());
+        return Y;
+    }
+
+    /**
+     * Factor product of tables in linear space, computed by striding over their values as in
+     * {@link Factorize#getProductKernel(AbstractFactor, AbstractFactor, double[], AbstractFactor, double[])}.
+     * @param dt product table, with the union of enumerable variables of X and Y
+     * @param X one table
+     * @param xvals values of X
+     * @param Y other table
+     * @param yvals values of Y
+     * @return values of the product, indexed as dt
+     */
+    private static double[] getScaledProductKernel(AbstractFactor dt, AbstractFactor X, double[] xvals, AbstractFactor Y, double[] yvals) {
+        int n = dt.nEVars;
+        int[] xsteps = getSteps(dt.evars, X);
+        int[] ysteps = getSteps(dt.evars, Y);
+        double[] vals = new double[dt.getSize()];
+        int len = dt.domsize[n - 1];
+        int xs = xsteps[n - 1];
+        int ys = ysteps[n - 1];
+        int[] digits = new int[n];
+        int x = 0, y = 0;
+        for (int start = 0; start < vals.length; start += len) {
+            if (xs == 1 && ys == 1) {
+                for (int k = 0; k < len; k++)
+                    vals[start + k] = xvals[x + k] * yvals[y + k];
+            } else if (xs == 0) {
+                double xval = xvals[x];
+                for (int k = 0; k < len; k++)
+                    vals[start + k] = xval * yvals[y + k * ys];
+            } else if (ys == 0) {
+                double yval = yvals[y];
+                for (int k = 0; k < len; k++)
+                    vals[start + k] = xvals[x + k * xs] * yval;
+            } else {
+                for (int k = 0; k < len; k++)
+                    vals[start + k] = xvals[x + k * xs] * yvals[y + k * ys];
+            }
+            for (int i = n - 2; i >= 0; i--) {
+                x += xsteps[i];
+                y += ysteps[i];
+                if (++digits[i] < dt.domsize[i])
+                    break;
+                x -= xsteps[i] * digits[i];
+                y -= ysteps[i] * digits[i];
+                digits[i] = 0;
+            }
+        }
+        return vals;
+    }
+
     /**
      * Determine log(x + y) from log(x) and log(y).
      * While this method does perform exponentiation, it does so by minimising risk of underflow.
@@ -1227,21 +1553,31 @@ public class Factorize {
         }
         // if X is ok, get rid of non-enumerables
         EnumVariable[] evars = getEnumVars(uniqueVars); // this is the set of enumerables that we need to sum-out
+        if (X.getFactorType() == AbstractFactor.TYPE_SCALED) {
+            ScaledFactor sx = getScaledOperand(X);
+            if (sx != null)
+                return getScaledMargin(sx, evars);
+        }
         // construct new table
         AbstractFactor Y = CACHED_PRODUCT ? CachedFactor.getMargin((CachedFactor) X, evars) : customFactor(X, getDifference(getConcat(X.evars, X.nvars), evars));
-        if (Y.getSize() == 1) {
+        double[] xmap = getKernelMap(X);
+        if (xmap != null && !Y.isSet()) {
+            // dense table with only enumerable variables, without tracing, has a specialised margin
+            double[] map = getMarginKernel(X, xmap, Y);
+            if (Y.getSize() == 1)
+                Y.setLogValue(map[0]);
+            else
+                Y.setLogValues(map);
+        } else if (Y.getSize() == 1) {
             // we are creating a factor with no enumerable variables)
-            double logsum = 1; // cumulative in log space
+            double logsum = LOG0; // cumulative in log space
             JDF first = null;
             JDF subsequent = null;
             JDF mixture = null;
             double prev_weight = 0;
             for (int x = 0; x < X.getSize(); x++) {
                 double xval = X.getLogValue(x);
-                if (logsum > 0)
-                    logsum = xval;
-                else
-                    logsum = logSumOfLogs(logsum, xval); // <=== Factor addition in log space
+                logsum = logSumOfLogs(logsum, xval); // <=== Factor addition in log space
             }
             Y.setLogValue(logsum);  // <=== still in log space
             if (X.isJDF()) {
@@ -1291,7 +1627,7 @@ public class Factorize {
                     for (int i = 0; i < ykey.length; i++) {
                         xkey_search[ycross2x[i]] = ykey[i];
                     }
-                    double logsum = 1; // cumulative in log space
+                    double logsum = LOG0; // cumulative in log space
                     int[] indices = X.getIndices(xkey_search);
                     JDF first = null;
                     JDF subsequent = null;
@@ -1299,10 +1635,7 @@ public class Factorize {
                     double prev_weight = 0;
                     for (int x : indices) {
                         double xval = X.getLogValue(x);
-                        if (logsum > 0)
-                            logsum = xval;
-                        else
-                            logsum = logSumOfLogs(logsum, xval); // <=== Factor addition in log space
+                        logsum = logSumOfLogs(logsum, xval); // <=== Factor addition in log space
                     }
                     map[y] = logsum;
                     // Y.setLogValue(y, logsum);
@@ -1661,6 +1994,21 @@ public class Factorize {
      * @return a normalised copy of the provided factor
      */
     public static AbstractFactor getNormal(AbstractFactor X) {
+        if (X.getFactorType() == AbstractFactor.TYPE_SCALED && X.hasEnumVars() && getScaledOperand(X) != null) {
+            // normalise in linear space, so that the scale is 1 and values can be read without exponentiation
+            double[] xvals = ((ScaledFactor) X).getScaledValues();
+            double sum = 0;
+            for (double xval : xvals)
+                sum += xval;
+            if (sum == 0)
+                System.err.println("getNormal fails");
+            double[] map = new double[xvals.length];
+            for (int i = 0; i < map.length; i++)
+                map[i] = xvals[i] / sum;
+            ScaledFactor Y = new ScaledFactor(X.evars);
+            Y.setScaledValues(map, 0);
+            return Y;
+        }
         AbstractFactor Y = new DenseFactor(getConcat(X.evars, X.nvars));
         if (X.isTraced())
             Y.setTraced(true);
@@ -1779,7 +2127,7 @@ public class Factorize {
         void setFactor(AbstractFactor f) {
             this.f = f;
         }
-        AbstractFactor getFactor() {
+        public AbstractFactor getFactor() {
             return f;
         }
     }
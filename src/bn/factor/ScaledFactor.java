@@ -0,0 +1,204 @@
+/*
+    bnkit -- software for building and using Bayesian networks
+    Copyright (C) 2014  M. Boden et al.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package bn.factor;
+
+import dat.EnumVariable;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Dense table that stores factor values in linear space, with a common scale kept as a logarithm.
+ * The log value of an entry is log(value) + logscale.
+ *
+ * Products and sums of such factors require neither exponentiation nor logarithms (see {@link Factorize}),
+ * which makes them cheaper than the log space of {@link DenseFactor}. Underflow is avoided by renormalising:
+ * when the largest value drifts outside of a safe range, all values are multiplied by a power of two
+ * (which is exact) and the scale is adjusted. A value can still underflow if it is smaller than the
+ * largest value in the same table by a factor of more than 2^1074, which a log-space table would keep.
+ *
+ * Only enumerable variables are supported, and tracing of implied assignments is not used by the
+ * specialised operations; {@link Factorize#getScaled(AbstractFactor)} converts suitable factors.
+ *
+ * @author mikael
+ */
+public class ScaledFactor extends DenseFactor {
+
+    /**
+     * Largest value is kept within 2^-MAX_EXPONENT and 2^MAX_EXPONENT, so that the product of two tables
+     * is within the range of doubles
+     */
+    protected static final int MAX_EXPONENT = 256;
+
+    protected double[] values = null; // the factor values, scaled
+    protected double logscale = 0;      // log of the scale common to all values
+
+    /**
+     * Construct a new table without any variables.
+     */
+    public ScaledFactor() {
+        super();
+        setFactorType(AbstractFactor.TYPE_SCALED);
+    }
+
+    /**
+     * Construct a new table with the specified enumerable variables, which will
+     * form keys to index the entries.
+     *
+     * @param useVariables enumerable variables, potentially unsorted and redundant
+     */
+    public ScaledFactor(EnumVariable... useVariables) {
+        super(useVariables);
+        setFactorType(AbstractFactor.TYPE_SCALED);
+    }
+
+    @Override
+    public boolean isSet() {
+        return values != null;
+    }
+
+    /**
+     * Set the values of the table, which is then renormalised if required.
+     * The array is not copied, so should not be modified by the caller.
+     * @param values the values, scaled
+     * @param logscale log of the scale of the values
+     */
+    protected void setScaledValues(double[] values, double logscale) {
+        if (values.length != getSize())
+            throw new ScaledFactorRuntimeException("Invalid number of values: " + values.length + " in factor with " + getSize() + " entries");
+        double max = 0;
+        for (double value : values)
+            max = Math.max(max, value);
+        if (max == 0 || Double.isNaN(logscale)) {
+            logscale = 0;
+        } else if (Math.getExponent(max) < -MAX_EXPONENT || Math.getExponent(max) > MAX_EXPONENT) {
+            int exponent = Math.getExponent(max);
+            for (int i = 0; i < values.length; i++)
+                values[i] = Math.scalb(values[i], -exponent);
+            logscale += exponent * Math.log(2);
+        }
+        this.values = values;
+        this.logscale = logscale;
+    }
+
+    /**
+     * @return the values of the table, scaled; should not be modified
+     */
+    protected double[] getScaledValues() {
+        return values;
+    }
+
+    /**
+     * @return log of the scale of the values
+     */
+    protected double getLogScale() {
+        return logscale;
+    }
+
+    @Override
+    public void setLogValues(double[] logmap) {
+        double max = LOG0;
+        for (double logvalue : logmap)
+            max = Math.max(max, logvalue);
+        double[] map = new double[logmap.length];
+        if (max != LOG0) {
+            for (int i = 0; i < map.length; i++)
+                map[i] = Math.exp(logmap[i] - max);
+        }
+        setScaledValues(map, max == LOG0 ? 0 : max);
+    }
+
+    @Override
+    public void setLogValue(double value) {
+        if (Double.isNaN(value))
+            throw new ScaledFactorRuntimeException("Invalid log value for atomic factor");
+        if (value == LOG0)
+            setScaledValues(new double[] {0}, 0);
+        else
+            setScaledValues(new double[] {1}, value);
+    }
+
+    @Override
+    public void setValues(double[] map) {
+        setScaledValues(map.clone(), 0);
+    }
+
+    @Override
+    public double getLogValue() {
+        if (this.getSize() == 1)
+            return values[0] == 0 ? LOG0 : Math.log(values[0]) + logscale;
+        throw new ScaledFactorRuntimeException("This table must be accessed with a enumerable variable key");
+    }
+
+    @Override
+    public double getLogValue(int index) {
+        if (index >= getSize() || index < 0 || getSize() == 1)
+            throw new ScaledFactorRuntimeException("Invalid index: " + index + " in factor with " + getSize() + " entries");
+        return values[index] == 0 ? LOG0 : Math.log(values[index]) + logscale;
+    }
+
+    @Override
+    public double getValue(int index) {
+        if (logscale == 0) {
+            if (index >= getSize() || index < 0 || getSize() == 1)
+                throw new ScaledFactorRuntimeException("Invalid index: " + index + " in factor with " + getSize() + " entries");
+            return values[index];
+        }
+        return super.getValue(index);
+    }
+
+    @Override
+    public double getLogSum() {
+        double sum = 0;
+        for (double value : values)
+            sum += value;
+        return sum == 0 ? LOG0 : Math.log(sum) + logscale;
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return new ScaledIterator();
+    }
+
+    private class ScaledIterator implements Iterator<Integer> {
+        private int index = 0;
+        @Override
+        public boolean hasNext() {
+            while (index < values.length && values[index] == 0)
+                index ++;
+            return index < values.length;
+        }
+
+        @Override
+        public Integer next() {
+            if (hasNext())
+                return index ++;
+            throw new NoSuchElementException();
+        }
+    }
+}
+
+class ScaledFactorRuntimeException extends RuntimeException {
+
+    private static final long serialVersionUID = -6465152863174383970L;
+    String message;
+
+    public ScaledFactorRuntimeException(String string) {
+        message = string;
+    }
+}
@@ -21,7 +21,9 @@ import java.util.*;
 
 /**
  * Table for storing and retrieving data of arbitrary types <E> based on
- * Enumerable keys
+ * Enumerable keys.
+ * Entries are kept in an {@link IntMap}, which is array-backed when the key
+ * space is small enough, and an open-addressing map otherwise.
  *
  * @author mikael
  * @param <E>
@@ -34,6 +36,7 @@ public class EnumTable<E> implements Iterable<Integer> {
     }
 
     protected Map<Integer, E> map;
+    protected IntMap<E> intmap; // same as map when it has primitive look-ups, else null
     public final int nParents;
     protected final List<EnumVariable> parents;
     protected final EnumVariable[] pararr;
@@ -56,6 +59,7 @@ public class EnumTable<E> implements Iterable<Integer> {
      */
     public void setMapRef(Map<Integer, E> map) {
         this.map = map;
+        this.intmap = map instanceof IntMap ? (IntMap<E>) map : null;
     }
 
     public EnumTable(EnumVariable... useParents) {
@@ -63,11 +67,10 @@ public class EnumTable<E> implements Iterable<Integer> {
     }
 
     public EnumTable(Collection<EnumVariable> useParents) {
-        this(useParents, new HashMap<Integer, E>());
+        this(useParents, null);
     }
 
     private EnumTable(Collection<EnumVariable> useParents, Map<Integer, E> map) {
-        this.map = map;
         this.parents = new ArrayList<>(useParents.size());
         this.pararr = new EnumVariable[useParents.size()];
         this.nParents = useParents.size();
@@ -86,30 +89,20 @@ public class EnumTable<E> implements Iterable<Integer> {
             prod *= this.domsize[parent];
             this.period[parent] = prod;
         }
+        long nkeys = 1;
+        for (int size : domsize)
+            nkeys *= size;
+        setMapRef(map != null ? map : IntMap.create(nkeys));
     }
 
     public static int getSize(EnumVariable... useParents) {
         return getSize(EnumVariable.toList(useParents));
     }
     public static int getSize(Collection<EnumVariable> useParents) {
-        int nParents = useParents.size();
-        EnumVariable[] pararr = new EnumVariable[nParents];
-        int[] step = new int[nParents];
-        int[] period = new int[nParents];
-        int[] domsize = new int[nParents];
         int prod = 1;
-        int i = 0;
-        for (EnumVariable var : useParents) {
-            pararr[i ++] = var;
-        }
-        for (i = 0; i < nParents; i++) {
-            int parent = nParents - i - 1;
-            domsize[parent] = pararr[parent].size();
-            step[parent] = prod;
-            prod *= domsize[parent];
-            period[parent] = prod;
-        }
-        return period[0];
+        for (EnumVariable var : useParents)
+            prod *= var.size();
+        return prod;
     }
 
     public EnumTable retrofit(List<EnumVariable> useParents) {
@@ -169,8 +162,7 @@ public class EnumTable<E> implements Iterable<Integer> {
      */
     public int setValue(Object[] key, E value) {
         int index = this.getIndex(key);
-        map.put(index, value);
-        return index;
+        return setValue(index, value);
     }
 
     /**
@@ -183,12 +175,18 @@ public class EnumTable<E> implements Iterable<Integer> {
      * @return the index at which the value was stored
      */
     public int setValue(int key_index, E value) {
-        map.put(key_index, value);
+        if (intmap != null)
+            intmap.put(key_index, value);
+        else
+            map.put(key_index, value);
         return key_index;
     }
 
     public int removeValue(int key_index) {
-        map.remove(key_index);
+        if (intmap != null)
+            intmap.remove(key_index);
+        else
+            map.remove(key_index);
         return key_index;
     }
     
@@ -266,6 +264,8 @@ public class EnumTable<E> implements Iterable<Integer> {
      * @return true if assigned, false otherwise
      */
     public boolean hasValue(int index) {
+        if (intmap != null)
+            return intmap.containsKey(index);
         return map.containsKey(index);
     }
 
@@ -276,8 +276,9 @@ public class EnumTable<E> implements Iterable<Integer> {
      * @return the value of the entry
      */
     public E getValue(int index) {
-        E value = map.get(index);
-        return value;
+        if (intmap != null)
+            return intmap.get(index);
+        return map.get(index);
     }
 
     /**
@@ -399,7 +400,7 @@ public class EnumTable<E> implements Iterable<Integer> {
         if (tot < (map.size() / 100)) {
             int[] tidxs = getTheoreticalIndices(key);
             for (int tidx : tidxs) {
-                if (map.containsKey(tidx))
+                if (hasValue(tidx))
                     indices.add(tidx);
             }
         } else {
@@ -483,6 +484,8 @@ public class EnumTable<E> implements Iterable<Integer> {
      * @return the indices
      */
     public int[] getIndices() {
+        if (intmap != null)
+            return intmap.keys();
         Set<Integer> all = map.keySet();
         int[] arr = new int[all.size()];
         int i = 0;
@@ -0,0 +1,460 @@
+/*
+    bnkit -- software for building and using Bayesian networks
+    Copyright (C) 2014  M. Boden et al.
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dat;
+
+import java.util.*;
+
+/**
+ * Map from non-negative int keys (entry indices of an {@link EnumTable}) to values, with methods that take
+ * primitive keys so that look-ups neither box nor hash integers.
+ * There are two implementations: {@link Dense} keeps values in an array indexed by key, and is suited to tables
+ * with a small key space; {@link Open} keeps keys and values in open-addressing arrays, and is suited to large,
+ * sparsely populated tables. Both also implement the {@link Map} interface so that they can replace a
+ * {@link HashMap}; as for a HashMap, the iteration order is not specified (but {@link Dense} iterates keys in
+ * ascending order).
+ *
+ * @param <E> type of values
+ */
+public abstract class IntMap<E> extends AbstractMap<Integer, E> {
+
+    /**
+     * Largest key space for which {@link IntMap#create(long)} picks a dense map
+     */
+    public static int DENSE_MAX = 1 << 12;
+
+    /**
+     * Stands in for a null value, so that an entry with a null value is distinct from no entry
+     */
+    private static final Object NULL = new Object();
+
+    protected int size = 0;
+
+    /**
+     * Create a map suited to the number of possible keys.
+     * @param nkeys number of possible keys, 0 to nkeys - 1
+     * @return a dense map if the key space is small enough, else an open-addressing map
+     */
+    public static <E> IntMap<E> create(long nkeys) {
+        if (nkeys <= DENSE_MAX)
+            return new Dense<>((int) nkeys);
+        return new Open<>();
+    }
+
+    public abstract E get(int key);
+    public abstract boolean containsKey(int key);
+    public abstract E put(int key, E value);
+    public abstract E remove(int key);
+
+    /**
+     * @return the keys of all entries, in order of iteration
+     */
+    public abstract int[] keys();
+
+    /**
+     * @return the slot in which the first entry at or after the specified slot is kept, or -1 if there is none
+     */
+    protected abstract int nextSlot(int slot);
+    protected abstract int getKeyAt(int slot);
+    protected abstract Object getAt(int slot);
+    protected abstract void setAt(int slot, Object value);
+    protected abstract void removeAt(int slot);
+
+    @SuppressWarnings("unchecked")
+    protected static <E> E unmask(Object value) {
+        return value == NULL ? null : (E) value;
+    }
+
+    protected static Object mask(Object value) {
+        return value == null ? NULL : value;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public E get(Object key) {
+        return key instanceof Integer ? get(((Integer) key).intValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Integer && containsKey(((Integer) key).intValue());
+    }
+
+    @Override
+    public E put(Integer key, E value) {
+        return put(key.intValue(), value);
+    }
+
+    @Override
+    public E remove(Object key) {
+        return key instanceof Integer ? remove(((Integer) key).intValue()) : null;
+    }
+
+    private class Entry implements Map.Entry<Integer, E> {
+        final int slot;
+        final int key; // kept so that the entry remains valid if removed
+        Entry(int slot) {
+            this.slot = slot;
+            this.key = getKeyAt(slot);
+        }
+        @Override
+        public Integer getKey() {
+            return key;
+        }
+        @Override
+        public E getValue() {
+            return unmask(getAt(slot));
+        }
+        @Override
+        public E setValue(E value) {
+            E prev = unmask(getAt(slot));
+            setAt(slot, mask(value));
+            return prev;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return getKey().equals(e.getKey()) && Objects.equals(getValue(), e.getValue());
+        }
+        @Override
+        public int hashCode() {
+            return key ^ Objects.hashCode(getValue());
+        }
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+
+    private final Set<Map.Entry<Integer, E>> entries = new AbstractSet<>() {
+        @Override
+        public Iterator<Map.Entry<Integer, E>> iterator() {
+            return new Iterator<>() {
+                int next = nextSlot(0);
+                int last = -1;
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+                @Override
+                public Map.Entry<Integer, E> next() {
+                    if (next < 0)
+                        throw new NoSuchElementException();
+                    last = next;
+                    next = nextSlot(next + 1);
+                    return new Entry(last);
+                }
+                @Override
+                public void remove() {
+                    if (last < 0)
+                        throw new IllegalStateException();
+                    removeAt(last);
+                    last = -1;
+                }
+            };
+        }
+        @Override
+        public int size() {
+            return size;
+        }
+        @Override
+        public void clear() {
+            IntMap.this.clear();
+        }
+    };
+
+    @Override
+    public Set<Map.Entry<Integer, E>> entrySet() {
+        return entries;
+    }
+
+    /**
+     * Values kept in an array indexed by key. The array is allocated when the first value is put.
+     */
+    public static class Dense<E> extends IntMap<E> {
+        private final int capacity;
+        private Object[] values = null;
+
+        /**
+         * @param capacity number of possible keys, 0 to capacity - 1
+         */
+        public Dense(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public E get(int key) {
+            if (values == null || key < 0 || key >= capacity)
+                return null;
+            return unmask(values[key]);
+        }
+
+        @Override
+        public boolean containsKey(int key) {
+            return values != null && key >= 0 && key < capacity && values[key] != null;
+        }
+
+        @Override
+        public E put(int key, E value) {
+            if (key < 0 || key >= capacity)
+                throw new IndexOutOfBoundsException("Key " + key + " is outside of 0-" + (capacity - 1));
+            if (values == null)
+                values = new Object[capacity];
+            Object prev = values[key];
+            if (prev == null)
+                size ++;
+            values[key] = mask(value);
+            return unmask(prev);
+        }
+
+        @Override
+        public E remove(int key) {
+            if (!containsKey(key))
+                return null;
+            Object prev = values[key];
+            values[key] = null;
+            size --;
+            return unmask(prev);
+        }
+
+        @Override
+        public void clear() {
+            if (values != null && size > 0)
+                Arrays.fill(values, null);
+            size = 0;
+        }
+
+        @Override
+        public int[] keys() {
+            int[] keys = new int[size];
+            for (int key = 0, i = 0; i < size; key ++) {
+                if (values[key] != null)
+                    keys[i ++] = key;
+            }
+            return keys;
+        }
+
+        @Override
+        protected int nextSlot(int slot) {
+            if (values == null || size == 0)
+                return -1;
+            for (int key = slot; key < capacity; key ++) {
+                if (values[key] != null)
+                    return key;
+            }
+            return -1;
+        }
+
+        @Override
+        protected int getKeyAt(int slot) {
+            return slot;
+        }
+
+        @Override
+        protected Object getAt(int slot) {
+            return values[slot];
+        }
+
+        @Override
+        protected void setAt(int slot, Object value) {
+            values[slot] = value;
+        }
+
+        @Override
+        protected void removeAt(int slot) {
+            remove(slot);
+        }
+    }
+
+    /**
+     * Keys and values kept in arrays, using open addressing with linear probing. Removed entries leave a marker
+     * so that entries can be removed while iterating; markers are cleared when the arrays are resized.
+     */
+    public static class Open<E> extends IntMap<E> {
+        private static final int FREE = -1;
+        private static final int REMOVED = -2;
+        private int[] keys;
+        private Object[] values;
+        private int used = 0; // slots that are not free, i.e. entries and removed markers
+        private int mask;
+        private int shift;
+
+        public Open() {
+            this(16);
+        }
+
+        /**
+         * @param expected number of entries expected
+         */
+        public Open(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new int[capacity];
+            Arrays.fill(keys, FREE);
+            values = new Object[capacity];
+            mask = capacity - 1;
+            shift = Integer.numberOfLeadingZeros(capacity) + 1; // 32 - log2(capacity)
+            used = size;
+        }
+
+        private int hash(int key) {
+            return (key * 0x9E3779B9) >>> shift; // Fibonacci hashing spreads keys that are multiples of a step
+        }
+
+        private int find(int key) {
+            for (int slot = hash(key); ; slot = (slot + 1) & mask) {
+                int k = keys[slot];
+                if (k == key)
+                    return slot;
+                if (k == FREE)
+                    return -1;
+            }
+        }
+
+        @Override
+        public E get(int key) {
+            if (key < 0)
+                return null;
+            int slot = find(key);
+            return slot < 0 ? null : unmask(values[slot]);
+        }
+
+        @Override
+        public boolean containsKey(int key) {
+            return key >= 0 && find(key) >= 0;
+        }
+
+        @Override
+        public E put(int key, E value) {
+            if (key < 0)
+                throw new IllegalArgumentException("Key " + key + " is negative");
+            int removed = -1;
+            int slot = hash(key);
+            for (; ; slot = (slot + 1) & mask) {
+                int k = keys[slot];
+                if (k == key) {
+                    Object prev = values[slot];
+                    values[slot] = mask(value);
+                    return unmask(prev);
+                }
+                if (k == FREE)
+                    break;
+                if (k == REMOVED && removed < 0)
+                    removed = slot;
+            }
+            if (removed >= 0) {
+                slot = removed; // re-use the slot of a removed entry
+            } else {
+                used ++;
+            }
+            keys[slot] = key;
+            values[slot] = mask(value);
+            size ++;
+            if (used * 4 > keys.length * 3) // load including removed markers exceeds 3/4
+                rehash(size * 4 > keys.length ? keys.length << 1 : keys.length);
+            return null;
+        }
+
+        private void rehash(int capacity) {
+            int[] oldkeys = keys;
+            Object[] oldvalues = values;
+            allocate(capacity);
+            for (int i = 0; i < oldkeys.length; i ++) {
+                int key = oldkeys[i];
+                if (key >= 0) {
+                    int slot = hash(key);
+                    while (keys[slot] != FREE)
+                        slot = (slot + 1) & mask;
+                    keys[slot] = key;
+                    values[slot] = oldvalues[i];
+                }
+            }
+        }
+
+        @Override
+        public E remove(int key) {
+            if (key < 0)
+                return null;
+            int slot = find(key);
+            if (slot < 0)
+                return null;
+            Object prev = values[slot];
+            removeAt(slot);
+            return unmask(prev);
+        }
+
+        @Override
+        public void clear() {
+            if (size > 0 || used > 0) {
+                Arrays.fill(keys, FREE);
+                Arrays.fill(values, null);
+            }
+            size = 0;
+            used = 0;
+        }
+
+        @Override
+        public int[] keys() {
+            int[] ret = new int[size];
+            for (int slot = 0, i = 0; i < size; slot ++) {
+                if (keys[slot] >= 0)
+                    ret[i ++] = keys[slot];
+            }
+            return ret;
+        }
+
+        @Override
+        protected int nextSlot(int slot) {
+            for (; slot < keys.length; slot ++) {
+                if (keys[slot] >= 0)
+                    return slot;
+            }
+            return -1;
+        }
+
+        @Override
+        protected int getKeyAt(int slot) {
+            return keys[slot];
+        }
+
+        @Override
+        protected Object getAt(int slot) {
+            return values[slot];
+        }
+
+        @Override
+        protected void setAt(int slot, Object value) {
+            values[slot] = value;
+        }
+
+        @Override
+        protected void removeAt(int slot) {
+            keys[slot] = REMOVED;
+            values[slot] = null;
+            size --;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package dat.file;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Binary, indexed container of blocks, each identified by a type and a name, e.g. the tree and each POG of a reconstruction.
+ * The blocks are written one after the other, followed by an index (footer) with the position and length of each block,
+ * so that any one block can be located without reading the others.
+ * The file is memory-mapped when read; on construction, only the index is read, and a block is read when requested.
+ *
+ * Layout: magic number and version, then the blocks, then the index (number of blocks; for each, its type, name, position and length),
+ * and finally the position of the index and the magic number again.
+ *
+ * @author mikael
+ */
+public class BlockFile {
+
+    private static final int MAGIC = 0x47524250; // "GRBP"
+    private static final int VERSION = 1;
+
+    private static final int SEGMENT_BITS = 30; // files are mapped in segments of 1 GB
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final MappedByteBuffer[] segments;
+    private final Map<String, Map<String, long[]>> index = new LinkedHashMap<>(); // type -> name -> {position, length}
+
+    /**
+     * Open a block file, and read its index
+     * @param filename name of file
+     * @throws IOException if the file cannot be read, or is not a block file
+     */
+    public BlockFile(String filename) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < 20)
+                throw new IOException("Invalid block file: " + filename);
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i ++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << SEGMENT_BITS, size - start));
+            }
+            DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(read(size - 12, 12)));
+            long footer = trailer.readLong();
+            if (trailer.readInt() != MAGIC || readInt(0) != MAGIC || footer < 8 || footer > size - 12)
+                throw new IOException("Invalid block file: " + filename);
+            if (readInt(4) != VERSION)
+                throw new IOException("Unsupported version of block file: " + filename);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(footer, (int) (size - 12 - footer))));
+            int nblocks = in.readInt();
+            for (int i = 0; i < nblocks; i ++) {
+                String type = in.readUTF();
+                String name = in.readUTF();
+                long position = in.readLong();
+                int length = in.readInt();
+                index.computeIfAbsent(type, k -> new LinkedHashMap<>()).put(name, new long[] {position, length});
+            }
+        }
+    }
+
+    /**
+     * Check if a file is a block file, by its magic number
+     * @param filename name of file
+     * @return true if the file starts with the magic number of block files, else false
+     */
+    public static boolean isBlockFile(String filename) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private byte[] read(long position, int length) {
+        byte[] bytes = new byte[length];
+        int done = 0;
+        while (done < length) {
+            long pos = position + done;
+            MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)];
+            int offset = (int) (pos & SEGMENT_MASK);
+            int n = Math.min(length - done, segment.limit() - offset);
+            segment.get(offset, bytes, done, n);
+            done += n;
+        }
+        return bytes;
+    }
+
+    private int readInt(long position) {
+        byte[] b = read(position, 4);
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+
+    /**
+     * Retrieve the names of all blocks of a type, in the order they were written
+     * @param type block type
+     * @return the names, which is an empty list if there are no blocks of the type
+     */
+    public List<String> getNames(String type) {
+        Map<String, long[]> blocks = index.get(type);
+        return blocks == null ? Collections.emptyList() : new ArrayList<>(blocks.keySet());
+    }
+
+    public boolean contains(String type, String name) {
+        Map<String, long[]> blocks = index.get(type);
+        return blocks != null && blocks.containsKey(name);
+    }
+
+    /**
+     * Read a block
+     * @param type block type
+     * @param name block name
+     * @return the content of the block, or null if there is no such block
+     */
+    public byte[] get(String type, String name) {
+        Map<String, long[]> blocks = index.get(type);
+        long[] entry = blocks == null ? null : blocks.get(name);
+        return entry == null ? null : read(entry[0], (int) entry[1]);
+    }
+
+    /**
+     * Read a block as text (UTF-8)
+     * @param type block type
+     * @param name block name
+     * @return the content of the block, or null if there is no such block
+     */
+    public String getText(String type, String name) {
+        byte[] bytes = get(type, name);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writer of block files; blocks are written as they are added, and the index when the writer is closed.
+     */
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private final List<Object[]> entries = new ArrayList<>(); // type, name, position, length
+        private final Set<String> keys = new HashSet<>();
+        private long position = 8;      // after magic number and version; tracked here since the stream counts with an int
+
+        public Writer(String filename) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        /**
+         * Write a block
+         * @param type block type
+         * @param name block name, unique for the type
+         * @param bytes content of the block
+         * @throws IOException if the block cannot be written
+         */
+        public void add(String type, String name, byte[] bytes) throws IOException {
+            if (!keys.add(type + "\t" + name))
+                throw new IOException("Duplicate block " + type + " " + name);
+            entries.add(new Object[] {type, name, position, bytes.length});
+            out.write(bytes);
+            position += bytes.length;
+        }
+
+        /**
+         * Write a block of text (UTF-8)
+         * @param type block type
+         * @param name block name, unique for the type
+         * @param text content of the block
+         * @throws IOException if the block cannot be written
+         */
+        public void add(String type, String name, String text) throws IOException {
+            add(type, name, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void close() throws IOException {
+            long footer = position;
+            out.writeInt(entries.size());
+            for (Object[] entry : entries) {
+                out.writeUTF((String) entry[0]);
+                out.writeUTF((String) entry[1]);
+                out.writeLong((Long) entry[2]);
+                out.writeInt((Integer) entry[3]);
+            }
+            out.writeLong(footer);
+            out.writeInt(MAGIC);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package dat.file;
+
+import dat.EnumSeq;
+import dat.Enumerable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Reader of alignments on the FASTA or Clustal format, intended for files with very many sequences.
+ * The file is memory-mapped; on construction, the records are indexed (the positions in the file where the
+ * residues of each sequence are found) but not decoded, so the memory used is proportional to the number of
+ * sequences, not to the size of the alignment.
+ * Residues can then be decoded either into a packed, column-major {@link Matrix} with one byte per residue,
+ * or one sequence at a time by {@link #iterator()}, without retaining sequences that have been processed.
+ *
+ * Sequences are read as by {@link FastaReader} and {@link AlnReader}; the alphabet must have at most 127 values,
+ * which must be characters.
+ *
+ * @author mikael
+ */
+public class MappedAlnReader implements Iterable<EnumSeq.Gappy<Enumerable>> {
+
+    /** Index of gap in a {@link Matrix} */
+    public static final byte GAP = -1;
+    private static final byte INVALID = -2;
+
+    private static final int SEGMENT_BITS = 30; // files are mapped in segments of 1 GB
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final File file;
+    private final Enumerable alpha;
+    private final Utils.Format format;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+    private final byte[] codes = new byte[256]; // index in alphabet of each byte, or GAP or INVALID
+    private final List<Record> records = new ArrayList<>();
+    private final int width;
+
+    /**
+     * Where to find a sequence in the file: a name, and positions of the residues.
+     * Residues of a FASTA record are in one range, which includes line breaks; those of a Clustal record are in one
+     * range for each block, without white space.
+     */
+    private static class Record {
+        final String name;
+        final String info;
+        long[] starts = new long[1];
+        long[] ends = new long[1];
+        int nranges = 0;
+        int length = 0;
+        Record(String name, String info) {
+            this.name = name;
+            this.info = info;
+        }
+        void add(long start, long end, int length) {
+            if (nranges == starts.length) {
+                starts = Arrays.copyOf(starts, nranges * 2);
+                ends = Arrays.copyOf(ends, nranges * 2);
+            }
+            starts[nranges] = start;
+            ends[nranges] = end;
+            nranges ++;
+            this.length += length;
+        }
+    }
+
+    /**
+     * Map and index an alignment file on the FASTA or Clustal format, using '-' for gaps
+     * @param filename name of file
+     * @param alpha alphabet of sequences
+     * @throws IOException if the file cannot be read, or is of another format
+     */
+    public MappedAlnReader(String filename, Enumerable alpha) throws IOException {
+        this(new File(filename), alpha, '-');
+    }
+
+    /**
+     * Map and index an alignment file on the FASTA or Clustal format
+     * @param file the file
+     * @param alpha alphabet of sequences
+     * @param gapSymbol the symbol used for gaps
+     * @throws IOException if the file cannot be read, or is of another format
+     */
+    public MappedAlnReader(File file, Enumerable alpha, char gapSymbol) throws IOException {
+        this.file = file;
+        this.alpha = alpha;
+        if (alpha.size() > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("Alphabet has too many values to be packed: " + alpha.size());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i ++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << SEGMENT_BITS, size - start));
+            }
+        } // the mapping remains valid after the channel is closed
+        long pos = skipBlank(0);
+        if (startsWith(pos, ">"))
+            format = Utils.Format.FASTA;
+        else if (startsWith(pos, "CLUSTAL"))
+            format = Utils.Format.CLUSTAL;
+        else
+            throw new IOException("Not a FASTA or Clustal file: \"" + file.getAbsolutePath() + "\"");
+        Arrays.fill(codes, INVALID);
+        for (int b = 0; b < 256; b ++) {
+            char ch = format == Utils.Format.FASTA ? Character.toUpperCase((char) b) : (char) b; // FASTA allows lower case
+            for (int k = 0; k < alpha.size(); k ++) {
+                if (alpha.get(k) instanceof Character && (Character) alpha.get(k) == ch) {
+                    codes[b] = (byte) k;
+                    break;
+                }
+            }
+        }
+        if (gapSymbol < 256)
+            codes[gapSymbol] = GAP;
+        if (format == Utils.Format.FASTA)
+            indexFasta();
+        else
+            indexClustal();
+        int w = -1;
+        for (Record record : records) {
+            if (w < 0)
+                w = record.length;
+            else if (w != record.length)
+                throw new RuntimeException("Invalid alignment with sequences of different lengths.");
+        }
+        width = Math.max(0, w);
+    }
+
+    private byte at(long pos) {
+        return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & SEGMENT_MASK));
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private long skipBlank(long pos) {
+        while (pos < size && isSpace(at(pos)))
+            pos ++;
+        return pos;
+    }
+
+    private long endOfLine(long pos) {
+        while (pos < size && at(pos) != '\n')
+            pos ++;
+        return pos;
+    }
+
+    private boolean startsWith(long pos, String prefix) {
+        if (pos + prefix.length() > size)
+            return false;
+        for (int i = 0; i < prefix.length(); i ++)
+            if (at(pos + i) != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    private String getString(long start, long end) {
+        byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i ++)
+            bytes[i] = at(start + i);
+        return new String(bytes).trim();
+    }
+
+    /**
+     * First pass over a FASTA file: find the header of each record, and count its residues.
+     */
+    private void indexFasta() {
+        Record record = null;
+        long start = 0;
+        int length = 0;
+        for (long pos = 0; pos < size; ) {
+            long eol = endOfLine(pos);
+            long first = pos;
+            while (first < eol && isSpace(at(first)))
+                first ++;
+            if (first < eol && at(first) == '>') {
+                if (record != null)
+                    record.add(start, pos, length);
+                String info = getString(first, eol);
+                StringTokenizer tok = new StringTokenizer(info, " \t,;");
+                record = new Record(tok.nextToken().substring(1), info);
+                records.add(record);
+                start = eol;
+                length = 0;
+            } else if (record != null) {
+                for (long p = first; p < eol; p ++)
+                    if (!isSpace(at(p)))
+                        length ++;
+            }
+            pos = eol + 1;
+        }
+        if (record != null)
+            record.add(start, size, length);
+    }
+
+    /**
+     * First pass over a Clustal file: find the name of each sequence in the first block, and the residues of each
+     * sequence in every block. As for {@link AlnReader}, the longest token on a line is the alignment, preceded by
+     * the name; a line in a later block belongs to the sequence on the same row of the first block.
+     */
+    private void indexClustal() {
+        long pos = endOfLine(skipBlank(0)) + 1; // skip title
+        int block = -1;
+        int row = 0;
+        boolean blank = true;
+        List<long[]> tokens = new ArrayList<>();
+        for (; pos < size; ) {
+            long eol = endOfLine(pos);
+            long first = pos;
+            while (first < eol && isSpace(at(first)))
+                first ++;
+            if (first >= eol) {
+                blank = true;
+                pos = eol + 1;
+                continue;
+            }
+            if (blank) {
+                block ++;
+                row = 0;
+                blank = false;
+            } else {
+                row ++;
+            }
+            byte b = at(first);
+            if (Character.isLetterOrDigit((char) (b & 0xFF))) {
+                tokens.clear();
+                for (long p = first; p < eol; ) {
+                    while (p < eol && isSpace(at(p)))
+                        p ++;
+                    long tstart = p;
+                    while (p < eol && !isSpace(at(p)))
+                        p ++;
+                    if (p > tstart)
+                        tokens.add(new long[] {tstart, p});
+                }
+                if (tokens.size() > 1) {
+                    int longest = 1;
+                    for (int i = 2; i < tokens.size(); i ++)
+                        if (tokens.get(i)[1] - tokens.get(i)[0] >= tokens.get(longest)[1] - tokens.get(longest)[0])
+                            longest = i;
+                    long[] aln = tokens.get(longest);
+                    Record record;
+                    if (block == 0) {
+                        String name = getString(tokens.get(0)[0], tokens.get(longest - 1)[1]).replaceAll("[ \t]+", " ");
+                        int idx = name.indexOf("/");
+                        if (idx > 0)
+                            name = name.substring(0, idx);
+                        record = new Record(name, null);
+                        records.add(record);
+                    } else if (row < records.size()) {
+                        record = records.get(row);
+                    } else {
+                        throw new RuntimeException("Invalid identifier \"" + getString(tokens.get(0)[0], tokens.get(0)[1]) + "\" in block " + (block + 1) + " of \"" + file.getAbsolutePath() + "\"");
+                    }
+                    record.add(aln[0], aln[1], (int) (aln[1] - aln[0]));
+                }
+            }
+            pos = eol + 1;
+        }
+    }
+
+    /**
+     * @return the format of the file, either FASTA or CLUSTAL
+     */
+    public Utils.Format getFormat() {
+        return format;
+    }
+
+    public Enumerable getDomain() {
+        return alpha;
+    }
+
+    /**
+     * @return the number of sequences
+     */
+    public int getHeight() {
+        return records.size();
+    }
+
+    /**
+     * @return the number of columns
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public String[] getNames() {
+        String[] names = new String[records.size()];
+        for (int i = 0; i < names.length; i ++)
+            names[i] = records.get(i).name;
+        return names;
+    }
+
+    /**
+     * Decode the residues of a sequence, calling back with each index in the alphabet (or GAP)
+     */
+    private interface Decoder {
+        void set(int col, byte index);
+    }
+
+    private void decode(int row, Decoder decoder) {
+        Record record = records.get(row);
+        int col = 0;
+        for (int r = 0; r < record.nranges; r ++) {
+            for (long p = record.starts[r]; p < record.ends[r]; p ++) {
+                byte b = at(p);
+                if (isSpace(b))
+                    continue;
+                byte index = codes[b & 0xFF];
+                if (index == INVALID)
+                    throw new RuntimeException("Sequence \"" + record.name + "\" is using an invalid symbol. Unrecognised symbol: " + (char) (b & 0xFF) + " at index " + col);
+                decoder.set(col ++, index);
+            }
+        }
+    }
+
+    /**
+     * Decode a sequence.
+     * @param row index of sequence
+     * @return the sequence
+     */
+    public EnumSeq.Gappy<Enumerable> getEnumSeq(int row) {
+        Object[] syms = new Object[records.get(row).length];
+        decode(row, (col, index) -> syms[col] = index == GAP ? null : alpha.get(index));
+        EnumSeq.Gappy<Enumerable> seq = new EnumSeq.Gappy<>(alpha);
+        seq.set(syms);
+        seq.setName(records.get(row).name);
+        if (records.get(row).info != null)
+            seq.setInfo(records.get(row).info);
+        return seq;
+    }
+
+    /**
+     * Iterate through sequences, decoding each when it is reached; sequences are not retained by the reader.
+     * @return iterator of sequences, in the order of the file
+     */
+    @Override
+    public Iterator<EnumSeq.Gappy<Enumerable>> iterator() {
+        return new Iterator<>() {
+            int row = 0;
+            @Override
+            public boolean hasNext() {
+                return row < records.size();
+            }
+            @Override
+            public EnumSeq.Gappy<Enumerable> next() {
+                if (row >= records.size())
+                    throw new NoSuchElementException();
+                return getEnumSeq(row ++);
+            }
+        };
+    }
+
+    /**
+     * Decode all sequences into a packed matrix.
+     * @return the alignment, with one byte per residue
+     */
+    public Matrix getMatrix() {
+        int height = records.size();
+        byte[][] columns = new byte[width][height];
+        for (int row = 0; row < height; row ++) {
+            final int r = row;
+            decode(row, (col, index) -> columns[col][r] = index);
+        }
+        return new Matrix(alpha, getNames(), columns);
+    }
+
+    /**
+     * Read an alignment on the FASTA or Clustal format into a packed matrix.
+     * @param filename name of file
+     * @param alpha alphabet of sequences
+     * @return the alignment
+     * @throws IOException if the file cannot be read, or is of another format
+     */
+    public static Matrix load(String filename, Enumerable alpha) throws IOException {
+        return new MappedAlnReader(filename, alpha).getMatrix();
+    }
+
+    /**
+     * Alignment in column-major order, with one byte per residue, which is the index of the residue in the alphabet,
+     * or {@link #GAP}.
+     */
+    public static class Matrix {
+        private final Enumerable alpha;
+        private final String[] names;
+        private final byte[][] columns; // [col][row]
+
+        Matrix(Enumerable alpha, String[] names, byte[][] columns) {
+            this.alpha = alpha;
+            this.names = names;
+            this.columns = columns;
+        }
+
+        public Enumerable getDomain() {
+            return alpha;
+        }
+
+        public int getHeight() {
+            return names.length;
+        }
+
+        public int getWidth() {
+            return columns.length;
+        }
+
+        public String[] getNames() {
+            return names.clone();
+        }
+
+        /**
+         * @param row index of sequence
+         * @param col column
+         * @return index in alphabet of the residue, or {@link #GAP}
+         */
+        public byte get(int row, int col) {
+            return columns[col][row];
+        }
+
+        /**
+         * @param col column
+         * @return index in alphabet of the residue in each sequence, or {@link #GAP}; should not be modified
+         */
+        public byte[] getIndices(int col) {
+            return columns[col];
+        }
+
+        /**
+         * Get the column of enumerable values for a given column, as {@link EnumSeq.Alignment#getColumn(int)}.
+         * @param col column
+         * @return array of values in column, null representing gap
+         */
+        public Object[] getColumn(int col) {
+            if (col < 0 || col >= columns.length)
+                return null;
+            Object[] syms = new Object[names.length];
+            byte[] column = columns[col];
+            for (int i = 0; i < syms.length; i ++)
+                syms[i] = column[i] == GAP ? null : alpha.get(column[i]);
+            return syms;
+        }
+
+        /**
+         * Determine the number of sequences that have content in this column
+         * @param col column
+         * @return count of sequences
+         */
+        public int getOccupancy(int col) {
+            int count = 0;
+            for (byte index : columns[col])
+                count += index == GAP ? 0 : 1;
+            return count;
+        }
+
+        /**
+         * Decode a sequence.
+         * @param row index of sequence
+         * @return the sequence
+         */
+        public EnumSeq.Gappy<Enumerable> getEnumSeq(int row) {
+            Object[] syms = new Object[columns.length];
+            for (int col = 0; col < syms.length; col ++)
+                syms[col] = columns[col][row] == GAP ? null : alpha.get(columns[col][row]);
+            EnumSeq.Gappy<Enumerable> seq = new EnumSeq.Gappy<>(alpha);
+            seq.set(syms);
+            seq.setName(names[row]);
+            return seq;
+        }
+
+        /**
+         * Decode all sequences into an alignment, e.g. for methods that require one.
+         * @return the alignment
+         */
+        public EnumSeq.Alignment<Enumerable> toAlignment() {
+            List<EnumSeq.Gappy<Enumerable>> seqs = new ArrayList<>(names.length);
+            for (int row = 0; row < names.length; row ++)
+                seqs.add(getEnumSeq(row));
+            return new EnumSeq.Alignment<>(seqs);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package dat.phylo;
+
+import asr.ASRRuntimeException;
+import dat.Enumerable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Primitive counterpart of {@link TreeInstance}, where the value at each branch point is a short integer code
+ * into a fixed list of symbols (e.g. an {@link Enumerable} alphabet), rather than a (boxed) object.
+ * The codes are assigned once, when the instance is created, so inference algorithms can index arrays
+ * directly without looking up values or boxing them.
+ * An instance is never modified after it has been created, so it does not need to be locked when shared,
+ * and it leaves the {@link TreeInstance} it was created from untouched (unlike {@link TreeInstance#encode(boolean)}).
+ */
+public class CodedTreeInstance {
+
+    /**
+     * The code of an un-instantiated branch point
+     */
+    public static final short NULL = -1;
+
+    private final IdxTree tree;
+    private final short[] codes;        // for each branch point, the index of its value in symbols, or NULL
+    private final Object[] symbols;     // the values that codes refer to
+
+    /**
+     * Create an instance from codes that have already been determined.
+     * @param tree the definition of the tree topology
+     * @param symbols the values that codes refer to
+     * @param codes the code for each branch point, in order of the tree's indices; {@link #NULL} if un-instantiated
+     */
+    public CodedTreeInstance(IdxTree tree, Object[] symbols, short[] codes) {
+        if (codes.length != tree.getSize())
+            throw new ASRRuntimeException("Invalid number of codes for tree: " + codes.length);
+        if (symbols.length > Short.MAX_VALUE)
+            throw new ASRRuntimeException("Too many symbols to encode: " + symbols.length);
+        this.tree = tree;
+        this.symbols = symbols;
+        this.codes = codes;
+    }
+
+    /**
+     * Create an instance by coding the values of a tree instance with a given alphabet.
+     * @param ti the tree instance
+     * @param alpha the alphabet, which must contain all values of the tree instance
+     * @throws ASRRuntimeException if a value is not in the alphabet
+     */
+    public CodedTreeInstance(TreeInstance ti, Enumerable alpha) {
+        this.tree = ti.getTree();
+        this.symbols = alpha.getValues();
+        this.codes = new short[ti.getSize()];
+        for (int i = 0; i < codes.length; i ++) {
+            Object y = ti.getInstance(i);
+            if (y == null)
+                codes[i] = NULL;
+            else if (alpha.isValid(y))
+                codes[i] = (short) alpha.getIndex(y);
+            else
+                throw new ASRRuntimeException("Invalid value for alphabet at branch point " + i + ": " + y);
+        }
+    }
+
+    /**
+     * Create an instance by coding the values of a tree instance with its own possible values, in the same order as
+     * {@link TreeInstance#encode(boolean)} would, so that the codes are interchangeable.
+     * @param ti the tree instance
+     * @param recodeNullAtLeaves if true, null values at leaves are assigned a distinct code (the last), and the
+     *                           null value is added as the last symbol; null values elsewhere remain {@link #NULL}
+     * @return the coded instance
+     */
+    public static CodedTreeInstance encode(TreeInstance ti, boolean recodeNullAtLeaves) {
+        Object[] possible = ti.getPossible();
+        Object[] symbols = new Object[possible.length + (recodeNullAtLeaves ? 1 : 0)];
+        Map<Object, Short> index = new HashMap<>();
+        for (int i = 0; i < possible.length; i ++) {
+            symbols[i] = possible[i];
+            index.putIfAbsent(possible[i], (short) i);
+        }
+        IdxTree tree = ti.getTree();
+        short[] codes = new short[ti.getSize()];
+        for (int i = 0; i < codes.length; i ++) {
+            Object y = ti.getInstance(i);
+            if (y != null) {
+                Short code = index.get(y);
+                codes[i] = (code == null) ? NULL : code; // consistent with TreeInstance#getIndexByValue
+            } else if (recodeNullAtLeaves && tree.isLeaf(i)) {
+                codes[i] = (short) possible.length;
+            } else {
+                codes[i] = NULL;
+            }
+        }
+        return new CodedTreeInstance(tree, symbols, codes);
+    }
+
+    /**
+     * Convert back to a tree instance with the values that the codes refer to.
+     * @return a new tree instance
+     */
+    public TreeInstance toTreeInstance() {
+        Object[] values = new Object[codes.length];
+        for (int i = 0; i < codes.length; i ++)
+            values[i] = codes[i] == NULL ? null : symbols[codes[i]];
+        return new TreeInstance(tree, values);
+    }
+
+    /**
+     * Retrieve the tree associated with the instance
+     * @return tree
+     */
+    public IdxTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Get the total number of branch points in the tree, including leaves
+     * @return the number of branch points
+     */
+    public int getSize() {
+        return codes.length;
+    }
+
+    /**
+     * Retrieve the code at a branch point
+     * @param index the index of the branch point in tree
+     * @return the code, or {@link #NULL} if un-instantiated
+     */
+    public short getCode(int index) {
+        return codes[index];
+    }
+
+    /**
+     * Retrieve the value at a branch point
+     * @param index the index of the branch point in tree
+     * @return the value, or null if un-instantiated
+     */
+    public Object getInstance(int index) {
+        short code = codes[index];
+        return code == NULL ? null : symbols[code];
+    }
+
+    /**
+     * Get the number of symbols that codes can refer to
+     * @return number of symbols
+     */
+    public int getNSymbols() {
+        return symbols.length;
+    }
+
+    /**
+     * Get the value that a code refers to
+     * @param code the code
+     * @return the value
+     */
+    public Object getSymbol(int code) {
+        return symbols[code];
+    }
+
+    /**
+     * Get the values that codes refer to, indexed by code; this is the same key as that returned by {@link TreeInstance#encode(boolean)}
+     * @return symbols as an array
+     */
+    public Object[] getSymbols() {
+        return symbols;
+    }
+
+}
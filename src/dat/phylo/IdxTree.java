@@ -5,6 +5,7 @@ import bn.prob.GaussianDistrib;
 import json.JSONArray;
 import json.JSONException;
 import json.JSONObject;
+import json.JSONWriter;
 import smile.stat.distribution.ExponentialFamilyMixture;
 import smile.stat.distribution.GammaDistribution;
 import smile.stat.distribution.Mixture;
@@ -328,6 +329,34 @@ public class IdxTree implements Iterable<Integer> {
         return json;
     }
 
+    /**
+     * Write a JSON representation of the instance, as that of {@link #toJSON()}, without first creating it in memory.
+     * Keys are written in the same order as in the text of the JSON object.
+     * @param w the JSON writer
+     */
+    public void write(JSONWriter w) {
+        w.object();
+        w.key("Parents").array();
+        for (int i = 0; i < bpoints.length; i ++)
+            w.value(parent[i]);
+        w.endArray();
+        String[] labels = new String[bpoints.length];
+        for (Map.Entry<Object, Integer> entry : index.entrySet())
+            labels[entry.getValue()] = (String) this.getBranchPoint(entry.getValue()).getLabel();
+        w.key("Labels").array();
+        for (int i = 0; i < bpoints.length; i ++)
+            w.value(labels[i]);
+        w.endArray();
+        if (distance != null) {
+            w.key("Distances").array();
+            for (int i = 0; i < bpoints.length; i ++)
+                w.value(distance[i]);
+            w.endArray();
+        }
+        w.key("Branchpoints").value(bpoints.length);
+        w.endObject();
+    }
+
     /**
      * Create an "index tree", based on branch points which each have pointers to children
      * @param bpointarr
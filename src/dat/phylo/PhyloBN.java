@@ -441,6 +441,17 @@ public class PhyloBN {
      */
 
     public void trainEM(String[] labels, Object[][] data, long seed) {
+        trainEM(labels, data, seed, 1);
+    }
+
+    /**
+     * Train the so-called master node of the BN, with samples partitioned across threads.
+     * @param labels names of features, which must match variables in the BN
+     * @param data data matrix (rows represent samples, columns represent features)
+     * @param seed random seed to reproduce stochastic training decisions
+     * @param nThreads number of threads; if 1, samples are processed in order in the calling thread
+     */
+    public void trainEM(String[] labels, Object[][] data, long seed, int nThreads) {
         List<Integer> varidxlist = new ArrayList<>();
         List<Integer> datidxlist = new ArrayList<>();
         for (int i = 0; i < labels.length; i ++) {
@@ -464,7 +475,11 @@ public class PhyloBN {
                 dats[k][i] = data[k][datidx];
         }
         EM em = new EM(bn);
-        em.setEMOption(1);
+        if (nThreads > 1) {
+            em.setEMOption(3); // samples are partitioned across threads
+            em.setThreadCount(nThreads);
+        } else
+            em.setEMOption(1);
         em.train(dats, vars, seed);
     }
 
@@ -494,6 +509,9 @@ public class PhyloBN {
 
     /**
      * Enable cache for all nodes that can be cached.
+     * The cache is thread-safe and its keys do not depend on the column, so the same cache can be used by the BNs of
+     * all columns of an alignment, e.g. {@link FactorCache#getShared()}.
+     * @param cache the cache
      * @return number of nodes cache-enabled
      */
     public int setCache(FactorCache cache) {
@@ -523,6 +523,16 @@ public class PhyloPlate {
      * @param seed random seed to reproduce stochastic training decisions
      */
     public void trainEM(JSONUtils.DataSet dataset, long seed) {
+        trainEM(dataset, seed, 1);
+    }
+
+    /**
+     * Train the so-called master plate of the BN, with samples partitioned across threads.
+     * @param dataset the dataset that is used to train the BN
+     * @param seed random seed to reproduce stochastic training decisions
+     * @param nThreads number of threads; if 1, samples are processed in order in the calling thread
+     */
+    public void trainEM(JSONUtils.DataSet dataset, long seed, int nThreads) {
         List<Variable> varlist = new ArrayList<>();
         // dataset contains: names of items, which correspond to branch points in the tree
         // dataset contains: names of features, which expand to variables in the BN
@@ -539,7 +549,11 @@ public class PhyloPlate {
         }
         EM em = new EM(bn);
         em.setMaxRounds(EM_ROUNDS);
-        em.setEMOption(1);
+        if (nThreads > 1) {
+            em.setEMOption(3); // samples are partitioned across threads
+            em.setThreadCount(nThreads);
+        } else
+            em.setEMOption(1);
         em.train(data, vars, seed);
     }
     /**
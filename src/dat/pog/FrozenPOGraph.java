@@ -0,0 +1,322 @@
+package dat.pog;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Frozen, read-optimised form of a {@link POGraph}, created by {@link POGraph#freeze()}.
+ * Edges are held in compressed sparse row (CSR) form: the forward edges of all nodes are packed into one array of target
+ * indices, with an array of offsets marking where the edges of each node begin; edge weights and status are held in
+ * primitive arrays parallel to the targets. Backward edges are indexed the same way, and refer to the forward edge "slot".
+ * Compared to a POGraph, which keeps a BitSet per node and direction, and an edge instance per edge, the memory
+ * is proportional to the number of edges rather than the square of the number of nodes.
+ *
+ * The structure (nodes and edges) cannot be modified, but edge weights can, so that a most supported path can be
+ * determined directly, see {@link #getMostSupported()}. Use {@link #thaw()} to recreate a modifiable POGraph.
+ * Edges that have been disabled in the POGraph are not kept.
+ */
+public class FrozenPOGraph {
+
+    // status of an edge slot
+    static final byte EDGE_INSTANCE = 0x01;      // the edge has an instance, i.e. is not just structure
+    static final byte EDGE_RECIPROCATED = 0x02;
+    static final byte EDGE_BIDIR = 0x04;         // the instance is a BidirEdge...
+    static final byte EDGE_FORWARD = 0x08;       // ...with forward...
+    static final byte EDGE_BACKWARD = 0x10;      // ...and/or backward support
+
+    private final int nNodes;
+    private final String name;
+    private final BitSet allnodes;
+    private final Node[] nodes;
+    private final int[] offsets;        // [from + 1] first slot of the forward edges of node "from" (-1 is the start terminal); length N + 2
+    private final int[] targets;        // [slot] target node index, in order for each node; N for the end terminal
+    private final double[] weights;     // [slot] edge weight
+    private final byte[] status;        // [slot] edge status, see EDGE_* flags
+    private final String[] labels;      // [slot] edge label; null if no edge is labelled
+    private final int[] boffsets;       // [to] first entry of the backward edges of node "to" (N is the end terminal); length N + 2
+    private final int[] sources;        // [entry] source node index, in order for each node; -1 for the start terminal
+    private final int[] bslots;         // [entry] the forward slot of the edge
+
+    FrozenPOGraph(POGraph pog) {
+        this.nNodes = pog.maxsize();
+        this.name = pog.getName();
+        this.allnodes = new BitSet(nNodes);
+        this.nodes = new Node[nNodes];
+        int nEdges = 0;
+        for (int idx = 0; idx < nNodes; idx ++) {
+            if (pog.isNode(idx)) {
+                allnodes.set(idx);
+                nodes[idx] = pog.getNode(idx);
+                nEdges += pog.getCardinality(idx, true) + (pog.isEndNode(idx) ? 1 : 0);
+            }
+        }
+        nEdges += pog.getCardinality(-1, true);
+        this.offsets = new int[nNodes + 2];
+        this.targets = new int[nEdges];
+        this.weights = new double[nEdges];
+        this.status = new byte[nEdges];
+        String[] labels = null;
+        int[] indegree = new int[nNodes + 1];
+        int slot = 0;
+        for (int from = -1; from < nNodes; from ++) {
+            offsets[from + 1] = slot;
+            if (from >= 0 && !allnodes.get(from))
+                continue;
+            int[] nexts = pog.getForward(from);
+            for (int i = 0; i <= nexts.length; i ++) {
+                int to;
+                if (i < nexts.length)
+                    to = nexts[i];
+                else if (pog.isEndNode(from))
+                    to = nNodes;
+                else
+                    break;
+                targets[slot] = to;
+                indegree[to] += 1;
+                POGraph.StatusEdge edge = pog.getEdge(from, to);
+                if (edge != null) {
+                    byte s = EDGE_INSTANCE;
+                    if (edge.getReciprocated())
+                        s |= EDGE_RECIPROCATED;
+                    if (edge instanceof POGraph.BidirEdge) {
+                        POGraph.BidirEdge bidir = (POGraph.BidirEdge) edge;
+                        s |= EDGE_BIDIR | (bidir.isForward() ? EDGE_FORWARD : 0) | (bidir.isBackward() ? EDGE_BACKWARD : 0);
+                    }
+                    status[slot] = s;
+                    weights[slot] = edge.getWeight();
+                    if (edge.getLabel() != null) {
+                        if (labels == null)
+                            labels = new String[nEdges];
+                        labels[slot] = edge.getLabel();
+                    }
+                }
+                slot ++;
+            }
+        }
+        offsets[nNodes + 1] = slot;
+        this.labels = labels;
+        // backward edges, by counting sort on target; sources end up in order since forward slots are visited in order of source
+        this.boffsets = new int[nNodes + 2];
+        for (int to = 0; to <= nNodes; to ++)
+            boffsets[to + 1] = boffsets[to] + indegree[to];
+        this.sources = new int[nEdges];
+        this.bslots = new int[nEdges];
+        int[] fill = Arrays.copyOf(boffsets, nNodes + 1);
+        for (int from = -1; from < nNodes; from ++) {
+            for (int s = offsets[from + 1]; s < offsets[from + 2]; s ++) {
+                int entry = fill[targets[s]] ++;
+                sources[entry] = from;
+                bslots[entry] = s;
+            }
+        }
+    }
+
+    /**
+     * Recreate a modifiable POGraph with the same nodes, edges and edge weights.
+     * Node instances are shared with this frozen graph; edge instances are created anew.
+     * @return the POGraph
+     */
+    public POGraph thaw() {
+        POGraph pog = new POGraph(nNodes);
+        pog.setName(name);
+        for (int idx = allnodes.nextSetBit(0); idx >= 0; idx = allnodes.nextSetBit(idx + 1))
+            pog.addNode(idx, nodes[idx]);
+        for (int from = -1; from < nNodes; from ++) {
+            for (int slot = offsets[from + 1]; slot < offsets[from + 2]; slot ++) {
+                byte s = status[slot];
+                if ((s & EDGE_INSTANCE) == 0) {
+                    pog.addEdge(from, targets[slot]);
+                    continue;
+                }
+                POGraph.StatusEdge edge;
+                if ((s & EDGE_BIDIR) != 0)
+                    edge = new POGraph.BidirEdge((s & EDGE_FORWARD) != 0, (s & EDGE_BACKWARD) != 0);
+                else
+                    edge = new POGraph.StatusEdge((s & EDGE_RECIPROCATED) != 0);
+                edge.setWeight(weights[slot]);
+                if (labels != null && labels[slot] != null)
+                    edge.setLabel(labels[slot]);
+                pog.addEdge(from, targets[slot], edge);
+            }
+        }
+        return pog;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the maximum number of nodes, which is also the index of the end terminal
+     */
+    public int maxsize() {
+        return nNodes;
+    }
+
+    /**
+     * @return actual number of nodes
+     */
+    public int size() {
+        return allnodes.cardinality();
+    }
+
+    public boolean isNode(int idx) {
+        return idx >= 0 && idx < nNodes && allnodes.get(idx);
+    }
+
+    public Node getNode(int idx) {
+        if (idx >= 0 && idx < nNodes)
+            return nodes[idx];
+        throw new FrozenPOGraphRuntimeException("Index outside bounds: " + idx);
+    }
+
+    /**
+     * @return number of edges, including those from the start terminal and to the end terminal
+     */
+    public int getEdgeCount() {
+        return targets.length;
+    }
+
+    private void checkFrom(int from) {
+        if (!isNode(from) && from != -1)
+            throw new FrozenPOGraphRuntimeException("Cannot retrieve edges from non-existent/invalid node: " + from);
+    }
+
+    private void checkTo(int to) {
+        if (!isNode(to) && to != nNodes)
+            throw new FrozenPOGraphRuntimeException("Cannot retrieve edges to non-existent/invalid node: " + to);
+    }
+
+    public boolean isStartNode(int idx) {
+        return isNode(idx) && boffsets[idx] < boffsets[idx + 1] && sources[boffsets[idx]] == -1;
+    }
+
+    public boolean isEndNode(int idx) {
+        return isNode(idx) && offsets[idx + 1] < offsets[idx + 2] && targets[offsets[idx + 2] - 1] == nNodes;
+    }
+
+    /**
+     * Determine the node indices that are ahead (forward direction); as for {@link POGraph#getForward(int)}, the end terminal is not included.
+     * @param idx current node, use -1 for retrieving the start nodes
+     * @return the indices for nodes accessible directly forward from the current node; array is empty if no indices
+     */
+    public int[] getForward(int idx) {
+        checkFrom(idx);
+        int from = offsets[idx + 1], to = offsets[idx + 2];
+        if (to > from && targets[to - 1] == nNodes)
+            to -= 1;
+        return Arrays.copyOfRange(targets, from, to);
+    }
+
+    /**
+     * @return the indices for nodes that act as start nodes of the POG; the array is empty if no start nodes
+     */
+    public int[] getForward() {
+        return getForward(-1);
+    }
+
+    /**
+     * Determine the node indices that are behind (backward direction); as for {@link POGraph#getBackward(int)}, the start terminal is not included.
+     * @param idx current node, use N for retrieving the end nodes
+     * @return the indices for nodes accessible directly backward from the current node; array is empty if no indices
+     */
+    public int[] getBackward(int idx) {
+        checkTo(idx);
+        int from = boffsets[idx], to = boffsets[idx + 1];
+        if (to > from && sources[from] == -1)
+            from += 1;
+        return Arrays.copyOfRange(sources, from, to);
+    }
+
+    /**
+     * @return the indices for nodes that act as end nodes of the POG; the array is empty if no end nodes
+     */
+    public int[] getBackward() {
+        return getBackward(nNodes);
+    }
+
+    /**
+     * Find the slot of an edge, which indexes its weight and status
+     * @param from source node index, -1 for the start terminal
+     * @param to target node index, N for the end terminal
+     * @return the slot, or -1 if there is no such edge
+     */
+    public int getEdgeSlot(int from, int to) {
+        checkFrom(from);
+        int slot = Arrays.binarySearch(targets, offsets[from + 1], offsets[from + 2], to);
+        return slot >= 0 ? slot : -1;
+    }
+
+    public boolean isEdge(int from, int to) {
+        return getEdgeSlot(from, to) >= 0;
+    }
+
+    /**
+     * @param slot edge slot
+     * @return true if the edge has an instance, which carries weight and status; false if the edge is only structure
+     */
+    public boolean isEdgeInstance(int slot) {
+        return (status[slot] & EDGE_INSTANCE) != 0;
+    }
+
+    public boolean getReciprocated(int slot) {
+        return (status[slot] & EDGE_RECIPROCATED) != 0;
+    }
+
+    public double getWeight(int slot) {
+        return weights[slot];
+    }
+
+    /**
+     * Set the weight of an edge; an edge that is only structure is given an instance (not reciprocated) to hold it.
+     * @param slot edge slot
+     * @param weight the weight
+     */
+    public void setWeight(int slot, double weight) {
+        if ((status[slot] & EDGE_INSTANCE) == 0)
+            status[slot] = EDGE_INSTANCE;
+        weights[slot] = weight;
+    }
+
+    /**
+     * Perform search on the POG based on currently set edge weights and status
+     * @return indices to the nodes that make up the "consensus" path
+     */
+    public int[] getMostSupported() {
+        return getMostSupported(POGraph.SUPPORTED_PATH_DEFAULT);
+    }
+
+    /**
+     * Perform search on the POG based on currently set edge weights and status.
+     * Dijkstra's algorithm runs directly on the frozen graph; other modes run on a thawed copy.
+     * @param MODE search algorithm, see {@link POGraph#SUPPORTED_PATH_DIJKSTRA}
+     * @return indices to the nodes that make up the "consensus" path
+     */
+    public int[] getMostSupported(int MODE) {
+        if (MODE == POGraph.SUPPORTED_PATH_DIJKSTRA) {
+            return GraphSearch.getDijkstraPath(this);
+        }
+        return thaw().getMostSupported(MODE);
+    }
+
+    /**
+     * Estimate the number of bytes that the frozen graph occupies, excluding node instances
+     * @return estimated number of bytes
+     */
+    public long getBytes() {
+        long edges = targets.length;
+        return 64L + nNodes / 8 + 8L * nNodes + 8L * (nNodes + 2) + edges * (4 + 8 + 1 + 4 + 4) + (labels == null ? 0 : 8 * edges);
+    }
+
+    @Override
+    public String toString() {
+        return "FrozenPOGraph " + (name == null ? "" : name + " ") + "(" + size() + "/" + nNodes + " nodes, " + getEdgeCount() + " edges)";
+    }
+}
+
+class FrozenPOGraphRuntimeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    public FrozenPOGraphRuntimeException(String errmsg) {
+        super(errmsg);
+    }
+}
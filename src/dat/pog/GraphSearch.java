@@ -3,6 +3,7 @@ package dat.pog;
 import asr.ASRRuntimeException;
 
 import java.util.*;
+import java.util.function.IntFunction;
 
 /**
  * Container class to perform a search on a graph.
@@ -22,6 +23,24 @@ public class GraphSearch<E extends Edge & WeightedEdge> {
         N = g.maxsize();
     }
 
+    /**
+     * Create a graph search instance for a graph that is not an IdxEdgeGraph, e.g. a {@link FrozenPOGraph}
+     * @param N total number of nodes (excluding terminators)
+     */
+    protected GraphSearch(int N) {
+        this.g = null;
+        this.N = N;
+    }
+
+    /**
+     * Find a path of lowest cost from the start to the end terminal of a frozen POG, using Dijkstra's algorithm
+     * @param g the frozen POG
+     * @return indices to the nodes that make up the path
+     */
+    public static int[] getDijkstraPath(FrozenPOGraph g) {
+        return new DijkstraSearch<>(g).getOnePath();
+    }
+
     /**
      * Implements the value with which edges are (typically) ranked.
      * Sub-classes should override.
@@ -106,50 +125,97 @@ class DijkstraSearch<E extends POGraph.StatusEdge> extends GraphSearch<E> {
         super(g);
         this.setPriorityMode(mode);
         actual = new double[N + 1]; // space to store actual costs
-        Arrays.fill(actual, Double.POSITIVE_INFINITY);
         closed = new Set[N + 1]; // space to store linkages leading-to a node index
         this.start = start;
         this.goal = goal;
+        search(current -> {
+            int[] nexts = g.getNodeIndices(current); // all out-going edges; forward-looking if directed
+            if (goal == N && g.isEndNode(current)) { // if goal is the terminus, need also check if the current node is an end node
+                nexts = Arrays.copyOf(nexts, nexts.length + 1);
+                nexts[nexts.length - 1] = N; // add N to next
+            }
+            return nexts;
+        }, (current, next) -> {
+            E edge = g.getEdge(current, next);
+            return edge == null ? Double.NaN : getPriority(edge);
+        });
+    }
+
+    /**
+     * Create a search instance and perform the search from start to end terminals, directly on a frozen POG
+     */
+    public DijkstraSearch(FrozenPOGraph g) {
+        this(g, PRIORITY_RECIP_WEIGHT);
+    }
+
+    /**
+     * Create a search instance and perform the search from start to end terminals, directly on a frozen POG
+     */
+    public DijkstraSearch(FrozenPOGraph g, int mode) {
+        super(g.maxsize());
+        this.setPriorityMode(mode);
+        actual = new double[N + 1];
+        closed = new Set<?>[N + 1];
+        this.start = -1;
+        this.goal = N;
+        search(current -> current == -1 ? g.getForward() : g.isEndNode(current) ? concat(g.getForward(current), N) : g.getForward(current),
+                (current, next) -> {
+            int slot = g.getEdgeSlot(current, next);
+            return g.isEdgeInstance(slot) ? getPriority(PRIORITY_MODE, g.getReciprocated(slot), g.getWeight(slot)) : Double.NaN;
+        });
+    }
+
+    private static int[] concat(int[] nexts, int last) {
+        int[] xnexts = Arrays.copyOf(nexts, nexts.length + 1);
+        xnexts[nexts.length] = last;
+        return xnexts;
+    }
+
+    /**
+     * Cost of traversing an edge
+     */
+    private interface EdgeCost {
+        /**
+         * @return the cost of the edge, or NaN if the edge has no instance
+         */
+        double get(int from, int to);
+    }
+
+    /**
+     * Perform the search, independent of how the graph is represented
+     * @param forward the indices of nodes reachable from a node, including the goal when applicable
+     * @param cost the cost of traversing an edge
+     */
+    private void search(IntFunction<int[]> forward, EdgeCost cost) {
+        Arrays.fill(actual, Double.POSITIVE_INFINITY);
         if (start >= 0) { // terminated graphs can't refer to index for initial terminal "-1"
             actual[start] = 0; // the cost is by definition zero for the start node
             closed[start] = new HashSet();
         }
         int current = start;
-        Set<Integer> visited = new HashSet<>();
+        boolean[] visited = new boolean[N + 2]; // offset by one, to include the start terminal
         while (current != goal) {
             // track visited nodes (by index) and cheapest path to each node; this is in "closed"
             // find the lowest-cost path from "start" (-1) to "anywhere"; this is in "actual"
-            int[] nexts;
-            nexts = g.getNodeIndices(current); // all out-going edges; forward-looking if directed
-            if (goal == N && g.isEndNode(current)) { // if goal is the terminus, need also check if the current node is an end node
-                // add N to next
-                int[] xnexts = new int[nexts.length + 1];
-                for (int i = 0; i < nexts.length; i++)
-                    xnexts[i] = nexts[i];
-                xnexts[nexts.length] = N;
-                nexts = xnexts;
-            }
-            visited.add(current);
+            int[] nexts = forward.apply(current);
+            visited[current + 1] = true;
             for (int next : nexts) { // add all nodes coming-up
                 double cost_sofar = (current == start ? 0 : actual[current]);
-                E edge = g.getEdge(current, next);
-                if (edge == null) {
-
-                } else {
-                    double weight = getPriority(edge);
-                    if (actual[next] > cost_sofar + weight) { // if better...
-                        actual[next] = cost_sofar + weight;
-                        closed[next] = new HashSet();
-                        closed[next].add(current);
-                    } else if (actual[next] == cost_sofar + weight && closed[next] != null) { // else if just equal...
-                        closed[next].add(current);
-                    }
+                double weight = cost.get(current, next);
+                if (Double.isNaN(weight)) // edge without instance
+                    continue;
+                if (actual[next] > cost_sofar + weight) { // if better...
+                    actual[next] = cost_sofar + weight;
+                    closed[next] = new HashSet();
+                    closed[next].add(current);
+                } else if (actual[next] == cost_sofar + weight && closed[next] != null) { // else if just equal...
+                    closed[next].add(current);
                 }
             }
             double cheapest_cost = Double.POSITIVE_INFINITY;
             // set "current" to lowest-cost node that can be reached from "start", perhaps via any of the other "visited"
             for (int i = 0; i < actual.length; i ++) {
-                if (!visited.contains(i)) {
+                if (!visited[i + 1]) {
                     if (cheapest_cost > actual[i]) {
                         current = i;
                         cheapest_cost = actual[i];
@@ -172,13 +238,17 @@ class DijkstraSearch<E extends POGraph.StatusEdge> extends GraphSearch<E> {
 
     @Override
     public double getPriority(E edge) {
-        switch (PRIORITY_MODE) {
+        return getPriority(PRIORITY_MODE, edge.getReciprocated(), edge.getWeight());
+    }
+
+    static double getPriority(int mode, boolean reciprocated, double weight) {
+        switch (mode) {
             case PRIORITY_RECIPROCATED:
-                return edge.getReciprocated() ? 0 : 1;
+                return reciprocated ? 0 : 1;
             case PRIORITY_WEIGHT:
-                return edge.getWeight();
+                return weight;
             case PRIORITY_RECIP_WEIGHT:
-                return edge.getReciprocated() ? edge.getWeight() : 1000 * edge.getWeight();
+                return reciprocated ? weight : 1000 * weight;
             default:
                 return 0;
         }
@@ -6,6 +6,7 @@ import asr.GRASP;
 import json.JSONArray;
 import json.JSONException;
 import json.JSONObject;
+import json.JSONWriter;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -1089,6 +1090,28 @@ public class IdxGraph {
         return narr;
     }
 
+    /**
+     * Write a JSON representation of the instance, as that of {@link #toJSON()}.
+     * The JSON object of this graph is written as it is traversed, rather than first converted to text.
+     * @param w the JSON writer
+     */
+    public void write(JSONWriter w) {
+        w.value(toJSON());
+    }
+
+    /**
+     * Write a JSON array of graphs, as that of {@link #toJSONArray(Collection)}, one graph at a time,
+     * so that only one graph at a time is held in memory as JSON.
+     * @param w the JSON writer
+     * @param graphs
+     */
+    public static <E extends IdxGraph> void writeJSONArray(JSONWriter w, Collection<E> graphs) {
+        w.array();
+        for (IdxGraph g : graphs)
+            g.write(w);
+        w.endArray();
+    }
+
     public static <E extends IdxGraph> JSONArray toJSONArray(E[] graphs) {
         JSONArray narr = new JSONArray();
         int cnt = 0;
@@ -1122,7 +1145,7 @@ public class IdxGraph {
     public static <E extends IdxGraph> void saveToJSON(String directory, Collection<E> graphs) throws IOException, ASRException {
         Path filename = Paths.get(directory + "/" + "pogs.json");
         BufferedWriter writer = Files.newBufferedWriter(filename, StandardCharsets.UTF_8);
-        IdxGraph.toJSONArray(graphs).write(writer);
+        IdxGraph.writeJSONArray(new JSONWriter(writer), graphs);
         writer.close();
     }
 
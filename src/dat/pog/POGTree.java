@@ -10,6 +10,7 @@ import dat.phylo.Tree;
 import dat.phylo.TreeInstance;
 import json.JSONArray;
 import json.JSONObject;
+import json.JSONWriter;
 
 import java.io.IOException;
 import java.util.*;
@@ -156,6 +157,24 @@ public class POGTree {
         return json;
     }
 
+    /**
+     * Write a JSON representation of the instance, as that of {@link #toJSON()}, one extant POG at a time.
+     * Keys are written in the same order as in the text of the JSON object.
+     * @param w the JSON writer
+     */
+    public void write(JSONWriter w) {
+        w.object();
+        w.key("Tree");
+        phylotree.write(w);
+        w.key("Hashcode").value(hashCode());
+        List<POGraph> pogs = new ArrayList<>();
+        for (int i : phylotree.getLeaves())
+            pogs.add(extarr[i]);
+        w.key("Extants");
+        POGraph.writeJSONArray(w, pogs);
+        w.endObject();
+    }
+
     public static POGTree fromJSON(JSONObject json) {
         JSONArray jexts = json.optJSONArray("Extants");
         if (jexts == null)
@@ -335,6 +335,16 @@ public class POGraph extends IdxEdgeGraph<POGraph.StatusEdge> {
         }
     }
 
+    /**
+     * Create a frozen, read-optimised copy of this POG, with edges in compressed sparse row form.
+     * Edge weights can still be modified, and the most supported path determined, on the frozen POG.
+     * @return the frozen POG
+     * @see FrozenPOGraph#thaw()
+     */
+    public FrozenPOGraph freeze() {
+        return new FrozenPOGraph(this);
+    }
+
     /** Variable to hold search depths for getDepths */
     private int[] searchdepths;
 
@@ -0,0 +1,220 @@
+package json;
+
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * JSONPullParser reads JSON text from a Reader one event at a time, so that a large document can be processed
+ * without building it in memory as one JSONObject. The events are the start and end of objects and arrays,
+ * keys, and values (strings, numbers, booleans and null). A complete value, e.g. one element of a large array,
+ * can be read as a JSONObject or JSONArray with {@link #readValue()}, or be passed over with {@link #skipValue()}.
+ * For example, <pre>
+ * JSONPullParser parser = new JSONPullParser(reader);
+ * parser.next();                               // START_OBJECT
+ * while (parser.next() == Event.KEY) {
+ *     if (parser.getKey().equals("Items")) {
+ *         parser.next();                       // START_ARRAY
+ *         while (parser.hasNext())
+ *             process((JSONObject) parser.readValue());
+ *         parser.next();                       // END_ARRAY
+ *     } else
+ *         parser.skipValue();
+ * }</pre>
+ * The parser accepts the same text as {@link JSONTokener}, which it uses to read strings and values.
+ */
+public class JSONPullParser {
+
+    /**
+     * Parser events.
+     */
+    public enum Event {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY, VALUE, END_DOCUMENT
+    }
+
+    private final JSONTokener tokener;
+
+    /**
+     * The open objects ('{') and arrays ('['), innermost first.
+     */
+    private final Deque<Character> stack = new ArrayDeque<>();
+
+    /**
+     * What is expected next. Values:
+     * 'v' (a value, after a key or at the start),
+     * 'k' (a key or the end of an object, at its start),
+     * 'K' (a comma or the end of an object),
+     * 'a' (a value or the end of an array, at its start),
+     * 'A' (a comma or the end of an array),
+     * 'd' (done).
+     */
+    private char expect = 'v';
+
+    private String key = null;
+    private Object value = null;
+
+    /**
+     * Make a parser that reads JSON text from a Reader.
+     * @param reader A reader.
+     */
+    public JSONPullParser(Reader reader) {
+        this.tokener = new JSONTokener(reader);
+    }
+
+    /**
+     * Advance to the next event.
+     * @return the event
+     * @throws JSONException If the text is not valid JSON.
+     */
+    public Event next() throws JSONException {
+        char c;
+        switch (this.expect) {
+            case 'd':
+                return Event.END_DOCUMENT;
+            case 'v':
+                return this.startValue();
+            case 'k':
+                c = this.tokener.nextClean();
+                if (c == '}')
+                    return this.end(Event.END_OBJECT);
+                this.tokener.back();
+                return this.nextKey();
+            case 'K':
+                c = this.tokener.nextClean();
+                if (c == '}')
+                    return this.end(Event.END_OBJECT);
+                if (c != ',')
+                    throw this.tokener.syntaxError("Expected a ',' or '}'");
+                return this.nextKey();
+            case 'a':
+                c = this.tokener.nextClean();
+                if (c == ']')
+                    return this.end(Event.END_ARRAY);
+                this.tokener.back();
+                return this.startValue();
+            case 'A':
+                c = this.tokener.nextClean();
+                if (c == ']')
+                    return this.end(Event.END_ARRAY);
+                if (c != ',')
+                    throw this.tokener.syntaxError("Expected a ',' or ']'");
+                return this.startValue();
+            default:
+                throw new JSONException("Invalid parser state " + this.expect);
+        }
+    }
+
+    /**
+     * Determine if the current object or array has more keys or values.
+     * @return true if there is another key (in an object) or value (in an array), false at the end of the object or array
+     * @throws JSONException If the text is not valid JSON.
+     */
+    public boolean hasNext() throws JSONException {
+        switch (this.expect) {
+            case 'k':
+            case 'K':
+            case 'a':
+            case 'A':
+                char c = this.tokener.nextClean();
+                this.tokener.back();
+                return c != '}' && c != ']';
+            case 'v':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Read the next complete value, that is after a key in an object, the next element of an array, or the document.
+     * Objects and arrays are read in full, as JSONObject and JSONArray, respectively.
+     * @return the value, which is a Boolean, Double, Integer, JSONArray, JSONObject, Long, or String, or the JSONObject.NULL object
+     * @throws JSONException If the parser is not positioned before a value, or the text is not valid JSON.
+     */
+    public Object readValue() throws JSONException {
+        if (this.expect == 'A') {
+            if (this.tokener.nextClean() != ',')
+                throw this.tokener.syntaxError("Expected a ','");
+        } else if (this.expect == 'a') {
+            char c = this.tokener.nextClean();
+            this.tokener.back();
+            if (c == ']')
+                throw this.tokener.syntaxError("Expected a value");
+        } else if (this.expect != 'v') {
+            throw new JSONException("Misplaced value.");
+        }
+        this.value = this.tokener.nextValue();
+        this.afterValue();
+        return this.value;
+    }
+
+    /**
+     * Pass over the next complete value, see {@link #readValue()}.
+     * @throws JSONException If the parser is not positioned before a value, or the text is not valid JSON.
+     */
+    public void skipValue() throws JSONException {
+        this.readValue();
+        this.value = null;
+    }
+
+    /**
+     * @return the key of the last KEY event
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return the value of the last VALUE event, which is a Boolean, Double, Integer, Long, or String, or the JSONObject.NULL object
+     */
+    public Object getValue() {
+        return this.value;
+    }
+
+    /**
+     * @return the number of objects and arrays that are open
+     */
+    public int getDepth() {
+        return this.stack.size();
+    }
+
+    private Event nextKey() throws JSONException {
+        char c = this.tokener.nextClean();
+        if (c != '"' && c != '\'')
+            throw this.tokener.syntaxError("A JSONObject key must be a string");
+        this.key = this.tokener.nextString(c);
+        if (this.tokener.nextClean() != ':')
+            throw this.tokener.syntaxError("Expected a ':' after a key");
+        this.expect = 'v';
+        return Event.KEY;
+    }
+
+    private Event startValue() throws JSONException {
+        char c = this.tokener.nextClean();
+        if (c == '{') {
+            this.stack.push('{');
+            this.expect = 'k';
+            return Event.START_OBJECT;
+        } else if (c == '[') {
+            this.stack.push('[');
+            this.expect = 'a';
+            return Event.START_ARRAY;
+        } else if (c == 0) {
+            throw this.tokener.syntaxError("Unexpected end of text");
+        }
+        this.tokener.back();
+        this.value = this.tokener.nextValue();
+        this.afterValue();
+        return Event.VALUE;
+    }
+
+    private Event end(Event event) {
+        this.stack.pop();
+        this.afterValue();
+        return event;
+    }
+
+    private void afterValue() {
+        this.expect = this.stack.isEmpty() ? 'd' : this.stack.peek() == '{' ? 'K' : 'A';
+    }
+}
@@ -99,12 +99,13 @@ public class JSONWriter {
 
     /**
      * Append a value.
-     * @param string A string value.
+     * @param value A string value, or a JSONObject or JSONArray, which is
+     *  written directly to the writer rather than first converted to a string.
      * @return this
      * @throws JSONException If the value is out of sequence.
      */
-    private JSONWriter append(String string) throws JSONException {
-        if (string == null) {
+    private JSONWriter append(Object value) throws JSONException {
+        if (value == null) {
             throw new JSONException("Null pointer");
         }
         if (this.mode == 'o' || this.mode == 'a') {
@@ -112,7 +113,13 @@ public class JSONWriter {
                 if (this.comma && this.mode == 'a') {
                     this.writer.write(',');
                 }
-                this.writer.write(string);
+                if (value instanceof JSONObject) {
+                    ((JSONObject) value).write(this.writer);
+                } else if (value instanceof JSONArray) {
+                    ((JSONArray) value).write(this.writer);
+                } else {
+                    this.writer.write(value.toString());
+                }
             } catch (IOException e) {
                 throw new JSONException(e);
             }
@@ -311,13 +318,17 @@ public class JSONWriter {
 
 
     /**
-     * Append an object value.
+     * Append an object value. A JSONObject or JSONArray is written as it is
+     * traversed, so that its text is never held in memory in full.
      * @param object The object to append. It can be null, or a Boolean, Number,
      *   String, JSONObject, or JSONArray, or an object that implements JSONString.
      * @return this
      * @throws JSONException If the value is out of sequence.
      */
     public JSONWriter value(Object object) throws JSONException {
+        if (object instanceof JSONObject || object instanceof JSONArray) {
+            return this.append(object);
+        }
         return this.append(JSONObject.valueToString(object));
     }
 }
\ No newline at end of file
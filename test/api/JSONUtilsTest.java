@@ -3,7 +3,7 @@ package api;
 import json.JSONObject;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
 
 class JSONUtilsTest {
 
@@ -41,4 +41,14 @@ class JSONUtilsTest {
         JSONUtils.DataSet myds2 = JSONUtils.DataSet.fromJSON(js2);
         System.out.println("Recreated:\t" + JSONUtils.toJSON(myds2));
     }
-}
\ No newline at end of file
+
+    @Test
+    void digest() {
+        JSONObject a = new JSONObject("{\"Model\":\"JTT\",\"Rates\":[0.1,2],\"Tree\":{\"N\":3,\"Labels\":[\"A\",\"B\"]}}");
+        JSONObject b = new JSONObject("{\"Tree\":{\"Labels\":[\"A\",\"B\"],\"N\":3},\"Rates\":[0.1,2],\"Model\":\"JTT\"}");
+        JSONObject c = new JSONObject("{\"Tree\":{\"Labels\":[\"B\",\"A\"],\"N\":3},\"Rates\":[0.1,2],\"Model\":\"JTT\"}");
+        assertEquals(JSONUtils.digest("Recon", a), JSONUtils.digest("Recon", b)); // key order does not matter
+        assertNotEquals(JSONUtils.digest("Recon", a), JSONUtils.digest("Recon", c)); // array order does
+        assertNotEquals(JSONUtils.digest("Recon", a), JSONUtils.digest("Infer", a));
+    }
+}
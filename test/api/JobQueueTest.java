@@ -0,0 +1,150 @@
+package api;
+
+import json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobQueueTest {
+
+    GRequest fake(String auth, int sleep) {
+        JSONObject params = new JSONObject();
+        params.put("Sleep", sleep);
+        return new CommandCentral.GRequest_Fake("Fake", auth, params);
+    }
+
+    void await(GRequest req, long timeout) throws InterruptedException {
+        long until = System.currentTimeMillis() + timeout;
+        while (req.getStatus() != GRequest.STATUS.COMPLETED && System.currentTimeMillis() < until)
+            Thread.sleep(10);
+    }
+
+    @Test
+    void runConcurrently() throws Exception {
+        File dir = Files.createTempDirectory("jobqueue").toFile();
+        GRequest.JobQueue queue = new GRequest.JobQueue(dir, 4);
+        queue.start();
+        GRequest[] reqs = new GRequest[4];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < reqs.length; i ++) {
+            reqs[i] = fake("user" + i, 500);
+            queue.add(reqs[i]);
+        }
+        for (GRequest req : reqs)
+            await(req, 5000);
+        long elapsed = System.currentTimeMillis() - start;
+        for (GRequest req : reqs) {
+            assertEquals(GRequest.STATUS.COMPLETED, req.getStatus());
+            assertNotNull(req.getResult());
+        }
+        assertTrue(elapsed < 1500, "Jobs did not run concurrently: " + elapsed + " ms");
+        assertEquals(0, queue.getReservedThreads());
+        queue.interrupt();
+    }
+
+    @Test
+    void threadBudget() throws Exception {
+        File dir = Files.createTempDirectory("jobqueue").toFile();
+        GRequest.JobQueue queue = new GRequest.JobQueue(dir, 4);
+        queue.start();
+        GRequest big = fake("A", 300);
+        big.setThreads(3);
+        GRequest next = fake("B", 300);
+        next.setThreads(2);
+        queue.add(big);
+        queue.add(next);
+        Thread.sleep(100);
+        assertEquals(GRequest.STATUS.RUNNING, big.getStatus());
+        assertEquals(GRequest.STATUS.WAITING, next.getStatus()); // 3 + 2 exceeds budget
+        assertEquals(3, queue.getReservedThreads());
+        await(next, 5000);
+        assertEquals(GRequest.STATUS.COMPLETED, next.getStatus());
+        GRequest huge = fake("C", 10);
+        huge.setThreads(16);
+        queue.add(huge);
+        await(huge, 5000);
+        assertEquals(GRequest.STATUS.COMPLETED, huge.getStatus());
+        assertEquals(4, huge.getThreads()); // run with no more threads than the budget
+        queue.interrupt();
+    }
+
+    @Test
+    void order() throws Exception {
+        File dir = Files.createTempDirectory("jobqueue").toFile();
+        GRequest.JobQueue queue = new GRequest.JobQueue(dir, 1); // not started, so all jobs wait
+        GRequest a1 = fake("A", 0), a2 = fake("A", 0), a3 = fake("A", 0);
+        GRequest b1 = fake("B", 0);
+        GRequest c1 = fake("C", 0);
+        c1.setJobPriority(5);
+        queue.add(a1);
+        queue.add(a2);
+        queue.add(a3);
+        queue.add(b1);
+        queue.add(c1);
+        assertEquals(1, queue.getPlace(c1)); // highest priority
+        assertEquals(2, queue.getPlace(a1));
+        assertEquals(3, queue.getPlace(b1)); // fair-share: B goes before A's second job
+        assertEquals(4, queue.getPlace(a2));
+        assertEquals(5, queue.getPlace(a3));
+        assertSame(c1, queue.poll());
+        assertTrue(queue.cancel(c1));
+        assertSame(a1, queue.poll());
+        assertEquals(0, queue.getPlace(c1));
+    }
+
+    @Test
+    void identical() throws Exception {
+        File dir = Files.createTempDirectory("jobqueue").toFile();
+        GRequest.JobQueue queue = new GRequest.JobQueue(dir, 4);
+        CommandCentral cc = new CommandCentral();
+        String req = "{\"Command\":\"Fake\",\"Auth\":\"%s\",\"Params\":{\"Sleep\":%d}}";
+        GRequest a = cc.createRequest(new JSONObject(String.format(req, "A", 300)));
+        GRequest b = cc.createRequest(new JSONObject(String.format(req, "B", 300)));
+        GRequest c = cc.createRequest(new JSONObject(String.format(req, "C", 200)));
+        queue.add(a);
+        queue.add(b);
+        queue.add(c);
+        assertSame(a, b.getSource());
+        assertNull(c.getSource());
+        assertEquals(queue.getPlace(a), queue.getPlace(b));
+        assertTrue(queue.cancel(a)); // still computed for b
+        assertEquals(1, queue.getPlace(b));
+        queue.start();
+        await(b, 5000);
+        assertEquals(GRequest.STATUS.COMPLETED, b.getStatus());
+        assertNotNull(b.getResult());
+        GRequest d = cc.createRequest(new JSONObject(String.format(req, "D", 300)));
+        queue.add(d); // result is stored
+        assertSame(a, d.getSource());
+        assertEquals(GRequest.STATUS.COMPLETED, d.getStatus());
+        JSONObject stats = queue.getCacheStats();
+        assertEquals(2, stats.getInt("Hits"));
+        assertEquals(2, stats.getInt("Misses"));
+        queue.interrupt();
+    }
+
+    @Test
+    void evicted() throws Exception {
+        File dir = Files.createTempDirectory("jobqueue").toFile();
+        GRequest.JobQueue queue = new GRequest.JobQueue(new ResultStore(dir, false, 500, 0), 4);
+        queue.start();
+        CommandCentral cc = new CommandCentral();
+        String req = "{\"Command\":\"Fake\",\"Auth\":\"%s\",\"Params\":{\"Sleep\":%d}}";
+        GRequest a = cc.createRequest(new JSONObject(String.format(req, "A", 10)));
+        queue.add(a);
+        await(a, 5000);
+        assertEquals(1, queue.getCacheStats().getInt("Entries"));
+        Thread.sleep(700); // result lapses
+        assertEquals(0, queue.getCacheStats().getInt("Entries"));
+        GRequest b = cc.createRequest(new JSONObject(String.format(req, "B", 10)));
+        queue.add(b); // computed again
+        assertNull(b.getSource());
+        await(b, 5000);
+        assertEquals(GRequest.STATUS.COMPLETED, b.getStatus());
+        assertNotNull(b.getResult());
+        queue.interrupt();
+    }
+}
@@ -0,0 +1,103 @@
+package api;
+
+import json.JSONArray;
+import json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResultStoreTest {
+
+    JSONObject result(int n) {
+        JSONObject json = new JSONObject();
+        JSONArray arr = new JSONArray();
+        for (int i = 0; i < n; i ++)
+            arr.put("Value " + i + " åäö");
+        json.put("Values", arr);
+        return json;
+    }
+
+    @Test
+    void saveAndOpen() throws Exception {
+        for (boolean compress : new boolean[] {false, true}) {
+            File dir = Files.createTempDirectory("resultstore").toFile();
+            ResultStore store = new ResultStore(dir, compress, 0, 0);
+            JSONObject json = result(10000);
+            File file = store.save(1, json);
+            assertTrue(file.exists());
+            assertTrue(store.contains(1));
+            StringWriter sw = new StringWriter();
+            try (Reader reader = store.open(1)) {
+                reader.transferTo(sw);
+            }
+            assertEquals(json.toString(), sw.toString());
+            assertEquals(json.toString(), store.load(1).toString());
+            assertNull(store.open(2));
+            assertTrue(store.remove(1));
+            assertFalse(file.exists());
+            assertEquals(0, store.getSize());
+        }
+    }
+
+    @Test
+    void compressed() throws Exception {
+        File dir = Files.createTempDirectory("resultstore").toFile();
+        long plain = new ResultStore(dir, false, 0, 0).save(1, result(10000)).length();
+        long gzip = new ResultStore(dir, true, 0, 0).save(1, result(10000)).length();
+        assertTrue(gzip < plain);
+    }
+
+    @Test
+    void evictQuota() throws Exception {
+        File dir = Files.createTempDirectory("resultstore").toFile();
+        long size = result(1000).toString().getBytes(StandardCharsets.UTF_8).length;
+        ResultStore store = new ResultStore(dir, false, 0, size * 2);
+        store.save(1, result(1000));
+        store.save(2, result(1000));
+        assertTrue(store.contains(1));
+        store.save(3, result(1000)); // exceeds quota, oldest is evicted
+        assertFalse(store.contains(1));
+        assertTrue(store.contains(2));
+        assertTrue(store.contains(3));
+        assertEquals(size * 2, store.getSize());
+    }
+
+    @Test
+    void evictLapsed() throws Exception {
+        File dir = Files.createTempDirectory("resultstore").toFile();
+        ResultStore store = new ResultStore(dir, false, 200, 0);
+        File file = store.save(1, result(10));
+        assertTrue(store.contains(1));
+        Thread.sleep(300);
+        assertFalse(store.contains(1));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    void evictWhileOpen() throws Exception {
+        File dir = Files.createTempDirectory("resultstore").toFile();
+        ResultStore store = new ResultStore(dir, false, 200, 0);
+        JSONObject json = result(10000);
+        File file = store.save(1, json);
+        Reader reader = store.open(1);
+        Reader other = store.open(1);
+        Thread.sleep(300);
+        assertFalse(store.contains(1)); // evicted...
+        assertTrue(file.exists());      // ...but still being read
+        other.close();
+        assertTrue(file.exists());
+        StringWriter sw = new StringWriter();
+        reader.transferTo(sw);
+        reader.close();
+        assertEquals(json.toString(), sw.toString());
+        assertFalse(file.exists());     // deleted when the last reader is closed
+        reader.close();                 // closing again has no effect
+        assertEquals(0, store.getSize());
+    }
+}
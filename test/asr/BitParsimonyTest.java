@@ -0,0 +1,79 @@
+package asr;
+
+import dat.file.Newick;
+import dat.phylo.Tree;
+import dat.phylo.TreeInstance;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BitParsimonyTest {
+
+    // includes polytomies, where Fitch's rule is not optimal
+    Tree tree = Newick.parse("(((S001:0.14,(S002:0.16,S003:0.1,S011:0.1)N3:0.08)N2:0.03,S004:0.12,S012:0.3,S013:0.2)N1:0.14,((S005:0.28,(S006:0.12,S007:0.14)N6:0.13)N5:0.06,(S008:0.2,(S009:0.12,S010:0.19)N8:0.07)N7:0.11)N4:0.06)N0:0.0;");
+
+    TreeInstance[] randomInstances(int nchars, Random rand) {
+        TreeInstance[] tis = new TreeInstance[nchars];
+        for (int i = 0; i < nchars; i ++) {
+            Object[] values = new Object[tree.getSize()];
+            int nvals = 1 + rand.nextInt(4);
+            for (int idx : tree.getLeaves())
+                values[idx] = rand.nextInt(4) == 0 ? null : rand.nextInt(nvals);
+            tis[i] = (i % 50 == 0) ? null : new TreeInstance(tree, values); // leave some characters out
+        }
+        return tis;
+    }
+
+    @Test
+    void getOptimal() {
+        for (boolean recodeNull : new boolean[] {false, true}) {
+            TreeInstance[] tis = randomInstances(300, new Random(recodeNull ? 1 : 0));
+            BitParsimony bp = new BitParsimony(tree, tis, recodeNull);
+            assertEquals(tis.length, bp.getNCharacters());
+            for (int i = 0; i < tis.length; i ++) {
+                if (tis[i] == null) {
+                    assertNull(bp.getOptimal(i, 0));
+                    continue;
+                }
+                Parsimony p = new Parsimony(tree, recodeNull);
+                p.decorate(tis[i]);
+                for (int idx : tree) {
+                    List expected = p.getOptimal(idx);
+                    List actual = bp.getOptimal(i, idx);
+                    assertEquals(expected.size(), actual.size());
+                    assertEquals(new HashSet(expected), new HashSet(actual));
+                }
+            }
+        }
+    }
+
+    @Test
+    void getOptimalBoolean() {
+        Random rand = new Random(2);
+        TreeInstance[] tis = new TreeInstance[130];
+        for (int i = 0; i < tis.length; i ++) {
+            Object[] values = new Object[tree.getSize()];
+            for (int idx : tree.getLeaves())
+                values[idx] = rand.nextInt(3) == 0 ? null : rand.nextBoolean();
+            tis[i] = new TreeInstance(tree, values);
+        }
+        BitParsimony bp = new BitParsimony(tree, tis, false);
+        for (int i = 0; i < tis.length; i ++) {
+            Parsimony p = new Parsimony(tree, false);
+            p.decorate(tis[i]);
+            for (int idx : tree.getAncestors())
+                assertEquals(new HashSet(p.getOptimal(idx)), new HashSet(bp.getOptimal(i, idx)));
+        }
+    }
+
+    @Test
+    void incompatibleTree() {
+        Tree other = Newick.parse("((A:0.1,B:0.2)X:0.1,C:0.3)Y:0.0;");
+        TreeInstance[] tis = new TreeInstance[] {new TreeInstance(other, new Object[other.getSize()])};
+        assertThrows(ASRRuntimeException.class, () -> new BitParsimony(tree, tis, false));
+    }
+}
@@ -0,0 +1,76 @@
+package asr;
+
+import bn.ctmc.SubstModel;
+import dat.Enumerable;
+import dat.file.Newick;
+import dat.phylo.Tree;
+import dat.phylo.TreeDecor;
+import dat.phylo.TreeInstance;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DecorSchedulerTest {
+
+    Tree tree = Newick.parse("(((S001:0.14,(S002:0.16,S003:0.1)N3:0.08)N2:0.03,S004:0.12)N1:0.14,((S005:0.28,(S006:0.12,S007:0.14)N6:0.13)N5:0.06,(S008:0.2,(S009:0.12,S010:0.19)N8:0.07)N7:0.11)N4:0.06)N0:0.0;");
+
+    TreeInstance[] randomInstances(int npos, Random rand) {
+        TreeInstance[] tis = new TreeInstance[npos];
+        for (int i = 0; i < npos; i ++) {
+            Object[] values = new Object[tree.getSize()];
+            for (int idx : tree.getLeaves())
+                values[idx] = Enumerable.aacid.get(rand.nextInt(Enumerable.aacid.size()));
+            tis[i] = new TreeInstance(tree, values);
+        }
+        return tis;
+    }
+
+    @Test
+    void runBatch() {
+        int NPOS = 200;
+        SubstModel model = SubstModel.createModel("JTT");
+        TreeInstance[] tis = randomInstances(NPOS, new Random(1));
+        TreeDecor[] decors = new TreeDecor[NPOS];
+        for (int i = 0; i < NPOS; i ++) // leave some jobs out
+            decors[i] = (i % 7 == 0) ? null : new Felsenstein.Joint(tree, model);
+        TreeDecor[] ret = DecorScheduler.getShared(4).runBatch(decors, tis);
+        assertEquals(NPOS, ret.length);
+        for (int i = 0; i < NPOS; i ++) {
+            if (decors[i] == null) {
+                assertNull(ret[i]);
+                continue;
+            }
+            Felsenstein.Joint seq = new Felsenstein.Joint(tree, model);
+            seq.decorate(tis[i]);
+            for (int idx : tree.getAncestors())
+                assertEquals(seq.getDecoration(idx), ret[i].getDecoration(idx));
+        }
+    }
+
+    @Test
+    void runRange() {
+        int N = 1000;
+        int[] res = new int[N];
+        DecorScheduler.getShared(4).runRange(N, i -> res[i] = i * i);
+        for (int i = 0; i < N; i ++)
+            assertEquals(i * i, res[i]);
+        assertThrows(ArithmeticException.class, () -> DecorScheduler.getShared(4).runRange(N, i -> res[i] = 1 / (i - 500)));
+    }
+
+    @Test
+    void getShared() {
+        DecorScheduler s1 = DecorScheduler.getShared(3);
+        assertSame(s1, DecorScheduler.getShared(3));
+        assertEquals(3, s1.getNThreads());
+        DecorScheduler s2 = DecorScheduler.getShared(2);
+        assertNotSame(s1, s2);
+        assertEquals(2, s2.getNThreads());
+        // the first pool is kept, and can still be used
+        assertSame(s1, DecorScheduler.getShared(3));
+        int[] res = new int[100];
+        s1.runRange(res.length, i -> res[i] = i);
+        assertEquals(99, res[99]);
+    }
+}
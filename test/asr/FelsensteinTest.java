@@ -0,0 +1,149 @@
+package asr;
+
+import bn.ctmc.SubstModel;
+import bn.prob.EnumDistrib;
+import dat.EnumSeq;
+import dat.Enumerable;
+import dat.file.Newick;
+import dat.file.Utils;
+import dat.phylo.IdxTree;
+import dat.phylo.Tree;
+import dat.phylo.TreeInstance;
+import dat.pog.POGTree;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FelsensteinTest {
+
+    Tree tree = Newick.parse("(((S001:0.14,(S002:0.16,S003:0.1)N3:0.08)N2:0.03,S004:0.12)N1:0.14,((S005:0.28,(S006:0.12,S007:0.14)N6:0.13)N5:0.06,(S008:0.2,(S009:0.12,S010:0.19)N8:0.07)N7:0.11)N4:0.06)N0:0.0;");
+    int NSEEDs = 50;
+
+    TreeInstance randomLeaves(IdxTree t, SubstModel model, Random rand) {
+        Object[] values = new Object[t.getSize()];
+        Object[] alpha = model.getDomain().getValues();
+        for (int idx : t.getLeaves())
+            values[idx] = rand.nextInt(5) == 0 ? null : alpha[rand.nextInt(3)]; // a few related states, some leaves uninstantiated
+        return new TreeInstance(t, values);
+    }
+
+    @Test
+    void getJoint() {
+        SubstModel model = SubstModel.createModel("LG");
+        for (int SEED = 0; SEED < NSEEDs; SEED ++) {
+            Random rand = new Random(SEED);
+            TreeInstance ti = randomLeaves(tree, model, rand);
+            double rate = 0.5 + rand.nextDouble();
+            MaxLhoodJoint mlj = new MaxLhoodJoint(tree, model, rate);
+            mlj.decorate(ti);
+            Felsenstein.Joint fj = new Felsenstein.Joint(tree, model, rate);
+            fj.decorate(ti);
+            for (int idx : tree)
+                assertEquals(mlj.getDecoration(idx), fj.getDecoration(idx));
+        }
+    }
+
+    @Test
+    void getJointPruned() {
+        SubstModel model = SubstModel.createModel("JTT");
+        Set<Integer> pruneMe = new HashSet<>();
+        pruneMe.add(tree.getIndex("S005"));
+        pruneMe.add(tree.getIndex("N5"));
+        IdxTree pruned = IdxTree.createPrunedTree(tree, tree.getPrunedIndex(pruneMe, false));
+        for (int SEED = 0; SEED < NSEEDs; SEED ++) {
+            Random rand = new Random(SEED);
+            TreeInstance ti = randomLeaves(pruned, model, rand);
+            MaxLhoodJoint mlj = new MaxLhoodJoint(pruned, model);
+            mlj.decorate(ti);
+            Felsenstein.Joint fj = new Felsenstein.Joint(pruned, model);
+            fj.decorate(ti);
+            for (int idx : pruned)
+                assertEquals(mlj.getDecoration(idx), fj.getDecoration(idx));
+        }
+    }
+
+    @Test
+    void getMarginal() {
+        SubstModel model = SubstModel.createModel("WAG");
+        for (int SEED = 0; SEED < NSEEDs; SEED ++) {
+            Random rand = new Random(SEED);
+            TreeInstance ti = randomLeaves(tree, model, rand);
+            for (int ancidx : tree.getAncestors()) {
+                MaxLhoodMarginal<EnumDistrib> mlm = new MaxLhoodMarginal<>(ancidx, tree, model);
+                mlm.decorate(ti);
+                Felsenstein.Marginal fm = new Felsenstein.Marginal(ancidx, tree, model);
+                fm.decorate(ti);
+                EnumDistrib expected = mlm.getDecoration(ancidx);
+                EnumDistrib actual = fm.getDecoration(ancidx);
+                for (Object sym : model.getDomain().getValues())
+                    assertEquals(expected.get(sym), actual.get(sym), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    void getMarginals() {
+        SubstModel model = SubstModel.createModel("WAG");
+        Set<Integer> pruneMe = new HashSet<>();
+        pruneMe.add(tree.getIndex("S005"));
+        pruneMe.add(tree.getIndex("N5"));
+        IdxTree pruned = IdxTree.createPrunedTree(tree, tree.getPrunedIndex(pruneMe, false));
+        for (IdxTree t : new IdxTree[] {tree, pruned}) {
+            for (int SEED = 0; SEED < NSEEDs; SEED ++) {
+                Random rand = new Random(SEED);
+                TreeInstance ti = randomLeaves(t, model, rand);
+                double rate = 0.5 + rand.nextDouble();
+                Felsenstein.Marginals fms = new Felsenstein.Marginals(t, model, rate);
+                fms.decorate(ti);
+                for (int idx : t) {
+                    if (ti.getInstance(idx) != null) {
+                        assertNull(fms.getDecoration(idx));
+                        continue;
+                    }
+                    Felsenstein.Marginal fm = new Felsenstein.Marginal(idx, t, model, rate);
+                    fm.decorate(ti);
+                    EnumDistrib expected = fm.getDecoration(idx);
+                    EnumDistrib actual = fms.getDecoration(idx);
+                    for (Object sym : model.getDomain().getValues())
+                        assertEquals(expected.get(sym), actual.get(sym), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    void getMarginalsPrediction() throws IOException, ASRException {
+        SubstModel model = SubstModel.createModel("JTT");
+        EnumSeq.Alignment aln = Utils.loadAlignment("data/3_2_1_1_filt.aln", Enumerable.aacid);
+        Tree phylo = Utils.loadTree("data/3_2_1_1_filt.nwk");
+        Prediction all = Prediction.PredictByBidirEdgeParsimony(new POGTree(aln, phylo));
+        EnumDistrib[][] distribs = all.getMarginals(model, null);
+        Prediction one = Prediction.PredictByBidirEdgeParsimony(new POGTree(aln, phylo));
+        for (Object ancID : new Object[] {0, 1, 7, 20}) {
+            EnumDistrib[] expected = one.getMarginal(ancID, model, null);
+            EnumDistrib[] actual = distribs[all.getBranchpointIndex(ancID)];
+            assertEquals(expected.length, actual.length);
+            for (int pos = 0; pos < expected.length; pos ++) {
+                if (expected[pos] == null) {
+                    assertNull(actual[pos]);
+                    continue;
+                }
+                for (Object sym : model.getDomain().getValues())
+                    assertEquals(expected[pos].get(sym), actual[pos].get(sym), 1e-9);
+            }
+            assertSame(actual, all.getMarginal(ancID, model, null)); // already inferred
+        }
+    }
+
+    @Test
+    void getMarginalInvalid() {
+        SubstModel model = SubstModel.createModel("WAG");
+        Felsenstein.Marginal fm = new Felsenstein.Marginal(1, tree, model);
+        assertThrows(ASRRuntimeException.class, () -> fm.getDecoration(2));
+    }
+}
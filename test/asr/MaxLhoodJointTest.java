@@ -522,4 +522,39 @@ class MaxLhoodJointTest {
             }
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void sharedPlans() {
+        // columns with the same pattern of instantiated nodes re-use the plan compiled for the first
+        SubstModel model = SubstModel.createModel("WAG");
+        Object[] alpha = model.getDomain().getValues();
+        Random rand = new Random(1);
+        int NCOLS = 20;
+        bn.alg.VarElim.PlanCache plans = new bn.alg.VarElim.PlanCache();
+        bn.alg.VarElim.PlanCache recoded = new bn.alg.VarElim.PlanCache();
+        SubstModel.ModelCache modelcache = new SubstModel.ModelCache(20);
+        for (int col = 0; col < NCOLS; col ++) {
+            Object[] values = new Object[tree.getSize()];
+            for (int idx : tree.getLeaves())
+                values[idx] = alpha[rand.nextInt(4)];
+            TreeInstance ti = new TreeInstance(tree, values);
+            MaxLhoodJoint expected = new MaxLhoodJoint(tree, model);
+            expected.decorate(ti);
+            MaxLhoodJoint actual = new MaxLhoodJoint(tree, model, plans);
+            actual.decorate(ti);
+            MaxLhoodJoint recode = new MaxLhoodJoint(tree, modelcache, recoded);
+            recode.decorate(ti);
+            MaxLhoodJoint recodeExpected = new MaxLhoodJoint(tree, modelcache);
+            recodeExpected.decorate(ti);
+            for (int idx : tree.getAncestors()) {
+                assertEquals(expected.getDecoration(idx), actual.getDecoration(idx));
+                assertEquals(recodeExpected.getDecoration(idx), recode.getDecoration(idx));
+            }
+        }
+        assertEquals(1, plans.size());
+        assertEquals(1, plans.getMisses());
+        assertEquals(NCOLS - 1, plans.getHits());
+        assertEquals(1, recoded.size());
+        assertEquals(NCOLS - 1, recoded.getHits());
+    }
+}
@@ -0,0 +1,58 @@
+package asr;
+
+import dat.EnumSeq;
+import dat.Enumerable;
+import dat.file.Utils;
+import dat.phylo.Tree;
+import dat.pog.POGTree;
+import dat.pog.POGraph;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PredictionTest {
+
+    @Test
+    void saveBinary() throws IOException, ASRException {
+        EnumSeq.Alignment aln = Utils.loadAlignment("data/3_2_1_1_filt.aln", Enumerable.aacid);
+        Tree phylo = Utils.loadTree("data/3_2_1_1_filt.nwk");
+        Prediction expected = Prediction.PredictByBidirEdgeParsimony(new POGTree(aln, phylo));
+        File json = File.createTempFile("ASR", ".json");
+        json.deleteOnExit();
+        File bin = File.createTempFile("ASR", ".bin");
+        bin.deleteOnExit();
+        expected.save(json.getPath());
+        expected.saveBinary(bin.getPath());
+        Prediction fromjson = Prediction.load(json.getPath());
+        Prediction frombin = Prediction.load(bin.getPath()); // detects the format
+        assertEquals(fromjson.getTree(), frombin.getTree());
+        for (int idx : phylo.getAncestors()) {
+            Object ancID = phylo.getLabel(idx);
+            POGraph pog = frombin.getAncestor(ancID);
+            assertEquals(expected.getAncestor(ancID), pog);
+            assertSame(pog, frombin.getAncestor(ancID)); // loaded once
+            assertArrayEquals(fromjson.getConsensus(idx), frombin.getConsensus(idx));
+        }
+        for (int idx : phylo.getLeaves())
+            assertEquals(fromjson.getExtant(phylo.getLabel(idx)), frombin.getExtant(phylo.getLabel(idx)));
+    }
+
+    @Test
+    void writeRead() throws IOException, ASRException {
+        EnumSeq.Alignment aln = Utils.loadAlignment("data/3_2_1_1_filt.aln", Enumerable.aacid);
+        Tree phylo = Utils.loadTree("data/3_2_1_1_filt.nwk");
+        Prediction expected = Prediction.PredictByBidirEdgeParsimony(new POGTree(aln, phylo));
+        StringWriter sw = new StringWriter();
+        expected.write(sw);
+        assertEquals(expected.toJSON().toString(), sw.toString()); // same text, as for JSON object
+        Prediction actual = Prediction.read(new StringReader(sw.toString()));
+        for (int idx : phylo.getAncestors())
+            assertEquals(expected.getAncestor(phylo.getLabel(idx)), actual.getAncestor(phylo.getLabel(idx)));
+        assertThrows(ASRRuntimeException.class, () -> Prediction.read(new StringReader("{\"Datatype\":\"Prediction\", \"Ancestors\":[]}")));
+    }
+}
@@ -0,0 +1,76 @@
+package bn.alg;
+
+import bn.BNet;
+import bn.Predef;
+import bn.node.CPT;
+import bn.prob.EnumDistrib;
+import dat.EnumVariable;
+import dat.Variable;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EMTest {
+
+    /**
+     * Naive Bayes network with a latent class variable and observed (sometimes missing) features.
+     */
+    static CPT[] createNodes(EnumVariable[] vars) {
+        CPT[] nodes = new CPT[vars.length];
+        nodes[0] = new CPT(vars[0]);
+        nodes[0].put(new EnumDistrib(vars[0].getDomain(), new double[] {0.3, 0.3, 0.4})); // randomize does not use seed for priors
+        for (int i = 1; i < vars.length; i ++)
+            nodes[i] = new CPT(vars[i], vars[0]);
+        return nodes;
+    }
+
+    static Object[][] createData(EnumVariable[] vars, int nSamples, Random rand) {
+        Object[][] data = new Object[nSamples][vars.length - 1];
+        for (int k = 0; k < nSamples; k ++) {
+            int cls = rand.nextInt(3);
+            for (int j = 1; j < vars.length; j ++) {
+                Object[] values = vars[j].getDomain().getValues();
+                data[k][j - 1] = rand.nextDouble() < 0.1 ? null : values[(cls + (rand.nextDouble() < 0.8 ? 0 : rand.nextInt(values.length))) % values.length];
+            }
+        }
+        return data;
+    }
+
+    @Test
+    void trainParallel() {
+        EnumVariable[] vars = new EnumVariable[5];
+        vars[0] = Predef.Number(3, "Class");
+        for (int i = 1; i < vars.length; i ++)
+            vars[i] = Predef.NucleicAcid("F" + i);
+        Variable[] observed = new Variable[vars.length - 1];
+        System.arraycopy(vars, 1, observed, 0, observed.length);
+        Object[][] data = createData(vars, 200, new Random(1));
+        CPT[] serial = createNodes(vars);
+        CPT[] parallel = createNodes(vars);
+        BNet bn1 = new BNet();
+        bn1.add(serial);
+        EM em1 = new EM(bn1);
+        em1.setEMOption(1);
+        em1.setMaxRounds(20);
+        em1.train(data, observed, 3L);
+        BNet bn3 = new BNet();
+        bn3.add(parallel);
+        EM em3 = new EM(bn3);
+        em3.setEMOption(3);
+        em3.setThreadCount(4);
+        em3.setMaxRounds(20);
+        em3.train(data, observed, 3L);
+        for (int i = 0; i < vars.length; i ++) {
+            for (Object value : vars[i].getDomain().getValues()) {
+                if (i == 0)
+                    assertEquals(serial[i].get(value), parallel[i].get(value), 1e-6);
+                else {
+                    for (Object cls : vars[0].getDomain().getValues())
+                        assertEquals(serial[i].get(value, cls), parallel[i].get(value, cls), 1e-6);
+                }
+            }
+        }
+    }
+}
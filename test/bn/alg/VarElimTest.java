@@ -0,0 +1,132 @@
+package bn.alg;
+
+import bn.BNet;
+import bn.BNode;
+import bn.Predef;
+import bn.ctmc.SubstModel;
+import bn.node.CPT;
+import bn.prob.EnumDistrib;
+import dat.EnumVariable;
+import dat.Variable;
+import dat.file.Newick;
+import dat.phylo.PhyloBN;
+import dat.phylo.Tree;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VarElimTest {
+
+    Tree tree = Newick.parse("(((S001:0.14,(S002:0.16,S003:0.1)N3:0.08)N2:0.03,S004:0.12)N1:0.14,((S005:0.28,(S006:0.12,S007:0.14)N6:0.13)N5:0.06,(S008:0.2,(S009:0.12,S010:0.19)N8:0.07)N7:0.11)N4:0.06)N0:0.0;");
+
+    void setLeaves(PhyloBN pbn, Object[] alpha, Random rand) {
+        for (int idx : tree.getLeaves())
+            pbn.getBNode(idx).setInstance(alpha[rand.nextInt(alpha.length)]);
+    }
+
+    @Test
+    void inferPlan() {
+        SubstModel model = SubstModel.createModel("JTT");
+        Object[] alpha = model.getDomain().getValues();
+        PhyloBN pbn = PhyloBN.create(tree, model);
+        VarElim ve = new VarElim();
+        ve.instantiate(pbn.getBN());
+        Random rand = new Random(1);
+        setLeaves(pbn, alpha, rand);
+        VarElim.Plan plan = ve.compile(ve.makeMPE());
+        assertNotNull(plan.kernel);
+        for (int i = 0; i < 20; i ++) {
+            setLeaves(pbn, alpha, rand); // same nodes instantiated, different values
+            assertTrue(ve.isApplicable(plan));
+            CGTable expected = (CGTable) ve.infer(ve.makeMPE());
+            CGTable actual = (CGTable) ve.infer(plan);
+            Map<Variable, Object> e = new HashMap<>();
+            for (Variable.Assignment assign : expected.getMPE())
+                e.put(assign.var, assign.val);
+            Variable.Assignment[] a = actual.getMPE();
+            assertEquals(e.size(), a.length);
+            for (Variable.Assignment assign : a)
+                assertEquals(e.get(assign.var), assign.val);
+        }
+    }
+
+    @Test
+    void inferPlanTies() {
+        // all joint states are equally probable, so the kernel must choose between them as inference without plan does
+        EnumVariable[] vars = new EnumVariable[5];
+        CPT[] nodes = new CPT[vars.length];
+        vars[0] = Predef.Number(3, "Root");
+        nodes[0] = new CPT(vars[0]);
+        nodes[0].put(EnumDistrib.uniform(vars[0].getDomain()));
+        for (int i = 1; i < vars.length; i ++) {
+            EnumVariable parent = vars[(i - 1) / 2];
+            vars[i] = Predef.NucleicAcid("X" + i);
+            nodes[i] = new CPT(vars[i], parent);
+            for (Object value : parent.getDomain().getValues())
+                nodes[i].put(EnumDistrib.uniform(vars[i].getDomain()), value);
+        }
+        BNet bn = new BNet();
+        bn.add(nodes);
+        VarElim ve = new VarElim();
+        ve.instantiate(bn);
+        nodes[4].setInstance('G');
+        VarElim.Plan plan = ve.compile(ve.makeMPE());
+        assertNotNull(plan.kernel);
+        CGTable expected = (CGTable) ve.infer(ve.makeMPE());
+        CGTable actual = (CGTable) ve.infer(plan);
+        Map<Variable, Object> e = new HashMap<>();
+        for (Variable.Assignment assign : expected.getMPE())
+            e.put(assign.var, assign.val);
+        Variable.Assignment[] a = actual.getMPE();
+        assertEquals(e.size(), a.length);
+        for (Variable.Assignment assign : a)
+            assertEquals(e.get(assign.var), assign.val);
+    }
+
+    @Test
+    void inferPlanNotApplicable() {
+        SubstModel model = SubstModel.createModel("JTT");
+        PhyloBN pbn = PhyloBN.create(tree, model);
+        VarElim ve = new VarElim();
+        ve.instantiate(pbn.getBN());
+        setLeaves(pbn, model.getDomain().getValues(), new Random(2));
+        VarElim.Plan plan = ve.compile(ve.makeMPE());
+        BNode leaf = pbn.getBNode(tree.getIndex("S001"));
+        leaf.resetInstance();
+        assertFalse(ve.isApplicable(plan));
+        assertThrows(VarElim.VarElimRuntimeException.class, () -> ve.infer(plan));
+    }
+
+    @Test
+    void inferPlanOtherBN() {
+        // a plan compiled for one BN applies to another with the same structure, e.g. that of another column
+        SubstModel model = SubstModel.createModel("JTT");
+        Object[] alpha = model.getDomain().getValues();
+        PhyloBN pbn1 = PhyloBN.create(tree, model);
+        VarElim ve1 = new VarElim();
+        ve1.instantiate(pbn1.getBN());
+        Random rand = new Random(3);
+        setLeaves(pbn1, alpha, rand);
+        VarElim.Plan plan = ve1.compile(ve1.makeMPE());
+        for (int i = 0; i < 10; i ++) {
+            PhyloBN pbn2 = PhyloBN.create(tree, model);
+            VarElim ve2 = new VarElim();
+            ve2.instantiate(pbn2.getBN());
+            setLeaves(pbn2, alpha, rand);
+            assertTrue(ve2.isApplicable(plan));
+            CGTable expected = (CGTable) ve2.infer(ve2.makeMPE());
+            CGTable actual = (CGTable) ve2.infer(plan);
+            Map<Variable, Object> e = new HashMap<>();
+            for (Variable.Assignment assign : expected.getMPE())
+                e.put(assign.var, assign.val);
+            Variable.Assignment[] a = actual.getMPE();
+            assertEquals(e.size(), a.length);
+            for (Variable.Assignment assign : a)
+                assertEquals(e.get(assign.var), assign.val);
+        }
+    }
+}
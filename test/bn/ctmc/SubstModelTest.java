@@ -31,9 +31,58 @@ class SubstModelTest {
                 TimeUnit.MILLISECONDS.toSeconds(ELAPSED_TIME) - TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(ELAPSED_TIME)), TimeUnit.MILLISECONDS.toMillis(ELAPSED_TIME)));
     }
 
+    @Test
+    void getProbsBatch() {
+        double[] distances = {0.0, 0.01, 0.12, 0.5, 2.3};
+        double[] rates = {0.3, 1.0, 1.7};
+        int N = mymod.getDomain().size();
+        double[] batch = mymod.getProbs(distances, rates);
+        assertEquals(rates.length * distances.length * N * N, batch.length);
+        for (int r = 0; r < rates.length; r ++) {
+            for (int b = 0; b < distances.length; b ++) {
+                double[][] expected = SubstModel.getProbs(distances[b] * rates[r], mymod.getRexp());
+                int offset = (r * distances.length + b) * N * N;
+                for (int i = 0; i < N; i ++)
+                    for (int j = 0; j < N; j ++)
+                        assertEquals(expected[i][j], batch[offset + i * N + j]);
+            }
+        }
+        double[] single = mymod.getProbs(new double[] {distances[2] * rates[1]});
+        for (int i = 0; i < N * N; i ++)
+            assertEquals(batch[(distances.length + 2) * N * N + i], single[i]);
+    }
+
     @Test
     void getProb() {
-        // TODO: test caching
+        SubstModel.ProbsCache cache = mymod.getProbsCache();
+        cache.clear();
+        long hits = cache.getHits(), misses = cache.getMisses();
+        double[][] expected = SubstModel.getProbs(0.3, mymod.getRexp());
+        Object[] syms = mymod.getDomain().getValues();
+        for (int i = 0; i < syms.length; i ++)
+            for (int j = 0; j < syms.length; j ++)
+                assertEquals(expected[j][i], mymod.getProb(syms[i], syms[j], 0.3), 1e-12);
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(hits + syms.length * syms.length - 1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
 
+    @Test
+    void getProbsBounded() {
+        SubstModel model = SubstModel.createModel("WAG");
+        model.getProbsCache().clear();
+        int size = model.CACHE_SIZE;
+        model.CACHE_SIZE = 10;
+        long evictions = model.getProbsCache().getEvictions();
+        for (int i = 0; i < 100; i ++) {
+            model.getProbs(ts[i]);
+            model.getProbs(ts[0]); // keep referencing the first, so it is never evicted
+        }
+        assertEquals(10, model.getProbsCache().size());
+        assertEquals(evictions + 90, model.getProbsCache().getEvictions());
+        long misses = model.getProbsCache().getMisses();
+        model.getProbs(ts[0]);
+        assertEquals(misses, model.getProbsCache().getMisses());
+        model.CACHE_SIZE = size;
     }
 }
\ No newline at end of file
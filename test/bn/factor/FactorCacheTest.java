@@ -0,0 +1,81 @@
+package bn.factor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FactorCacheTest {
+
+    static AbstractFactor.FactorMap getMap(int size) {
+        return new DenseFactor().new FactorMap(new double[size]);
+    }
+
+    @Test
+    void boundedByEntries() {
+        FactorCache cache = new FactorCache(10, Long.MAX_VALUE);
+        for (int key = 0; key < 5; key ++) { // re-used entries are promoted...
+            cache.put(key, getMap(4));
+            assertNotNull(cache.get(key));
+        }
+        for (int key = 100; key < 200; key ++) // ...and survive a scan of entries used once
+            cache.put(key, getMap(4));
+        assertEquals(10, cache.size());
+        for (int key = 0; key < 5; key ++)
+            assertNotNull(cache.get(key));
+        assertNull(cache.get(100));
+        assertNotNull(cache.get(199));
+        FactorCache.Metrics metrics = cache.getMetrics();
+        assertEquals(11, metrics.hits);
+        assertEquals(1, metrics.misses);
+        assertEquals(95, metrics.evictions);
+        assertEquals(10, metrics.entries);
+    }
+
+    @Test
+    void boundedByBytes() {
+        long bytes = FactorCache.getBytes(getMap(400));
+        FactorCache cache = new FactorCache(1000, bytes * 3);
+        for (int key = 0; key < 10; key ++)
+            cache.put(key, getMap(400));
+        assertEquals(3, cache.size());
+        assertEquals(bytes * 3, cache.getBytes());
+        assertEquals(7, cache.getEvictions());
+        cache.put(10, getMap(4000)); // too large to cache
+        assertNull(cache.get(10));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    void concurrent() throws Exception {
+        FactorCache cache = new FactorCache(100, Long.MAX_VALUE);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t ++) {
+                final int seed = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10000; i ++) {
+                        int key = (i * 31 + seed) % 300;
+                        if (cache.get(key) == null)
+                            cache.put(key, getMap(4));
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(100, cache.size());
+        assertEquals(40000, cache.getHits() + cache.getMisses());
+        assertEquals(FactorCache.getBytes(getMap(4)) * 100, cache.getBytes());
+    }
+}
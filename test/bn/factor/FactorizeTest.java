@@ -325,4 +325,115 @@ class FactorizeTest {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Dense factor over random enumerable variables, with some entries zero.
+     */
+    protected static AbstractFactor getEnumFactor(Random random, EnumVariable[] vars) {
+        return getEnumFactor(random, vars, 300, 0);
+    }
+
+    /**
+     * Dense factor over random enumerable variables, with some entries zero, and others uniformly drawn,
+     * then multiplied by a random power of ten between 10^-range and 10^0, then by 10^exponent.
+     */
+    protected static AbstractFactor getEnumFactor(Random random, EnumVariable[] vars, int range, int exponent) {
+        Set<EnumVariable> unique = new HashSet<>();
+        int n = random.nextInt(vars.length) + 1;
+        while (unique.size() < n)
+            unique.add(vars[random.nextInt(vars.length)]);
+        AbstractFactor f = new DenseFactor(unique.toArray(new EnumVariable[0]));
+        AbstractFactor.FactorFiller ff = f.getFiller();
+        for (int i = 0; i < f.getSize(); i++) {
+            if (random.nextInt(10) > 0)
+                ff.setLogValue(i, Math.log(random.nextDouble() * Math.pow(10, -random.nextInt(range))) + exponent * Math.log(10));
+        }
+        f.setValuesByFiller(ff);
+        return f;
+    }
+
+    protected static void assertSameLogValues(AbstractFactor expected, AbstractFactor actual) {
+        assertEquals(expected.getSize(), actual.getSize());
+        if (expected.getSize() == 1) {
+            assertEquals(expected.getLogValue(), actual.getLogValue(), Math.abs(expected.getLogValue()) * 1e-12);
+        } else {
+            assertArrayEquals(expected.getEnumVars(), actual.getEnumVars());
+            for (int i = 0; i < expected.getSize(); i++)
+                assertEquals(expected.getLogValue(i), actual.getLogValue(i), Math.abs(expected.getLogValue(i)) * 1e-12);
+        }
+    }
+
+    @Test
+    void getProductMarginKernels() {
+        Random random = new Random(1);
+        EnumVariable[] vars = new EnumVariable[6];
+        for (int i = 0; i < vars.length; i++)
+            vars[i] = i % 2 == 0 ? Predef.NucleicAcid() : Predef.Number(random.nextInt(5) + 2);
+        try {
+            for (int t = 0; t < 200; t++) {
+                AbstractFactor X = getEnumFactor(random, vars);
+                AbstractFactor Y = getEnumFactor(random, vars);
+                EnumVariable[] sumout = new EnumVariable[random.nextInt(X.nEVars) + 1];
+                for (int i = 0; i < sumout.length; i++)
+                    sumout[i] = X.evars[random.nextInt(X.nEVars)];
+                Factorize.USE_KERNELS = false;
+                AbstractFactor expectedXY = Factorize.getProduct(X, Y);
+                AbstractFactor expectedM = Factorize.getMargin(X, sumout);
+                Factorize.USE_KERNELS = true;
+                assertSameLogValues(expectedXY, Factorize.getProduct(X, Y));
+                assertSameLogValues(expectedM, Factorize.getMargin(X, sumout));
+            }
+        } finally {
+            Factorize.USE_KERNELS = true;
+        }
+    }
+
+
+    @Test
+    void getScaledProductMargin() {
+        Random random = new Random(2);
+        EnumVariable[] vars = new EnumVariable[6];
+        for (int i = 0; i < vars.length; i++)
+            vars[i] = i % 2 == 0 ? Predef.NucleicAcid() : Predef.Number(random.nextInt(5) + 2);
+        for (int t = 0; t < 200; t++) {
+            // values within a table vary by less than the range of doubles, but tables are far from 1
+            AbstractFactor X = getEnumFactor(random, vars, 20, -random.nextInt(300));
+            AbstractFactor Y = getEnumFactor(random, vars, 20, -random.nextInt(300));
+            AbstractFactor Z = getEnumFactor(random, vars, 20, -random.nextInt(300));
+            EnumVariable[] sumout = new EnumVariable[random.nextInt(X.nEVars + Y.nEVars) + 1];
+            for (int i = 0; i < sumout.length; i++)
+                sumout[i] = random.nextBoolean() ? X.evars[random.nextInt(X.nEVars)] : Y.evars[random.nextInt(Y.nEVars)];
+            AbstractFactor expected = Factorize.getProduct(Factorize.getMargin(Factorize.getProduct(X, Y), sumout), Z);
+            AbstractFactor sx = Factorize.getScaled(X);
+            AbstractFactor sy = Factorize.getScaled(Y);
+            assertEquals(AbstractFactor.TYPE_SCALED, sx.getFactorType());
+            AbstractFactor actual = Factorize.getProduct(Factorize.getMargin(Factorize.getProduct(sx, sy), sumout), Z);
+            assertEquals(AbstractFactor.TYPE_SCALED, actual.getFactorType());
+            assertSameLogValues(expected, actual);
+            if (actual.hasEnumVars()) {
+                AbstractFactor normal = Factorize.getNormal(actual);
+                AbstractFactor expectedNormal = Factorize.getNormal(expected);
+                for (int i = 0; i < normal.getSize(); i++)
+                    assertEquals(expectedNormal.getValue(i), normal.getValue(i), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    void getScaledUnderflow() {
+        EnumVariable x = Predef.AminoAcid();
+        AbstractFactor f = new DenseFactor(x);
+        double[] logmap = new double[f.getSize()];
+        for (int i = 0; i < logmap.length; i++)
+            logmap[i] = -300 * Math.log(10) - i;
+        f.setLogValues(logmap);
+        AbstractFactor product = Factorize.getScaled(f);
+        for (int k = 1; k < 10; k++)
+            product = Factorize.getProduct(product, f); // values down to 1e-3000 in linear space
+        AbstractFactor margin = Factorize.getMargin(product, x);
+        double expected = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < logmap.length; i++)
+            expected = Factorize.logSumOfLogs(expected, 10 * logmap[i]);
+        assertEquals(expected, margin.getLogValue(), Math.abs(expected) * 1e-12);
+    }
+
+}
@@ -0,0 +1,76 @@
+package dat;
+
+import bn.Predef;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntMapTest {
+
+    /**
+     * Apply the same random puts, removes and removes-while-iterating to a map and a HashMap
+     */
+    void compare(IntMap<Double> imap, int nkeys, long seed) {
+        Map<Integer, Double> hmap = new HashMap<>();
+        Random rand = new Random(seed);
+        for (int n = 0; n < 20000; n ++) {
+            int key = rand.nextInt(nkeys);
+            switch (rand.nextInt(4)) {
+                case 0, 1 -> {
+                    Double value = rand.nextInt(10) == 0 ? null : rand.nextDouble();
+                    assertEquals(hmap.put(key, value), imap.put(key, value));
+                }
+                case 2 -> assertEquals(hmap.remove(key), imap.remove(key));
+                default -> assertEquals(hmap.containsKey(key), imap.containsKey(key));
+            }
+            assertEquals(hmap.size(), imap.size());
+        }
+        assertEquals(hmap, imap);
+        for (Iterator<Map.Entry<Integer, Double>> it = imap.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Double> entry = it.next();
+            if (entry.getKey() % 2 == 0) {
+                it.remove();
+                hmap.remove(entry.getKey());
+            }
+        }
+        assertEquals(hmap, imap);
+        assertEquals(hmap.size(), imap.keys().length);
+        for (int key : imap.keys())
+            assertTrue(hmap.containsKey(key));
+        imap.clear();
+        assertTrue(imap.isEmpty());
+        assertNull(imap.get(0));
+    }
+
+    @Test
+    void dense() {
+        compare(new IntMap.Dense<>(1000), 1000, 1);
+    }
+
+    @Test
+    void open() {
+        compare(new IntMap.Open<>(), 1000, 2);
+        compare(new IntMap.Open<>(), 1 << 24, 3);
+    }
+
+    @Test
+    void enumTable() {
+        EnumVariable[] small = {Predef.NucleicAcid("A"), Predef.NucleicAcid("B")};
+        EnumTable<Double> table = new EnumTable<>(small);
+        assertTrue(table.getMapRef() instanceof IntMap.Dense);
+        EnumVariable[] large = {Predef.AminoAcid("A"), Predef.AminoAcid("B"), Predef.AminoAcid("C")};
+        table = new EnumTable<>(large);
+        assertTrue(table.getMapRef() instanceof IntMap.Open);
+        Object[] key = {'C', 'W', 'Y'};
+        table.setValue(key, 0.5);
+        assertEquals(0.5, table.getValue(key), 1e-9);
+        assertArrayEquals(new int[] {table.getIndex(key)}, table.getIndices());
+        assertArrayEquals(new int[] {table.getIndex(key)}, table.getIndices(new Object[] {null, 'W', null}));
+        assertEquals(0, table.getIndices(new Object[] {null, 'Y', null}).length);
+    }
+}
@@ -0,0 +1,53 @@
+package dat.file;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockFileTest {
+
+    static File createTemp() throws IOException {
+        File file = File.createTempFile("block", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    void writeRead() throws IOException {
+        File file = createTemp();
+        try (BlockFile.Writer writer = new BlockFile.Writer(file.getPath())) {
+            writer.add("Tree", "", "(A,B)C;");
+            writer.add("POG", "N0", "{\"Name\":\"N0\"}");
+            writer.add("POG", "N1", new byte[0]);
+            writer.add("POG", "N2", "åäö");
+            assertThrows(IOException.class, () -> writer.add("POG", "N0", "again"));
+        }
+        assertTrue(BlockFile.isBlockFile(file.getPath()));
+        BlockFile blocks = new BlockFile(file.getPath());
+        assertEquals("(A,B)C;", blocks.getText("Tree", ""));
+        assertEquals(List.of("N0", "N1", "N2"), blocks.getNames("POG"));
+        assertEquals("{\"Name\":\"N0\"}", blocks.getText("POG", "N0"));
+        assertEquals(0, blocks.get("POG", "N1").length);
+        assertEquals("åäö", blocks.getText("POG", "N2"));
+        assertTrue(blocks.contains("POG", "N1"));
+        assertFalse(blocks.contains("POG", "N3"));
+        assertNull(blocks.get("POG", "N3"));
+        assertNull(blocks.get("Extant", "N0"));
+        assertTrue(blocks.getNames("Extant").isEmpty());
+    }
+
+    @Test
+    void invalid() throws IOException {
+        File file = createTemp();
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write("{\"Ancestors\":[], \"Input\":{}}\n");
+        }
+        assertFalse(BlockFile.isBlockFile(file.getPath()));
+        assertThrows(IOException.class, () -> new BlockFile(file.getPath()));
+    }
+}
@@ -0,0 +1,88 @@
+package dat.file;
+
+import dat.EnumSeq;
+import dat.Enumerable;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedAlnReaderTest {
+
+    static final String CLUSTAL = "CLUSTAL W (1.83) multiple sequence alignment\n\n\n" +
+            "P25101/1-20     ---METLCLRASFWLALVG---CVISDN\n" +
+            "P24530          MQPPPSLCGRALVALVLACGLSRIWGEE\n" +
+            "P30556          ----------------------------\n" +
+            "                :             \n\n" +
+            "P25101/1-20     FLVTTHQPTNLVLP--SNGS\n" +
+            "P24530          SLARSLAPAEVPKGDRTAGS\n" +
+            "P30556          --IKRIQDDCPK--------\n" +
+            "                :::: :: :*: *: **:\n";
+
+    static final String FASTA = ">seq1 first sequence\nACDEF-GHik\nLMN--\n\n" +
+            ">seq2\n-----\r\nGHIKLMNPQR\n" +
+            ">seq3;with annotation\nacdefghiklmnpqr\n";
+
+    static File write(String content, String suffix) throws IOException {
+        File file = File.createTempFile("mapped", suffix);
+        file.deleteOnExit();
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+        return file;
+    }
+
+    void assertSameAlignment(EnumSeq.Alignment expected, MappedAlnReader reader) {
+        MappedAlnReader.Matrix matrix = reader.getMatrix();
+        assertEquals(expected.getHeight(), matrix.getHeight());
+        assertEquals(expected.getWidth(), matrix.getWidth());
+        assertArrayEquals(expected.getNames(), matrix.getNames());
+        for (int col = 0; col < expected.getWidth(); col ++) {
+            assertArrayEquals(expected.getColumn(col), matrix.getColumn(col));
+            assertEquals(expected.getOccupancy(col), matrix.getOccupancy(col));
+        }
+        assertEquals(expected, matrix.toAlignment());
+        int row = 0;
+        for (Iterator<EnumSeq.Gappy<Enumerable>> iter = reader.iterator(); iter.hasNext(); row ++) {
+            EnumSeq.Gappy<Enumerable> seq = iter.next();
+            assertEquals(expected.getEnumSeq(row), seq);
+            assertEquals(expected.getEnumSeq(row).getName(), seq.getName());
+        }
+        assertEquals(expected.getHeight(), row);
+    }
+
+    @Test
+    void clustal() throws Exception {
+        File file = write(CLUSTAL, ".aln");
+        MappedAlnReader reader = new MappedAlnReader(file.getPath(), Enumerable.aacid);
+        assertEquals(Utils.Format.CLUSTAL, reader.getFormat());
+        assertEquals(3, reader.getHeight());
+        assertEquals(48, reader.getWidth());
+        assertSameAlignment(Utils.loadAlignment(file.getPath(), Enumerable.aacid), reader);
+    }
+
+    @Test
+    void fasta() throws Exception {
+        File file = write(FASTA, ".fa");
+        MappedAlnReader reader = new MappedAlnReader(file.getPath(), Enumerable.aacid);
+        assertEquals(Utils.Format.FASTA, reader.getFormat());
+        assertArrayEquals(new String[] {"seq1", "seq2", "seq3"}, reader.getNames());
+        assertSameAlignment(Utils.loadAlignment(file.getPath(), Enumerable.aacid), reader);
+        assertEquals(MappedAlnReader.GAP, reader.getMatrix().get(0, 5));
+        assertEquals(">seq1 first sequence", reader.getEnumSeq(0).getInfo());
+    }
+
+    @Test
+    void invalid() throws Exception {
+        File file = write(">seq1\nACDZ\n>seq2\nACDE\n", ".fa");
+        MappedAlnReader reader = new MappedAlnReader(file.getPath(), Enumerable.aacid);
+        assertNotNull(reader.getEnumSeq(1));
+        assertThrows(RuntimeException.class, () -> reader.getEnumSeq(0));
+        File uneven = write(">seq1\nACD\n>seq2\nACDE\n", ".fa");
+        assertThrows(RuntimeException.class, () -> new MappedAlnReader(uneven.getPath(), Enumerable.aacid));
+    }
+}
@@ -0,0 +1,61 @@
+package dat.phylo;
+
+import asr.ASRRuntimeException;
+import dat.Enumerable;
+import dat.file.Newick;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodedTreeInstanceTest {
+
+    Tree tree = Newick.parse("((A:0.6,((B:3.3,(C:1.0,D:2.5)cd:1.8)bcd:5,((E:3.9,F:4.5)ef:2.5,G:0.3)efg:7)X:3.2)Y:0.5,H:1.1)I:0.2");
+
+    TreeInstance createInstance() {
+        Object[] values = new Object[tree.getSize()];
+        values[tree.getIndex("A")] = 'K';
+        values[tree.getIndex("B")] = 'R';
+        values[tree.getIndex("C")] = 'K';
+        values[tree.getIndex("E")] = 'W';
+        values[tree.getIndex("F")] = 'R';
+        values[tree.getIndex("H")] = 'K'; // D and G are un-instantiated
+        return new TreeInstance(tree, values);
+    }
+
+    @Test
+    void encode() {
+        for (boolean recodeNull : new boolean[] {false, true}) {
+            TreeInstance ti = createInstance();
+            CodedTreeInstance cti = CodedTreeInstance.encode(ti, recodeNull);
+            Object[] key = createInstance().encode(recodeNull);
+            assertArrayEquals(key, cti.getSymbols());
+            for (int idx : tree) { // same codes as the object-based encoding, and the original remains untouched
+                Object val = ti.getInstance(idx);
+                if (val != null) {
+                    assertEquals(val, cti.getInstance(idx));
+                    assertEquals(ti.getIndexByValue(val), cti.getCode(idx));
+                } else if (recodeNull && tree.isLeaf(idx))
+                    assertEquals(key.length - 1, cti.getCode(idx));
+                else
+                    assertEquals(CodedTreeInstance.NULL, cti.getCode(idx));
+            }
+        }
+    }
+
+    @Test
+    void toTreeInstance() {
+        TreeInstance ti = createInstance();
+        CodedTreeInstance cti = new CodedTreeInstance(ti, Enumerable.aacid);
+        assertEquals(Enumerable.aacid.getIndex('W'), cti.getCode(tree.getIndex("E")));
+        TreeInstance back = cti.toTreeInstance();
+        for (int idx : tree)
+            assertEquals(ti.getInstance(idx), back.getInstance(idx));
+    }
+
+    @Test
+    void invalidValue() {
+        Object[] values = new Object[tree.getSize()];
+        values[tree.getIndex("A")] = 'Z';
+        assertThrows(ASRRuntimeException.class, () -> new CodedTreeInstance(new TreeInstance(tree, values), Enumerable.nacid));
+    }
+}
@@ -0,0 +1,143 @@
+package dat.pog;
+
+import asr.ASRException;
+import asr.Prediction;
+import dat.EnumSeq;
+import dat.Enumerable;
+import dat.file.Utils;
+import dat.phylo.Tree;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrozenPOGraphTest {
+
+    POGraph pog = null;
+
+    /*
+        /--B--\   /-F-\
+    -1-A---C---E-G---H-9
+        \--D--/ \-----/
+     */
+    @BeforeEach
+    void setupPOG() {
+        pog = new POGraph(9);
+        pog.setName("Test");
+        String[] nodenames = new String[] {"A", "B", "C", "D", "E", "F", "G", "H"};
+        for (int i = 0; i < nodenames.length; i ++) {
+            Node n = new POGraph.StatusNode();
+            n.setLabel(nodenames[i]);
+            pog.addNode(i < 5 ? i : i + 1, n); // index 5 is not a node
+        }
+        pog.addEdge(-1, 0, new POGraph.StatusEdge(true, 1));
+        pog.addEdge(0, 1, new POGraph.StatusEdge(false, 2));
+        pog.addEdge(0, 2, new POGraph.BidirEdge(true, true));
+        pog.addEdge(0, 3, new POGraph.BidirEdge(false, true));
+        pog.addEdge(1, 4, new POGraph.StatusEdge(true, 0.5));
+        pog.addEdge(2, 4, new POGraph.StatusEdge(true, 1.5));
+        pog.addEdge(3, 4); // structure only
+        pog.addEdge(4, 6, new POGraph.StatusEdge(true, 1));
+        pog.addEdge(4, 8, new POGraph.StatusEdge(false, 3));
+        pog.addEdge(6, 7, new POGraph.StatusEdge(true, 1));
+        pog.addEdge(7, 8, new POGraph.StatusEdge(true, 1));
+        pog.addEdge(8, 9, new POGraph.StatusEdge(true, 0));
+        pog.getEdge(0, 2).setLabel("label");
+    }
+
+    @Test
+    void structure() {
+        FrozenPOGraph fpog = pog.freeze();
+        assertEquals(pog.maxsize(), fpog.maxsize());
+        assertEquals(pog.size(), fpog.size());
+        assertEquals(pog.getEdgeCount(), fpog.getEdgeCount());
+        assertArrayEquals(pog.getForward(), fpog.getForward());
+        assertArrayEquals(pog.getBackward(), fpog.getBackward());
+        for (int idx = 0; idx < pog.maxsize(); idx ++) {
+            assertEquals(pog.isNode(idx), fpog.isNode(idx));
+            if (!pog.isNode(idx))
+                continue;
+            assertSame(pog.getNode(idx), fpog.getNode(idx));
+            assertEquals(pog.isStartNode(idx), fpog.isStartNode(idx));
+            assertEquals(pog.isEndNode(idx), fpog.isEndNode(idx));
+            assertArrayEquals(pog.getForward(idx), fpog.getForward(idx));
+            assertArrayEquals(pog.getBackward(idx), fpog.getBackward(idx));
+            for (int to = 0; to <= pog.maxsize(); to ++)
+                assertEquals(pog.isEdge(idx, to), fpog.isEdge(idx, to));
+        }
+        assertFalse(fpog.isEdgeInstance(fpog.getEdgeSlot(3, 4)));
+        assertTrue(fpog.getReciprocated(fpog.getEdgeSlot(0, 2)));
+        assertFalse(fpog.getReciprocated(fpog.getEdgeSlot(0, 3)));
+        assertEquals(-1, fpog.getEdgeSlot(1, 2));
+        assertEquals(1.5, fpog.getWeight(fpog.getEdgeSlot(2, 4)));
+    }
+
+    @Test
+    void thaw() {
+        POGraph thawed = pog.freeze().thaw();
+        assertEquals(pog, thawed);
+        assertEquals(pog.getName(), thawed.getName());
+        for (int from = -1; from < pog.maxsize(); from ++) {
+            if (from >= 0 && !pog.isNode(from))
+                continue;
+            for (int to = 0; to <= pog.maxsize(); to ++) {
+                if (!pog.isEdge(from, to))
+                    continue;
+                POGraph.StatusEdge edge = pog.getEdge(from, to);
+                POGraph.StatusEdge copy = thawed.getEdge(from, to);
+                if (edge == null) {
+                    assertNull(copy);
+                    continue;
+                }
+                assertEquals(edge.getClass(), copy.getClass());
+                assertEquals(edge.getReciprocated(), copy.getReciprocated());
+                assertEquals(edge.getWeight(), copy.getWeight());
+                assertEquals(edge.getLabel(), copy.getLabel());
+            }
+        }
+        assertTrue(((POGraph.BidirEdge) thawed.getEdge(0, 3)).isBackward());
+        assertFalse(((POGraph.BidirEdge) thawed.getEdge(0, 3)).isForward());
+    }
+
+    @Test
+    void getMostSupported() {
+        FrozenPOGraph fpog = pog.freeze();
+        assertArrayEquals(pog.getMostSupported(), fpog.getMostSupported());
+        Random rand = new Random(1);
+        for (int t = 0; t < 20; t ++) { // re-weight edges, in both forms
+            for (int from = -1; from < pog.maxsize(); from ++) {
+                if (from >= 0 && !pog.isNode(from))
+                    continue;
+                for (int to = 0; to <= pog.maxsize(); to ++) {
+                    int slot = fpog.getEdgeSlot(from, to);
+                    if (slot < 0 || pog.getEdge(from, to) == null)
+                        continue;
+                    double w = rand.nextInt(5);
+                    pog.getEdge(from, to).setWeight(w);
+                    fpog.setWeight(slot, w);
+                }
+            }
+            assertArrayEquals(pog.getMostSupported(), fpog.getMostSupported());
+        }
+    }
+
+    @Test
+    void getConsensusFrozen() throws IOException, ASRException {
+        EnumSeq.Alignment aln = Utils.loadAlignment("data/3_2_1_1_filt.aln", Enumerable.aacid);
+        Tree phylo = Utils.loadTree("data/3_2_1_1_filt.nwk");
+        Prediction expected = Prediction.PredictByBidirEdgeParsimony(new POGTree(aln, phylo));
+        Prediction actual = Prediction.PredictByBidirEdgeParsimony(new POGTree(aln, phylo));
+        actual.freeze();
+        assertTrue(actual.isFrozen());
+        for (int idx : phylo.getAncestors())
+            assertArrayEquals(expected.getConsensus(idx), actual.getConsensus(idx));
+        assertEquals(expected.getAncestor(0), actual.getAncestor(0));
+        actual.thaw();
+        assertFalse(actual.isFrozen());
+        for (int idx : phylo.getAncestors())
+            assertArrayEquals(expected.getConsensus(idx), actual.getConsensus(idx));
+    }
+}
@@ -0,0 +1,82 @@
+package json;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static json.JSONPullParser.Event.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class JSONPullParserTest {
+
+    static final String TEXT = "{\"Name\":\"N0\", \"Size\":3, \"Items\":[{\"A\":1},{\"B\":[true,null]}, 2.5],\n \"Empty\":{}, \"None\":[]}";
+
+    @Test
+    void events() {
+        JSONPullParser parser = new JSONPullParser(new StringReader(TEXT));
+        JSONPullParser.Event[] expected = new JSONPullParser.Event[] {
+                START_OBJECT, KEY, VALUE, KEY, VALUE, KEY, START_ARRAY,
+                START_OBJECT, KEY, VALUE, END_OBJECT,
+                START_OBJECT, KEY, START_ARRAY, VALUE, VALUE, END_ARRAY, END_OBJECT,
+                VALUE, END_ARRAY, KEY, START_OBJECT, END_OBJECT, KEY, START_ARRAY, END_ARRAY, END_OBJECT, END_DOCUMENT};
+        for (int i = 0; i < expected.length; i ++) {
+            assertEquals(expected[i], parser.next());
+            if (i == 1)
+                assertEquals("Name", parser.getKey());
+            else if (i == 2)
+                assertEquals("N0", parser.getValue());
+            else if (i == 4)
+                assertEquals(3, parser.getValue());
+            else if (i == 15)
+                assertEquals(JSONObject.NULL, parser.getValue());
+            else if (i == 18)
+                assertEquals(2.5, parser.getValue());
+        }
+        assertEquals(0, parser.getDepth());
+    }
+
+    @Test
+    void readValue() {
+        JSONPullParser parser = new JSONPullParser(new StringReader(TEXT));
+        assertEquals(START_OBJECT, parser.next());
+        assertEquals(KEY, parser.next());
+        parser.skipValue();
+        assertEquals(KEY, parser.next());
+        assertEquals(3, parser.readValue());
+        assertEquals(KEY, parser.next());
+        assertEquals(START_ARRAY, parser.next());
+        assertTrue(parser.hasNext());
+        assertEquals(1, ((JSONObject) parser.readValue()).getInt("A"));
+        assertTrue(parser.hasNext());
+        assertEquals(2, ((JSONObject) parser.readValue()).getJSONArray("B").length());
+        assertEquals(2.5, parser.readValue());
+        assertFalse(parser.hasNext());
+        assertEquals(END_ARRAY, parser.next());
+        assertEquals(KEY, parser.next());
+        assertEquals(0, ((JSONObject) parser.readValue()).length());
+        assertEquals(KEY, parser.next());
+        assertEquals(START_ARRAY, parser.next());
+        assertFalse(parser.hasNext());
+        assertThrows(JSONException.class, parser::readValue);
+    }
+
+    @Test
+    void invalid() {
+        JSONPullParser parser = new JSONPullParser(new StringReader("{\"A\" 1}"));
+        assertEquals(START_OBJECT, parser.next());
+        assertThrows(JSONException.class, parser::next);
+        JSONPullParser parser2 = new JSONPullParser(new StringReader("[1}"));
+        assertEquals(START_ARRAY, parser2.next());
+        assertEquals(VALUE, parser2.next());
+        assertThrows(JSONException.class, parser2::next);
+    }
+
+    @Test
+    void writeValue() {
+        JSONObject json = new JSONObject(TEXT);
+        StringWriter sw = new StringWriter();
+        new JSONWriter(sw).array().value(json).value(json.getJSONArray("Items")).value("N1").endArray();
+        assertEquals("[" + json + "," + json.getJSONArray("Items") + ",\"N1\"]", sw.toString());
+    }
+}